@@ -0,0 +1,63 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.definition;
+
+import static org.kframework.Collections.*;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.Stream;
+import org.kframework.attributes.Att;
+import org.kframework.attributes.Location;
+import org.kframework.attributes.Source;
+
+/**
+ * A 128-bit hash of the syntax of a module: its productions, sort declarations, priorities and
+ * associativity. Two modules with the same fingerprint can be assumed to parse the same sentences
+ * the same way, so the fingerprint can be used to validate or key caches of anything derived from
+ * the grammar of a module, e.g., parses, scanners and parse tables.
+ *
+ * <p>The fingerprint is computed from the textual form of the syntax, sorted, and does not depend
+ * on the order of sentences, on the locations of sentences, nor on the JVM which computed it, so it
+ * can be compared to fingerprints saved by a previous run of K. Use {@link Module#fingerprint()}
+ * rather than {@link #of}, so that it is only computed once per module.
+ */
+public record GrammarFingerprint(long high, long low) implements Serializable {
+
+  public static GrammarFingerprint of(Module m) {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    section(hasher, "productions", stream(m.productions()).map(p -> p.klabel() + " " + p));
+    section(hasher, "sorts", stream(m.sortDeclarations()).map(GrammarFingerprint::sortDeclaration));
+    section(
+        hasher,
+        "priorities",
+        m.priorities().relations().entrySet().stream()
+            .flatMap(e -> e.getValue().stream().map(t -> e.getKey() + " < " + t)));
+    section(hasher, "left", stream(m.leftAssoc()).map(p -> p._1() + " " + p._2()));
+    section(hasher, "right", stream(m.rightAssoc()).map(p -> p._1() + " " + p._2()));
+    ByteBuffer bytes = ByteBuffer.wrap(hasher.hash().asBytes());
+    return new GrammarFingerprint(bytes.getLong(), bytes.getLong());
+  }
+
+  private static String sortDeclaration(SyntaxSort s) {
+    Att att = s.att().remove(Att.SOURCE(), Source.class).remove(Att.LOCATION(), Location.class);
+    return s.params().mkString("{", ",", "}") + s.sort() + att.postfixString();
+  }
+
+  private static void section(Hasher hasher, String name, Stream<String> items) {
+    hasher.putString(name, StandardCharsets.UTF_8).putByte((byte) 0);
+    // separate items with a byte that cannot occur in UTF-8, so that they cannot run together
+    items.sorted().forEach(s -> hasher.putString(s, StandardCharsets.UTF_8).putByte((byte) 0xff));
+    hasher.putByte((byte) 0);
+  }
+
+  /**
+   * @return The fingerprint as 32 hexadecimal digits, e.g., to name a file.
+   */
+  @Override
+  public String toString() {
+    return String.format("%016x%016x", high, low);
+  }
+}
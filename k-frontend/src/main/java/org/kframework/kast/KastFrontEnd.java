@@ -251,14 +251,24 @@ public class KastFrontEnd extends FrontEnd {
               kread.showTokens(parsingMod, def, FileUtil.read(stringToParse), source));
         else {
           K parsed =
-              kread.prettyRead(
-                  parsingMod,
-                  sort,
-                  startSymbolLocation,
-                  def,
-                  source,
-                  FileUtil.read(stringToParse),
-                  options.debugParse);
+              options.bisonParser
+                  ? kread.bisonRead(
+                      parsingMod,
+                      options.module,
+                      sort,
+                      startSymbolLocation,
+                      def,
+                      source,
+                      FileUtil.read(stringToParse),
+                      options.debugParse)
+                  : kread.prettyRead(
+                      parsingMod,
+                      sort,
+                      startSymbolLocation,
+                      def,
+                      source,
+                      FileUtil.read(stringToParse),
+                      options.debugParse);
 
           if (options.expandMacros) {
             parsed =
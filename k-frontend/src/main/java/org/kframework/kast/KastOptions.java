@@ -101,6 +101,14 @@ public final class KastOptions {
       description = "Generate a Bison/Flex GLR parser for the specified module and sort.")
   public boolean genGlrParser;
 
+  @Parameter(
+      names = "--bison-parser",
+      description =
+          "Parse programs with the Bison parser generated by kompile --gen-bison-parser for the"
+              + " module and sort, if there is one. Falls back to the Earley parser if there is"
+              + " none, or if it rejects the program.")
+  public boolean bisonParser;
+
   public File bisonOutputFile() {
     checkSingleFile();
     return files.get().resolveWorkingDirectory(parameters.get(0));
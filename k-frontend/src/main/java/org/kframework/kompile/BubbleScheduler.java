@@ -0,0 +1,230 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.kompile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import org.kframework.attributes.Att;
+import org.kframework.attributes.Source;
+import org.kframework.definition.Bubble;
+import org.kframework.definition.Module;
+import org.kframework.definition.Sentence;
+import org.kframework.parser.inner.ParseCache;
+import org.kframework.parser.inner.ParseCache.ParsedSentence;
+import org.kframework.parser.inner.ParseInModule;
+
+/**
+ * Parses the bubbles of every module of a definition with a single pool of threads.
+ *
+ * <p>All the bubbles are put in one queue, grouped by module, the most expensive modules first,
+ * and the most expensive bubbles of each module first. The threads all take their next bubble from
+ * the queue, so they move on to the next module together once the bubbles of a module are all
+ * taken, and every thread stays busy until the end. The parser of a module is created by the first
+ * thread which needs it, and released as soon as the last bubble of the module is parsed, so only
+ * about as many parsers and scanners as there are threads are alive at a time. The cost of a bubble
+ * is the time it took to parse the sentence at the same location last time, if the parse cache has
+ * one, and is otherwise estimated from its length. The threads belong to a work-stealing pool,
+ * which also runs any parallel work started while parsing.
+ */
+final class BubbleScheduler implements AutoCloseable {
+
+  /**
+   * The bubbles of a module which are not in the parse cache.
+   *
+   * @param cache The parse cache of the parser of the module, which is filled while parsing.
+   * @param parser Creates and initializes the parser of the module.
+   */
+  record ModuleBubbles(
+      Module module, List<Bubble> bubbles, ParseCache cache, Supplier<ParseInModule> parser) {}
+
+  /** Parses one bubble of a module. */
+  @FunctionalInterface
+  interface BubbleParser {
+    Stream<? extends Sentence> parse(ParseInModule parser, ParseCache cache, Bubble b);
+  }
+
+  private static final class ModuleState {
+    final ModuleBubbles bubbles;
+    final AtomicInteger remaining;
+    final Set<Sentence> parsed = ConcurrentHashMap.newKeySet();
+    private volatile ParseInModule parser;
+    private boolean released = false;
+
+    ModuleState(ModuleBubbles bubbles) {
+      this.bubbles = bubbles;
+      this.remaining = new AtomicInteger(bubbles.bubbles().size());
+    }
+
+    // only locks while the parser is created, since every thread parsing the module calls this
+    ParseInModule parser() {
+      ParseInModule p = parser;
+      if (p == null) {
+        synchronized (this) {
+          p = parser;
+          if (p == null) {
+            p = bubbles.parser().get();
+            parser = p;
+          }
+        }
+      }
+      return p;
+    }
+
+    synchronized void release(Consumer<ParseInModule> release) {
+      if (parser != null && !released) {
+        released = true;
+        release.accept(parser);
+      }
+    }
+  }
+
+  private record Task(ModuleState module, Bubble bubble, double cost) {}
+
+  private record ModuleTasks(List<Task> tasks, double cost) {}
+
+  private final ForkJoinPool pool;
+  private final int threads;
+
+  /**
+   * @param threads The number of threads to parse with.
+   */
+  BubbleScheduler(int threads) {
+    this.threads = Math.max(1, threads);
+    this.pool = new ForkJoinPool(this.threads);
+  }
+
+  /** Apply a function to several items in parallel, using the threads of this scheduler. */
+  <T, R> List<R> map(Collection<T> items, Function<T, R> f) {
+    return pool.submit(() -> items.parallelStream().map(f).toList()).join();
+  }
+
+  /**
+   * Parse the bubbles of several modules.
+   *
+   * @param modules The bubbles to parse, by module.
+   * @param parse Parses a single bubble and records the result in the cache.
+   * @param release Called with the parser of each module once all of its bubbles are parsed, or
+   *     parsing failed, e.g. to close it.
+   * @return The sentences parsed from the bubbles of each module, by module name.
+   */
+  Map<String, Set<Sentence>> parse(
+      List<ModuleBubbles> modules, BubbleParser parse, Consumer<ParseInModule> release) {
+    List<ModuleState> states = new ArrayList<>();
+    for (ModuleBubbles m : modules) {
+      if (!m.bubbles().isEmpty()) {
+        states.add(new ModuleState(m));
+      }
+    }
+    List<Task> tasks = tasks(states);
+    AtomicInteger next = new AtomicInteger(0);
+    Runnable worker =
+        () -> {
+          for (int i = next.getAndIncrement(); i < tasks.size(); i = next.getAndIncrement()) {
+            Task task = tasks.get(i);
+            ModuleState module = task.module();
+            try {
+              parse
+                  .parse(module.parser(), module.bubbles.cache(), task.bubble())
+                  .forEach(module.parsed::add);
+            } catch (RuntimeException | Error e) {
+              // let the other threads stop at their next task
+              next.set(tasks.size());
+              throw e;
+            }
+            if (module.remaining.decrementAndGet() == 0) {
+              module.release(release);
+            }
+          }
+        };
+    List<ForkJoinTask<?>> workers = new ArrayList<>();
+    for (int i = 0; i < Math.min(threads, tasks.size()); i++) {
+      workers.add(pool.submit(worker));
+    }
+    RuntimeException failure = null;
+    for (ForkJoinTask<?> w : workers) {
+      try {
+        w.join();
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure != null) {
+      // release the parsers of the modules which were not finished
+      for (ModuleState module : states) {
+        module.release(release);
+      }
+      throw failure;
+    }
+    Map<String, Set<Sentence>> result = new HashMap<>();
+    for (ModuleState module : states) {
+      result.put(module.bubbles.module().name(), module.parsed);
+    }
+    return result;
+  }
+
+  // all the bubbles of all the modules, grouped by module, most expensive first
+  private static List<Task> tasks(List<ModuleState> states) {
+    // the time taken by previous parses at each location, and the average time per character
+    Map<Position, Long> previous = new HashMap<>();
+    long totalTime = 0, totalLength = 0;
+    for (ModuleState module : states) {
+      Map<String, ParsedSentence> cache = module.bubbles.cache().cache();
+      synchronized (cache) {
+        for (Map.Entry<String, ParsedSentence> e : cache.entrySet()) {
+          ParsedSentence s = e.getValue();
+          if (s.parseTime() > 0) {
+            previous.merge(new Position(s.source(), s.startLine()), s.parseTime(), Math::max);
+            totalTime += s.parseTime();
+            totalLength += e.getKey().length();
+          }
+        }
+      }
+    }
+    double timePerChar = totalLength == 0 ? 1 : (double) totalTime / totalLength;
+
+    List<ModuleTasks> modules = new ArrayList<>();
+    for (ModuleState module : states) {
+      List<Task> tasks = new ArrayList<>();
+      double total = 0;
+      for (Bubble b : module.bubbles.bubbles()) {
+        Position pos =
+            new Position(
+                b.att().getOptional(Att.SOURCE(), Source.class).orElse(null),
+                b.att().get(Att.CONTENT_START_LINE(), Integer.class));
+        Long time = previous.get(pos);
+        double cost = time != null ? time : b.contents().length() * timePerChar;
+        tasks.add(new Task(module, b, cost));
+        total += cost;
+      }
+      tasks.sort(Comparator.comparingDouble(Task::cost).reversed());
+      modules.add(new ModuleTasks(tasks, total));
+    }
+    modules.sort(Comparator.comparingDouble(ModuleTasks::cost).reversed());
+    List<Task> tasks = new ArrayList<>();
+    for (ModuleTasks module : modules) {
+      tasks.addAll(module.tasks());
+    }
+    return tasks;
+  }
+
+  private record Position(Source source, int startLine) {}
+
+  @Override
+  public void close() {
+    pool.shutdown();
+  }
+}
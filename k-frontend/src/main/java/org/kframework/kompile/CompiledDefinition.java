@@ -3,7 +3,11 @@ package org.kframework.kompile;
 
 import static org.kframework.Collections.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
@@ -28,8 +32,11 @@ import org.kframework.kore.VisitK;
 import org.kframework.main.GlobalOptions;
 import org.kframework.parser.TreeNodesToKORE;
 import org.kframework.parser.inner.ParseInModule;
+import org.kframework.parser.inner.ParserPool;
 import org.kframework.parser.inner.RuleGrammarGenerator;
+import org.kframework.parser.inner.kernel.Scanner;
 import org.kframework.parser.outer.Outer;
+import org.kframework.utils.BinaryLoader;
 import org.kframework.utils.StringUtil;
 import org.kframework.utils.errorsystem.KEMException;
 import org.kframework.utils.errorsystem.KExceptionManager;
@@ -44,7 +51,7 @@ import scala.util.Either;
  * A class representing a compiled definition. It has everything needed for executing and parsing
  * programs.
  */
-public class CompiledDefinition implements Serializable {
+public class CompiledDefinition implements Serializable, AutoCloseable {
   public final KompileOptions kompileOptions;
   private final OuterParsingOptions outerParsingOptions;
   private final transient GlobalOptions globalOptions;
@@ -58,6 +65,21 @@ public class CompiledDefinition implements Serializable {
   private final Map<String, Rule> cachedcompiledPatterns = new ConcurrentHashMap<>();
   private final Map<String, Rule> cachedParsedPatterns = new ConcurrentHashMap<>();
 
+  /** The file in the kompiled directory containing the precompiled program parser. */
+  public static final String PROGRAM_PARSER = "program-parser.bin";
+
+  /** The file in the kompiled directory containing the scanner of the program parser. */
+  public static final String PROGRAM_SCANNER = "program-scanner";
+
+  private transient ParseInModule.Precompiled programParser;
+  private transient boolean programParserLoaded;
+  // the last module found to be the seed module of programParser, to skip comparing them again
+  private transient volatile Module programParserModule;
+
+  // the maximum number of idle program parsers kept by `parsers`
+  private static final int PARSER_POOL_CAPACITY = 8;
+  private transient ParserPool parsers;
+
   public CompiledDefinition(
       KompileOptions kompileOptions,
       OuterParsingOptions outerParsingOptions,
@@ -199,25 +221,181 @@ public class CompiledDefinition implements Serializable {
       String startSymbolLocation,
       KExceptionManager kem,
       FileUtil files,
+      GlobalOptions globalOptions,
       String s,
       Source source,
       boolean partialParseDebug) {
-    try (ParseInModule parseInModule =
-        RuleGrammarGenerator.getCombinedGrammar(module, files, partialParseDebug)) {
-      Tuple2<Either<Set<KEMException>, K>, Set<KEMException>> res =
-          parseInModule.parseString(s, programStartSymbol, startSymbolLocation, source);
-      kem.addAllKException(
-          res._2().stream().map(e -> e.getKException()).collect(Collectors.toSet()));
-      if (res._1().isLeft()) {
-        throw res._1().left().get().iterator().next();
+    if (partialParseDebug) {
+      // debugging parsers are rare, so they are not worth keeping around
+      try (ParseInModule parseInModule =
+          getProgramParser(module, programStartSymbol, kem, files, globalOptions, true)) {
+        return parseSingleTerm(
+            parseInModule, programStartSymbol, startSymbolLocation, kem, s, source);
+      }
+    }
+    try (ParserPool.Lease lease =
+        parsers()
+            .acquire(
+                module,
+                programStartSymbol,
+                () ->
+                    initialized(
+                        getProgramParser(
+                            module, programStartSymbol, kem, files, globalOptions, false),
+                        globalOptions))) {
+      return parseSingleTerm(
+          lease.parser(), programStartSymbol, startSymbolLocation, kem, s, source);
+    }
+  }
+
+  private K parseSingleTerm(
+      ParseInModule parseInModule,
+      Sort programStartSymbol,
+      String startSymbolLocation,
+      KExceptionManager kem,
+      String s,
+      Source source) {
+    // the scanner is owned by the parser, which closes it when it is evicted from the pool
+    Tuple2<Either<Set<KEMException>, K>, Set<KEMException>> res =
+        parseInModule.parseString(
+            s,
+            programStartSymbol,
+            startSymbolLocation,
+            parseInModule.getScanner(),
+            source,
+            1,
+            1,
+            false);
+    kem.addAllKException(
+        res._2().stream().map(e -> e.getKException()).collect(Collectors.toSet()));
+    if (res._1().isLeft()) {
+      throw res._1().left().get().iterator().next();
+    }
+    return new TreeNodesToKORE(Outer::parseSort).down(res._1().right().get());
+  }
+
+  /**
+   * Use the precompiled program parser if it was generated for this module and start symbol,
+   * otherwise generate a new parser.
+   */
+  private ParseInModule getProgramParser(
+      Module module,
+      Sort startSymbol,
+      KExceptionManager kem,
+      FileUtil files,
+      GlobalOptions globalOptions,
+      boolean partialParseDebug) {
+    ParseInModule.Precompiled precompiled = loadProgramParser(kem, files);
+    if (precompiled != null
+        && precompiled.startSymbol().equals(startSymbol)
+        && isProgramParserModule(precompiled, module)) {
+      return ParseInModule.fromPrecompiled(
+          precompiled,
+          files.resolveKompiled(PROGRAM_SCANNER),
+          files,
+          globalOptions,
+          partialParseDebug);
+    }
+    return RuleGrammarGenerator.getCombinedGrammar(module, files, partialParseDebug);
+  }
+
+  // compares the modules by name first, and only once by value for each module
+  private boolean isProgramParserModule(ParseInModule.Precompiled precompiled, Module module) {
+    if (module == programParserModule) {
+      return true;
+    }
+    if (!precompiled.seedModule().name().equals(module.name())
+        || !precompiled.seedModule().equals(module)) {
+      return false;
+    }
+    programParserModule = module;
+    return true;
+  }
+
+  /**
+   * Precompute the grammar tables and the scanner of the default program parser, for the main
+   * syntax module and the start symbol of the definition, and save them to the kompiled directory,
+   * so that kast does not have to generate them on every invocation.
+   */
+  public void saveProgramParser(KExceptionManager kem, FileUtil files) {
+    File parserFile = files.resolveKompiled(PROGRAM_PARSER);
+    File scannerFile = files.resolveKompiled(PROGRAM_SCANNER);
+    // make sure no stale parser is left behind, e.g. if the definition has no program syntax
+    parserFile.delete();
+    scannerFile.delete();
+    Option<Module> module = programParsingModuleFor(mainSyntaxModuleName());
+    if (!module.isDefined()) {
+      return;
+    }
+    try (ParseInModule parser = RuleGrammarGenerator.getCombinedGrammar(module.get(), files)) {
+      Scanner scanner = parser.getScanner(globalOptions);
+      ParseInModule.Precompiled precompiled = parser.precompile(scanner, programStartSymbol);
+      // the JVM scanner is rebuilt from the tokens of the parser when it is loaded
+      if (globalOptions.scanner != GlobalOptions.ScannerBackend.JVM) {
+        // the scanner is moved into place before the parser which refers to it is written, so that
+        // kast only ever finds complete files
+        File tmp = File.createTempFile("tmp-scanner-", "", scannerFile.getParentFile());
+        scanner.serialize(tmp);
+        tmp.setExecutable(true);
+        Files.move(tmp.toPath(), scannerFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
       }
-      return new TreeNodesToKORE(Outer::parseSort).down(res._1().right().get());
+      new BinaryLoader(kem).saveOrDie(parserFile, precompiled);
+    } catch (IOException e) {
+      throw KEMException.criticalError("Could not write to " + scannerFile, e);
+    }
+  }
+
+  // builds the grammar and starts the scanner of a parser before it is added to the pool
+  private static ParseInModule initialized(ParseInModule parser, GlobalOptions globalOptions) {
+    parser.getScanner(globalOptions);
+    parser.initialize();
+    return parser;
+  }
+
+  private synchronized ParseInModule.Precompiled loadProgramParser(
+      KExceptionManager kem, FileUtil files) {
+    if (!programParserLoaded) {
+      programParser =
+          new BinaryLoader(kem)
+              .loadCache(ParseInModule.Precompiled.class, files.resolveKompiled(PROGRAM_PARSER));
+      programParserLoaded = true;
+    }
+    return programParser;
+  }
+
+  public String showTokens(
+      Module module, FileUtil files, GlobalOptions globalOptions, String s, Source source) {
+    try (ParserPool.Lease lease =
+        parsers()
+            .acquire(
+                module,
+                null,
+                () ->
+                    initialized(
+                        RuleGrammarGenerator.getCombinedGrammar(module, files), globalOptions))) {
+      return lease.parser().tokenizeString(s, source);
     }
   }
 
-  public String showTokens(Module module, FileUtil files, String s, Source source) {
-    try (ParseInModule parseInModule = RuleGrammarGenerator.getCombinedGrammar(module, files)) {
-      return parseInModule.tokenizeString(s, source);
+  /**
+   * @return The pool of program parsers used by {@link #parseSingleTerm} and {@link #showTokens}.
+   */
+  public synchronized ParserPool parsers() {
+    if (parsers == null) {
+      parsers = new ParserPool(PARSER_POOL_CAPACITY);
+    }
+    return parsers;
+  }
+
+  /** Close the program parsers of this definition, e.g. when it is unloaded by the K server. */
+  @Override
+  public void close() {
+    ParserPool pool;
+    synchronized (this) {
+      pool = parsers;
+    }
+    if (pool != null) {
+      pool.close();
     }
   }
 
@@ -9,17 +9,17 @@ import static org.kframework.kore.KORE.*;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.apache.commons.collections4.ListUtils;
@@ -56,9 +56,13 @@ import org.kframework.parser.ParserUtils;
 import org.kframework.parser.TreeNodesToKORE;
 import org.kframework.parser.inner.ParseCache;
 import org.kframework.parser.inner.ParseCache.ParsedSentence;
+import org.kframework.parser.inner.ParseCacheStore;
 import org.kframework.parser.inner.ParseInModule;
 import org.kframework.parser.inner.RuleGrammarGenerator;
+import org.kframework.parser.inner.RuleParsingProfiler;
+import org.kframework.parser.inner.disambiguation.DisambiguationMemo;
 import org.kframework.parser.inner.kernel.Scanner;
+import org.kframework.parser.inner.kernel.SharedScanners;
 import org.kframework.parser.json.JsonParser;
 import org.kframework.parser.outer.Outer;
 import org.kframework.utils.BinaryLoader;
@@ -101,6 +105,10 @@ public class DefinitionParsing {
 
   public final AtomicInteger parsedBubbles = new AtomicInteger(0);
   public final AtomicInteger cachedBubbles = new AtomicInteger(0);
+  public final AtomicInteger reparsedBubbles = new AtomicInteger(0);
+  public final AtomicLong prunedStates = new AtomicLong(0);
+  public final DisambiguationMemo.Stats memoStats = new DisambiguationMemo.Stats();
+  public final RuleParsingProfiler profiler = new RuleParsingProfiler();
   private final boolean profileRules;
   private final List<File> lookupDirectories;
   private final InnerParsingOptions innerParsingOptions;
@@ -158,10 +166,6 @@ public class DefinitionParsing {
     if (!def.getModule(entryPointModule).isDefined()) {
       throw KEMException.criticalError("Module " + entryPointModule + " does not exist.");
     }
-    if (profileRules) {
-      // create the temp dir ahead of parsing to avoid a race condition
-      files.resolveTemp(".");
-    }
     Stream<Module> modules = Stream.of(def.getModule(mainModule.name()).get());
     modules =
         Stream.concat(modules, stream(def.getModule(mainModule.name()).get().importedModules()));
@@ -201,14 +205,8 @@ public class DefinitionParsing {
     return mutable(def.entryModules());
   }
 
-  public Map<String, ParseCache> loadCaches() {
-    Map<String, ParseCache> result;
-    //noinspection unchecked
-    result = cacheParses ? loader.loadCache(Map.class, cacheFile) : null;
-    if (result == null) {
-      result = new HashMap<>();
-    }
-    return result;
+  public ParseCacheStore loadCaches() {
+    return new ParseCacheStore(loader, cacheParses ? cacheFile : null);
   }
 
   private void saveCachesAndReportParsingErrors() {
@@ -217,9 +215,7 @@ public class DefinitionParsing {
   }
 
   private void saveCaches() {
-    if (cacheParses) {
-      loader.saveOrDie(cacheFile, caches);
-    }
+    caches.save();
   }
 
   public Definition parseDefinitionAndResolveBubbles(
@@ -264,18 +260,18 @@ public class DefinitionParsing {
     throwExceptionIfThereAreErrors();
 
     sw.printIntermediate("Outer parsing [" + trimmed.modules().size() + " modules]");
-    if (profileRules) {
-      // create the temp dir ahead of parsing to avoid a race condition
-      files.resolveTemp(".");
-    }
     Definition afterResolvingConfigBubbles =
         resolveConfigBubbles(trimmed, parsedDefinition.getModule("DEFAULT-CONFIGURATION").get());
     sw.printIntermediate(
         "Parse configurations ["
             + parsedBubbles.get()
             + "/"
-            + (parsedBubbles.get() + cachedBubbles.get())
-            + " declarations]");
+            + (parsedBubbles.get() + cachedBubbles.get() + reparsedBubbles.get())
+            + " declarations"
+            + reparsedSummary()
+            + prunedStatesSummary()
+            + memoSummary()
+            + "]");
     parsedBubbles.set(0);
     cachedBubbles.set(0);
     Definition afterResolvingAllOtherBubbles =
@@ -284,13 +280,47 @@ public class DefinitionParsing {
         "Parse rules ["
             + parsedBubbles.get()
             + "/"
-            + (parsedBubbles.get() + cachedBubbles.get())
-            + " rules]");
+            + (parsedBubbles.get() + cachedBubbles.get() + reparsedBubbles.get())
+            + " rules"
+            + reparsedSummary()
+            + prunedStatesSummary()
+            + memoSummary()
+            + "]");
     saveTimings();
     saveCachesAndReportParsingErrors();
     return afterResolvingAllOtherBubbles;
   }
 
+  /**
+   * @return A suffix for the timing messages reporting the number of bubbles reparsed
+   *     incrementally since the last call, or the empty string if there are none.
+   */
+  public String reparsedSummary() {
+    int reparsed = reparsedBubbles.getAndSet(0);
+    return reparsed == 0 ? "" : ", " + reparsed + " reparsed incrementally";
+  }
+
+  /**
+   * @return A suffix for the timing messages reporting the number of Earley states pruned by
+   *     lookahead since the last call, or the empty string if lookahead is disabled.
+   */
+  public String prunedStatesSummary() {
+    if (!innerParsingOptions.earleyLookahead) {
+      return "";
+    }
+    return ", " + prunedStates.getAndSet(0) + " states pruned";
+  }
+
+  /**
+   * @return A suffix for the timing messages reporting the hit rates of the memo tables of the
+   *     disambiguation passes since the last call.
+   */
+  public String memoSummary() {
+    String summary = memoStats.summary();
+    memoStats.reset();
+    return summary.isEmpty() ? "" : ", disambiguation memo hits " + summary;
+  }
+
   private void throwExceptionIfThereAreErrors() {
     if (!errors.isEmpty()) {
       kem.addAllKException(errors.stream().map(e -> e.exception).collect(Collectors.toList()));
@@ -386,7 +416,7 @@ public class DefinitionParsing {
     return result;
   }
 
-  Map<String, ParseCache> caches;
+  ParseCacheStore caches;
   private java.util.Set<KEMException> errors;
 
   public java.util.Set<KEMException> errors() {
@@ -434,61 +464,72 @@ public class DefinitionParsing {
     Definition defWithCaches = resolveCachedBubbles(def, false);
     RuleGrammarGenerator gen = new RuleGrammarGenerator(def);
 
-    // parse config bubbles in parallel
-    // step 1 - use scala parallel streams to generate parsers
-    // step 2 - use java parallel streams to parse sentences
-    // this avoids creation of extra (costly) threads at the cost
-    // of a small thread contention between the two thread pools
-    Map<String, Module> parsed =
-        defWithCaches.parMap(
-            m -> {
-              if (stream(m.localSentences())
-                  .noneMatch(
-                      s ->
-                          s instanceof Bubble && ((Bubble) s).sentenceType().equals(configuration)))
-                return m;
-              Module configParserModule = gen.getConfigGrammar(m);
-              ParseCache cache = loadCache(configParserModule);
-              try (ParseInModule parser =
-                  RuleGrammarGenerator.getCombinedGrammar(
-                      cache.module(),
-                      profileRules,
-                      files,
-                      options.debugTypeInference,
-                      innerParsingOptions.typeInferenceMode)) {
-                // each parser gets its own scanner because config labels can conflict with user
-                // tokens
-                parser.getScanner(globalOptions);
-                parser.initialize();
-
-                java.util.Set<Sentence> parsedSet =
+    // parse config bubbles in parallel, generating the parser of each module on the same threads
+    Map<String, java.util.Set<Sentence>> parsed;
+    try (BubbleScheduler scheduler = new BubbleScheduler(innerParsingOptions.parseThreads);
+        SharedScanners scanners = new SharedScanners(globalOptions)) {
+      List<BubbleScheduler.ModuleBubbles> modules =
+          scheduler.map(
+              mutable(defWithCaches.modules()),
+              m -> {
+                List<Bubble> bubbles =
                     stream(m.localSentences())
                         .filter(
                             s ->
                                 s instanceof Bubble
                                     && ((Bubble) s).sentenceType().equals(configuration))
                         .map(b -> (Bubble) b)
-                        .parallel()
-                        .flatMap(
-                            b ->
-                                parseBubble(parser, cache.cache(), b)
-                                    .map(p -> upSentence(p, b.sentenceType())))
-                        .collect(Collectors.toSet());
-                scala.collection.immutable.Set<Sentence> allSent =
-                    m.localSentences()
-                        .$bar(immutable(parsedSet))
-                        .filter(
-                            s ->
-                                !(s instanceof Bubble
-                                    && ((Bubble) s).sentenceType().equals(configuration)))
-                        .toSet();
-                return Module(m.name(), m.imports(), allSent, m.att());
-              }
-            });
+                        .toList();
+                if (bubbles.isEmpty()) return null;
+                ParseCache cache = loadCache(gen.getConfigGrammar(m));
+                // each parser gets a scanner of its own grammar because config labels can conflict
+                // with user tokens, but the modules with the same tokens share it
+                scanners.add(cache.module());
+                return new BubbleScheduler.ModuleBubbles(
+                    m,
+                    bubbles,
+                    cache,
+                    () -> {
+                      ParseInModule parser =
+                          RuleGrammarGenerator.getCombinedGrammar(
+                              cache.module(),
+                              profileRules,
+                              files,
+                              options.debugTypeInference,
+                              innerParsingOptions.typeInferenceMode);
+                      parser.setScanner(scanners.build(cache.module()));
+                      parser.setLookahead(innerParsingOptions.earleyLookahead);
+                      parser.setMemoizeDisambiguation(innerParsingOptions.memoizeDisambiguation);
+                      parser.initialize();
+                      parser.prefetch(bubbles.stream().map(Bubble::contents).toList());
+                      return parser;
+                    });
+              });
+      // build the distinct scanners up front, concurrently
+      scheduler.map(scanners.unbuilt(), scanners::build);
+      parsed =
+          scheduler.parse(
+              modules.stream().filter(Objects::nonNull).toList(),
+              (parser, cache, b) ->
+                  parseBubble(parser, cache.cache(), b).map(p -> upSentence(p, b.sentenceType())),
+              this::release);
+    }
 
     Definition defWithParsedConfigs =
         DefinitionTransformer.from(
-                m -> Module(m.name(), m.imports(), parsed.get(m.name()).localSentences(), m.att()),
+                m -> {
+                  java.util.Set<Sentence> parsedSet = parsed.get(m.name());
+                  if (parsedSet == null) return m;
+                  scala.collection.immutable.Set<Sentence> allSent =
+                      m.localSentences()
+                          .$bar(immutable(parsedSet))
+                          .filter(
+                              s ->
+                                  !(s instanceof Bubble
+                                      && ((Bubble) s).sentenceType().equals(configuration)))
+                          .toSet();
+                  return Module(m.name(), m.imports(), allSent, m.att());
+                },
                 "replace configs")
             .apply(defWithCaches);
 
@@ -584,66 +625,113 @@ public class DefinitionParsing {
         }
       }
       final Scanner realScanner = scanner;
-      Map<String, Module> parsed =
-          defWithCaches.parMap(m -> this.resolveNonConfigBubbles(m, realScanner, gen));
+      Map<String, java.util.Set<Sentence>> parsed;
+      try (BubbleScheduler scheduler = new BubbleScheduler(innerParsingOptions.parseThreads);
+          SharedScanners scanners = new SharedScanners(globalOptions)) {
+        List<BubbleScheduler.ModuleBubbles> modules =
+            scheduler.map(
+                mutable(defWithCaches.modules()),
+                m -> moduleBubbles(m, realScanner, scanners, gen));
+        // build the distinct scanners of the modules which cannot use the main one up front,
+        // concurrently
+        scheduler.map(scanners.unbuilt(), scanners::build);
+        parsed =
+            scheduler.parse(
+                modules.stream().filter(Objects::nonNull).toList(),
+                (p, c, b) -> parseBubble(p, c.cache(), b).map(s -> upSentence(s, b.sentenceType())),
+                this::release);
+      }
       return DefinitionTransformer.from(
-              m -> Module(m.name(), m.imports(), parsed.get(m.name()).localSentences(), m.att()),
+              m -> {
+                java.util.Set<Sentence> parsedSet = parsed.get(m.name());
+                if (parsedSet == null) return m;
+                return Module(
+                    m.name(),
+                    m.imports(),
+                    Collections.immutable(
+                        stream(m.localSentences().$bar(immutable(parsedSet)))
+                            .filter(b -> !(b instanceof Bubble))
+                            .collect(Collectors.toSet())),
+                    m.att());
+              },
               "parsing rules")
-          .apply(defWithConfig);
+          .apply(defWithCaches);
     }
   }
 
-  private Module resolveNonConfigBubbles(Module module, Scanner scanner, RuleGrammarGenerator gen) {
-    if (stream(module.localSentences()).noneMatch(s -> s instanceof Bubble)) return module;
+  // the bubbles of a module and how to create its parser, or null if the module has no bubbles
+  private BubbleScheduler.ModuleBubbles moduleBubbles(
+      Module module, Scanner scanner, SharedScanners scanners, RuleGrammarGenerator gen) {
+    List<Bubble> bubbles =
+        stream(module.localSentences())
+            .filter(s -> s instanceof Bubble)
+            .map(b -> (Bubble) b)
+            .toList();
+    if (bubbles.isEmpty()) return null;
 
     Module ruleParserModule = gen.getRuleGrammar(module);
     // this scanner is not good for this module, so we must generate a new scanner.
     boolean needNewScanner = !scanner.getModule().importedModuleNames().contains(module.name());
 
     ParseCache cache = loadCache(ruleParserModule);
-    try (ParseInModule parser =
-        needNewScanner
-            ? RuleGrammarGenerator.getCombinedGrammar(
-                cache.module(),
-                profileRules,
-                files,
-                options.debugTypeInference,
-                innerParsingOptions.typeInferenceMode)
-            : RuleGrammarGenerator.getCombinedGrammar(
-                cache.module(),
-                scanner,
-                profileRules,
-                false,
-                files,
-                options.debugTypeInference,
-                innerParsingOptions.typeInferenceMode,
-                false)) {
-      if (needNewScanner) parser.getScanner(globalOptions);
-      parser.initialize();
-
-      Set<Sentence> parsedSet =
-          stream(module.localSentences())
-              .parallel()
-              .filter(s -> s instanceof Bubble)
-              .map(b -> (Bubble) b)
-              .flatMap(
-                  b ->
-                      parseBubble(parser, cache.cache(), b)
-                          .map(p -> upSentence(p, b.sentenceType())))
-              .collect(Collections.toSet());
-
-      if (needNewScanner) {
-        parser.getScanner().close(); // required for Windows.
-      }
+    Supplier<ParseInModule> parser;
+    if (needNewScanner) {
+      // the modules with the same tokens share their new scanner
+      scanners.add(cache.module());
+      parser =
+          () -> {
+            ParseInModule p =
+                RuleGrammarGenerator.getCombinedGrammar(
+                    cache.module(),
+                    profileRules,
+                    files,
+                    options.debugTypeInference,
+                    innerParsingOptions.typeInferenceMode);
+            p.setScanner(scanners.build(cache.module()));
+            return p;
+          };
+    } else {
+      parser =
+          () ->
+              RuleGrammarGenerator.getCombinedGrammar(
+                  cache.module(),
+                  scanner,
+                  profileRules,
+                  false,
+                  files,
+                  options.debugTypeInference,
+                  innerParsingOptions.typeInferenceMode,
+                  false);
+    }
+    return new BubbleScheduler.ModuleBubbles(
+        module,
+        bubbles,
+        cache,
+        () -> {
+          ParseInModule p = parser.get();
+          p.setLookahead(innerParsingOptions.earleyLookahead);
+          p.setMemoizeDisambiguation(innerParsingOptions.memoizeDisambiguation);
+          p.initialize();
+          // tokenize all the bubbles of the module in a few batched requests up front
+          p.prefetch(bubbles.stream().map(Bubble::contents).toList());
+          return p;
+        });
+  }
 
-      return Module(
-          module.name(),
-          module.imports(),
-          Collections.immutable(
-              stream(module.localSentences().$bar(parsedSet))
-                  .filter(b -> !(b instanceof Bubble))
-                  .collect(Collectors.toSet())),
-          module.att());
+  // called once all the bubbles of the module were parsed, found in the parse cache or skipped
+  private void release(ParseInModule parser) {
+    try {
+      recordStats(parser);
+    } finally {
+      parser.releasePrefetched();
+    }
+  }
+
+  private void recordStats(ParseInModule parser) {
+    prunedStates.addAndGet(parser.getPrunedStates());
+    memoStats.add(parser.getMemoStats());
+    if (profileRules) {
+      profiler.addAll(parser.getProfiler());
     }
   }
 
@@ -681,20 +769,7 @@ public class DefinitionParsing {
                                 && cache.cache().get(b.contents()).parse() != null) {
                               ParsedSentence parse =
                                   updateLocation(cache.cache().get(b.contents()), b);
-                              Att termAtt =
-                                  parse
-                                      .parse()
-                                      .att()
-                                      .remove(Att.SOURCE(), Source.class)
-                                      .remove(Att.LOCATION(), Location.class)
-                                      .remove(Att.PRODUCTION(), Production.class);
-                              Att bubbleAtt =
-                                  b.att()
-                                      .remove(Att.SOURCE(), Source.class)
-                                      .remove(Att.LOCATION(), Location.class)
-                                      .remove(Att.CONTENT_START_LINE(), Integer.class)
-                                      .remove(Att.CONTENT_START_COLUMN(), Integer.class);
-                              if (!termAtt.equals(bubbleAtt)) {
+                              if (!sameAtt(parse, b)) {
                                 // invalidate cache if attributes changed
                                 return Stream.of();
                               }
@@ -723,6 +798,24 @@ public class DefinitionParsing {
         .apply(def);
   }
 
+  // whether the attributes of a bubble are the same as when it was cached
+  private static boolean sameAtt(ParsedSentence parse, Bubble b) {
+    Att termAtt =
+        parse
+            .parse()
+            .att()
+            .remove(Att.SOURCE(), Source.class)
+            .remove(Att.LOCATION(), Location.class)
+            .remove(Att.PRODUCTION(), Production.class);
+    Att bubbleAtt =
+        b.att()
+            .remove(Att.SOURCE(), Source.class)
+            .remove(Att.LOCATION(), Location.class)
+            .remove(Att.CONTENT_START_LINE(), Integer.class)
+            .remove(Att.CONTENT_START_COLUMN(), Integer.class);
+    return termAtt.equals(bubbleAtt);
+  }
+
   public static ParsedSentence updateLocation(ParsedSentence parse, Bubble b) {
     int newStartLine = b.att().get(Att.CONTENT_START_LINE(), Integer.class);
     int newStartColumn = b.att().get(Att.CONTENT_START_COLUMN(), Integer.class);
@@ -780,7 +873,8 @@ public class DefinitionParsing {
                                       new AssertionError(
                                           "Expecting bubble to have source location!"))))
               .collect(Collectors.toSet());
-      return new ParsedSentence(k, warnings, errors, newStartLine, newStartColumn, parse.source());
+      return new ParsedSentence(
+          k, warnings, errors, newStartLine, newStartColumn, parse.source(), parse.parseTime());
     }
     return parse;
   }
@@ -924,22 +1018,7 @@ public class DefinitionParsing {
   }
 
   private ParseCache loadCache(Module parser) {
-    ParseCache cachedParser = caches.get(parser.name());
-    if (cachedParser == null
-        || !equalsSyntax(cachedParser.module().signature(), parser.signature())) {
-      cachedParser =
-          new ParseCache(parser, true, java.util.Collections.synchronizedMap(new HashMap<>()));
-      caches.put(parser.name(), cachedParser);
-    }
-    return cachedParser;
-  }
-
-  private boolean equalsSyntax(Module _this, Module that) {
-    if (!_this.productions().equals(that.productions())) return false;
-    if (!_this.priorities().equals(that.priorities())) return false;
-    if (!_this.leftAssoc().equals(that.leftAssoc())) return false;
-    if (!_this.rightAssoc().equals(that.rightAssoc())) return false;
-    return _this.sortDeclarations().equals(that.sortDeclarations());
+    return caches.get(parser, parser.signature().fingerprint());
   }
 
   private Stream<? extends K> parseBubble(
@@ -951,6 +1030,17 @@ public class DefinitionParsing {
         b.att().contains(Att.ANYWHERE())
             || b.att().contains(Att.SIMPLIFICATION())
             || ExpandMacros.isMacro(b);
+    if (innerParsingOptions.incrementalRuleParsing) {
+      Optional<ParsedSentence> reparsed =
+          reparseBubble(pim, cache, b, source, startLine, startColumn);
+      if (reparsed.isPresent()) {
+        reparsedBubbles.getAndIncrement();
+        cache.put(b.contents(), reparsed.get());
+        registerWarnings(reparsed.get().warnings());
+        return Stream.of(new TreeNodesToKORE(Outer::parseSort).down(reparsed.get().parse()));
+      }
+    }
+    long start = System.nanoTime();
     Tuple2<Either<java.util.Set<KEMException>, K>, java.util.Set<KEMException>> result =
         pim.parseString(
             b.contents(),
@@ -961,6 +1051,7 @@ public class DefinitionParsing {
             startLine,
             startColumn,
             isAnywhere);
+    long parseTime = System.nanoTime() - start;
     parsedBubbles.getAndIncrement();
     registerWarnings(result._2());
     if (result._1().isRight()) {
@@ -979,7 +1070,13 @@ public class DefinitionParsing {
       cache.put(
           b.contents(),
           new ParsedSentence(
-              k, new HashSet<>(result._2()), new HashSet<>(), startLine, startColumn, source));
+              k,
+              new HashSet<>(result._2()),
+              new HashSet<>(),
+              startLine,
+              startColumn,
+              source,
+              parseTime));
       k = (KApply) new TreeNodesToKORE(Outer::parseSort).down(k);
       return Stream.of(k);
     } else {
@@ -991,37 +1088,70 @@ public class DefinitionParsing {
               result._1().left().get(),
               startLine,
               startColumn,
-              source));
+              source,
+              parseTime));
       errors.addAll(result._1().left().get());
       return Stream.empty();
     }
   }
 
-  // Save all the timing information collected during parsing in a single file specified at command
-  // line.
-  // Timing information is expected to have two parts:
-  // 1. the comparable part - path:lineNumber
-  // 2. the printable part which contains the timing information
-  // The comparable part is used to sort each entry to provide a stable output.
-  private void saveTimings() {
-    if (innerParsingOptions.profileRules != null) {
-      try {
-        List<Tuple2<String, String>> msgs = new ArrayList<>();
-        for (File f : files.resolveTemp(".").listFiles()) {
-          if (f.getName().matches("timing.+\\.log")) {
-            BufferedReader br = new BufferedReader(new FileReader(f));
-            String path = br.readLine();
-            String msg = br.readLine();
-            msgs.add(Tuple2.apply(path, msg));
-          }
+  /**
+   * Parse a bubble which is not cached by updating the parse of the cached sentence of the same
+   * file it most likely is an edit of, which is the one sharing the longest prefix and suffix with
+   * it.
+   *
+   * @return The parse of the bubble, or empty if it has to be parsed again.
+   */
+  private Optional<ParsedSentence> reparseBubble(
+      ParseInModule pim,
+      Map<String, ParsedSentence> cache,
+      Bubble b,
+      Source source,
+      int startLine,
+      int startColumn) {
+    String contents = b.contents();
+    Map.Entry<String, ParsedSentence> previous = null;
+    int best = -1;
+    synchronized (cache) {
+      for (Map.Entry<String, ParsedSentence> e : cache.entrySet()) {
+        ParsedSentence parse = e.getValue();
+        if (parse.parse() == null || !source.equals(parse.source()) || !sameAtt(parse, b)) {
+          continue;
+        }
+        int common = commonPrefixAndSuffix(e.getKey(), contents);
+        if (common > best) {
+          best = common;
+          previous = e;
         }
-        msgs.sort(Comparator.comparing(Tuple2::_1));
-        FileUtil.save(
-            new File(innerParsingOptions.profileRules),
-            msgs.stream().map(Tuple2::_2).collect(Collectors.joining("\n")));
-      } catch (IOException e) {
-        throw KEMException.internalError("Failed to open timing.log", e);
       }
     }
+    if (previous == null) {
+      return Optional.empty();
+    }
+    return pim.reparse(
+        previous.getKey(), previous.getValue(), contents, source, startLine, startColumn);
+  }
+
+  private static int commonPrefixAndSuffix(String a, String b) {
+    int length = Math.min(a.length(), b.length());
+    int prefix = 0;
+    while (prefix < length && a.charAt(prefix) == b.charAt(prefix)) {
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < length - prefix
+        && a.charAt(a.length() - 1 - suffix) == b.charAt(b.length() - 1 - suffix)) {
+      suffix++;
+    }
+    return prefix + suffix;
+  }
+
+  // Save the time spent in each phase of parsing each sentence in the file specified at command
+  // line.
+  private void saveTimings() {
+    if (profileRules) {
+      profiler.save(
+          new File(innerParsingOptions.profileRules), innerParsingOptions.profileRulesTop);
+    }
   }
 }
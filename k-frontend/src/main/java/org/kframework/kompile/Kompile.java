@@ -252,6 +252,9 @@ public class Kompile {
             files,
             configInfo.getDefaultCell(rootCell).klabel());
 
+    def.saveProgramParser(kem, files);
+    sw.printIntermediate("Precompile program parser");
+
     if (kompileOptions.genBisonParser || kompileOptions.genGlrBisonParser) {
       if (def.configurationVariableDefaultSorts.containsKey("$PGM")) {
         String filename =
@@ -858,7 +861,10 @@ public class Kompile {
             + definitionParsing.parsedBubbles.get()
             + "/"
             + totalBubbles
-            + " rules]");
+            + " rules"
+            + definitionParsing.prunedStatesSummary()
+            + definitionParsing.memoSummary()
+            + "]");
     return modules;
   }
 
@@ -106,6 +106,10 @@ public class KompileFrontEnd extends FrontEnd {
     } catch (IOException ignored) {
     }
     sw.printIntermediate("Kompile to kore");
+    // the backend, kast and kprove look up the productions and sorts of most modules, so index them
+    // all at once, before saving, so that loading the definition does not index them again
+    def.kompiledDefinition.indexModules();
+    sw.printIntermediate("Index modules");
     loader.saveOrDie(files.get().resolveKompiled("compiled.bin"), def);
     files.get().saveToKompiled("backend.txt", options.backend); // used by the krun script
     sw.printIntermediate("Save to disk");
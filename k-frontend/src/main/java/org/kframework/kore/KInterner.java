@@ -0,0 +1,372 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.kore;
+
+import com.google.common.base.Equivalence;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import org.kframework.attributes.Att;
+
+/**
+ * Hash-conses the terms, labels and sorts built by the {@link KORE} constructors, as well as small
+ * attribute sets, so that equal instances are shared instead of duplicated. Disabled by default,
+ * see {@code --intern-terms}.
+ *
+ * <p>Two terms are only merged if they cannot be told apart: they must have the same class, equal
+ * attributes and identical children. Note that this is stricter than {@link K#equals}, which
+ * ignores attributes. Since terms are built bottom up, their children are usually interned already,
+ * so finding the instance of a term never compares more than one level of it, and comparing two
+ * interned terms usually succeeds on their identity.
+ *
+ * <p>Interned instances are only weakly referenced, so interning does not keep terms alive.
+ *
+ * <p>The tables are shared by the whole JVM, and so by the concurrent runs of a kserver. Interning
+ * stays enabled as long as one of the runs which enabled it is still running, and the tables are
+ * only forgotten once the last of them stops. Sharing the instances of another run is harmless,
+ * since interning never changes what a term is equal to; only the statistics are mixed up.
+ */
+public final class KInterner {
+  private KInterner() {}
+
+  private static volatile boolean enabled = false;
+  // the number of runs which enabled interning and did not disable it yet, guarded by the class
+  private static int users = 0;
+
+  private static final Table<KApply> kapplies =
+      new Table<>(
+          "KApply",
+          new Equivalence<>() {
+            @Override
+            protected boolean doEquivalent(KApply a, KApply b) {
+              return a.getClass() == b.getClass()
+                  && a.klabel() == b.klabel()
+                  && sameItems(a.items(), b.items())
+                  && a.att().equals(b.att());
+            }
+
+            @Override
+            protected int doHash(KApply k) {
+              int hash = System.identityHashCode(k.klabel());
+              for (K item : k.items()) {
+                hash = hash * 31 + System.identityHashCode(item);
+              }
+              return hash * 31 + k.att().hashCode();
+            }
+          });
+
+  private static final Table<KToken> ktokens =
+      new Table<>(
+          "KToken",
+          new Equivalence<>() {
+            @Override
+            protected boolean doEquivalent(KToken a, KToken b) {
+              return a.getClass() == b.getClass()
+                  && a.s().equals(b.s())
+                  && a.sort().equals(b.sort())
+                  && a.att().equals(b.att());
+            }
+
+            @Override
+            protected int doHash(KToken k) {
+              return (k.s().hashCode() * 31 + k.sort().hashCode()) * 31 + k.att().hashCode();
+            }
+          });
+
+  private static final Table<KVariable> kvariables =
+      new Table<>(
+          "KVariable",
+          new Equivalence<>() {
+            @Override
+            protected boolean doEquivalent(KVariable a, KVariable b) {
+              return a.getClass() == b.getClass()
+                  && a.name().equals(b.name())
+                  && a.att().equals(b.att());
+            }
+
+            @Override
+            protected int doHash(KVariable v) {
+              return v.name().hashCode() * 31 + v.att().hashCode();
+            }
+          });
+
+  private static final Table<KLabel> klabels =
+      new Table<>(
+          "KLabel",
+          new Equivalence<>() {
+            @Override
+            protected boolean doEquivalent(KLabel a, KLabel b) {
+              return a.getClass() == b.getClass()
+                  && a.name().equals(b.name())
+                  && a.params().equals(b.params());
+            }
+
+            @Override
+            protected int doHash(KLabel l) {
+              return l.hashCode();
+            }
+          });
+
+  private static final Table<Sort> sorts =
+      new Table<>(
+          "Sort",
+          new Equivalence<>() {
+            @Override
+            protected boolean doEquivalent(Sort a, Sort b) {
+              return a.getClass() == b.getClass()
+                  && a.name().equals(b.name())
+                  && a.params().equals(b.params());
+            }
+
+            @Override
+            protected int doHash(Sort s) {
+              return s.hashCode();
+            }
+          });
+
+  private static final Table<Att> atts =
+      new Table<>(
+          "Att",
+          new Equivalence<>() {
+            @Override
+            protected boolean doEquivalent(Att a, Att b) {
+              return a.equals(b);
+            }
+
+            @Override
+            protected int doHash(Att att) {
+              return att.hashCode();
+            }
+          });
+
+  private static boolean sameItems(List<K> a, List<K> b) {
+    if (a.size() != b.size()) {
+      return false;
+    }
+    for (int i = 0; i < a.size(); i++) {
+      if (a.get(i) != b.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Start interning the terms built from now on. Each call must be followed by a call to {@link
+   * #disable}.
+   */
+  public static synchronized void enable() {
+    users++;
+    enabled = true;
+  }
+
+  /**
+   * Stop interning, and forget the interned instances and the statistics, unless another caller of
+   * {@link #enable} did not disable interning yet.
+   */
+  public static synchronized void disable() {
+    if (users == 0) {
+      throw new IllegalStateException("Interning was not enabled");
+    }
+    if (--users > 0) {
+      return;
+    }
+    enabled = false;
+    for (Table<?> table : tables()) {
+      table.clear();
+    }
+  }
+
+  public static KApply intern(KApply k) {
+    return enabled ? kapplies.intern(k) : k;
+  }
+
+  public static KToken intern(KToken k) {
+    return enabled ? ktokens.intern(k) : k;
+  }
+
+  public static KVariable intern(KVariable v) {
+    return enabled ? kvariables.intern(v) : v;
+  }
+
+  public static KLabel intern(KLabel l) {
+    return enabled ? klabels.intern(l) : l;
+  }
+
+  public static Sort intern(Sort s) {
+    return enabled ? sorts.intern(s) : s;
+  }
+
+  /** Only the smallest attribute sets are interned, see {@link Att}. */
+  public static Att intern(Att att) {
+    return enabled ? atts.intern(att) : att;
+  }
+
+  /**
+   * @return For each kind of instance, the number of instances which were built and the ratio of
+   *     them which were replaced by an equal instance built earlier, one per line.
+   */
+  public static String summary() {
+    StringBuilder sb = new StringBuilder();
+    for (Table<?> table : tables()) {
+      long lookups = table.lookups.sum();
+      long hits = table.hits.sum();
+      sb.append(
+          String.format(
+              "Interned %-9s %12d built, %12d shared (%5.1f%%), %10d live%n",
+              table.name,
+              lookups,
+              hits,
+              lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+              table.size()));
+    }
+    return sb.toString();
+  }
+
+  private static List<Table<?>> tables() {
+    return List.of(kapplies, ktokens, kvariables, klabels, sorts, atts);
+  }
+
+  /**
+   * A concurrent set of weakly referenced instances, compared with an {@link Equivalence} rather
+   * than with their own equals method. The set is split into independently locked segments.
+   */
+  private static final class Table<T> {
+    private static final int SEGMENT_BITS = 6;
+
+    private final String name;
+    private final Equivalence<T> equivalence;
+    private final Segment<T>[] segments;
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    Table(String name, Equivalence<T> equivalence) {
+      this.name = name;
+      this.equivalence = equivalence;
+      this.segments = new Segment[1 << SEGMENT_BITS];
+      for (int i = 0; i < segments.length; i++) {
+        segments[i] = new Segment<>();
+      }
+    }
+
+    T intern(T t) {
+      int h = equivalence.hash(t);
+      h ^= h >>> 16;
+      lookups.increment();
+      T interned = segments[h >>> (32 - SEGMENT_BITS)].intern(t, h, equivalence);
+      if (interned != t) {
+        hits.increment();
+      }
+      return interned;
+    }
+
+    long size() {
+      long size = 0;
+      for (Segment<T> segment : segments) {
+        size += segment.size();
+      }
+      return size;
+    }
+
+    void clear() {
+      for (Segment<T> segment : segments) {
+        segment.clear();
+      }
+      lookups.reset();
+      hits.reset();
+    }
+  }
+
+  private static final class Entry<T> extends WeakReference<T> {
+    final int hash;
+    Entry<T> next;
+
+    Entry(T referent, int hash, Entry<T> next, ReferenceQueue<T> queue) {
+      super(referent, queue);
+      this.hash = hash;
+      this.next = next;
+    }
+  }
+
+  /** An open hash table with chaining, whose entries are removed once their referent is freed. */
+  private static final class Segment<T> {
+    private ReferenceQueue<T> queue = new ReferenceQueue<>();
+    private Entry<T>[] table = newTable(16);
+    private int size = 0;
+
+    synchronized T intern(T t, int hash, Equivalence<T> equivalence) {
+      expunge();
+      int i = hash & (table.length - 1);
+      for (Entry<T> e = table[i]; e != null; e = e.next) {
+        if (e.hash == hash) {
+          T existing = e.get();
+          if (existing != null && equivalence.equivalent(existing, t)) {
+            return existing;
+          }
+        }
+      }
+      table[i] = new Entry<>(t, hash, table[i], queue);
+      if (++size > table.length * 3 / 4) {
+        resize();
+      }
+      return t;
+    }
+
+    synchronized int size() {
+      expunge();
+      return size;
+    }
+
+    synchronized void clear() {
+      table = newTable(16);
+      size = 0;
+      // the entries of the old table may still be enqueued, they must not be removed from this one
+      queue = new ReferenceQueue<>();
+    }
+
+    private void resize() {
+      Entry<T>[] old = table;
+      table = newTable(old.length * 2);
+      for (Entry<T> head : old) {
+        Entry<T> e = head;
+        while (e != null) {
+          Entry<T> next = e.next;
+          int i = e.hash & (table.length - 1);
+          e.next = table[i];
+          table[i] = e;
+          e = next;
+        }
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void expunge() {
+      Entry<T> freed;
+      while ((freed = (Entry<T>) queue.poll()) != null) {
+        int i = freed.hash & (table.length - 1);
+        Entry<T> prev = null;
+        for (Entry<T> e = table[i]; e != null; prev = e, e = e.next) {
+          if (e == freed) {
+            if (prev == null) {
+              table[i] = e.next;
+            } else {
+              prev.next = e.next;
+            }
+            size--;
+            break;
+          }
+        }
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Entry<T>[] newTable(int length) {
+      return new Entry[length];
+    }
+  }
+}
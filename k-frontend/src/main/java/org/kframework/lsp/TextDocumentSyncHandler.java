@@ -29,6 +29,7 @@ import org.kframework.kompile.DefinitionParsing;
 import org.kframework.kore.K;
 import org.kframework.main.GlobalOptions;
 import org.kframework.parser.inner.ParseCache;
+import org.kframework.parser.inner.ParseCacheStore;
 import org.kframework.parser.inner.RuleGrammarGenerator;
 import org.kframework.utils.BinaryLoader;
 import org.kframework.utils.errorsystem.KExceptionManager;
@@ -70,8 +71,7 @@ public class TextDocumentSyncHandler {
   }
 
   public void loadCaches() {
-    cacheFile.ifPresent(path -> caches = loader.loadCache(java.util.Map.class, path.toFile()));
-    if (caches == null) caches = new HashMap<>();
+    cacheFile.ifPresent(path -> caches = new ParseCacheStore(loader, path.toFile()).getAll());
     caches.forEach(
         (key, val) -> {
           String uri =
@@ -4,8 +4,10 @@ package org.kframework.main;
 import com.beust.jcommander.ParameterException;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import org.kframework.kore.KInterner;
 import org.kframework.utils.ExitOnTimeoutThread;
 import org.kframework.utils.InterrupterRunnable;
+import org.kframework.utils.Stopwatch;
 import org.kframework.utils.errorsystem.KEMException;
 import org.kframework.utils.errorsystem.KExceptionManager;
 import org.kframework.utils.file.FileUtil;
@@ -56,12 +58,19 @@ public abstract class FrontEnd {
                       new InterrupterRunnable(
                           Thread.currentThread(), globalOptions.shutdownWaitTime.toMillis())));
         }
+        if (globalOptions.internTerms) {
+          KInterner.enable();
+        }
         try {
           retval = run();
         } catch (ParameterException e) {
           throw KEMException.criticalError(e.getMessage(), e);
         } finally {
           files.get().deleteTempDir(kem);
+          if (globalOptions.internTerms) {
+            new Stopwatch(globalOptions).printStatistics(KInterner.summary());
+            KInterner.disable();
+          }
         }
         kem.print();
       }
@@ -63,6 +63,26 @@ public final class GlobalOptions {
     }
   }
 
+  public enum ScannerBackend {
+    /** A scanner generated by flex and compiled to a native executable */
+    FLEX,
+
+    /** A deterministic automaton built and run inside the JVM */
+    JVM,
+  }
+
+  public static class ScannerBackendConverter extends BaseEnumConverter<ScannerBackend> {
+
+    public ScannerBackendConverter(String optionName) {
+      super(optionName);
+    }
+
+    @Override
+    public Class<ScannerBackend> enumClass() {
+      return ScannerBackend.class;
+    }
+  }
+
   public static class ExceptionTypeConverter extends BaseEnumConverter<ExceptionType> {
 
     public ExceptionTypeConverter(String optionName) {
@@ -180,6 +200,42 @@ public final class GlobalOptions {
       hidden = true)
   public boolean noExcWrap = false;
 
+  @Parameter(
+      names = {"--scanner"},
+      converter = ScannerBackendConverter.class,
+      description =
+          "Choose how the inner parser tokenizes its input: with a scanner generated by flex and"
+              + " compiled with a C compiler, or with an automaton that runs inside the JVM."
+              + " Values: [flex|jvm]",
+      descriptionKey = "backend",
+      hidden = true)
+  public ScannerBackend scanner = ScannerBackend.FLEX;
+
+  @Parameter(
+      names = {"--no-scanner-cache"},
+      description =
+          "Do not reuse or store compiled scanners in the cache directory ($XDG_CACHE_HOME or"
+              + " ~/.cache). Every scanner is regenerated with flex and recompiled.",
+      hidden = true)
+  public boolean noScannerCache = false;
+
+  @Parameter(
+      names = {"--scanner-cache-dir"},
+      description =
+          "Keep compiled scanners in this directory instead of $XDG_CACHE_HOME/kframework/scanners"
+              + " or ~/.cache/kframework/scanners.",
+      descriptionKey = "path",
+      hidden = true)
+  public String scannerCacheDir = null;
+
+  @Parameter(
+      names = {"--intern-terms"},
+      description =
+          "Share a single instance of equal K terms, labels and sorts instead of duplicating them,"
+              + " in order to reduce memory usage. With --verbose, report how many were shared.",
+      hidden = true)
+  public boolean internTerms = false;
+
   public boolean debug() {
     return debug || debugWarnings;
   }
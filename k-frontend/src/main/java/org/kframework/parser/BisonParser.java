@@ -0,0 +1,79 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.kframework.attributes.Source;
+import org.kframework.kore.K;
+import org.kframework.kore.Sort;
+import org.kframework.utils.errorsystem.KEMException;
+import org.kframework.utils.file.FileUtil;
+
+/**
+ * A Bison parser generated by {@code kompile --gen-bison-parser} or {@code kast --gen-parser}, used
+ * to parse programs instead of the Earley parser.
+ *
+ * <p>The parser is an executable which prints the parsed term as KORE. Shared libraries generated
+ * with {@code --bison-parser-library} are not used: the JVM can only call them through a native
+ * bridge, and they exit the process on a syntax error.
+ *
+ * @param executable The generated parser.
+ * @param files Used to run the parser and to store its input.
+ */
+public record BisonParser(File executable, FileUtil files) {
+
+  /**
+   * @param module The name of the syntax module the parser was generated for.
+   * @param sort The sort the parser was generated for.
+   * @return The parser that kompile generated for a module and sort, if there is one.
+   */
+  public static Optional<BisonParser> find(FileUtil files, String module, Sort sort) {
+    File executable = files.resolveKompiled("parser_" + sort.name() + "_" + module);
+    if (executable.isFile() && executable.canExecute()) {
+      return Optional.of(new BisonParser(executable, files));
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Parse a program.
+   *
+   * @param kore Converts the output of the parser to K.
+   * @return The parsed program, or empty if the parser rejected it. Since Bison parsers are
+   *     generated for the LR subset of the grammar, the program should then be parsed by the Earley
+   *     parser, which also reports a better error if the program is not valid.
+   */
+  public Optional<K> parse(String program, Source source, KoreParser kore) {
+    File input = null;
+    try {
+      input = File.createTempFile("bison-input-", ".txt", files.resolveTemp("."));
+      FileUtils.writeStringToFile(input, program, StandardCharsets.UTF_8);
+      Process process =
+          files
+              .getProcessBuilder()
+              .command(executable.getAbsolutePath(), input.getAbsolutePath(), source.source())
+              // the error is reported by the Earley parser instead
+              .redirectError(ProcessBuilder.Redirect.DISCARD)
+              .start();
+      String output;
+      try (InputStream out = process.getInputStream()) {
+        output = IOUtils.toString(out, StandardCharsets.UTF_8);
+      }
+      if (process.waitFor() != 0) {
+        return Optional.empty();
+      }
+      return Optional.of(kore.parseString(output.trim()));
+    } catch (IOException | InterruptedException e) {
+      throw KEMException.internalError("Failed to execute Bison parser " + executable, e);
+    } finally {
+      if (input != null) {
+        input.delete();
+      }
+    }
+  }
+}
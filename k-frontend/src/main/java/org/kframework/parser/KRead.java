@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
 import org.kframework.attributes.Source;
 import org.kframework.definition.Module;
 import org.kframework.kompile.CompiledDefinition;
@@ -29,7 +30,7 @@ public record KRead(
 
   public String showTokens(
       Module mod, CompiledDefinition def, String stringToParse, Source source) {
-    return def.showTokens(mod, files, stringToParse, source);
+    return def.showTokens(mod, files, globalOptions, stringToParse, source);
   }
 
   public K prettyRead(
@@ -57,12 +58,48 @@ public record KRead(
       case JSON, KAST -> deserialize(stringToParse, inputMode, source);
       case KORE -> new KoreParser(mod.sortAttributesFor()).parseString(stringToParse);
       case PROGRAM -> def.parseSingleTerm(
-          mod, sort, startSymbolLocation, kem, files, stringToParse, source, partialParseDebug);
+          mod,
+          sort,
+          startSymbolLocation,
+          kem,
+          files,
+          globalOptions,
+          stringToParse,
+          source,
+          partialParseDebug);
       case RULE -> throw KEMException.internalError(
           "Should have been handled directly by the kast front end: " + inputMode);
     };
   }
 
+  /**
+   * Parse a program with the Bison parser kompiled for its syntax module and sort, if there is one
+   * and it accepts the program, and otherwise with {@link #prettyRead}.
+   *
+   * @param syntaxModule The name of the syntax module the Bison parser was generated for.
+   */
+  public K bisonRead(
+      Module mod,
+      String syntaxModule,
+      Sort sort,
+      String startSymbolLocation,
+      CompiledDefinition def,
+      Source source,
+      String stringToParse,
+      boolean partialParseDebug) {
+    if (input == InputModes.PROGRAM && !partialParseDebug) {
+      Optional<K> parsed =
+          BisonParser.find(files, syntaxModule, sort)
+              .flatMap(
+                  p -> p.parse(stringToParse, source, new KoreParser(mod.sortAttributesFor())));
+      if (parsed.isPresent()) {
+        return parsed.get();
+      }
+    }
+    return prettyRead(
+        mod, sort, startSymbolLocation, def, source, stringToParse, partialParseDebug);
+  }
+
   public void createBisonParser(
       Module mod,
       Sort sort,
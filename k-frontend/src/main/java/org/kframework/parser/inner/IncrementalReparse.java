@@ -0,0 +1,240 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner;
+
+import static org.kframework.Collections.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.kframework.attributes.Att;
+import org.kframework.attributes.Location;
+import org.kframework.attributes.Source;
+import org.kframework.builtin.Sorts;
+import org.kframework.definition.Module;
+import org.kframework.definition.Production;
+import org.kframework.definition.ProductionItem;
+import org.kframework.definition.RegexTerminal;
+import org.kframework.definition.TerminalLike;
+import org.kframework.kore.AddAttRec;
+import org.kframework.kore.K;
+import org.kframework.kore.KORE;
+import org.kframework.kore.KToken;
+import org.kframework.kore.Sort;
+import org.kframework.parser.inner.ParseCache.ParsedSentence;
+import org.kframework.parser.inner.kernel.EarleyParser;
+import org.kframework.parser.inner.kernel.Scanner;
+import org.kframework.utils.errorsystem.KEMException;
+import scala.Tuple2;
+
+/**
+ * Parses a sentence which was edited without changing its structure by reusing the parse of its
+ * previous version, instead of running the Earley parser, the disambiguation passes and sort
+ * inference again.
+ *
+ * <p>The tokens of both versions are compared. The edit is not structural if they have the same
+ * kinds, and if the only tokens whose text changed are literals: tokens of a sort whose value none
+ * of the parsing passes look at, such as integers and strings but not variables or labels. The
+ * parse of the new version then only differs from the previous one by the text of those tokens and
+ * by the location of its nodes, which are updated in the previous parse. Edits of the layout and
+ * comments of a sentence are not structural either.
+ */
+public final class IncrementalReparse {
+  // the kinds of the tokens which are literals
+  private final BitSet literals;
+
+  public IncrementalReparse(
+      Module parsingModule, Map<TerminalLike, Tuple2<Integer, Integer>> tokens) {
+    this.literals = literals(parsingModule, tokens);
+  }
+
+  private static BitSet literals(
+      Module parsingModule, Map<TerminalLike, Tuple2<Integer, Integer>> tokens) {
+    BitSet literals = new BitSet();
+    BitSet others = new BitSet();
+    for (Production prod : iterable(parsingModule.productions())) {
+      for (ProductionItem item : iterable(prod.items())) {
+        if (item instanceof RegexTerminal && tokens.containsKey(item)) {
+          int kind = tokens.get(item)._1();
+          if (prod.items().size() == 1 && isLiteral(prod)) {
+            literals.set(kind);
+          } else {
+            others.set(kind);
+          }
+        }
+      }
+    }
+    // a token is only a literal if every production it can be parsed as is a literal
+    literals.andNot(others);
+    return literals;
+  }
+
+  private static boolean isLiteral(Production prod) {
+    Sort sort = prod.att().getOptional(Att.ORIGINAL_PRD(), Production.class).orElse(prod).sort();
+    return prod.att().contains(Att.TOKEN())
+        // the width of MInt literals is part of their production
+        && !prod.att().getOptional(Att.HOOK()).orElse("").equals("MINT.literal")
+        // variables are unified by name by sort inference, and labels are resolved by name
+        && !sort.name().startsWith("#")
+        && !sort.equals(Sorts.KLabel())
+        && !sort.equals(Sorts.KConfigVar());
+  }
+
+  /**
+   * @param previousInput The previous version of the sentence.
+   * @param previous The parse of the previous version.
+   * @param input The new version of the sentence.
+   * @return The parse of the new version, or empty if the edit is structural and the sentence has
+   *     to be parsed again.
+   */
+  public Optional<ParsedSentence> reparse(
+      Scanner scanner,
+      String previousInput,
+      ParsedSentence previous,
+      String input,
+      Source source,
+      int startLine,
+      int startColumn) {
+    if (previous.parse() == null || !previous.errors().isEmpty()) {
+      return Optional.empty();
+    }
+    EarleyParser.ParserMetadata before;
+    EarleyParser.ParserMetadata after;
+    try {
+      before =
+          new EarleyParser.ParserMetadata(
+              previousInput,
+              scanner,
+              previous.source(),
+              previous.startLine(),
+              previous.startColumn());
+      after = new EarleyParser.ParserMetadata(input, scanner, source, startLine, startColumn);
+    } catch (KEMException e) {
+      // the error is reported by parsing the sentence again
+      return Optional.empty();
+    }
+    List<Scanner.Token> oldTokens = before.getWords();
+    List<Scanner.Token> newTokens = after.getWords();
+    if (oldTokens.size() != newTokens.size()) {
+      return Optional.empty();
+    }
+
+    Relocation relocation = new Relocation(source);
+    for (int i = 0; i < oldTokens.size(); i++) {
+      Scanner.Token o = oldTokens.get(i);
+      Scanner.Token n = newTokens.get(i);
+      if (o.kind != n.kind
+          || !relocation.map(before, o.startLoc, after, n.startLoc)
+          || !relocation.map(before, o.endLoc, after, n.endLoc)) {
+        return Optional.empty();
+      }
+      if (!o.value.equals(n.value)) {
+        if (o.kind < 0 || !literals.get(o.kind)) {
+          return Optional.empty();
+        }
+        Location loc =
+            Location.apply(
+                before.line(o.startLoc),
+                before.column(o.startLoc),
+                before.line(o.endLoc),
+                before.column(o.endLoc));
+        relocation.edits.put(loc, new Tuple2<>(o.value, n.value));
+      }
+    }
+
+    K parse =
+        new AddAttRec(relocation::relocate) {
+          @Override
+          public K apply(KToken tok) {
+            return super.apply(relocation.substitute(tok));
+          }
+        }.apply(previous.parse());
+    Set<KEMException> warnings = new HashSet<>();
+    for (KEMException warning : previous.warnings()) {
+      Location loc = warning.exception.getLocation();
+      warnings.add(loc == null ? warning : warning.withLocation(relocation.map(loc), source));
+    }
+    if (relocation.failed || relocation.substituted.size() != relocation.edits.size()) {
+      // some node does not start or end at a token, or an edited token did not become a KToken
+      return Optional.empty();
+    }
+    return Optional.of(
+        new ParsedSentence(
+            parse,
+            warnings,
+            new HashSet<>(),
+            startLine,
+            startColumn,
+            source,
+            previous.parseTime()));
+  }
+
+  /** Maps the locations of the previous version of a sentence to the new one. */
+  private static final class Relocation {
+    private final Source source;
+    // from the line and column of each token boundary of the previous version to the new one
+    private final Map<Long, Long> positions = new HashMap<>();
+    // from the location of each edited token of the previous version to its old and new text
+    private final Map<Location, Tuple2<String, String>> edits = new HashMap<>();
+    private final Set<Location> substituted = new HashSet<>();
+    private boolean failed = false;
+
+    Relocation(Source source) {
+      this.source = source;
+    }
+
+    boolean map(
+        EarleyParser.ParserMetadata before,
+        int oldOffset,
+        EarleyParser.ParserMetadata after,
+        int newOffset) {
+      long from = pack(before.line(oldOffset), before.column(oldOffset));
+      long to = pack(after.line(newOffset), after.column(newOffset));
+      Long existing = positions.putIfAbsent(from, to);
+      return existing == null || existing == to;
+    }
+
+    Location map(Location loc) {
+      Long start = positions.get(pack(loc.startLine(), loc.startColumn()));
+      Long end = positions.get(pack(loc.endLine(), loc.endColumn()));
+      if (start == null || end == null) {
+        failed = true;
+        return loc;
+      }
+      return Location.apply(
+          (int) (start >> 32), start.intValue(), (int) (end >> 32), end.intValue());
+    }
+
+    Att relocate(Att att) {
+      Optional<Location> loc = att.getOptional(Att.LOCATION(), Location.class);
+      if (loc.isEmpty()) {
+        return att;
+      }
+      return att.remove(Att.SOURCE(), Source.class)
+          .remove(Att.LOCATION(), Location.class)
+          .add(Att.LOCATION(), Location.class, map(loc.get()))
+          .add(Att.SOURCE(), Source.class, source);
+    }
+
+    KToken substitute(KToken tok) {
+      Optional<Location> loc = tok.att().getOptional(Att.LOCATION(), Location.class);
+      Tuple2<String, String> edit = loc.map(edits::get).orElse(null);
+      if (edit == null) {
+        return tok;
+      }
+      if (!tok.s().equals(edit._1())) {
+        failed = true;
+        return tok;
+      }
+      substituted.add(loc.get());
+      return KORE.KToken(edit._2(), tok.sort(), tok.att());
+    }
+
+    private static long pack(int line, int column) {
+      return ((long) line << 32) | (column & 0xffffffffL);
+    }
+  }
+}
@@ -5,19 +5,29 @@ import java.io.Serializable;
 import java.util.Map;
 import java.util.Set;
 import org.kframework.attributes.Source;
+import org.kframework.definition.GrammarFingerprint;
 import org.kframework.definition.Module;
 import org.kframework.kore.K;
 import org.kframework.utils.errorsystem.KEMException;
 
 /** Created by dwightguth on 4/20/15. */
-public record ParseCache(Module module, boolean strict, Map<String, ParsedSentence> cache)
+public record ParseCache(
+    Module module,
+    GrammarFingerprint fingerprint,
+    boolean strict,
+    Map<String, ParsedSentence> cache)
     implements Serializable {
+  /**
+   * @param parseTime The time it took to parse the sentence, in nanoseconds, used to schedule the
+   *     sentence the next time it needs to be parsed after it is modified.
+   */
   public record ParsedSentence(
       K parse,
       Set<KEMException> warnings,
       Set<KEMException> errors,
       int startLine,
       int startColumn,
-      Source source)
+      Source source,
+      long parseTime)
       implements Serializable {}
 }
@@ -0,0 +1,245 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+import org.kframework.attributes.Source;
+import org.kframework.definition.GrammarFingerprint;
+import org.kframework.definition.Module;
+import org.kframework.parser.inner.ParseCache.ParsedSentence;
+import org.kframework.utils.BinaryLoader;
+import org.kframework.utils.errorsystem.KEMException;
+
+/**
+ * The parse caches of a definition, one {@link ParseCache} per parser module, stored on disk in
+ * shards.
+ *
+ * <p>The index file only records, for each parser module, the shard holding the module itself and
+ * one shard per source file holding the sentences parsed from that file. Shards live in a directory
+ * next to the index. The shards of a module are read the first time its cache is requested, and
+ * saving only writes the shards whose sentences changed, followed by the index. Shards no longer
+ * referenced by the index are deleted.
+ */
+public class ParseCacheStore {
+
+  /** The contents of the index file, by parser module name. */
+  private record Index(HashMap<String, Shards> modules) implements Serializable {}
+
+  /**
+   * The names of the shard files of a parser module.
+   *
+   * @param fingerprint The fingerprint of the parser module, to validate the cache without reading
+   *     any shard.
+   * @param module The shard holding the parser module, as a {@link ParseCache} with no sentences.
+   * @param sources The shard holding the sentences of each source file.
+   */
+  private record Shards(
+      GrammarFingerprint fingerprint, String module, HashMap<Source, String> sources)
+      implements Serializable {}
+
+  /** A cache in memory, together with the shards it was read from or last written to. */
+  private static final class Entry {
+    final ParseCache cache;
+    Shards shards;
+    // the sentences of each source, as they were read or written, to find out which ones changed
+    Map<Source, Map<String, ParsedSentence>> saved;
+
+    Entry(ParseCache cache, Shards shards, Map<Source, Map<String, ParsedSentence>> saved) {
+      this.cache = cache;
+      this.shards = shards;
+      this.saved = saved;
+    }
+  }
+
+  private final BinaryLoader loader;
+  private final File indexFile;
+  private final File shardDir;
+  private volatile Index index;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  /**
+   * Read the index of a store.
+   *
+   * @param indexFile The index file, or null to keep the caches in memory only.
+   */
+  public ParseCacheStore(BinaryLoader loader, @Nullable File indexFile) {
+    this.loader = loader;
+    this.indexFile = indexFile;
+    this.shardDir =
+        indexFile == null ? null : new File(indexFile.getParentFile(), indexFile.getName() + ".d");
+    // a cache written by an older version of K is a single map, which is discarded
+    Object saved = indexFile == null ? null : loader.loadCache(Object.class, indexFile);
+    this.index = saved instanceof Index i ? i : new Index(new HashMap<>());
+  }
+
+  /**
+   * Get the cache of a parser module, reading it from its shards if it was not read yet.
+   *
+   * @param parser The parser module.
+   * @param fingerprint The fingerprint of the syntax the cached sentences must have been parsed
+   *     with.
+   * @return The cache of parser, which is empty if it was never saved, if its shards could not be
+   *     read, or if it was saved with a different fingerprint.
+   */
+  public ParseCache get(Module parser, GrammarFingerprint fingerprint) {
+    return entries
+        .compute(
+            parser.name(),
+            (name, entry) -> {
+              if (entry == null) {
+                entry = read(name, fingerprint);
+              }
+              if (entry == null || !entry.cache.fingerprint().equals(fingerprint)) {
+                entry =
+                    new Entry(
+                        new ParseCache(
+                            parser,
+                            fingerprint,
+                            true,
+                            Collections.synchronizedMap(new HashMap<>())),
+                        null,
+                        new HashMap<>());
+              }
+              return entry;
+            })
+        .cache;
+  }
+
+  /** Read every cache in the store, e.g. to inspect the parses of a definition. */
+  public Map<String, ParseCache> getAll() {
+    Map<String, ParseCache> result = new HashMap<>();
+    for (String name : index.modules().keySet()) {
+      Entry entry = entries.computeIfAbsent(name, n -> read(n, null));
+      if (entry != null) {
+        result.put(name, entry.cache);
+      }
+    }
+    return result;
+  }
+
+  // if fingerprint is not null, don't read the shards of a cache with a different fingerprint
+  private Entry read(String name, GrammarFingerprint fingerprint) {
+    Shards shards = index.modules().get(name);
+    if (shards == null || (fingerprint != null && !fingerprint.equals(shards.fingerprint()))) {
+      return null;
+    }
+    ParseCache module = loader.loadCache(ParseCache.class, new File(shardDir, shards.module()));
+    if (module == null) {
+      return null;
+    }
+    Map<String, ParsedSentence> sentences = Collections.synchronizedMap(new HashMap<>());
+    Map<Source, Map<String, ParsedSentence>> saved = new HashMap<>();
+    for (Map.Entry<Source, String> shard : shards.sources().entrySet()) {
+      @SuppressWarnings("unchecked")
+      Map<String, ParsedSentence> fromFile =
+          loader.loadCache(Map.class, new File(shardDir, shard.getValue()));
+      // a missing shard only loses the sentences of one file, it is written again on save
+      if (fromFile != null) {
+        sentences.putAll(fromFile);
+        saved.put(shard.getKey(), fromFile);
+      }
+    }
+    return new Entry(
+        new ParseCache(module.module(), module.fingerprint(), module.strict(), sentences),
+        shards,
+        saved);
+  }
+
+  /**
+   * Write the shards which changed since they were read or last saved, then the index. Does nothing
+   * if the store has no index file.
+   */
+  public synchronized void save() {
+    if (indexFile == null) {
+      return;
+    }
+    if (!shardDir.exists() && !shardDir.mkdirs()) {
+      throw KEMException.criticalError("Could not create directory " + shardDir);
+    }
+    // the caches which were never requested are kept as they are
+    HashMap<String, Shards> modules = new HashMap<>(index.modules());
+    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+      Entry entry = e.getValue();
+      ParseCache cache = entry.cache;
+      Map<Source, Map<String, ParsedSentence>> bySource = new HashMap<>();
+      Map<String, ParsedSentence> sentences = cache.cache();
+      synchronized (sentences) {
+        for (Map.Entry<String, ParsedSentence> s : sentences.entrySet()) {
+          bySource
+              .computeIfAbsent(s.getValue().source(), k -> new HashMap<>())
+              .put(s.getKey(), s.getValue());
+        }
+      }
+      String moduleShard =
+          entry.shards != null
+              ? entry.shards.module()
+              : write(
+                  new ParseCache(
+                      cache.module(), cache.fingerprint(), cache.strict(), new HashMap<>()));
+      HashMap<Source, String> sourceShards = new HashMap<>();
+      for (Map.Entry<Source, Map<String, ParsedSentence>> s : bySource.entrySet()) {
+        String shard = entry.shards == null ? null : entry.shards.sources().get(s.getKey());
+        if (shard == null || !sameSentences(entry.saved.get(s.getKey()), s.getValue())) {
+          shard = write(s.getValue());
+        }
+        sourceShards.put(s.getKey(), shard);
+      }
+      entry.shards = new Shards(cache.fingerprint(), moduleShard, sourceShards);
+      entry.saved = bySource;
+      modules.put(e.getKey(), entry.shards);
+    }
+    Index old = index;
+    index = new Index(modules);
+    loader.saveOrDie(indexFile, index);
+
+    Set<String> live = shardNames(index);
+    for (String shard : shardNames(old)) {
+      if (!live.contains(shard)) {
+        new File(shardDir, shard).delete();
+      }
+    }
+  }
+
+  // sentences are never updated in place, so a shard changed iff it has a different sentence object
+  private static boolean sameSentences(
+      Map<String, ParsedSentence> saved, Map<String, ParsedSentence> current) {
+    if (saved == null || saved.size() != current.size()) {
+      return false;
+    }
+    for (Map.Entry<String, ParsedSentence> s : current.entrySet()) {
+      if (saved.get(s.getKey()) != s.getValue()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String write(Object shard) {
+    try {
+      // reserve a fresh name, so that a shard is never overwritten while another index refers to it
+      File file = Files.createTempFile(shardDir.toPath(), "shard", ".bin").toFile();
+      loader.saveOrDie(file, shard);
+      return file.getName();
+    } catch (IOException e) {
+      throw KEMException.criticalError("Could not write to " + shardDir.getAbsolutePath(), e);
+    }
+  }
+
+  private static Set<String> shardNames(Index index) {
+    Set<String> names = new HashSet<>();
+    for (Shards shards : index.modules().values()) {
+      names.add(shards.module());
+      names.addAll(shards.sources().values());
+    }
+    return names;
+  }
+}
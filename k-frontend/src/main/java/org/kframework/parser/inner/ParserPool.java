@@ -0,0 +1,165 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+import org.kframework.definition.Module;
+import org.kframework.kore.Sort;
+import org.kframework.utils.errorsystem.KEMException;
+
+/**
+ * A bounded, thread-safe cache of initialized {@link ParseInModule} instances keyed by module and
+ * start symbol. Used to avoid regenerating the grammar and restarting the scanner every time a
+ * sentence is parsed with the same module, e.g. by the K server or when reading many programs.
+ *
+ * <p>Parsers are leased with {@link #acquire} and must be returned by closing the {@link Lease}. A
+ * {@link ParseInModule} is thread safe, so the same parser can be leased by several threads at the
+ * same time. When more than `capacity` parsers are cached, the least recently used one is evicted,
+ * and it is closed as soon as its last lease is returned. {@link #close()} evicts every parser.
+ *
+ * <p>Parsers are created outside the lock of the pool, so creating the parser of one module does
+ * not block the threads leasing the parsers of other modules. The threads leasing a parser which
+ * is still being created wait for it instead of creating another one.
+ */
+public class ParserPool implements AutoCloseable {
+
+  private record Key(Module module, Sort startSymbol) {}
+
+  private static final class Entry {
+    final FutureTask<ParseInModule> parser;
+    int leases = 0;
+    boolean evicted = false;
+
+    Entry(Supplier<ParseInModule> factory) {
+      this.parser = new FutureTask<>(factory::get);
+    }
+
+    // only called once no lease is left, so the parser is no longer being created
+    void close() {
+      if (parser.isDone()) {
+        try {
+          parser.get().close();
+        } catch (InterruptedException | ExecutionException e) {
+          // the parser failed to be created, so there is nothing to close
+        }
+      }
+    }
+  }
+
+  /** A parser leased from the pool. Closing the lease returns it to the pool. */
+  public final class Lease implements AutoCloseable {
+    private final Entry entry;
+    private final ParseInModule parser;
+    private boolean released = false;
+
+    private Lease(Entry entry, ParseInModule parser) {
+      this.entry = entry;
+      this.parser = parser;
+    }
+
+    public ParseInModule parser() {
+      return parser;
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        release(entry);
+      }
+    }
+  }
+
+  private final int capacity;
+  // access-ordered, so that the eldest entry is the least recently used one
+  private final LinkedHashMap<Key, Entry> parsers = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * @param capacity The maximum number of parsers to keep when they are not leased.
+   */
+  public ParserPool(int capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * Lease the parser for a module and start symbol, creating it if it is not in the pool.
+   *
+   * @param module The module to parse with.
+   * @param startSymbol The start symbol to parse with, or null if the parser is only used for
+   *     tokenizing.
+   * @param factory Creates a new parser for the module, initialized and with its scanner started.
+   *     It is called by the first thread leasing the parser, outside the lock of the pool. If it
+   *     fails, the exception is thrown to every thread waiting for the parser, and the next lease
+   *     calls the factory again.
+   */
+  public Lease acquire(Module module, Sort startSymbol, Supplier<ParseInModule> factory) {
+    Key key = new Key(module, startSymbol);
+    Entry entry;
+    boolean created = false;
+    synchronized (this) {
+      entry = parsers.get(key);
+      if (entry == null) {
+        entry = new Entry(factory);
+        parsers.put(key, entry);
+        created = true;
+        evict(capacity);
+      }
+      entry.leases++;
+    }
+    if (created) {
+      entry.parser.run();
+    }
+    try {
+      return new Lease(entry, entry.parser.get());
+    } catch (ExecutionException e) {
+      synchronized (this) {
+        parsers.remove(key, entry);
+      }
+      release(entry);
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      if (e.getCause() instanceof Error cause) {
+        throw cause;
+      }
+      throw KEMException.criticalError("Failed to create a parser", e.getCause());
+    } catch (InterruptedException e) {
+      release(entry);
+      Thread.currentThread().interrupt();
+      throw KEMException.criticalError("Interrupted while waiting for a parser", e);
+    }
+  }
+
+  private synchronized void release(Entry entry) {
+    entry.leases--;
+    if (entry.evicted && entry.leases == 0) {
+      entry.close();
+    }
+  }
+
+  // evict the least recently used parsers until at most `size` are left
+  private void evict(int size) {
+    Iterator<Entry> it = parsers.values().iterator();
+    while (parsers.size() > size && it.hasNext()) {
+      Entry entry = it.next();
+      it.remove();
+      entry.evicted = true;
+      if (entry.leases == 0) {
+        entry.close();
+      }
+    }
+  }
+
+  /** Evict every parser from the pool, closing it once it is no longer leased. */
+  public synchronized void clear() {
+    evict(0);
+  }
+
+  @Override
+  public void close() {
+    clear();
+  }
+}
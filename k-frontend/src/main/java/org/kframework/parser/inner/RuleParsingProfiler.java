@@ -0,0 +1,262 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonWriter;
+import org.kframework.attributes.Source;
+import org.kframework.parser.Ambiguity;
+import org.kframework.parser.HasChildren;
+import org.kframework.parser.Term;
+import org.kframework.utils.file.FileUtil;
+import org.kframework.utils.options.InnerParsingOptions.TypeInferenceMode;
+
+/**
+ * The time spent in each phase of parsing every sentence, collected with {@code
+ * --profile-rule-parsing}.
+ *
+ * <p>The report is written in one of three formats, depending on the extension of the file: {@code
+ * .json} for the slowest sentences and the percentiles of the time of each phase per module, {@code
+ * .csv} for one row per sentence, and otherwise the total and parse time of each sentence, one per
+ * line, as in previous versions of K.
+ */
+public final class RuleParsingProfiler {
+
+  /**
+   * The profile of one sentence. Times are in nanoseconds.
+   *
+   * @param module The name of the module the sentence was parsed with.
+   * @param scan The time to tokenize the sentence.
+   * @param earley The time to build the parse forest from the tokens.
+   * @param disambiguation The time spent in the disambiguation passes, except sort inference.
+   * @param inference The time spent in sort inference.
+   * @param ambiguities The number of ambiguities in the parse forest, before disambiguation.
+   * @param inferenceMode The sort inference algorithm used for the sentence, or null if parsing
+   *     failed before sort inference.
+   */
+  public record Sample(
+      String module,
+      Source source,
+      int startLine,
+      long scan,
+      long earley,
+      long disambiguation,
+      long inference,
+      int ambiguities,
+      TypeInferenceMode inferenceMode) {
+    public long total() {
+      return scan + earley + disambiguation + inference;
+    }
+
+    public String location() {
+      return (source == null ? "<unknown>" : source.source()) + ":" + startLine;
+    }
+  }
+
+  private static final Map<String, ToLongFunction<Sample>> PHASES = new LinkedHashMap<>();
+
+  static {
+    PHASES.put("scan", Sample::scan);
+    PHASES.put("earley", Sample::earley);
+    PHASES.put("disambiguation", Sample::disambiguation);
+    PHASES.put("inference", Sample::inference);
+    PHASES.put("total", Sample::total);
+  }
+
+  private static final double[] PERCENTILES = {50, 90, 99};
+
+  private static final JsonBuilderFactory factory =
+      Json.createBuilderFactory(Collections.emptyMap());
+
+  private final Queue<Sample> samples = new ConcurrentLinkedQueue<>();
+
+  public void add(Sample sample) {
+    samples.add(sample);
+  }
+
+  public void addAll(RuleParsingProfiler other) {
+    samples.addAll(other.samples);
+  }
+
+  /**
+   * @return The samples collected so far, sorted by location.
+   */
+  public List<Sample> samples() {
+    List<Sample> sorted = new ArrayList<>(samples);
+    sorted.sort(Comparator.comparing(Sample::location).thenComparing(Sample::module));
+    return sorted;
+  }
+
+  /**
+   * @return The number of distinct ambiguities in a parse forest.
+   */
+  public static int countAmbiguities(Term t) {
+    // the parse forest is a DAG, so only visit each node once
+    Set<Term> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    Deque<Term> todo = new ArrayDeque<>();
+    todo.push(t);
+    int count = 0;
+    while (!todo.isEmpty()) {
+      Term next = todo.pop();
+      if (!visited.add(next)) continue;
+      if (next instanceof Ambiguity) count++;
+      if (next instanceof HasChildren parent) {
+        parent.items().forEach(todo::push);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Write the report to a file, in the format given by its extension.
+   *
+   * @param top The number of slowest sentences to list in a JSON report.
+   */
+  public void save(File file, int top) {
+    String name = file.getName();
+    if (name.endsWith(".json")) {
+      FileUtil.save(file, json(top));
+    } else if (name.endsWith(".csv")) {
+      FileUtil.save(file, csv());
+    } else {
+      FileUtil.save(file, text());
+    }
+  }
+
+  private String text() {
+    return samples().stream()
+        .map(
+            s ->
+                String.format(
+                    "%5d %s   parse:%4d typeInf:%4d",
+                    millis(s.total()),
+                    s.location(),
+                    millis(s.scan() + s.earley()),
+                    millis(s.inference())))
+        .collect(Collectors.joining("\n"));
+  }
+
+  private String csv() {
+    StringBuilder sb = new StringBuilder("source,line,module");
+    PHASES.keySet().forEach(p -> sb.append(',').append(p).append("_ns"));
+    sb.append(",ambiguities,inference_mode\n");
+    for (Sample s : samples()) {
+      sb.append(csvField(s.source() == null ? "" : s.source().source()));
+      sb.append(',').append(s.startLine());
+      sb.append(',').append(csvField(s.module()));
+      PHASES.values().forEach(p -> sb.append(',').append(p.applyAsLong(s)));
+      sb.append(',').append(s.ambiguities());
+      sb.append(',').append(s.inferenceMode() == null ? "" : s.inferenceMode().name());
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  private static String csvField(String value) {
+    if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+      return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+    return value;
+  }
+
+  private String json(int top) {
+    List<Sample> all = samples();
+    JsonObjectBuilder report = factory.createObjectBuilder();
+    report.add("sentences", all.size());
+    report.add("unit", "ms");
+
+    List<Sample> slowest = new ArrayList<>(all);
+    slowest.sort(Comparator.comparingLong(Sample::total).reversed());
+    JsonArrayBuilder jslowest = factory.createArrayBuilder();
+    for (Sample s : slowest.subList(0, Math.min(top, slowest.size()))) {
+      JsonObjectBuilder js = factory.createObjectBuilder();
+      js.add("location", s.location());
+      js.add("module", s.module());
+      PHASES.forEach((name, phase) -> js.add(name, millisExact(phase.applyAsLong(s))));
+      js.add("ambiguities", s.ambiguities());
+      js.add("inference-mode", s.inferenceMode() == null ? "none" : s.inferenceMode().name());
+      jslowest.add(js);
+    }
+    report.add("slowest", jslowest);
+
+    Map<String, List<Sample>> byModule =
+        all.stream()
+            .collect(Collectors.groupingBy(Sample::module, TreeMap::new, Collectors.toList()));
+    JsonObjectBuilder jmodules = factory.createObjectBuilder();
+    for (Map.Entry<String, List<Sample>> e : byModule.entrySet()) {
+      jmodules.add(e.getKey(), summary(e.getValue()));
+    }
+    report.add("modules", jmodules);
+    report.add("all", summary(all));
+
+    StringWriter out = new StringWriter();
+    try (JsonWriter writer = Json.createWriter(out)) {
+      writer.write(report.build());
+    }
+    return out.toString();
+  }
+
+  // the percentiles of the time of each phase, the number of ambiguities and of each inference mode
+  private static JsonObjectBuilder summary(List<Sample> samples) {
+    JsonObjectBuilder summary = factory.createObjectBuilder();
+    summary.add("sentences", samples.size());
+    summary.add("ambiguities", samples.stream().mapToLong(Sample::ambiguities).sum());
+    JsonObjectBuilder modes = factory.createObjectBuilder();
+    samples.stream()
+        .collect(
+            Collectors.groupingBy(
+                s -> s.inferenceMode() == null ? "none" : s.inferenceMode().name(),
+                TreeMap::new,
+                Collectors.counting()))
+        .forEach((mode, count) -> modes.add(mode, count.longValue()));
+    summary.add("inference-modes", modes);
+    for (Map.Entry<String, ToLongFunction<Sample>> phase : PHASES.entrySet()) {
+      long[] times = samples.stream().mapToLong(phase.getValue()).sorted().toArray();
+      JsonObjectBuilder jphase = factory.createObjectBuilder();
+      jphase.add("sum", millisExact(Arrays.stream(times).sum()));
+      for (double p : PERCENTILES) {
+        jphase.add("p" + (int) p, millisExact(percentile(times, p)));
+      }
+      jphase.add("max", millisExact(times.length == 0 ? 0 : times[times.length - 1]));
+      summary.add(phase.getKey(), jphase);
+    }
+    return summary;
+  }
+
+  // nearest-rank percentile of sorted values
+  private static long percentile(long[] sorted, double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int rank = (int) Math.ceil(p / 100 * sorted.length);
+    return sorted[Math.max(0, rank - 1)];
+  }
+
+  private static long millis(long nanos) {
+    return nanos / 1_000_000;
+  }
+
+  private static double millisExact(long nanos) {
+    return nanos / 1e6;
+  }
+}
@@ -0,0 +1,407 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.disambiguation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.kframework.attributes.Location;
+import org.kframework.attributes.Source;
+import org.kframework.definition.Production;
+import org.kframework.parser.Ambiguity;
+import org.kframework.parser.Constant;
+import org.kframework.parser.HasChildren;
+import org.kframework.parser.ProductionReference;
+import org.kframework.parser.SafeTransformer;
+import org.kframework.parser.SetsTransformerWithErrors;
+import org.kframework.parser.Term;
+import org.kframework.parser.TermCons;
+import org.kframework.parser.TermMemo;
+import org.pcollections.ConsPStack;
+import scala.util.Either;
+import scala.util.Right;
+
+/**
+ * Memo tables for the disambiguation passes, shared by every term parsed with the same module.
+ *
+ * <p>The results of a pass are recorded per shape of the subterms it was applied to, where the
+ * shape of a term is its production, value and the shapes of its children, but not its location.
+ * A later run of the same pass on a subterm of the same shape, e.g. the same expression in another
+ * rule, reuses the recorded result with the locations of the subterm it was recorded for replaced
+ * by those of the new one. Results which are errors, or which have locations that do not come from
+ * the subterm they were recorded for, are not reused. Only passes whose result for a subterm does
+ * not depend on its context may be memoized.
+ */
+public final class DisambiguationMemo {
+
+  // the tables are cleared when recording a shape or result would make them hold more than this
+  private static final int MAX_ENTRIES = 1 << 16;
+
+  /**
+   * The shape of a term: its class, production and value, and the shapes of its children. Shapes
+   * are interned, so children are compared by identity. So are productions, since {@link
+   * Production#equals} ignores most attributes.
+   */
+  private static final class Shape {
+    private final Class<?> kind;
+    private final Production production;
+    private final String value;
+    private final Shape[] children;
+    private final int hash;
+
+    private Shape(Term t, Shape[] children) {
+      kind = t.getClass();
+      production = t instanceof ProductionReference pr ? pr.production() : null;
+      value = t instanceof Constant c ? c.value() : null;
+      this.children = children;
+      if (production == null) {
+        // the items of an ambiguity are unordered
+        Arrays.sort(children, Comparator.comparingInt(System::identityHashCode));
+      }
+      int h = kind.hashCode();
+      h = 31 * h + System.identityHashCode(production);
+      h = 31 * h + (value == null ? 0 : value.hashCode());
+      for (Shape child : children) {
+        h = 31 * h + System.identityHashCode(child);
+      }
+      hash = h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Shape other)) return false;
+      if (hash != other.hash
+          || kind != other.kind
+          || production != other.production
+          || children.length != other.children.length
+          || !(value == null ? other.value == null : value.equals(other.value))) {
+        return false;
+      }
+      for (int i = 0; i < children.length; i++) {
+        if (children[i] != other.children[i]) return false;
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /** Where a term is in the input. */
+  private record Position(Optional<Location> location, Optional<Source> source) {
+    private static Position of(Term t) {
+      return new Position(t.location(), t.source());
+    }
+  }
+
+  /** A result of a pass and the term it was applied to. */
+  private record Entry(Term input, Term result) {}
+
+  /** The results of one pass, keyed by the shape of the terms it was applied to. */
+  private final class Table {
+    private final Map<Shape, Entry> results = new ConcurrentHashMap<>();
+    private final LongAdder hits;
+    private final LongAdder lookups;
+
+    private Table(String pass) {
+      hits = stats.hits.computeIfAbsent(pass, k -> new LongAdder());
+      lookups = stats.lookups.computeIfAbsent(pass, k -> new LongAdder());
+    }
+  }
+
+  /** The number of lookups and hits in the memo tables of each pass. */
+  public static final class Stats {
+    private final Map<String, LongAdder> hits = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> lookups = new ConcurrentSkipListMap<>();
+
+    /** Add the counts of another set of tables to these ones. */
+    public void add(Stats other) {
+      other.hits.forEach((k, v) -> hits.computeIfAbsent(k, x -> new LongAdder()).add(v.sum()));
+      other.lookups.forEach(
+          (k, v) -> lookups.computeIfAbsent(k, x -> new LongAdder()).add(v.sum()));
+    }
+
+    public void reset() {
+      hits.values().forEach(LongAdder::reset);
+      lookups.values().forEach(LongAdder::reset);
+    }
+
+    /**
+     * @return The overall hit rate followed by the hit rate of each pass, or the empty string if
+     *     nothing was looked up.
+     */
+    public String summary() {
+      long totalHits = 0, totalLookups = 0;
+      List<String> passes = new ArrayList<>();
+      for (Map.Entry<String, LongAdder> entry : lookups.entrySet()) {
+        long l = entry.getValue().sum();
+        if (l == 0) continue;
+        long h = hits.get(entry.getKey()).sum();
+        totalHits += h;
+        totalLookups += l;
+        passes.add(entry.getKey() + " " + (100 * h / l) + "%");
+      }
+      if (totalLookups == 0) {
+        return "";
+      }
+      return (100 * totalHits / totalLookups) + "% (" + String.join(", ", passes) + ")";
+    }
+  }
+
+  /**
+   * The passes applied to one sentence. The shapes of its subterms are remembered by the session,
+   * so the subterms a pass leaves unchanged are not traversed again by the next pass.
+   */
+  public final class Session {
+    private final Map<Term, Shape> shapes = new IdentityHashMap<>();
+
+    private Session() {}
+
+    /**
+     * Apply a pass to a term, consulting and filling the memo table of the pass.
+     *
+     * @param pass The name of the table of the pass. Passes with different parameters must use
+     *     different names.
+     */
+    public Term apply(String pass, SafeTransformer transformer, Term t) {
+      if (!enabled) {
+        return transformer.apply(t);
+      }
+      Table table = table(pass);
+      transformer.setMemo(
+          new TermMemo<>() {
+            @Override
+            public Term get(Term term) {
+              return lookup(table, term);
+            }
+
+            @Override
+            public void put(Term term, Term result) {
+              record(table, term, result);
+            }
+          });
+      return transformer.apply(t);
+    }
+
+    /**
+     * Apply a pass to a term, consulting and filling the memo table of the pass.
+     *
+     * @param pass The name of the table of the pass. Passes with different parameters must use
+     *     different names.
+     */
+    public <E> Either<Set<E>, Term> apply(
+        String pass, SetsTransformerWithErrors<E> transformer, Term t) {
+      if (!enabled) {
+        return transformer.apply(t);
+      }
+      Table table = table(pass);
+      transformer.setMemo(
+          new TermMemo<>() {
+            @Override
+            public Either<Set<E>, Term> get(Term term) {
+              Term result = lookup(table, term);
+              return result == null ? null : Right.apply(result);
+            }
+
+            @Override
+            public void put(Term term, Either<Set<E>, Term> result) {
+              if (result.isRight()) {
+                record(table, term, result.right().get());
+              }
+            }
+          });
+      return transformer.apply(t);
+    }
+
+    private Term lookup(Table table, Term t) {
+      table.lookups.increment();
+      Entry entry = table.results.get(shapeOf(t));
+      if (entry == null) {
+        return null;
+      }
+      Term result = entry.input() == t ? entry.result() : relocate(entry, t);
+      if (result != null) {
+        table.hits.increment();
+      }
+      return result;
+    }
+
+    private void record(Table table, Term t, Term result) {
+      Shape shape = shapes.get(t);
+      if (shape != null && !table.results.containsKey(shape) && reserve()) {
+        table.results.putIfAbsent(shape, new Entry(t, result));
+      }
+    }
+
+    private Shape shapeOf(Term t) {
+      Shape shape = shapes.get(t);
+      if (shape != null) {
+        return shape;
+      }
+      List<Shape> children = new ArrayList<>();
+      if (t instanceof HasChildren parent) {
+        parent.items().forEach(child -> children.add(shapeOf(child)));
+      }
+      shape = new Shape(t, children.toArray(new Shape[0]));
+      Shape existing = interned.get(shape);
+      if (existing != null) {
+        shape = existing;
+      } else if (reserve()) {
+        existing = interned.putIfAbsent(shape, shape);
+        if (existing != null) {
+          shape = existing;
+        }
+      }
+      shapes.put(t, shape);
+      return shape;
+    }
+
+    /**
+     * @return The result recorded for a term of the same shape, with the positions of that term
+     *     replaced by those of t, or null if the result has other positions.
+     */
+    private Term relocate(Entry entry, Term t) {
+      Map<Position, Position> positions = new HashMap<>();
+      if (!matchPositions(entry.input(), t, positions, new IdentityHashMap<>())) {
+        return null;
+      }
+      if (positions.entrySet().stream().allMatch(e -> e.getKey().equals(e.getValue()))) {
+        return entry.result();
+      }
+      return relocate(entry.result(), positions, new IdentityHashMap<>());
+    }
+
+    // maps the positions of the subterms of from to those of the subterms of the same shape of to
+    private boolean matchPositions(
+        Term from, Term to, Map<Position, Position> positions, Map<Term, Term> done) {
+      if (done.put(from, to) != null) {
+        return true;
+      }
+      Position previous = positions.putIfAbsent(Position.of(from), Position.of(to));
+      if (previous != null && !previous.equals(Position.of(to))) {
+        return false;
+      }
+      if (from instanceof Ambiguity fromAmb) {
+        Map<Shape, Term> toItems = new HashMap<>();
+        ((Ambiguity) to).items().forEach(item -> toItems.put(shapeOf(item), item));
+        for (Term item : fromAmb.items()) {
+          Term toItem = toItems.get(shapeOf(item));
+          if (toItem == null || !matchPositions(item, toItem, positions, done)) {
+            return false;
+          }
+        }
+      } else if (from instanceof TermCons fromTc) {
+        TermCons toTc = (TermCons) to;
+        for (int i = 0; i < fromTc.items().size(); i++) {
+          if (!matchPositions(fromTc.get(i), toTc.get(i), positions, done)) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    // a copy of the result with the positions moved, or null if one of them is unknown
+    private Term relocate(Term t, Map<Position, Position> positions, Map<Term, Term> done) {
+      Term copy = done.get(t);
+      if (copy != null) {
+        return copy;
+      }
+      Position position = positions.get(Position.of(t));
+      if (position == null) {
+        return null;
+      }
+      if (t instanceof Constant c) {
+        copy = Constant.apply(c.value(), c.production(), position.location(), position.source());
+      } else {
+        List<Term> children = new ArrayList<>();
+        for (Term child : ((HasChildren) t).items()) {
+          Term childCopy = relocate(child, positions, done);
+          if (childCopy == null) {
+            return null;
+          }
+          children.add(childCopy);
+        }
+        if (t instanceof TermCons tc) {
+          copy =
+              TermCons.apply(
+                  ConsPStack.from(children),
+                  tc.production(),
+                  position.location(),
+                  position.source());
+        } else {
+          copy = Ambiguity.apply(new HashSet<>(children), position.location(), position.source());
+        }
+      }
+      done.put(t, copy);
+      return copy;
+    }
+  }
+
+  private static final DisambiguationMemo DISABLED = new DisambiguationMemo(false);
+
+  private final boolean enabled;
+  private final Map<Shape, Shape> interned = new ConcurrentHashMap<>();
+  private final Map<String, Table> tables = new ConcurrentHashMap<>();
+  private final AtomicInteger entries = new AtomicInteger();
+  private final Stats stats = new Stats();
+
+  public DisambiguationMemo() {
+    this(true);
+  }
+
+  private DisambiguationMemo(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public Stats stats() {
+    return stats;
+  }
+
+  /** Start applying the passes to a new sentence. */
+  public Session session() {
+    return new Session();
+  }
+
+  /** A session which applies the passes without consulting any memo table. */
+  public static Session unmemoized() {
+    return DISABLED.session();
+  }
+
+  private Table table(String pass) {
+    return tables.computeIfAbsent(pass, Table::new);
+  }
+
+  /**
+   * Make room for a new shape or result, clearing every table if they are full. The shapes known to
+   * the sessions in progress then only miss, since they are no longer interned.
+   *
+   * @return false if the tables were just cleared, in which case nothing should be recorded.
+   */
+  private boolean reserve() {
+    if (entries.incrementAndGet() <= MAX_ENTRIES) {
+      return true;
+    }
+    synchronized (this) {
+      if (entries.get() > MAX_ENTRIES) {
+        interned.clear();
+        tables.values().forEach(table -> table.results.clear());
+        entries.set(0);
+      }
+    }
+    return false;
+  }
+}
@@ -2,7 +2,9 @@
 package org.kframework.parser.inner.disambiguation;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 import org.kframework.POSet;
 import org.kframework.attributes.Att;
@@ -51,8 +53,14 @@ public class PushAmbiguitiesDownAndPreferAvoid extends SafeTransformer {
       }
     } else if (!avoid.isEmpty()) {
       if (avoid.size() < amb.items().size()) {
-        amb.items().removeAll(avoid);
-        if (amb.items().size() == 1) result = amb.items().iterator().next();
+        // don't remove the items in place, amb may be shared with other terms
+        Set<Term> rest = new HashSet<>(amb.items());
+        rest.removeAll(avoid);
+        if (rest.size() == 1) {
+          result = rest.iterator().next();
+        } else {
+          result = amb.replaceChildren(rest);
+        }
       }
     }
 
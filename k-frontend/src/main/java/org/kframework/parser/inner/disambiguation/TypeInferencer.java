@@ -4,11 +4,7 @@ package org.kframework.parser.inner.disambiguation;
 import static org.kframework.Collections.*;
 import static org.kframework.kore.KORE.*;
 
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Comparator;
@@ -18,7 +14,6 @@ import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
 import org.apache.commons.lang3.tuple.Pair;
 import org.kframework.Collections;
 import org.kframework.POSet;
@@ -38,7 +33,6 @@ import org.kframework.parser.ProductionReference;
 import org.kframework.parser.Term;
 import org.kframework.parser.TermCons;
 import org.kframework.parser.inner.RuleGrammarGenerator;
-import org.kframework.utils.OS;
 import org.kframework.utils.errorsystem.KEMException;
 
 /**
@@ -46,6 +40,9 @@ import org.kframework.utils.errorsystem.KEMException;
  * {@link TypeInferenceVisitor} and handles all the communication to/from z3 as well as construction
  * of constraints.
  *
+ * <p>The z3 process is leased from the shared {@link Z3Pool} when a term is pushed, and returned
+ * once every scope pushed for the term has been popped, so an instance is cheap to create.
+ *
  * <p>For a description of the algorithm, see the companion class's javadoc.
  */
 public class TypeInferencer implements AutoCloseable {
@@ -58,60 +55,30 @@ public class TypeInferencer implements AutoCloseable {
 
   private Status status = null;
 
-  private Process process;
-  private PrintStream z3;
-  private BufferedReader output;
+  private Z3Pool.Solver solver;
   private final boolean debug;
   private final Module mod;
-  private final java.util.Set<SortHead> sorts;
   private final Map<ProductionReference, Integer> prIds = new IdentityHashMap<>();
 
-  // logic QF_DT is best if it exists as it will be faster than ALL. However, some z3 versions do
-  // not have this logic.
-  // Fortunately, z3 ignores unknown logics.
-  private static final String PRELUDE1 = "(set-logic QF_DT)\n";
-
-  private final boolean destroyOnReset;
-
-  private void initProcess() {
-    try {
-      File NULL = new File(OS.current() == OS.WINDOWS ? "NUL" : "/dev/null");
-      process = new ProcessBuilder().command("z3", "-in").redirectError(NULL).start();
-    } catch (IOException e) {
-      throw KEMException.criticalError("Could not start z3 process", e);
-    }
-    z3 = new PrintStream(process.getOutputStream());
-    output = new BufferedReader(new InputStreamReader(process.getInputStream()));
-  }
-
   /**
-   * Create a new z3 process and write the sorts and subsort relation to it.
+   * Create an inferencer for the sorts and subsort relation of a module.
    *
    * @param mod the module to create an inferencer for.
    */
   public TypeInferencer(Module mod, boolean debug) {
-    initProcess();
-    println("(get-info :version)");
-    try {
-      String version = output.readLine();
-      version = version.substring("(:version \"".length());
-      version = version.substring(0, version.indexOf('"'));
-      String[] parts = version.split("\\.");
-      // example of version string:
-      // "4.8.8 - build hashcode ad55a1f1c617"
-      int major = Integer.valueOf(parts[0]);
-      int minor = Integer.valueOf(parts[1]);
-      int patch = Integer.valueOf(parts[2].split(" ")[0]);
-      destroyOnReset =
-          major < 4 || (major == 4 && minor < 6) || (major == 4 && minor == 8 && patch == 9);
-    } catch (IOException e) {
-      throw KEMException.internalError("Could not read from z3 process", e);
-    }
-    println(PRELUDE1);
     this.debug = debug;
     this.mod = mod;
-    this.sorts = stream(mod.definedSorts()).filter(this::isRealSort).collect(Collectors.toSet());
-    push(mod);
+  }
+
+  /** Get the z3 process for the current term, leasing one with the module's prelude if needed. */
+  private Z3Pool.Solver solver() {
+    if (solver == null) {
+      solver = Z3Pool.shared().acquire(mod, this::prelude);
+      if (debug) {
+        sb.append(prelude());
+      }
+    }
+    return solver;
   }
 
   // returns whether a particular sort should be written to z3 and thus be a possible sort for
@@ -132,31 +99,28 @@ public class TypeInferencer implements AutoCloseable {
     return mod;
   }
 
-  /**
-   * Writes the prelude for a particular module.
-   *
-   * @param mod
-   */
-  private void push(Module mod) {
+  /** Computes the prelude declaring the sorts and subsort relation of the module. */
+  private String prelude() {
+    StringBuilder sb = new StringBuilder();
     // declare Sort datatype
-    print("(declare-datatypes () ((Sort ");
-    for (SortHead s : sorts) {
-      print("(|Sort" + s.name() + "| ");
+    sb.append("(declare-datatypes () ((Sort ");
+    for (SortHead s : iterable(mod.definedSorts())) {
+      if (!isRealSort(s)) {
+        continue;
+      }
+      sb.append("(|Sort" + s.name() + "| ");
       for (int i = 0; i < s.params(); i++) {
-        print("(|Sort" + s.name() + "_" + i++ + "| Sort) ");
+        sb.append("(|Sort" + s.name() + "_" + i++ + "| Sort) ");
       }
-      println(")");
-    }
-    println(")))");
-    makeSubsorts(mod, "<=Sort", mod.subsorts());
-    makeSubsorts(mod, "<=SortSyntax", mod.syntacticSubsorts());
-
-    if (debug) {
-      debugPrelude = sb.toString();
+      sb.append(")\n");
     }
+    sb.append(")))\n");
+    makeSubsorts(sb, "<=Sort", mod.subsorts());
+    makeSubsorts(sb, "<=SortSyntax", mod.syntacticSubsorts());
+    return sb.toString();
   }
 
-  private void makeSubsorts(Module mod, String name, POSet<Sort> relations) {
+  private void makeSubsorts(StringBuilder sb, String name, POSet<Sort> relations) {
     // map from each sort to an integer representing the topological sorting of the sorts. higher
     // numbers mean greater
     // sorts
@@ -170,7 +134,7 @@ public class TypeInferencer implements AutoCloseable {
       ordinals.put(s.head(), i++);
     }
     // provide fixed interpretation of subsort relation
-    println("(define-fun " + name + " ((s1 Sort) (s2 Sort)) Bool (or");
+    sb.append("(define-fun " + name + " ((s1 Sort) (s2 Sort)) Bool (or\n");
     for (Pair<Sort, java.util.Set<Sort>> relation :
         relations.relations().entrySet().stream()
             .map(t -> Pair.of(t.getKey(), t.getValue()))
@@ -183,11 +147,11 @@ public class TypeInferencer implements AutoCloseable {
         if (!isRealSort(s2.head())) {
           continue;
         }
-        print("  (and (= s1 ");
-        printSort(relation.getLeft());
-        print(") (= s2 ");
-        printSort(s2);
-        println("))");
+        sb.append("  (and (= s1 ");
+        sb.append(printSort(relation.getLeft(), Map.of()));
+        sb.append(") (= s2 ");
+        sb.append(printSort(s2, Map.of()));
+        sb.append("))\n");
       }
     }
     // reflexive relations
@@ -195,17 +159,15 @@ public class TypeInferencer implements AutoCloseable {
       if (!isRealSort(s.head())) {
         continue;
       }
-      print("  (and (= s1 ");
-      printSort(s);
-      print(") (= s2 ");
-      printSort(s);
-      println("))");
+      sb.append("  (and (= s1 ");
+      sb.append(printSort(s, Map.of()));
+      sb.append(") (= s2 ");
+      sb.append(printSort(s, Map.of()));
+      sb.append("))\n");
     }
-    println("))");
+    sb.append("))\n");
   }
 
-  private String debugPrelude;
-
   // list of names for variables and sort parameters in z3
   private final List<String> variables = new ArrayList<>();
   // list of names for sort parameters only in z3
@@ -289,7 +251,7 @@ public class TypeInferencer implements AutoCloseable {
 
   /** Asserts that none of the sort parameters are of the KLabel sort. */
   private void assertNotKLabel() {
-    if (!sorts.contains(Sorts.KLabel().head())) return;
+    if (!mod.definedSorts().contains(Sorts.KLabel().head())) return;
     for (String param : parameters) {
       print("(distinct |" + param + "| ");
       printSort(Sorts.KLabel());
@@ -338,7 +300,7 @@ public class TypeInferencer implements AutoCloseable {
     currentTerm = t;
     currentTopSort = topSort;
     this.isAnywhere = isAnywhere;
-    level += 2;
+    level++;
     println("(push)");
     // compute constraints in non-incremental mode
     ExpectedSortsVisitor viz = new ExpectedSortsVisitor(topSort, isAnywhere, false);
@@ -359,6 +321,7 @@ public class TypeInferencer implements AutoCloseable {
     println(viz.toString());
     // assert top constraint
     println("(assert " + id + ")");
+    level++;
     println("(push)");
     // soft assertions to cut down search space
     for (String var : variables) {
@@ -852,7 +815,7 @@ public class TypeInferencer implements AutoCloseable {
     try {
       String result;
       do {
-        result = output.readLine();
+        result = solver().output.readLine();
         if (result == null) {
           throw KEMException.internalError(
               "Unexpected EOF reached while waiting for response from z3.", currentTerm);
@@ -974,7 +937,7 @@ public class TypeInferencer implements AutoCloseable {
 
   private Sort readSort(boolean trim) {
     try {
-      String result = output.readLine();
+      String result = solver().output.readLine();
       if (trim) {
         int startIdx = result.indexOf(' ');
         int endIdx = result.length() - 2;
@@ -994,10 +957,15 @@ public class TypeInferencer implements AutoCloseable {
     return variables.isEmpty();
   }
 
+  /**
+   * Return the z3 process to the pool. If a term is still being inferred, e.g. because inference
+   * failed with an exception, the process is destroyed since its scopes were not popped.
+   */
   public void close() {
-    reset();
-    z3.close();
-    process.destroy();
+    if (solver != null) {
+      Z3Pool.shared().release(solver, level == 0);
+      solver = null;
+    }
   }
 
   private void reset() {
@@ -1013,12 +981,9 @@ public class TypeInferencer implements AutoCloseable {
     variablesById.clear();
     cacheById.clear();
     nextId = 0;
-    if (destroyOnReset) {
-      z3.close();
-      process.destroy();
-      initProcess();
-      println(PRELUDE1);
-      push(mod);
+    if (solver != null) {
+      Z3Pool.shared().release(solver, true);
+      solver = null;
     }
   }
 
@@ -1048,15 +1013,15 @@ public class TypeInferencer implements AutoCloseable {
     if (debug) {
       sb.append(s).append('\n');
     }
-    z3.println(s);
-    z3.flush();
+    solver().z3.println(s);
+    solver().z3.flush();
   }
 
   private void print(String s) {
     if (debug) {
       sb.append(s);
     }
-    z3.print(s);
+    solver().z3.print(s);
   }
 
   private int level = 0;
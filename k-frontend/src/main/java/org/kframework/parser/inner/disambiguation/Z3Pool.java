@@ -0,0 +1,235 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.disambiguation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+import org.kframework.definition.Module;
+import org.kframework.utils.OS;
+import org.kframework.utils.errorsystem.KEMException;
+
+/**
+ * A bounded pool of warm z3 processes used by {@link TypeInferencer}, shared by every module and
+ * thread in the JVM.
+ *
+ * <p>Each process holds the prelude declaring the sorts and subsort relation of at most one module,
+ * asserted in its own scope. A {@link TypeInferencer} leases a process for the duration of a single
+ * term and isolates the term with push/pop, so a process which already holds the prelude of the
+ * module being parsed can be reused as is, and any other idle process can be switched to a new
+ * module by popping its prelude and pushing another one. At most {@link #MAX_SOLVERS} processes
+ * are alive at once; further requests wait for a process to be released.
+ */
+public final class Z3Pool implements AutoCloseable {
+
+  private static final int MAX_SOLVERS = Runtime.getRuntime().availableProcessors();
+
+  // logic QF_DT is best if it exists as it will be faster than ALL. However, some z3 versions do
+  // not have this logic.
+  // Fortunately, z3 ignores unknown logics.
+  private static final String PRELUDE1 = "(set-logic QF_DT)\n";
+
+  private static Z3Pool shared;
+
+  /** Get the pool shared by the whole JVM, creating it on first use. */
+  public static synchronized Z3Pool shared() {
+    if (shared == null) {
+      shared = new Z3Pool(MAX_SOLVERS);
+      Runtime.getRuntime().addShutdownHook(new Thread(shared::close));
+    }
+    return shared;
+  }
+
+  /** A z3 process, together with the module whose prelude it currently holds. */
+  public static final class Solver {
+    private final Process process;
+    final PrintStream z3;
+    final BufferedReader output;
+    // some versions of z3 do not correctly pop scopes, so their processes cannot be reused
+    private final boolean destroyOnReset;
+    private Module module;
+
+    private Solver(List<String> command) {
+      try {
+        File NULL = new File(OS.current() == OS.WINDOWS ? "NUL" : "/dev/null");
+        process = new ProcessBuilder().command(command).redirectError(NULL).start();
+      } catch (IOException e) {
+        throw KEMException.criticalError("Could not start z3 process", e);
+      }
+      z3 = new PrintStream(process.getOutputStream());
+      output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+      z3.println("(get-info :version)");
+      z3.flush();
+      try {
+        String version = output.readLine();
+        version = version.substring("(:version \"".length());
+        version = version.substring(0, version.indexOf('"'));
+        String[] parts = version.split("\\.");
+        // example of version string:
+        // "4.8.8 - build hashcode ad55a1f1c617"
+        int major = Integer.valueOf(parts[0]);
+        int minor = Integer.valueOf(parts[1]);
+        int patch = Integer.valueOf(parts[2].split(" ")[0]);
+        destroyOnReset =
+            major < 4 || (major == 4 && minor < 6) || (major == 4 && minor == 8 && patch == 9);
+      } catch (IOException e) {
+        destroy();
+        throw KEMException.internalError("Could not read from z3 process", e);
+      }
+      z3.print(PRELUDE1);
+      z3.flush();
+    }
+
+    /** Replace the prelude held by this process with the prelude of another module. */
+    private void load(Module mod, String prelude) {
+      if (module != null) {
+        z3.println("(pop)");
+      }
+      z3.println("(push)");
+      z3.println(prelude);
+      z3.flush();
+      module = mod;
+    }
+
+    /**
+     * A process is healthy if it is still running and has no unread output, i.e., the last term
+     * which used it consumed every response.
+     */
+    private boolean isHealthy() {
+      try {
+        return process.isAlive() && !output.ready();
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    private void destroy() {
+      z3.close();
+      process.destroy();
+    }
+
+    long pid() {
+      return process.pid();
+    }
+  }
+
+  private final int capacity;
+  // the command which starts a z3 process reading from its standard input
+  private final List<String> command;
+  private int size = 0;
+  // idle processes, most recently used first
+  private final Deque<Solver> idle = new ArrayDeque<>();
+  private boolean closed = false;
+
+  public Z3Pool(int capacity) {
+    this(capacity, List.of("z3", "-in"));
+  }
+
+  Z3Pool(int capacity, List<String> command) {
+    this.capacity = capacity;
+    this.command = command;
+  }
+
+  /**
+   * Lease a process holding the prelude of a module, waiting for one to be released if the pool is
+   * full.
+   *
+   * @param mod The module whose sorts and subsorts the process must declare.
+   * @param prelude Produces the prelude of mod, if it needs to be loaded.
+   */
+  public Solver acquire(Module mod, Supplier<String> prelude) {
+    Solver solver = null;
+    synchronized (this) {
+      while (true) {
+        if (closed) {
+          throw KEMException.internalError("Cannot use z3 after its process pool was closed.");
+        }
+        // prefer a process which already holds the prelude for this module
+        for (Iterator<Solver> it = idle.iterator(); it.hasNext(); ) {
+          Solver s = it.next();
+          if (s.module == mod) {
+            it.remove();
+            solver = s;
+            break;
+          }
+        }
+        if (solver == null && size < capacity) {
+          size++;
+          break;
+        }
+        if (solver == null && !idle.isEmpty()) {
+          // switch the least recently used process to this module
+          solver = idle.removeLast();
+        }
+        if (solver != null) {
+          if (solver.isHealthy()) {
+            break;
+          }
+          solver.destroy();
+          solver = null;
+          size--;
+          continue;
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw KEMException.criticalError("Interrupted while waiting for a z3 process", e);
+        }
+      }
+    }
+    try {
+      if (solver == null) {
+        solver = new Solver(command);
+      }
+      if (solver.module != mod) {
+        solver.load(mod, prelude.get());
+      }
+      return solver;
+    } catch (RuntimeException e) {
+      if (solver != null) {
+        solver.destroy();
+      }
+      synchronized (this) {
+        size--;
+        notifyAll();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Return a leased process to the pool.
+   *
+   * @param solver The process to return.
+   * @param reusable Whether the term which used the process popped every scope it pushed. If not,
+   *     or if the process is unhealthy, the process is destroyed rather than reused.
+   */
+  public synchronized void release(Solver solver, boolean reusable) {
+    if (!closed && reusable && !solver.destroyOnReset && solver.isHealthy()) {
+      idle.addFirst(solver);
+    } else {
+      solver.destroy();
+      size--;
+    }
+    notifyAll();
+  }
+
+  /** Destroy every idle process. Processes which are currently leased are destroyed on release. */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    for (Solver solver : idle) {
+      solver.destroy();
+      size--;
+    }
+    idle.clear();
+    notifyAll();
+  }
+}
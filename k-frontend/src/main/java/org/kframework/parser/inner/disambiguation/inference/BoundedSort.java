@@ -3,12 +3,17 @@ package org.kframework.parser.inner.disambiguation.inference;
 
 import java.util.HashSet;
 import java.util.Set;
-import org.kframework.kore.SortHead;
+import org.kframework.kore.Sort;
 
 /** An unsimplified sort analogous to SimpleSub's SimpleType. */
 public sealed interface BoundedSort {
-  /** A primitive sort */
-  record Constructor(SortHead head) implements BoundedSort {}
+  /**
+   * A primitive sort
+   *
+   * @param sort - The sort, whose parameters may contain placeholders for the sort parameters of a
+   *     production. Placeholders are resolved by the InferenceDriver which created them.
+   */
+  record Constructor(Sort sort) implements BoundedSort {}
 
   /**
    * A sort variable with sub- and super-type constraints.
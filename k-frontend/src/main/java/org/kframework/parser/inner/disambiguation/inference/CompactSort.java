@@ -1,18 +1,16 @@
 // Copyright (c) Runtime Verification, Inc. All Rights Reserved.
 package org.kframework.parser.inner.disambiguation.inference;
 
-import static org.kframework.Collections.*;
-
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.kframework.POSet;
 import org.kframework.builtin.Sorts;
 import org.kframework.kore.Sort;
-import org.kframework.kore.SortHead;
 import scala.util.Either;
 import scala.util.Left;
 import scala.util.Right;
@@ -21,7 +19,7 @@ import scala.util.Right;
  * A sort which, depending on the polarity where it occurs, represents either an intersection or a
  * union of component sorts (variables and constructors). Analogous to CompactType from SimpleSub.
  */
-public record CompactSort(Set<SortVariable> vars, Set<SortHead> ctors) {
+public record CompactSort(Set<SortVariable> vars, Set<Sort> ctors) {
 
   public CompactSort(SortVariable var) {
     this(Stream.of(var).collect(Collectors.toCollection(HashSet::new)), new HashSet<>());
@@ -32,26 +30,26 @@ public record CompactSort(Set<SortVariable> vars, Set<SortHead> ctors) {
    *
    * @param sort - The BoundedSort to make compact
    * @param polarity - The polarity where sort occurs. True for positive, false for negative.
+   * @param params - Replaces the placeholders for sort parameters in a Constructor's sort with
+   *     their instantiation
    * @return A CompactSort containing all bounds represented by sort
    */
-  public static CompactSort makeCompact(BoundedSort sort, boolean polarity) {
+  public static CompactSort makeCompact(
+      BoundedSort sort, boolean polarity, UnaryOperator<Sort> params) {
     if (sort instanceof BoundedSort.Constructor ctor) {
-      if (ctor.head().params() == 0) {
-        Set<SortHead> ctors = new HashSet<>();
-        ctors.add(ctor.head());
-        return new CompactSort(new HashSet<>(), ctors);
-      }
-      throw new AssertionError("Parametric sorts are not yet supported!");
+      Set<Sort> ctors = new HashSet<>();
+      ctors.add(params.apply(ctor.sort()));
+      return new CompactSort(new HashSet<>(), ctors);
     }
 
     BoundedSort.Variable var = (BoundedSort.Variable) sort;
     Set<BoundedSort> bounds = polarity ? var.lowerBounds() : var.upperBounds();
 
     Set<SortVariable> vars = new HashSet<>();
-    Set<SortHead> ctors = new HashSet<>();
+    Set<Sort> ctors = new HashSet<>();
     vars.add(var.sortVar());
     for (BoundedSort bound : bounds) {
-      CompactSort compactBound = makeCompact(bound, polarity);
+      CompactSort compactBound = makeCompact(bound, polarity, params);
       vars.addAll(compactBound.vars());
       ctors.addAll(compactBound.ctors());
     }
@@ -68,7 +66,7 @@ public record CompactSort(Set<SortVariable> vars, Set<SortHead> ctors) {
    */
   public CompactSort substitute(Map<SortVariable, Optional<CompactSort>> subst) {
     Set<SortVariable> newVars = new HashSet<>();
-    Set<SortHead> newCtors = new HashSet<>(ctors);
+    Set<Sort> newCtors = new HashSet<>(ctors);
     for (SortVariable var : vars) {
       if (!subst.containsKey(var)) {
         newVars.add(var);
@@ -104,10 +102,7 @@ public record CompactSort(Set<SortVariable> vars, Set<SortHead> ctors) {
   public Either<LatticeOpError, Sort> asSort(
       boolean polarity, Map<SortVariable, Sort> instantiation, POSet<Sort> subsorts) {
     Set<Sort> sorts = vars.stream().map(instantiation::get).collect(Collectors.toSet());
-    sorts.addAll(
-        ctors.stream()
-            .map(h -> new org.kframework.kore.ADT.Sort(h.name(), Seq()))
-            .collect(Collectors.toSet()));
+    sorts.addAll(ctors);
     // WLOG upper/lower bound of a set is the upper/lower bound of its maximal/minimal elements.
     // This is useful to prune the search space as the POSet operations can be quite expensive
     sorts = polarity ? subsorts.maximal(sorts) : subsorts.minimal(sorts);
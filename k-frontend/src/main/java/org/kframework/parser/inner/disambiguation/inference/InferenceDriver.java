@@ -2,13 +2,20 @@
 package org.kframework.parser.inner.disambiguation.inference;
 
 import static org.kframework.Collections.*;
+import static org.kframework.kore.KORE.*;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 import org.kframework.POSet;
 import org.kframework.builtin.Sorts;
+import org.kframework.definition.Production;
 import org.kframework.kore.Sort;
 import org.kframework.parser.Constant;
 import org.kframework.parser.ProductionReference;
@@ -18,8 +25,23 @@ import scala.Tuple2;
 /**
  * A driver which manages all state during the initial phase of SortInferencer where we infer
  * unsimplified BoundedSorts.
+ *
+ * <p>A sort parameter of a production which occurs as an argument of a parametric sort, like the
+ * Width in {@code MInt{Width}}, is not given a sort variable. Parametric sorts are only related to
+ * other instances of the same sort when their arguments are equal, so such a parameter is instead
+ * represented by a placeholder sort which is solved by unification. Constraints between distinct
+ * parametric sorts whose parameters are not yet known are deferred until the end of inference, at
+ * which point any placeholder still occurring in the sort of a variable is instantiated with every
+ * compatible sort from the subsort poset.
  */
 public final class InferenceDriver {
+  /**
+   * The maximum number of instantiations of the unsolved placeholders of a term. Every one of them
+   * is checked and monomorphized separately, so terms with more are left to the Z3-based
+   * TypeInferencer.
+   */
+  private static final int MAX_INSTANTIATIONS = 64;
+
   /** The POSet of sorts ordered by the sub-sort relation. */
   private final POSet<Sort> subsorts;
 
@@ -35,6 +57,20 @@ public final class InferenceDriver {
    */
   private final Set<Tuple2<BoundedSort, BoundedSort>> constraintCache = new HashSet<>();
 
+  /** A unique placeholder sort for every parameter occurring in a parametric sort. */
+  private final Map<ParamId, Sort> paramPlaceholders = new HashMap<>();
+
+  /** All placeholders created so far. */
+  private final Set<Sort> placeholders = new HashSet<>();
+
+  /** The sort that each solved placeholder has been unified with. */
+  private final Map<Sort, Sort> bindings = new HashMap<>();
+
+  /** Constraints between distinct parametric sorts which could not yet be checked. */
+  private final List<DeferredConstraint> deferred = new ArrayList<>();
+
+  private record DeferredConstraint(Sort lhs, Sort rhs, ProductionReference pr) {}
+
   public InferenceDriver(POSet<Sort> subsorts) {
     this.subsorts = subsorts;
   }
@@ -65,14 +101,49 @@ public final class InferenceDriver {
    * @return A BoundedSort representing sort
    */
   public BoundedSort sortToBoundedSort(Sort sort, ProductionReference prOrNull) {
-    if (prOrNull != null && prOrNull.production().params().contains(sort)) {
+    if (prOrNull == null || prOrNull.production().params().isEmpty()) {
+      return new BoundedSort.Constructor(sort);
+    }
+    Set<Sort> nestedParams = nestedParams(prOrNull.production());
+    if (prOrNull.production().params().contains(sort) && !nestedParams.contains(sort)) {
       ParamId paramId = new ParamId(prOrNull, sort);
       if (!paramSorts.containsKey(paramId)) {
         paramSorts.put(paramId, new BoundedSort.Variable());
       }
       return paramSorts.get(paramId);
     }
-    return new BoundedSort.Constructor(sort.head());
+    return new BoundedSort.Constructor(withPlaceholders(sort, prOrNull, nestedParams));
+  }
+
+  /** Get the parameters of a production which occur as an argument of some parametric sort. */
+  private static Set<Sort> nestedParams(Production prod) {
+    List<Sort> sorts = new ArrayList<>();
+    sorts.add(prod.sort());
+    stream(prod.nonterminals()).forEach(nt -> sorts.add(nt.sort()));
+    return stream(prod.params())
+        .filter(param -> sorts.stream().anyMatch(s -> !s.equals(param) && s.contains(param)))
+        .collect(Collectors.toSet());
+  }
+
+  /** Replace each of the given parameters of a ProductionReference with its placeholder. */
+  private Sort withPlaceholders(Sort sort, ProductionReference pr, Set<Sort> params) {
+    if (params.contains(sort)) {
+      ParamId paramId = new ParamId(pr, sort);
+      if (!paramPlaceholders.containsKey(paramId)) {
+        Sort placeholder = Sort("?" + sort.name() + placeholders.size());
+        paramPlaceholders.put(paramId, placeholder);
+        placeholders.add(placeholder);
+      }
+      return paramPlaceholders.get(paramId);
+    }
+    if (sort.params().isEmpty()) {
+      return sort;
+    }
+    List<Sort> newParams = new ArrayList<>();
+    for (Sort param : iterable(sort.params())) {
+      newParams.add(withPlaceholders(param, pr, params));
+    }
+    return Sort(sort.name(), newParams);
   }
 
   public BoundedSort returnSort(ProductionReference pr) throws ConstraintError {
@@ -116,18 +187,223 @@ public final class InferenceDriver {
     }
 
     // If they are primitive sorts, we can check the sort poset directly
-    BoundedSort.Constructor lhsCtor = (BoundedSort.Constructor) lhs;
-    BoundedSort.Constructor rhsCtor = (BoundedSort.Constructor) rhs;
-    if (lhsCtor.head().params() == 0 && rhsCtor.head().params() == 0) {
-      Sort lhsSort = new org.kframework.kore.ADT.Sort(lhsCtor.head().name(), Seq());
-      Sort rhsSort = new org.kframework.kore.ADT.Sort(rhsCtor.head().name(), Seq());
+    Sort lhsSort = resolve(((BoundedSort.Constructor) lhs).sort());
+    Sort rhsSort = resolve(((BoundedSort.Constructor) rhs).sort());
+    if (isGround(lhsSort) && isGround(rhsSort)) {
       if (subsorts.lessThanEq(lhsSort, rhsSort)) {
         return;
       }
       throw new ConstraintError(lhsSort, rhsSort, pr);
     }
 
-    throw new AssertionError("Parametric sorts are not yet supported!");
+    // Otherwise, parameters are invariant, so instances of the same sort must be equal
+    if (placeholders.contains(lhsSort)
+        || placeholders.contains(rhsSort)
+        || lhsSort.head().equals(rhsSort.head())) {
+      unify(lhsSort, rhsSort, pr);
+      return;
+    }
+    deferred.add(new DeferredConstraint(lhsSort, rhsSort, pr));
+  }
+
+  private void unify(Sort lhs, Sort rhs, ProductionReference pr) throws ConstraintError {
+    lhs = resolve(lhs);
+    rhs = resolve(rhs);
+    if (lhs.equals(rhs)) {
+      return;
+    }
+    if (placeholders.contains(lhs) && !rhs.contains(lhs)) {
+      bindings.put(lhs, rhs);
+      return;
+    }
+    if (placeholders.contains(rhs) && !lhs.contains(rhs)) {
+      bindings.put(rhs, lhs);
+      return;
+    }
+    if (!lhs.head().equals(rhs.head())) {
+      throw new ConstraintError(lhs, rhs, pr);
+    }
+    for (int i = 0; i < lhs.params().size(); i++) {
+      unify(lhs.params().apply(i), rhs.params().apply(i), pr);
+    }
+  }
+
+  /** Replace every solved placeholder in a sort with its solution. */
+  public Sort resolve(Sort sort) {
+    return resolve(sort, Map.of());
+  }
+
+  private Sort resolve(Sort sort, Map<Sort, Sort> instantiation) {
+    if (placeholders.contains(sort)) {
+      if (bindings.containsKey(sort)) {
+        return resolve(bindings.get(sort), instantiation);
+      }
+      return instantiation.getOrDefault(sort, sort);
+    }
+    if (sort.params().isEmpty()) {
+      return sort;
+    }
+    List<Sort> newParams = new ArrayList<>();
+    for (Sort param : iterable(sort.params())) {
+      newParams.add(resolve(param, instantiation));
+    }
+    return Sort(sort.name(), newParams);
+  }
+
+  private boolean isGround(Sort sort) {
+    return !placeholders.contains(sort) && stream(sort.params()).allMatch(this::isGround);
+  }
+
+  /**
+   * Match a sort containing unsolved placeholders against a sort from the subsort poset.
+   *
+   * @param instantiation - mutated to record the value of each placeholder in the match
+   */
+  private boolean match(Sort pattern, Sort sort, Map<Sort, Sort> instantiation) {
+    if (placeholders.contains(pattern)) {
+      Sort previous = instantiation.putIfAbsent(pattern, sort);
+      return previous == null || previous.equals(sort);
+    }
+    if (!pattern.head().equals(sort.head())) {
+      return false;
+    }
+    for (int i = 0; i < pattern.params().size(); i++) {
+      if (!match(pattern.params().apply(i), sort.params().apply(i), instantiation)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Get every sort in the subsort poset which is an instance of the given sort. */
+  private Set<Sort> instances(Sort sort) {
+    if (isGround(sort)) {
+      return Set.of(sort);
+    }
+    return subsorts.elements().stream()
+        .filter(s -> match(sort, s, new HashMap<>()))
+        .collect(Collectors.toSet());
+  }
+
+  /**
+   * Check the deferred constraints under a particular instantiation of the unsolved placeholders.
+   * Constraints which are still not ground are satisfied if any of their instances are.
+   */
+  private void checkDeferred(UnaryOperator<Sort> params) throws ConstraintError {
+    for (DeferredConstraint constraint : deferred) {
+      Sort lhs = params.apply(constraint.lhs());
+      Sort rhs = params.apply(constraint.rhs());
+      Set<Sort> rhsInstances = instances(rhs);
+      if (instances(lhs).stream()
+          .noneMatch(l -> rhsInstances.stream().anyMatch(r -> subsorts.lessThanEq(l, r)))) {
+        throw new ConstraintError(lhs, rhs, constraint.pr());
+      }
+    }
+  }
+
+  /**
+   * After inference is complete, instantiate the placeholders which are still unsolved but occur in
+   * the sort of some variable, and check the deferred constraints.
+   *
+   * @param res - The result of inference, as returned by getResult
+   * @return For each valid instantiation, a function replacing the placeholders in a sort with
+   *     their values. This will be a single function when every relevant placeholder is solved.
+   * @throws SortInferenceError - an error if there is no valid instantiation
+   * @throws SortInferencer.UnsupportedTermException - if there are more than MAX_INSTANTIATIONS
+   */
+  public List<UnaryOperator<Sort>> instantiateParams(TermSort<BoundedSort> res)
+      throws SortInferenceError {
+    Set<Sort> patterns = new LinkedHashSet<>();
+    Set<SortVariable> visited = new HashSet<>();
+    collectPatterns(res.sort(), patterns, visited);
+    for (BoundedSort varSort : res.varSorts().values()) {
+      collectPatterns(varSort, patterns, visited);
+    }
+
+    // Instantiate one placeholder at a time with every value that is compatible with all of the
+    // sorts it occurs in
+    List<Map<Sort, Sort>> instantiations = new ArrayList<>();
+    instantiations.add(new HashMap<>());
+    for (Sort pattern : patterns) {
+      for (Sort placeholder : placeholders) {
+        if (!pattern.contains(placeholder) || instantiations.get(0).containsKey(placeholder)) {
+          continue;
+        }
+        Set<Sort> values = null;
+        for (Sort other : patterns) {
+          if (other.contains(placeholder)) {
+            Set<Sort> otherValues = new HashSet<>();
+            for (Sort s : subsorts.elements()) {
+              Map<Sort, Sort> match = new HashMap<>();
+              if (match(other, s, match)) {
+                otherValues.add(match.get(placeholder));
+              }
+            }
+            if (values == null) {
+              values = otherValues;
+            } else {
+              values.retainAll(otherValues);
+            }
+          }
+        }
+        if (values.isEmpty()) {
+          throw new ParameterError(pattern, res.term());
+        }
+        if ((long) instantiations.size() * values.size() > MAX_INSTANTIATIONS) {
+          throw new SortInferencer.UnsupportedTermException(
+              "Too many instantiations of the parameters of sort " + pattern);
+        }
+        List<Map<Sort, Sort>> newInstantiations = new ArrayList<>();
+        for (Map<Sort, Sort> instantiation : instantiations) {
+          for (Sort value : values) {
+            Map<Sort, Sort> newInstantiation = new HashMap<>(instantiation);
+            newInstantiation.put(placeholder, value);
+            newInstantiations.add(newInstantiation);
+          }
+        }
+        instantiations = newInstantiations;
+      }
+    }
+
+    List<UnaryOperator<Sort>> results = new ArrayList<>();
+    ConstraintError lastError = null;
+    for (Map<Sort, Sort> instantiation : instantiations) {
+      UnaryOperator<Sort> params = s -> resolve(s, instantiation);
+      try {
+        checkDeferred(params);
+        results.add(params);
+      } catch (ConstraintError e) {
+        lastError = e;
+      }
+    }
+    if (results.isEmpty()) {
+      assert lastError != null;
+      throw lastError;
+    }
+    return results;
+  }
+
+  /**
+   * Collect the sorts with unsolved placeholders which occur in the bounds of a variable, i.e.,
+   * those which may be part of its CompactSort in either polarity.
+   */
+  private void collectPatterns(BoundedSort sort, Set<Sort> patterns, Set<SortVariable> visited) {
+    if (sort instanceof BoundedSort.Constructor ctor) {
+      Sort resolved = resolve(ctor.sort());
+      if (!isGround(resolved)) {
+        patterns.add(resolved);
+      }
+      return;
+    }
+    BoundedSort.Variable var = (BoundedSort.Variable) sort;
+    if (visited.add(var.sortVar())) {
+      for (BoundedSort bound : var.upperBounds()) {
+        collectPatterns(bound, patterns, visited);
+      }
+      for (BoundedSort bound : var.lowerBounds()) {
+        collectPatterns(bound, patterns, visited);
+      }
+    }
   }
 
   /**
@@ -82,3 +82,14 @@ final class MonomorphizationError extends SortInferenceError {
         loc);
   }
 }
+
+/** An error indicating that the parameters of a sort cannot be instantiated to any actual sort. */
+final class ParameterError extends SortInferenceError {
+  public ParameterError(Sort sort, HasLocation loc) {
+    super(
+        "Could not infer the parameters of sort "
+            + sort
+            + ". Add sort annotations to produce a better error message.",
+        loc);
+  }
+}
@@ -1,17 +1,19 @@
 // Copyright (c) Runtime Verification, Inc. All Rights Reserved.
 package org.kframework.parser.inner.disambiguation.inference;
 
-import static org.kframework.Collections.*;
 import static org.kframework.kore.KORE.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import org.kframework.attributes.Att;
 import org.kframework.builtin.KLabels;
@@ -20,7 +22,6 @@ import org.kframework.definition.Module;
 import org.kframework.definition.NonTerminal;
 import org.kframework.definition.Production;
 import org.kframework.kore.Sort;
-import org.kframework.kore.SortHead;
 import org.kframework.parser.Ambiguity;
 import org.kframework.parser.Constant;
 import org.kframework.parser.ProductionReference;
@@ -77,8 +78,29 @@ import scala.util.Right;
  *       </ul>
  *   <li>Insert a SemanticCast around every variable in the Term to record the results.
  * </ol>
+ *
+ * <p>Ambiguities are handled by backtracking. Each run of the above algorithm picks a single branch
+ * of every Ambiguity it encounters, and a branch is pruned as soon as the constraints it induces
+ * are unsatisfiable. The runs enumerate the remaining combinations of branches in depth-first
+ * order, and the results of every successful run are merged into a single Ambiguity.
  */
 public class SortInferencer {
+  /**
+   * The maximum number of ways to disambiguate a supported term. Every combination of branches may
+   * need to be inferred separately, so terms with more are left to the Z3-based TypeInferencer.
+   */
+  private static final int MAX_DISAMBIGUATIONS = 256;
+
+  /**
+   * Thrown when a term turns out not to be supported during inference, in which case it should be
+   * left to the Z3-based TypeInferencer.
+   */
+  public static final class UnsupportedTermException extends RuntimeException {
+    UnsupportedTermException(String message) {
+      super(message);
+    }
+  }
+
   private final Module mod;
 
   public SortInferencer(Module mod) {
@@ -87,40 +109,179 @@ public class SortInferencer {
 
   /**
    * Determine whether a Term is supported by the current SortInferencer algorithm. Supported terms
-   * can contain neither ambiguities nor parametric sorts.
+   * must have at most MAX_DISAMBIGUATIONS disambiguations.
    */
   public static boolean isSupported(Term t) {
-    return !hasAmbiguity(t) && !hasParametricSorts(t);
+    return countDisambiguations(t, new IdentityHashMap<>()) <= MAX_DISAMBIGUATIONS;
   }
 
-  private static boolean hasAmbiguity(Term t) {
-    if (t instanceof Ambiguity) {
-      return true;
+  /**
+   * Count the number of distinct terms without ambiguities that a term represents, saturating at
+   * MAX_DISAMBIGUATIONS + 1.
+   *
+   * @param counts - The counts of the subterms already visited, since the term is a DAG
+   */
+  private static long countDisambiguations(Term t, Map<Term, Long> counts) {
+    Long cached = counts.get(t);
+    if (cached != null) {
+      return cached;
     }
-    if (t instanceof Constant) {
-      return false;
+    long count;
+    if (t instanceof Ambiguity amb) {
+      count = 0;
+      for (Term item : amb.items()) {
+        count += countDisambiguations(item, counts);
+        if (count > MAX_DISAMBIGUATIONS) {
+          break;
+        }
+      }
+    } else if (t instanceof Constant) {
+      count = 1;
+    } else {
+      count = 1;
+      for (Term item : ((TermCons) t).items()) {
+        count *= countDisambiguations(item, counts);
+        if (count > MAX_DISAMBIGUATIONS) {
+          break;
+        }
+      }
+    }
+    count = Math.min(count, MAX_DISAMBIGUATIONS + 1);
+    counts.put(t, count);
+    return count;
+  }
+
+  /**
+   * Determine whether two results of sort inference represent the same terms, even if their
+   * ambiguities are not in the same places, e.g., when one of them has a single Ambiguity at the
+   * top and the other pushes it down to the subterms which differ.
+   *
+   * @return Whether the two terms have the same disambiguations. Terms with more than
+   *     MAX_COMPARED_DISAMBIGUATIONS disambiguations are only compared for equality.
+   */
+  public static boolean sameDisambiguations(Term a, Term b) {
+    if (a.equals(b)) {
+      return true;
     }
-    return ((TermCons) t).items().stream().anyMatch(SortInferencer::hasAmbiguity);
+    Set<Term> left = disambiguations(a, new IdentityHashMap<>());
+    Set<Term> right = disambiguations(b, new IdentityHashMap<>());
+    return left != null && left.equals(right);
   }
 
-  private static boolean hasParametricSorts(Term t) {
+  private static final int MAX_COMPARED_DISAMBIGUATIONS = 4096;
+
+  /**
+   * The terms without ambiguities that a term represents, or null if there are more than
+   * MAX_COMPARED_DISAMBIGUATIONS.
+   *
+   * @param memo - The disambiguations of the subterms already visited, since the term is a DAG
+   */
+  private static Set<Term> disambiguations(Term t, Map<Term, Set<Term>> memo) {
+    Set<Term> cached = memo.get(t);
+    if (cached != null) {
+      return cached;
+    }
+    Set<Term> result = new HashSet<>();
     if (t instanceof Ambiguity amb) {
-      return amb.items().stream().anyMatch(SortInferencer::hasParametricSorts);
+      for (Term item : amb.items()) {
+        Set<Term> terms = disambiguations(item, memo);
+        if (terms == null) {
+          return null;
+        }
+        result.addAll(terms);
+      }
+    } else if (t instanceof TermCons tc) {
+      result.add(tc);
+      for (int i = 0; i < tc.items().size(); i++) {
+        Set<Term> children = disambiguations(tc.get(i), memo);
+        if (children == null) {
+          return null;
+        }
+        if (children.size() == 1 && children.contains(tc.get(i))) {
+          continue;
+        }
+        Set<Term> next = new HashSet<>();
+        for (Term partial : result) {
+          for (Term child : children) {
+            next.add(((TermCons) partial).with(i, child));
+          }
+        }
+        result = next;
+        if (result.size() > MAX_COMPARED_DISAMBIGUATIONS) {
+          return null;
+        }
+      }
+    } else {
+      result.add(t);
     }
-    ProductionReference pr = (ProductionReference) t;
-    if (stream(pr.production().items())
-        .filter(pi -> pi instanceof NonTerminal)
-        .map(pi -> ((NonTerminal) pi).sort())
-        .anyMatch(s -> !s.params().isEmpty())) {
-      return true;
+    if (result.size() > MAX_COMPARED_DISAMBIGUATIONS) {
+      return null;
     }
-    if (!pr.production().sort().params().isEmpty()) {
-      return true;
+    memo.put(t, result);
+    return result;
+  }
+
+  /**
+   * Find the branches of each Ambiguity which can be well-sorted at all. A branch whose production
+   * has a fixed sort which is not a subsort of the sort expected where the Ambiguity occurs fails
+   * in every run, so it need not be enumerated.
+   *
+   * @param expected - The sort expected for t, or null if it is not fixed
+   * @param branches - mutated to record the remaining branches of each Ambiguity, which may be none
+   * @param visited - The terms whose subterms were already visited
+   */
+  private void findViableBranches(
+      Term t, Sort expected, Map<Ambiguity, List<Term>> branches, Set<Term> visited) {
+    if (t instanceof Ambiguity amb) {
+      // a shared Ambiguity may be reached with different expected sorts, e.g., from the branches
+      // of another Ambiguity, so keep the branches which are viable for any of them
+      List<Term> previous = branches.get(amb);
+      List<Term> viable = new ArrayList<>();
+      for (Term item : amb.items()) {
+        Sort sort = fixedSort(item);
+        if (expected == null
+            || sort == null
+            || mod.subsorts().lessThanEq(sort, expected)
+            || (previous != null && previous.contains(item))) {
+          viable.add(item);
+        }
+      }
+      branches.put(amb, viable);
+      if (visited.add(t)) {
+        amb.items().forEach(item -> findViableBranches(item, null, branches, visited));
+      }
+    } else if (t instanceof TermCons tc) {
+      // the sorts expected for the children of a TermCons do not depend on expected
+      if (!visited.add(t)) {
+        return;
+      }
+      // the child of a cast is constrained by the sort it is cast to instead
+      boolean fixed = tc.production().params().isEmpty() && !isSyntacticCast(tc);
+      for (int prodI = 0, tcI = 0; prodI < tc.production().items().size(); prodI++) {
+        if (tc.production().items().apply(prodI) instanceof NonTerminal nt) {
+          findViableBranches(tc.get(tcI), fixed ? nt.sort() : null, branches, visited);
+          tcI++;
+        }
+      }
     }
-    if (pr instanceof Constant) {
-      return false;
+  }
+
+  private static boolean isSyntacticCast(TermCons tc) {
+    return tc.production()
+        .klabel()
+        .filter(k -> k.name().equals("#SyntacticCast") || k.name().equals("#SyntacticCastBraced"))
+        .isDefined();
+  }
+
+  /** The sort of a term if it does not depend on inference, or null. */
+  private static Sort fixedSort(Term t) {
+    if (!(t instanceof ProductionReference pr)
+        || !pr.production().params().isEmpty()
+        || pr.production().sort().equals(Sorts.KVariable())
+        || pr.production().sort().equals(Sorts.KConfigVar())) {
+      return null;
     }
-    return ((TermCons) t).items().stream().anyMatch(SortInferencer::hasParametricSorts);
+    return pr.production().sort();
   }
 
   /**
@@ -130,12 +291,10 @@ public class SortInferencer {
    *
    * @param isAnywhere - Whether the Term was explicitly marked with an attribute such as anywhere,
    *     simplification, macro, etc. indicating that it is a rule which applies anywhere
+   * @param choices - The branches chosen for each Ambiguity in the current run of inference
    */
-  private static boolean isAnywhereRule(Term t, boolean isAnywhere) {
-    if (t instanceof Ambiguity) {
-      throw new AssertionError("Ambiguities are not yet supported!");
-    }
-    t = stripBrackets(t);
+  private static boolean isAnywhereRule(Term t, boolean isAnywhere, Choices choices) {
+    t = stripBrackets(t, choices);
     if (t instanceof Constant) {
       return false;
     }
@@ -144,22 +303,18 @@ public class SortInferencer {
     if (tc.production().sort().equals(Sorts.RuleContent())) {
       assert tc.production().nonterminals().size() >= 1
           && tc.production().nonterminal(0).sort().equals(Sorts.RuleBody());
-      return isAnywhereRule(tc.get(0), isAnywhere);
+      return isAnywhereRule(tc.get(0), isAnywhere, choices);
     }
     // For every #RuleBody production, the first non-terminal holds the actual K term
     if (tc.production().sort().equals(Sorts.RuleBody())) {
       assert tc.production().nonterminals().size() >= 1
           && tc.production().nonterminal(0).sort().equals(Sorts.K());
-      return isAnywhereRule(tc.get(0), isAnywhere);
+      return isAnywhereRule(tc.get(0), isAnywhere, choices);
     }
     // This is the first actual K term we encounter after stripping away rule syntax,
     // and should be a rewrite if this is anywhere rule.
     if (tc.production().klabel().filter(k -> k.head().equals(KLabels.KREWRITE)).isDefined()) {
-      Term lhs = stripBrackets(tc.get(0));
-      if (lhs instanceof Ambiguity) {
-        throw new AssertionError("Ambiguities are not yet supported!");
-      }
-      ProductionReference lhsPr = (ProductionReference) lhs;
+      ProductionReference lhsPr = (ProductionReference) stripBrackets(tc.get(0), choices);
       return isAnywhere
           || lhsPr.production().att().contains(Att.FUNCTION())
           || lhsPr.production().att().getMacro().isDefined();
@@ -180,25 +335,42 @@ public class SortInferencer {
    *     type (returning an Ambiguity of all solutions when there are multiple possible sorts).
    */
   public Either<Set<KEMException>, Term> apply(Term t, Sort topSort, boolean isAnywhere) {
-    Set<TermSort<Sort>> monoRes;
-    try {
-      InferenceDriver driver = new InferenceDriver(mod.subsorts());
-      BoundedSort itemSort = infer(t, isAnywhereRule(t, isAnywhere), driver);
-      BoundedSort topBoundedSort = driver.sortToBoundedSort(topSort, null);
-      driver.constrain(itemSort, topBoundedSort, (ProductionReference) t);
-      TermSort<BoundedSort> unsimplifiedRes = driver.getResult(t, topBoundedSort);
-      TermSort<CompactSort> res = simplify(unsimplifiedRes.mapSorts(CompactSort::makeCompact));
-      monoRes = monomorphize(res);
-    } catch (SortInferenceError e) {
+    Set<Term> items = new HashSet<>();
+    SortInferenceError lastError = null;
+    Map<Ambiguity, List<Term>> branches = new IdentityHashMap<>();
+    findViableBranches(t, topSort, branches, Collections.newSetFromMap(new IdentityHashMap<>()));
+    // if no branch of an Ambiguity is viable, keep all of them, so that a run reports the error
+    branches.replaceAll((amb, viable) -> viable.isEmpty() ? new ArrayList<>(amb.items()) : viable);
+    Choices choices = new Choices(branches);
+    do {
+      try {
+        InferenceDriver driver = new InferenceDriver(mod.subsorts());
+        BoundedSort itemSort = infer(t, isAnywhereRule(t, isAnywhere, choices), driver, choices);
+        BoundedSort topBoundedSort = driver.sortToBoundedSort(topSort, null);
+        driver.constrain(itemSort, topBoundedSort, (ProductionReference) choices.resolve(t));
+        TermSort<BoundedSort> unsimplifiedRes = driver.getResult(t, topBoundedSort);
+        for (UnaryOperator<Sort> params : driver.instantiateParams(unsimplifiedRes)) {
+          try {
+            TermSort<CompactSort> res =
+                simplify(unsimplifiedRes.mapSorts((s, p) -> CompactSort.makeCompact(s, p, params)));
+            for (TermSort<Sort> mono : monomorphize(res)) {
+              items.add(insertCasts(t, mono, false, choices));
+            }
+          } catch (SortInferenceError e) {
+            lastError = e;
+          }
+        }
+      } catch (SortInferenceError e) {
+        lastError = e;
+      }
+    } while (choices.next());
+
+    if (items.isEmpty()) {
+      assert lastError != null;
       Set<KEMException> errs = new HashSet<>();
-      errs.add(e.asInnerParseError(t));
+      errs.add(lastError.asInnerParseError(t));
       return Left.apply(errs);
     }
-
-    Set<Term> items = new HashSet<>();
-    for (TermSort<Sort> mono : monoRes) {
-      items.add(insertCasts(t, mono, false));
-    }
     if (items.size() == 1) {
       return Right.apply(items.iterator().next());
     } else {
@@ -213,13 +385,14 @@ public class SortInferencer {
    * @param isAnywhereRule - Whether t is a rule which can be applied anywhere in a configuration
    * @param driver - A driver maintaining all state during inference, including the sort of all
    *     variables as they are encountered.
+   * @param choices - The branches chosen for each Ambiguity in the current run of inference
    * @return The unsimplified sort of the input term
    * @throws SortInferenceError - an exception indicating that the term is not well-typed
    */
-  private BoundedSort infer(Term t, boolean isAnywhereRule, InferenceDriver driver)
+  private BoundedSort infer(Term t, boolean isAnywhereRule, InferenceDriver driver, Choices choices)
       throws SortInferenceError {
-    if (t instanceof Ambiguity) {
-      throw new AssertionError("Ambiguities are not yet supported!");
+    if (t instanceof Ambiguity amb) {
+      return infer(choices.choose(amb), isAnywhereRule, driver, choices);
     }
 
     ProductionReference pr = (ProductionReference) t;
@@ -234,19 +407,19 @@ public class SortInferencer {
     TermCons tc = (TermCons) pr;
     if (isAnywhereRule
         && tc.production().klabel().filter(k -> k.head().equals(KLabels.KREWRITE)).isDefined()) {
-      BoundedSort lhsSort = infer(tc.get(0), false, driver);
+      BoundedSort lhsSort = infer(tc.get(0), false, driver, choices);
       // To prevent widening, we constrain RHS's inferred sort <: LHS's declared sort.
       //
       // Note that we do actually need the LHS's declared sort. The LHS's inferred sort
       // is a variable X with a bound L <: X, and constraining against X would just add a
       // new lower bound aka permit widening.
       //
-      // It's also safe to assume the LHS is not an Ambiguity due to PushTopAmbiguitiesUp
-      ProductionReference lhsDeclaredPr = (ProductionReference) stripBrackets(tc.get(0));
+      // If the LHS is an Ambiguity, we use the declared sort of the branch chosen in this run.
+      ProductionReference lhsDeclaredPr = (ProductionReference) stripBrackets(tc.get(0), choices);
       BoundedSort lhsDeclaredSort =
           driver.sortToBoundedSort(lhsDeclaredPr.production().sort(), lhsDeclaredPr);
-      BoundedSort rhsSort = infer(tc.get(1), false, driver);
-      driver.constrain(rhsSort, lhsDeclaredSort, (ProductionReference) tc.get(1));
+      BoundedSort rhsSort = infer(tc.get(1), false, driver, choices);
+      driver.constrain(rhsSort, lhsDeclaredSort, (ProductionReference) choices.resolve(tc.get(1)));
 
       // Handle usual production constraints
       BoundedSort rewriteParam = driver.sortToBoundedSort(tc.production().sort(), tc);
@@ -255,12 +428,9 @@ public class SortInferencer {
       return driver.returnSort(tc);
     }
 
-    if (tc.production()
-        .klabel()
-        .filter(k -> k.name().equals("#SyntacticCast") || k.name().equals("#SyntacticCastBraced"))
-        .isDefined()) {
+    if (isSyntacticCast(tc)) {
       BoundedSort castedSort = driver.sortToBoundedSort(tc.production().sort(), tc);
-      BoundedSort childSort = infer(tc.get(0), isAnywhereRule, driver);
+      BoundedSort childSort = infer(tc.get(0), isAnywhereRule, driver, choices);
       driver.constrain(castedSort, childSort, tc);
       driver.constrain(childSort, castedSort, tc);
       return driver.returnSort(tc);
@@ -271,7 +441,7 @@ public class SortInferencer {
         continue;
       }
       BoundedSort expectedSort = driver.sortToBoundedSort(nt.sort(), tc);
-      BoundedSort childSort = infer(tc.get(tcI), isAnywhereRule, driver);
+      BoundedSort childSort = infer(tc.get(tcI), isAnywhereRule, driver, choices);
       driver.constrain(childSort, expectedSort, tc);
       tcI++;
     }
@@ -330,7 +500,7 @@ public class SortInferencer {
             vOpCoOccurs.vars().add(v);
           }
         }
-        for (SortHead ctor : vCoOccurs.ctors()) {
+        for (Sort ctor : vCoOccurs.ctors()) {
           // This is not a variable, so check if we have a sandwich ctor <: v <: ctor
           // and can thus simplify away v
           if (vOpCoOccurs.ctors().contains(ctor)) {
@@ -360,7 +530,7 @@ public class SortInferencer {
     EVER
   }
 
-  private record CoOccurrences(Set<SortVariable> vars, Set<SortHead> ctors) {}
+  private record CoOccurrences(Set<SortVariable> vars, Set<Sort> ctors) {}
 
   /**
    * Compute the co-occurrences within a TermSort based on the given mode.
@@ -491,9 +661,7 @@ public class SortInferencer {
           polBound.getValue().add(instantiation.get(bVar));
         }
       }
-      for (SortHead bCtor : bound.ctors()) {
-        polBound.getValue().add(new org.kframework.kore.ADT.Sort(bCtor.name(), Seq()));
-      }
+      polBound.getValue().addAll(bound.ctors());
     }
 
     Set<Sort> range = mod.subsorts().upperBounds(polBounds.get(true));
@@ -551,10 +719,11 @@ public class SortInferencer {
    * @param t - The term to insert casts on
    * @param sorts - The inferred sorts of t
    * @param existingCast - Whether t is already wrapped in an existing cast
+   * @param choices - The branches chosen for each Ambiguity in the run of inference producing sorts
    */
-  private Term insertCasts(Term t, TermSort<Sort> sorts, boolean existingCast) {
-    if (t instanceof Ambiguity) {
-      throw new AssertionError("Ambiguities are not yet supported!");
+  private Term insertCasts(Term t, TermSort<Sort> sorts, boolean existingCast, Choices choices) {
+    if (t instanceof Ambiguity amb) {
+      return insertCasts(choices.choose(amb), sorts, existingCast, choices);
     }
 
     ProductionReference pr = (ProductionReference) t;
@@ -575,17 +744,95 @@ public class SortInferencer {
     boolean isCast =
         tc.production().klabel().filter(k -> k.name().startsWith("#SemanticCastTo")).isDefined();
     for (int i = 0; i < tc.items().size(); i++) {
-      tc = tc.with(i, insertCasts(tc.get(i), sorts, isCast));
+      tc = tc.with(i, insertCasts(tc.get(i), sorts, isCast, choices));
     }
     return tc;
   }
 
-  private static Term stripBrackets(Term tc) {
-    Term child = tc;
+  private static Term stripBrackets(Term tc, Choices choices) {
+    Term child = choices.resolve(tc);
     while (child instanceof TermCons
         && ((TermCons) child).production().att().contains(Att.BRACKET())) {
-      child = ((TermCons) child).get(0);
+      child = choices.resolve(((TermCons) child).get(0));
     }
     return child;
   }
+
+  /**
+   * The branch chosen for each Ambiguity during a single run of inference, together with the state
+   * needed to enumerate the combinations of branches in depth-first order.
+   *
+   * <p>The choices of a run are recorded in the order the ambiguities are first encountered. Since
+   * inference is deterministic, a run which makes the same first n choices as a previous run will
+   * encounter the same ambiguities in the same order up to that point. Thus, when a run fails, any
+   * choices it did not reach are irrelevant, and we can prune every combination sharing its prefix
+   * by advancing the last choice it made.
+   */
+  private static final class Choices {
+    /** The index of the branch chosen for each Ambiguity, in the order they were encountered. */
+    private final List<Integer> path = new ArrayList<>();
+
+    /** The number of branches of each Ambiguity in path. */
+    private final List<Integer> widths = new ArrayList<>();
+
+    /** The branches chosen so far in the current run. */
+    private final Map<Ambiguity, Term> chosen = new IdentityHashMap<>();
+
+    /** The branches of each Ambiguity which are enumerated. */
+    private final Map<Ambiguity, List<Term>> branches;
+
+    private Choices(Map<Ambiguity, List<Term>> branches) {
+      this.branches = branches;
+    }
+
+    /**
+     * Get the branch of an Ambiguity to use in the current run, choosing one if this is the first
+     * time the run encounters it.
+     */
+    public Term choose(Ambiguity amb) {
+      Term item = chosen.get(amb);
+      if (item != null) {
+        return item;
+      }
+      List<Term> items = branches.computeIfAbsent(amb, a -> new ArrayList<>(a.items()));
+      int depth = chosen.size();
+      if (depth == path.size()) {
+        path.add(0);
+        widths.add(items.size());
+      }
+      item = items.get(path.get(depth));
+      chosen.put(amb, item);
+      return item;
+    }
+
+    /** Replace any Ambiguity with the branch chosen for it in the current run. */
+    public Term resolve(Term t) {
+      while (t instanceof Ambiguity amb) {
+        t = choose(amb);
+      }
+      return t;
+    }
+
+    /**
+     * Advance to the next combination of branches which has not been ruled out by the current run.
+     *
+     * @return false if every combination has been enumerated
+     */
+    public boolean next() {
+      int depth = chosen.size();
+      path.subList(depth, path.size()).clear();
+      widths.subList(depth, widths.size()).clear();
+      chosen.clear();
+      while (!path.isEmpty()) {
+        int last = path.size() - 1;
+        if (path.get(last) + 1 < widths.get(last)) {
+          path.set(last, path.get(last) + 1);
+          return true;
+        }
+        path.remove(last);
+        widths.remove(last);
+      }
+      return false;
+    }
+  }
 }
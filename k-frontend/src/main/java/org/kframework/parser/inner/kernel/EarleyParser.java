@@ -4,11 +4,12 @@ package org.kframework.parser.inner.kernel;
 import static org.kframework.Collections.*;
 import static org.kframework.kore.KORE.*;
 
-import com.google.common.primitives.Ints;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 import org.apache.commons.codec.binary.StringUtils;
-import org.jetbrains.annotations.NotNull;
 import org.kframework.attributes.Att;
 import org.kframework.attributes.Location;
 import org.kframework.attributes.Source;
@@ -43,22 +44,20 @@ import org.pcollections.PStack;
  * process. For another, we don't use quite the same approach for constructing parse forests.
  * Finally, there was an issue with Scott's implementation of nullable non-terminals, and so we
  * implement the prediction step from Aycock and Horspool's implementation when predicting a
- * nullable non-terminal. Due to the difference in the parse forests, this algorithm is
- * unbounded-polynomial-order in space usage. It would be theoretically possible to modify the way
- * we generate parse forests to more closely follow Scott's paper, which would give us a parser
- * which uses cubic space, but this would require us to modify the Term type rather substantially in
- * order to binarize the TermCons nodes so that each has at most two children. This would be a
- * change that requires a much more substantial rewriting of the algorithm we use to process parse
- * forests. It is definitely worth considering however as it would dramatically improve the
- * worst-case space usage of the algorithm on ambiguous sentences.
+ * nullable non-terminal. During parsing, the forest is binarized as in Scott's paper (see {@link
+ * PartialParse}), which keeps it polynomial in size. However, the {@link Term} type used by the
+ * disambiguation passes is not binarized, so once a sentence is parsed, the forest is unpacked
+ * into TermCons nodes bottom-up, each completed node once, with the nodes that are shared in the
+ * forest also shared in the resulting {@link Term}. That unpacking is still
+ * unbounded-polynomial-order in the worst case.
  */
-public class EarleyParser {
+public class EarleyParser implements Serializable {
 
   /**
    * A single item of an {@link EarleyProduction}. Can be either an {@link EarleyTerminal} or an
    * {@link EarleyNonTerminal}.
    */
-  private interface EarleyProductionItem {
+  private interface EarleyProductionItem extends Serializable {
     /**
      * @return true if the production item is a nonterminal, false otherwise.
      */
@@ -98,9 +97,9 @@ public class EarleyParser {
    *
    * <p>The terminal is represented by a particular token kind as informed by the provided {@link
    * Scanner}. Token 0 is always the EOF token, which should appear only in the production used by
-   * the start state of the parser.
+   * the start state of the parser, and has no {@link TerminalLike}.
    */
-  private record EarleyTerminal(Scanner scanner, int kind) implements EarleyProductionItem {
+  private record EarleyTerminal(TerminalLike terminal, int kind) implements EarleyProductionItem {
     public boolean isNonTerminal() {
       return false;
     }
@@ -113,12 +112,12 @@ public class EarleyParser {
       if (kind == 0) {
         return "<EOS>";
       }
-      return scanner.getTokenByKind(kind).toString();
+      return terminal.toString();
     }
   }
 
   /** A single production as represented by the parser. */
-  private static final class EarleyProduction {
+  private static final class EarleyProduction implements Serializable {
     /**
      * @param index the index of the production within the `productions` field. Index 0 is reserved
      *     for the production `syntax ENTRY ::= STARTSYMBOL "EOF", where ENTRY is sort 0,
@@ -202,8 +201,8 @@ public class EarleyParser {
    * An LR(0) parsing item. I.e., a production and a "dot", representing an index within the
    * production up to which parsing has completed.
    *
-   * <p>This class is only used to facilitate nullability computations. However, conceptually, the
-   * `prod` and `item` fields of an {@link EarleyState} also represent an LR(0) parsing item.
+   * <p>This class is only used to facilitate nullability computations. During parsing, LR(0) items
+   * are instead represented by their index in the `symbol` and `itemProduction` arrays.
    */
   private static final class LRItem {
     public LRItem(EarleyProduction prod, int item) {
@@ -232,82 +231,226 @@ public class EarleyParser {
     }
   }
 
-  /**
-   * An Earley parser parse state. Consists of an inlined LR(0) item (see {@link LRItem}) and an
-   * index within the sentence being parsed where the parse state began.
+  /*
+   * An Earley parser parse state consists of an LR(0) item (see {@link LRItem}) and an index within
+   * the sentence being parsed where the parse state began. In order to avoid allocating an object
+   * for each of the many states created during parsing, we number every LR(0) item of the grammar
+   * densely, such that the items of a production are numbered consecutively in order of their
+   * "dot", and encode a state as a single long: the LR(0) item in the high 32 bits and the start
+   * index in the low 32 bits. All the information about an LR(0) item needed by the algorithm is
+   * precomputed in the `symbol` and `itemProduction` arrays. Both fields are non-negative ints,
+   * so every state is a non-negative long, and negative values can mark empty hash table slots.
    *
-   * <p>Each parse state also has a parse tree associated with it, in the form of a
-   * Set<PStack<Term>> object. Each element in the set represents a single possible parse at this
-   * state, with one element in the PStack for each non-terminal left of the "dot" on the
-   * right-hand-side of the production.
+   * Each parse state also has a parse tree associated with it, in the form of a {@link
+   * PartialParse} node of the shared packed parse forest. Parse trees are stored alongside the
+   * states in their {@link EarleySet}.
+   */
+
+  static long state(int item, int start) {
+    if ((item | start) < 0) {
+      throw KEMException.internalError(
+          "Cannot encode the Earley state of item " + item + " and start-index " + start);
+    }
+    return ((long) item << 32) | start;
+  }
+
+  static int item(long state) {
+    return (int) (state >>> 32);
+  }
+
+  static int start(long state) {
+    return (int) state;
+  }
+
+  // the value of `symbol` for an LR(0) item whose "dot" is at the end of its production
+  private static final int COMPLETE = -1;
+
+  // the value of `symbol` for an LR(0) item whose next production item is the terminal `kind`
+  private static int terminal(int kind) {
+    return -2 - kind;
+  }
+
+  private static boolean isTerminal(int symbol) {
+    return symbol < COMPLETE;
+  }
+
+  private static int kind(int symbol) {
+    return -2 - symbol;
+  }
+
+  /**
+   * A node of the shared packed parse forest representing the partial parses of a parse state,
+   * i.e., the possible lists of children left of the "dot" on the right-hand-side of its
+   * production.
    *
-   * <p>Additionally, we compute the value `ntItem` which corresponds to the number of non-terminals
-   * left of the "dot" in the LR(0) item this state corresponds to.
+   * <p>Rather than storing every such list, each derivation of the node is a pair of the partial
+   * parse of the state the last non-terminal was parsed from (null if it was the first one) and the
+   * node of the forest representing that non-terminal. Since both of these are shared between all
+   * the states that use them, the size of the forest is polynomial in the length of the input even
+   * for highly ambiguous sentences. The lists are only enumerated by {@link #expand()}, after
+   * parsing has finished and the nodes they contain are built by {@link
+   * CompletedParses#materialize}.
    */
-  private static final class EarleyState {
-    public EarleyState(EarleyProduction prod, int item, int start) {
-      this.prod = prod;
-      this.item = item;
-      this.start = start;
-      int ntItem = 0;
-      for (int k = 0; k < item; k++) {
-        if (prod.items.get(k).isNonTerminal()) {
-          ntItem++;
-        }
+  private static final class PartialParse {
+    private Set<Derivation> derivations = new HashSet<>();
+    private Set<PStack<Term>> expanded;
+
+    // both components are shared, so derivations are compared by identity
+    private record Derivation(PartialParse prefix, CompletedParses child) {
+      @Override
+      public boolean equals(Object o) {
+        return o instanceof Derivation d && prefix == d.prefix && child == d.child;
       }
-      this.ntItem = ntItem;
-    }
 
-    final EarleyProduction prod;
-    final int item;
-    final int start;
-    final int ntItem;
-    Set<PStack<Term>> parseTree;
+      @Override
+      public int hashCode() {
+        return 31 * System.identityHashCode(prefix) + System.identityHashCode(child);
+      }
+    }
 
-    @Override
-    public boolean equals(Object o) {
-      if (this == o) return true;
-      if (o == null || getClass() != o.getClass()) return false;
-      EarleyState that = (EarleyState) o;
-      return item == that.item && start == that.start && prod.equals(that.prod);
+    public void add(PartialParse prefix, CompletedParses child) {
+      derivations.add(new Derivation(prefix, child));
     }
 
-    @Override
-    public int hashCode() {
-      return Objects.hash(prod, item, start);
+    public void addAll(PartialParse other) {
+      derivations.addAll(other.derivations);
     }
 
-    public String toString() {
-      return "(" + prod.toString() + ", " + item + ", " + start + ")";
+    /**
+     * @return The set of partial parses represented by this node. Each element in the set
+     *     represents a single possible parse, with one element in the PStack for each non-terminal
+     *     left of the "dot" on the right-hand-side of the production.
+     */
+    public Set<PStack<Term>> expand() {
+      if (expanded == null) {
+        expanded = new HashSet<>();
+        for (Derivation d : derivations) {
+          for (PStack<Term> terms : expand(d.prefix)) {
+            expanded.add(terms.plus(d.child.term));
+          }
+        }
+        derivations = null;
+      }
+      return expanded;
     }
 
-    public Set<PStack<Term>> parseTree() {
+    public static Set<PStack<Term>> expand(PartialParse parseTree) {
       if (parseTree == null) {
         return EMPTY_PARSE_TREE;
       }
-      return parseTree;
+      return parseTree.expand();
     }
   }
 
   /**
-   * A wrapper around a {@link Set<Term>} representing the parse trees that can be parsed for a
+   * A packed node of the parse forest representing the parse trees that can be parsed for a
    * particular non-terminal over a particular range of the input. This information is deduplicated
-   * across multiple parse states in order to preserve sharing in the resulting parse forest.
+   * across multiple parse states in order to preserve sharing in the resulting parse forest: every
+   * state advanced past the non-terminal over this range refers to the same {@link #term}.
+   *
+   * <p>During parsing, we only record the productions that were completed over the range, together
+   * with their partial parses. The items of {@link #term} are only built by {@link #materialize},
+   * once parsing has finished, and only for the nodes reachable from a complete parse. They are
+   * built before any term containing {@link #term} is hashed, since terms cache their hash code.
    */
-  private static final class CompleteParseTreeNode {
-    Set<Term> derivations;
+  private static final class CompletedParses {
+    private final int start;
+    private final int end;
+    private ParserMetadata data;
+    private List<EarleyProduction> prods = new ArrayList<>();
+    private List<PartialParse> parseTrees = new ArrayList<>();
+    private final Set<Term> terms = new HashSet<>();
+    final Ambiguity term = Ambiguity.apply(terms);
+    // whether the nodes this node depends on are being built, and whether this node is built
+    private boolean visited = false;
+    private boolean built = false;
 
-    public CompleteParseTreeNode() {
-      derivations = new HashSet<>();
+    /**
+     * @param start The start-index of the input range that was parsed.
+     * @param end The end-index of the input range that was parsed.
+     * @param data The {@link ParserMetadata} about the current sentence being parsed.
+     */
+    public CompletedParses(int start, int end, ParserMetadata data) {
+      this.start = start;
+      this.end = end;
+      this.data = data;
+    }
+
+    /**
+     * @param prod The {@link EarleyProduction} that was parsed.
+     * @param parseTree The parse tree of the completed state, or null if it has no non-terminals.
+     */
+    public void add(EarleyProduction prod, PartialParse parseTree) {
+      prods.add(prod);
+      parseTrees.add(parseTree);
+    }
+
+    private void build() {
+      for (int i = 0; i < prods.size(); i++) {
+        wrapState(terms, PartialParse.expand(parseTrees.get(i)), prods.get(i), start, end, data);
+      }
+      prods = null;
+      parseTrees = null;
+      data = null;
+      built = true;
+    }
+
+    /**
+     * Build the items of the nodes reachable from a partial parse, each node after the nodes its
+     * items contain. Iterative, since the forest can be as deep as the input is long.
+     */
+    static void materialize(PartialParse root) {
+      Deque<CompletedParses> stack = new ArrayDeque<>();
+      pushChildren(root, stack, Collections.newSetFromMap(new IdentityHashMap<>()));
+      while (!stack.isEmpty()) {
+        CompletedParses node = stack.peek();
+        if (node.built) {
+          stack.pop();
+        } else if (!node.visited) {
+          node.visited = true;
+          Set<PartialParse> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+          for (PartialParse parseTree : node.parseTrees) {
+            pushChildren(parseTree, stack, seen);
+          }
+        } else {
+          stack.pop();
+          node.build();
+        }
+      }
+    }
+
+    // push the nodes of the non-terminals of a partial parse which still have to be built
+    private static void pushChildren(
+        PartialParse parseTree, Deque<CompletedParses> stack, Set<PartialParse> seen) {
+      Deque<PartialParse> todo = new ArrayDeque<>();
+      if (parseTree != null) {
+        todo.push(parseTree);
+      }
+      while (!todo.isEmpty()) {
+        PartialParse p = todo.pop();
+        if (!seen.add(p) || p.derivations == null) {
+          continue;
+        }
+        for (PartialParse.Derivation d : p.derivations) {
+          if (d.prefix() != null) {
+            todo.push(d.prefix());
+          }
+          // a node being visited depends on itself through a cycle of nullable sorts, and it is
+          // built with the items found so far
+          if (!d.child().visited) {
+            stack.push(d.child());
+          }
+        }
+      }
     }
   }
 
   /**
-   * Compute the CompleteParseTreeNode for a non-terminal and an input range from a parse tree that
-   * is part of an {@link EarleyState} which has parsed an entire production.
+   * Compute the terms for a non-terminal and an input range from the parse tree of a parse state
+   * which has parsed an entire production.
    *
    * @param parses The set of parses to add new derivations to.
-   * @param parseTree The parse tree of the {@link EarleyState} being processed.
+   * @param parseTree The expanded parse tree of the parse state being processed.
    * @param eprod The {@link EarleyProduction} that was just parsed.
    * @param start The start-index of the input range that was parsed.
    * @param end The end-index of the input range that was parsed.
@@ -320,30 +463,26 @@ public class EarleyParser {
       int start,
       int end,
       ParserMetadata data) {
-    byte[] utf8Input = StringUtils.getBytesUtf8(data.input);
+    byte[] utf8Input = data.utf8;
 
     for (PStack<Term> children : parseTree) {
       Production prod = eprod.prod;
       Term result;
 
       // compute the Location
-      int startLoc = data.words[start].startLoc;
+      int startLoc = data.words.start(start);
       int endLoc;
       if (start != end) {
-        endLoc = data.words[end - 1].endLoc;
+        endLoc = data.words.end(end - 1);
       } else {
-        endLoc = data.words[end].endLoc;
+        endLoc = data.words.end(end);
       }
-      int startLine = data.lines[startLoc];
-      int startColumn = data.columns[startLoc];
-      int endLine = data.lines[endLoc];
-      int endColumn = data.columns[endLoc];
-      Location loc = new Location(startLine, startColumn, endLine, endColumn);
+      Location loc = data.location(startLoc, endLoc);
 
       if (eprod.isToken()) {
         // it's a token, so create a Constant.
         // Note that startLoc and endLoc refer to indices into the UTF-8 encoded byte array
-        String value = StringUtils.newStringUtf8(Arrays.copyOfRange(utf8Input, startLoc, endLoc));
+        String value = new String(utf8Input, startLoc, endLoc - startLoc, StandardCharsets.UTF_8);
         if (eprod.isMInt()) {
           // it's an MInt token, so make sure to add the correct bit-length to the production before
           // creating the
@@ -369,68 +508,122 @@ public class EarleyParser {
   }
 
   /**
-   * A set of {@link EarleyState EarleyStates}.
+   * A set of parse states.
    *
    * <p>Each set corresponds to a particular end-index within the sentence being parsed, and
    * contains all states that end at that index. Being a set, duplicate states are combined. For the
-   * purposes of deduplication, we only consider the production, start index, and "dot" of a state.
-   * We use a list of mappings from states to themselves in order to deduplicate states. When a
-   * state is re-added, the parse tree is merged with the one already in the set.
+   * purposes of deduplication, we only consider the production, start index, and "dot" of a state,
+   * i.e., its encoding as a long. We use an open-addressing hash table from states to their
+   * position in the set in order to deduplicate states. When a state is re-added, the parse tree
+   * is merged with the one already in the set.
    *
-   * <p>Each set also stores a 2D array of {@link CompleteParseTreeNode CompleteParseTreeNodes}
-   * which are used to deduplicate the parse trees from parse states that have finished processing a
-   * production. This implements the invariant that a tuple (S, i, j) for a particular sort,
-   * start-index, and end-index must exist only once in the parse forest.
+   * <p>Each set also stores the {@link CompletedParses} for each pair of a sort
+   * and a start-index, which are used to deduplicate the parse trees from parse states that have
+   * finished processing a production. This implements the invariant that a tuple (S, i, j) for a
+   * particular sort, start-index, and end-index must exist only once in the parse forest. These are
+   * also kept in an open-addressing hash table, keyed by the sort and start-index packed in a long.
    *
-   * <p>Finally, each set also stores a mapping from sorts to lists of states that is used by the
+   * <p>Finally, each set also stores, for each sort, a linked list threaded through an int array of
+   * the states that are waiting on that sort, in the order they were added. It is used by the
    * complete function of the parser in order to identify which states need to be advanced past a
    * particular non-terminal when a production is completed (i.e., the "dot" reaches the end of the
    * production).
    *
-   * <p>EarleySet implements a concurrent iterator for states. i.e., as long as states are only ever
-   * added to the end of the list, it is possible to iterate over the entire set one element at a
-   * time even if elements are added during the iteration process. This invariant is preserved by
-   * the code.
+   * <p>States are only ever added to the end of the set, so it is possible to iterate over the
+   * entire set by position even if elements are added during the iteration process.
    */
-  private static final class EarleySet implements Iterable<EarleyState> {
-    private final List<EarleyState> states = new ArrayList<>();
-    private List<Map<EarleyState, EarleyState>> membership;
-    private final List<List<EarleyState>> completor = new ArrayList<>();
-    private CompleteParseTreeNode[][] completedParseTrees;
+  private final class EarleySet {
     private final int index;
-    private final int nsorts;
+    // the states in the set, in the order they were added
+    private long[] states = EMPTY_STATES;
+    // the parse tree of each state in `states`, or null
+    private PartialParse[] trees = new PartialParse[0];
+    private int size = 0;
+    // hash table containing, for each state, one plus its position in `states`. 0 is empty.
+    private int[] membership = EMPTY_TABLE;
+    // hash table from one plus a sort to the positions of the first and last states waiting on it
+    private int[] completorSorts = EMPTY_TABLE;
+    private int[] completorHeads = EMPTY_TABLE;
+    private int[] completorTails = EMPTY_TABLE;
+    private int completorSize = 0;
+    // for each state in `states`, the position of the next state waiting on the same sort, or -1
+    private int[] completorNext = EMPTY_TABLE;
+    // hash table from a sort and start-index to the parses completed for them. -1 is empty.
+    private long[] completedKeys = EMPTY_STATES;
+    private CompletedParses[] completedParses = new CompletedParses[0];
+    private int completedSize = 0;
 
     /**
      * @param index The end-index this set corresponds to.
-     * @param nsorts The total number of sorts in the grammar being parsed.
      */
-    public EarleySet(int index, int nsorts) {
+    public EarleySet(int index) {
       this.index = index;
-      this.nsorts = nsorts;
-      membership = new ArrayList<>(index + 1);
-      for (int i = 0; i <= index; i++) {
-        membership.add(new HashMap<>());
-      }
-      for (int i = 0; i <= nsorts; i++) {
-        completor.add(new ArrayList<>());
-      }
     }
 
-    @NotNull
-    public Iterator<EarleyState> iterator() {
-      return new EarleySetIterator();
+    public int size() {
+      return size;
     }
 
-    private class EarleySetIterator implements Iterator<EarleyState> {
-      int idx = 0;
+    public long get(int i) {
+      return states[i];
+    }
 
-      public boolean hasNext() {
-        return idx < states.size();
+    /**
+     * @return The parse tree of the state at position i, or null if it has no non-terminals left of
+     *     the "dot".
+     */
+    public PartialParse parseTree(int i) {
+      return trees[i];
+    }
+
+    /**
+     * @return the position of the state in the set, or -1 if it is not in the set.
+     */
+    private int find(long state) {
+      int mask = membership.length - 1;
+      if (mask < 0) {
+        return -1;
+      }
+      for (int slot = hash(state) & mask; ; slot = (slot + 1) & mask) {
+        int pos = membership[slot];
+        if (pos == 0) {
+          return -1;
+        }
+        if (states[pos - 1] == state) {
+          return pos - 1;
+        }
       }
+    }
+
+    private void index(int pos) {
+      int mask = membership.length - 1;
+      int slot = hash(states[pos]) & mask;
+      while (membership[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      membership[slot] = pos + 1;
+    }
 
-      public EarleyState next() {
-        return states.get(idx++);
+    private int append(long state, PartialParse parseTree) {
+      if (size == states.length) {
+        int capacity = Math.max(8, size * 2);
+        states = Arrays.copyOf(states, capacity);
+        trees = Arrays.copyOf(trees, capacity);
+        completorNext = Arrays.copyOf(completorNext, capacity);
+      }
+      int pos = size++;
+      states[pos] = state;
+      trees[pos] = parseTree;
+      completorNext[pos] = -1;
+      if (size * 2 > membership.length) {
+        membership = new int[Math.max(16, membership.length * 2)];
+        for (int i = 0; i < size; i++) {
+          index(i);
+        }
+      } else {
+        index(pos);
       }
+      return pos;
     }
 
     /**
@@ -438,93 +631,175 @@ public class EarleyParser {
      *
      * @param sort The sort that was just parsed.
      * @param start The start-index that the production was parsed from.
+     * @param data The {@link ParserMetadata} about the current sentence being parsed.
      * @return The unique parse tree node associated with that sort, start-index, and end-index.
      */
-    private Set<Term> completedParses(int sort, int start) {
-      CompleteParseTreeNode[][] nodes = completedParseTrees;
-      if (nodes == null) {
-        nodes = new CompleteParseTreeNode[index + 1][nsorts];
-        completedParseTrees = nodes;
+    private CompletedParses completedParses(int sort, int start, ParserMetadata data) {
+      long key = state(sort, start);
+      int mask = completedKeys.length - 1;
+      if (mask >= 0) {
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+          if (completedKeys[slot] == key) {
+            return completedParses[slot];
+          }
+          if (completedKeys[slot] == -1) {
+            break;
+          }
+        }
       }
-      CompleteParseTreeNode node = nodes[start][sort];
-      if (node == null) {
-        node = new CompleteParseTreeNode();
-        nodes[start][sort] = node;
+      if ((completedSize + 1) * 2 > completedKeys.length) {
+        long[] oldKeys = completedKeys;
+        CompletedParses[] oldParses = completedParses;
+        completedKeys = new long[Math.max(16, oldKeys.length * 2)];
+        Arrays.fill(completedKeys, -1);
+        completedParses = new CompletedParses[completedKeys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+          if (oldKeys[i] != -1) {
+            putCompleted(oldKeys[i], oldParses[i]);
+          }
+        }
+      }
+      CompletedParses parses = new CompletedParses(start, index, data);
+      putCompleted(key, parses);
+      completedSize++;
+      return parses;
+    }
+
+    private void putCompleted(long key, CompletedParses parses) {
+      int mask = completedKeys.length - 1;
+      int slot = hash(key) & mask;
+      while (completedKeys[slot] != -1) {
+        slot = (slot + 1) & mask;
       }
-      return node.derivations;
+      completedKeys[slot] = key;
+      completedParses[slot] = parses;
     }
 
     /**
-     * Combine the parse trees of two states.
-     *
-     * @param prevState The state to add new derivations to.
-     * @param state The state that contains the derivations to add
+     * @param sort The sort to look up states to complete for as an index in the `sorts` field.
+     * @return The position of the first state that needs to be advanced during completion, or -1.
+     *     The others can be found by following {@link #nextCompletor(int)}.
      */
-    private void unionParseTree(EarleyState prevState, EarleyState state) {
-      if (state.parseTree != null) {
-        if (prevState.parseTree == null) {
-          prevState.parseTree = state.parseTree;
-        } else {
-          prevState.parseTree.addAll(state.parseTree);
+    public int completor(int sort) {
+      int slot = completorSlot(sort);
+      if (slot == -1 || completorSorts[slot] == 0) {
+        return -1;
+      }
+      return completorHeads[slot];
+    }
+
+    public int nextCompletor(int pos) {
+      return completorNext[pos];
+    }
+
+    // the slot of the sort in the completor table, or of the empty slot it would be added at
+    private int completorSlot(int sort) {
+      int mask = completorSorts.length - 1;
+      if (mask < 0) {
+        return -1;
+      }
+      int slot = hash(sort) & mask;
+      while (completorSorts[slot] != 0 && completorSorts[slot] != sort + 1) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    private void addCompletor(int sort, int pos) {
+      int slot = completorSlot(sort);
+      if (slot != -1 && completorSorts[slot] != 0) {
+        completorNext[completorTails[slot]] = pos;
+        completorTails[slot] = pos;
+        return;
+      }
+      if ((completorSize + 1) * 2 > completorSorts.length) {
+        int[] oldSorts = completorSorts;
+        int[] oldHeads = completorHeads;
+        int[] oldTails = completorTails;
+        completorSorts = new int[Math.max(16, oldSorts.length * 2)];
+        completorHeads = new int[completorSorts.length];
+        completorTails = new int[completorSorts.length];
+        for (int i = 0; i < oldSorts.length; i++) {
+          if (oldSorts[i] != 0) {
+            slot = completorSlot(oldSorts[i] - 1);
+            completorSorts[slot] = oldSorts[i];
+            completorHeads[slot] = oldHeads[i];
+            completorTails[slot] = oldTails[i];
+          }
         }
+        slot = completorSlot(sort);
       }
+      completorSorts[slot] = sort + 1;
+      completorHeads[slot] = pos;
+      completorTails[slot] = pos;
+      completorSize++;
     }
 
     /**
-     * Adds an {@link EarleyState} to the set.
+     * Adds a state to the set.
      *
      * @param state The state to be added.
+     * @param parseTree The parse tree of the state to be added, or null.
      * @param data The {@link ParserMetadata} about the current sentence being parsed.
      */
-    public void add(EarleyState state, ParserMetadata data) {
-      EarleyState prevState = membership.get(state.start).get(state);
-      if (prevState != null) { // if the state already exists in the set
+    public void add(long state, PartialParse parseTree, ParserMetadata data) {
+      int item = item(state);
+      int prevPos = find(state);
+      if (prevPos != -1) { // if the state already exists in the set
         // merge previous and current state's parse tree.
-        unionParseTree(prevState, state);
-        if (state.item == state.prod.items.size()) {
-          // if the state is complete, add the proper derivations to the CompleteParseTreeNode
-          Set<Term> parses = completedParses(state.prod.sort, state.start);
-          wrapState(parses, state.parseTree(), state.prod, state.start, index, data);
+        if (parseTree != null) {
+          if (trees[prevPos] == null) {
+            trees[prevPos] = parseTree;
+            if (symbol[item] == COMPLETE) {
+              // the completed parses only know about the old parse tree so far
+              complete(state, parseTree, data);
+            }
+          } else if (trees[prevPos] != parseTree) {
+            // the completed parses already refer to the previous parse tree, which we extend
+            trees[prevPos].addAll(parseTree);
+          }
         }
         return;
       }
       // add state to set
-      states.add(state);
+      int pos = append(state, parseTree);
       // compute metadata about new state
-      membership.get(state.start).put(state, state);
-      if (state.item != state.prod.items.size()
-          && state.prod.items.get(state.item).isNonTerminal()) {
-        EarleyNonTerminal nt = (EarleyNonTerminal) state.prod.items.get(state.item);
-        completor.get(nt.sort).add(state);
-      } else if (state.item == state.prod.items.size()) {
-        // if the state is complete, add the proper derivations to the CompleteParseTreeNode
-        Set<Term> parses = completedParses(state.prod.sort, state.start);
-        wrapState(parses, state.parseTree(), state.prod, state.start, index, data);
+      if (symbol[item] >= 0) {
+        addCompletor(symbol[item], pos);
+      } else if (symbol[item] == COMPLETE) {
+        // if the state is complete, add the proper derivations to the completed parses
+        complete(state, parseTree, data);
       }
     }
 
-    /**
-     * @return true if the set is empty.
-     */
-    public boolean empty() {
-      return states.isEmpty();
+    private void complete(long state, PartialParse parseTree, ParserMetadata data) {
+      EarleyProduction prod = productions.get(itemProduction[item(state)]);
+      completedParses(prod.sort, start(state), data).add(prod, parseTree);
     }
 
     /**
-     * @param sort The sort to look up states to complete for as an index in the `sorts` field.
-     * @return The states that need to be advanced during completion.
+     * @return true if the set is empty.
      */
-    public List<EarleyState> completor(int sort) {
-      return completor.get(sort);
+    public boolean empty() {
+      return size == 0;
     }
 
     /** Finalize the set by cleaning up, after all states have been added to it. */
     public void finish() {
       membership = null;
-      completedParseTrees = null;
+      completedKeys = null;
+      completedParses = null;
     }
   }
 
+  private static final long[] EMPTY_STATES = new long[0];
+  private static final int[] EMPTY_TABLE = new int[0];
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
   /**
    * Metadata about the state of the sentence being parsed. We collect this all in a single place in
    * order to simplify the type signatures of many methods.
@@ -539,78 +814,59 @@ public class EarleyParser {
      */
     public ParserMetadata(
         String input, Scanner scanner, Source source, int startLine, int startColumn) {
-      // compute location info
-      byte[] utf8 = StringUtils.getBytesUtf8(input);
-      int[] lines = new int[utf8.length + 1];
-      int[] columns = new int[utf8.length + 1];
-      int l = startLine;
-      int c = startColumn;
-      int length = input.codePointCount(0, input.length());
-      for (int offset = 0, utf8offset = 0, codepoint, numBytes;
-          offset < length;
-          offset += Character.charCount(codepoint), utf8offset += numBytes) {
-        codepoint = input.codePointAt(offset);
-        numBytes = StringUtils.getBytesUtf8(new String(Character.toChars(codepoint))).length;
-        for (int i = 0; i < numBytes; i++) {
-          lines[utf8offset + i] = l;
-          columns[utf8offset + i] = c;
-        }
-
-        switch (input.codePointAt(offset)) {
-          case '\r':
-            if (offset + 1 < input.length()) {
-              if (input.charAt(offset + 1) == '\n') {
-                lines[offset + 1] = l;
-                columns[offset + 1] = c + 1;
-                offset++;
-                utf8offset++;
-              }
-            }
-          case '\n':
-          case '\u000B':
-          case '\u000C':
-          case '\u0085':
-          case '\u2028':
-          case '\u2029':
-            l++;
-            c = 1;
-            break;
-          default:
-            c++;
-        }
-      }
-      lines[utf8.length] = l;
-      columns[utf8.length] = c;
-
-      // initialize
-      this.words = scanner.tokenize(input, source, lines, columns);
-      this.lines = lines;
-      this.columns = columns;
+      this.utf8 = StringUtils.getBytesUtf8(input);
+      this.lines = new LineIndex(utf8, startLine, startColumn);
       this.source = source;
-      this.input = input;
+      this.words = scanner.tokenize(input, source, lines);
     }
 
-    // the list of tokens in the sentence
-    final Scanner.Token[] words;
-    // an array containing the line of each character in the input sentence
-    final int[] lines;
-    // an array containing the column of each character in the input sentence
-    final int[] columns;
+    // the tokens in the sentence
+    final Tokens words;
+    // the line and column of each offset in the sentence
+    final LineIndex lines;
     // a Source containing the file the sentence was parsed from
-    Source source;
-    // the original un-tokenized input sentence
-    String input;
+    final Source source;
+    // the input sentence encoded as UTF-8, which the offsets of the tokens refer to
+    final byte[] utf8;
 
+    /**
+     * @return The location between two offsets into the UTF-8 encoding of the sentence.
+     */
+    Location location(int startLoc, int endLoc) {
+      return new Location(
+          lines.line(startLoc), lines.column(startLoc), lines.line(endLoc), lines.column(endLoc));
+    }
+
+    /**
+     * @return The text of the k-th token of the sentence.
+     */
+    String value(int k) {
+      return words.value(k, utf8);
+    }
+
+    /**
+     * @return The tokens of the sentence, including their text.
+     */
     public List<Scanner.Token> getWords() {
-      return List.of(words);
+      List<Scanner.Token> result = new ArrayList<>(words.size());
+      for (int k = 0; k < words.size(); k++) {
+        result.add(new Scanner.Token(words.kind(k), value(k), words.start(k), words.end(k)));
+      }
+      return result;
     }
 
-    public List<Integer> getLines() {
-      return Collections.unmodifiableList(Ints.asList(lines));
+    /**
+     * @return The line of an offset into the UTF-8 encoding of the sentence.
+     */
+    public int line(int offset) {
+      return lines.line(offset);
     }
 
-    public List<Integer> getColumns() {
-      return Collections.unmodifiableList(Ints.asList(columns));
+    /**
+     * @return The column of an offset into the UTF-8 encoding of the sentence.
+     */
+    public int column(int offset) {
+      return lines.column(offset);
     }
   }
 
@@ -618,10 +874,15 @@ public class EarleyParser {
    * @param m The module representing the grammar to use for parsing
    * @param scanner The scanner used to tokenize strings over this grammar.
    * @param startSymbol The start symbol to start parsing at.
+   * @param partialParseDebug Whether to print partial parse trees when a parse error occurs.
+   * @param lookahead Whether to use the next token to prune states that cannot make progress.
    */
-  public EarleyParser(Module m, Scanner scanner, Sort startSymbol, boolean partialParseDebug) {
+  public EarleyParser(
+      Module m, Scanner scanner, Sort startSymbol, boolean partialParseDebug, boolean lookahead) {
     this.scanner = scanner;
     this.partialParseDebug = partialParseDebug;
+    this.lookahead = lookahead;
+    this.sortList = new ArrayList<>();
 
     // compute metadata about grammar
     sorts = getSorts(m);
@@ -638,6 +899,88 @@ public class EarleyParser {
 
     // compute first set
     first = computeFirstSet();
+
+    // number LR(0) items
+    itemStart = new int[productions.size()];
+    int items = 0;
+    for (int i = 0; i < productions.size(); i++) {
+      itemStart[i] = items;
+      items += productions.get(i).items.size() + 1;
+    }
+    symbol = new int[items];
+    itemProduction = new int[items];
+    for (int i = 0; i < productions.size(); i++) {
+      EarleyProduction prod = productions.get(i);
+      for (int dot = 0; dot <= prod.items.size(); dot++) {
+        int item = itemStart[i] + dot;
+        itemProduction[item] = i;
+        if (dot == prod.items.size()) {
+          symbol[item] = COMPLETE;
+        } else if (prod.items.get(dot) instanceof EarleyNonTerminal nt) {
+          symbol[item] = nt.sort;
+        } else {
+          symbol[item] = terminal(((EarleyTerminal) prod.items.get(dot)).kind);
+        }
+      }
+    }
+    predictorItems = new int[sorts.size()][];
+    for (int sort = 0; sort < sorts.size(); sort++) {
+      predictorItems[sort] =
+          predictor.get(sort).stream().mapToInt(prod -> itemStart[prod.index]).toArray();
+    }
+
+    // compute the first set of the remainder of each LR(0) item waiting on a non-terminal
+    if (lookahead) {
+      itemFirst = new BitSet[items];
+      itemNullable = new BitSet(items);
+      for (int item = items - 1; item >= 0; item--) {
+        int sym = symbol[item];
+        if (sym == COMPLETE) {
+          itemNullable.set(item);
+        } else if (sym >= 0 && !nullable.get(sym)) {
+          // the common case: no need to copy the first set of the sort
+          itemFirst[item] = first[sym];
+        } else if (sym >= 0) {
+          itemFirst[item] = (BitSet) first[sym].clone();
+          if (isTerminal(symbol[item + 1])) {
+            itemFirst[item].set(kind(symbol[item + 1]));
+          } else if (symbol[item + 1] != COMPLETE) {
+            itemFirst[item].or(itemFirst[item + 1]);
+          }
+          itemNullable.set(item, itemNullable.get(item + 1));
+        }
+      }
+    } else {
+      itemFirst = null;
+      itemNullable = null;
+    }
+  }
+
+  /**
+   * Create a parser which shares the grammar tables of another parser, for example one that was
+   * deserialized from the kompiled directory, but tokenizes sentences with a different scanner.
+   *
+   * @param tables The parser whose grammar tables should be used.
+   * @param scanner The scanner used to tokenize strings over this grammar. It must assign the same
+   *     token kinds as the scanner the tables were computed with.
+   * @param partialParseDebug Whether to print partial parse trees when a parse error occurs.
+   */
+  public EarleyParser(EarleyParser tables, Scanner scanner, boolean partialParseDebug) {
+    this.scanner = scanner;
+    this.partialParseDebug = partialParseDebug;
+    this.lookahead = tables.lookahead;
+    this.sortList = tables.sortList;
+    this.sorts = tables.sorts;
+    this.productions = tables.productions;
+    this.predictor = tables.predictor;
+    this.nullable = tables.nullable;
+    this.first = tables.first;
+    this.itemStart = tables.itemStart;
+    this.symbol = tables.symbol;
+    this.itemProduction = tables.itemProduction;
+    this.predictorItems = tables.predictorItems;
+    this.itemFirst = tables.itemFirst;
+    this.itemNullable = tables.itemNullable;
   }
 
   private Map<Sort, Integer> getSorts(Module m) {
@@ -675,7 +1018,7 @@ public class EarleyParser {
             0,
             Arrays.asList(
                 new EarleyNonTerminal(sorts.get(startSymbol), sortList),
-                new EarleyTerminal(scanner, 0)),
+                new EarleyTerminal(null, 0)),
             sortList));
     int index = 1;
     for (Production prod : iterable(m.productions())) {
@@ -711,7 +1054,7 @@ public class EarleyParser {
       }
       return new EarleyNonTerminal(sort, sortList);
     } else {
-      return new EarleyTerminal(scanner, scanner.resolve((TerminalLike) item));
+      return new EarleyTerminal((TerminalLike) item, scanner.resolve((TerminalLike) item));
     }
   }
 
@@ -808,15 +1151,56 @@ public class EarleyParser {
   // map from sorts to index of sort in various arrays
   private final Map<Sort, Integer> sorts;
   // ordered list of sorts in grammar
-  private final List<Sort> sortList = new ArrayList<>();
+  private final List<Sort> sortList;
   // logically, a Map<Sort, List<EarleyProduction>> mapping sorts to their productions
   private final List<List<EarleyProduction>> predictor;
   // logically, a Map<Sort, Map<Scanner.Token, Boolean>> representing the FIRST set of the grammar
   private final BitSet[] first;
   // logically, a Set<Sort> representing the NULLABLE set of the grammar.
   private final BitSet nullable;
+  // the index of the first LR(0) item of each production, i.e., the one with the "dot" at 0
+  private final int[] itemStart;
+  // for each LR(0) item, the sort or terminal after the "dot", or COMPLETE
+  private final int[] symbol;
+  // for each LR(0) item, the index of its production
+  private final int[] itemProduction;
+  // like `predictor`, but containing the first LR(0) item of each production
+  private final int[][] predictorItems;
+  // whether to prune states that cannot make progress on the next token
+  private final boolean lookahead;
+  // if `lookahead`, the FIRST set of the remainder of each LR(0) item waiting on a non-terminal
+  private final BitSet[] itemFirst;
+  // if `lookahead`, the set of LR(0) items whose remainder can derive the empty string
+  private final BitSet itemNullable;
+  // the number of states that lookahead prevented from being added to an Earley set
+  private final LongAdder prunedStates = new LongAdder();
+
+  /**
+   * @return The total number of states pruned by lookahead over all the sentences parsed so far.
+   */
+  public long getPrunedStates() {
+    return prunedStates.sum();
+  }
+
+  /**
+   * @param item An LR(0) item whose next production item is a non-terminal.
+   * @param data The {@link ParserMetadata} about the sentence being parsed
+   * @param k The end-index of the set the state is about to be added to.
+   * @return false if lookahead is enabled and a state with this item cannot possibly make progress
+   *     past the next token, true otherwise.
+   */
+  private boolean viable(int item, ParserMetadata data, int k) {
+    if (!lookahead
+        || k >= data.words.size()
+        || itemNullable.get(item)
+        || itemFirst[item].get(data.words.kind(k))) {
+      return true;
+    }
+    prunedStates.increment();
+    return false;
+  }
   // the scanner to use to tokenize sentences before parsing them
-  private final Scanner scanner;
+  private final transient Scanner scanner;
   // whether to print detailed partial parse trees when an error occurs
   private final boolean partialParseDebug;
 
@@ -831,54 +1215,74 @@ public class EarleyParser {
    * @throws KEMException if parsing fails
    */
   public Term parse(String input, Source source, int startLine, int startColumn) {
-    // compute metadata about sentence
-    ParserMetadata data = new ParserMetadata(input, scanner, source, startLine, startColumn);
+    return parse(scan(input, source, startLine, startColumn));
+  }
 
+  /**
+   * Tokenize a sentence with the scanner of this parser, e.g. to time it separately from {@link
+   * #parse(ParserMetadata)}.
+   *
+   * @param input The sentence to tokenize.
+   * @param source The {@link Source} representing the file the string comes from.
+   * @param startLine The line the sentence starts on.
+   * @param startColumn The column the sentence starts on.
+   * @return The tokens and location information of the sentence.
+   * @throws KEMException if tokenizing fails
+   */
+  public ParserMetadata scan(String input, Source source, int startLine, int startColumn) {
+    return new ParserMetadata(input, scanner, source, startLine, startColumn);
+  }
+
+  /**
+   * Parse a sentence which was already tokenized by {@link #scan}.
+   *
+   * @return A {@link Term} representing the parse forest
+   * @throws KEMException if parsing fails
+   */
+  public Term parse(ParserMetadata data) {
     // initialize Earley sets
-    List<EarleySet> S = new ArrayList<>(data.words.length + 1);
-    for (int k = 0; k <= data.words.length; k++) {
-      S.add(new EarleySet(k, sorts.size()));
+    List<EarleySet> S = new ArrayList<>(data.words.size() + 1);
+    for (int k = 0; k <= data.words.size(); k++) {
+      S.add(new EarleySet(k));
     }
 
-    // initialize initial state of algorithm
-    EarleyState startState = new EarleyState(productions.get(0), 0, 0);
-    // add initial state to S[0]
-    S.get(0).add(startState, data);
+    // initialize initial state of algorithm and add it to S[0]
+    S.get(0).add(state(itemStart[0], 0), null, data);
     // Q' is initially empty
-    EarleySet Qprime = new EarleySet(0, sorts.size());
+    EarleySet Qprime = new EarleySet(0);
 
-    for (int k = 0; k < data.words.length; k++) {
+    for (int k = 0; k < data.words.size(); k++) {
       // for each position in the tokenized sentence, compute S[k] and Q
       EarleySet Q = Qprime;
-      Qprime = new EarleySet(k + 1, sorts.size());
+      Qprime = new EarleySet(k + 1);
       // loop through S[k] and process each state, predicting and completing it
-      for (EarleyState state : S.get(k)) {
-        if (state.item != state.prod.items.size()
-            && state.prod.items.get(state.item).isNonTerminal()) {
+      EarleySet Sk = S.get(k);
+      for (int i = 0; i < Sk.size(); i++) {
+        if (symbol[item(Sk.get(i))] != COMPLETE) {
           // state is ready to process a non-terminal, therefore predict
-          predict(S, Q, state, k, data);
+          predict(S, Q, Sk, i, k, data);
         } else {
           // state is finished with a production, therefore complete
-          complete(S, Q, state, k, data);
+          complete(S, Q, Sk, i, k, data);
         }
         // states ready to process a terminal are added to Q and thus do not appear in S
       }
-      S.get(k).finish();
+      Sk.finish();
 
       // loop through Q and process each state, scanning it
-      for (EarleyState state : Q) {
-        scan(S, Qprime, state, k, data);
+      for (int i = 0; i < Q.size(); i++) {
+        scan(S, Qprime, Q, i, k, data);
       }
 
       // this loop condition is a bit tricky because we want to stop at the exact loop iteration
       // that parsing failed
       // in order to generate the correct error message. Nominally speaking, parsing succeeds if
       // after all loop
-      // iterations, S[data.words.length] contains the state (productions.get(0), 2, 0). However, if
+      // iterations, S[data.words.size()] contains the state (productions.get(0), 2, 0). However, if
       // S[k+1] is empty and
-      // Q is empty at this point, then Qprime must also be empty. Thus, if k+1==data.words.length,
-      // S[data.words.length]
-      // is empty, which means it's a parse error. And if k+1<data.words.length, then in the next
+      // Q is empty at this point, then Qprime must also be empty. Thus, if k+1==data.words.size(),
+      // S[data.words.size()]
+      // is empty, which means it's a parse error. And if k+1<data.words.size(), then in the next
       // loop iteration,
       // S[k] and Q will both start out empty, which means that no more states can ever be added at
       // any point. As a
@@ -892,53 +1296,64 @@ public class EarleyParser {
         parseError(data, S, k);
       }
     }
-    if (S.get(data.words.length).empty()) {
-      parseError(data, S, data.words.length - 1);
+    if (S.get(data.words.size()).empty()) {
+      parseError(data, S, data.words.size() - 1);
     }
     // finished parsing successfully, so return the final parse forest
+    PartialParse parseTree = S.get(data.words.size()).parseTree(0);
+    CompletedParses.materialize(parseTree);
     return Ambiguity.apply(
-        S.get(data.words.length).states.get(0).parseTree().stream()
+        parseTree.expand().stream()
             .map(list -> list.get(0))
-            .collect(Collectors.toSet()));
+            .collect(Collectors.toCollection(HashSet::new)));
   }
 
   // We are only interested in displaying states that span the entire input
   // when a parse error occurs; such states have a start-index of 0.
-  private Set<EarleyState> spanningStates(EarleySet parses) {
-    return parses.states.stream().filter(state -> state.start == 0).collect(Collectors.toSet());
+  private boolean hasSpanningStates(EarleySet parses) {
+    for (int i = 0; i < parses.size(); i++) {
+      if (start(parses.get(i)) == 0) {
+        return true;
+      }
+    }
+    return false;
   }
 
   // We heuristically identify the best state-set for producing diagnostics as the
   // most recent such set that includes a _spanning state_; i.e. one with a start
   // index of zero.
-  private Set<EarleyState> bestDiagnosticStates(List<EarleySet> S, int k) {
+  private EarleySet bestDiagnosticSet(List<EarleySet> S, int k) {
     for (int i = k; i >= 0; --i) {
-      Set<EarleyState> candidate = spanningStates(S.get(i));
-      if (!candidate.isEmpty()) {
-        return candidate;
+      if (hasSpanningStates(S.get(i))) {
+        return S.get(i);
       }
     }
 
-    return new HashSet<>();
+    return null;
   }
 
-  private String partialParseTreesDiagnostic(Set<EarleyState> spanningStates) {
-    if (spanningStates.isEmpty()) {
+  private String partialParseTreesDiagnostic(EarleySet parses) {
+    if (parses == null) {
       return "No top-level production could apply to this input.";
     }
 
     StringBuilder msg = new StringBuilder();
 
-    for (EarleyState state : spanningStates) {
-      msg.append("  Attempting to apply production:\n    ").append(state.prod).append("\n");
-      for (PStack<Term> possibleTree : state.parseTree()) {
+    for (int i = 0; i < parses.size(); i++) {
+      if (start(parses.get(i)) != 0) {
+        continue;
+      }
+      EarleyProduction prod = productions.get(itemProduction[item(parses.get(i))]);
+      msg.append("  Attempting to apply production:\n    ").append(prod).append("\n");
+      CompletedParses.materialize(parses.parseTree(i));
+      for (PStack<Term> possibleTree : PartialParse.expand(parses.parseTree(i))) {
         var cleanedChildren =
             possibleTree.stream()
                 .map(term -> new TreeCleanerVisitor().apply(term))
                 .collect(Collectors.toList());
 
-        if (state.prod.prod.klabel().isDefined()) {
-          var term = TermCons.apply(ConsPStack.from(cleanedChildren), state.prod.prod);
+        if (prod.prod.klabel().isDefined()) {
+          var term = TermCons.apply(ConsPStack.from(cleanedChildren), prod.prod);
           msg.append("    produced partial term:\n      ").append(term).append("\n");
         } else {
           msg.append("    produced partial term with no KLabel, and children:\n");
@@ -954,38 +1369,28 @@ public class EarleyParser {
 
   /**
    * @param data The {@link ParserMetadata} about the sentence being parsed
-   * @param S The set of {@link EarleyState}s for each end-index in the input
+   * @param S The {@link EarleySet} of parse states for each end-index in the input
    * @param k The end-index at which a parse error occurred. In other words, the index just prior to
    *     the first token that
    */
   private void parseError(ParserMetadata data, List<EarleySet> S, int k) {
-    int startLine, startColumn, endLine, endColumn;
-    if (data.words.length == 1) {
-      startLine = data.lines[0];
-      startColumn = data.columns[0];
-      endLine = data.lines[0];
-      endColumn = data.columns[0];
-    } else {
-      Scanner.Token t = data.words[k];
-      startLine = data.lines[t.startLoc];
-      startColumn = data.columns[t.startLoc];
-      endLine = data.lines[t.endLoc];
-      endColumn = data.columns[t.endLoc];
-    }
+    Location loc =
+        data.words.size() == 1
+            ? data.location(0, 0)
+            : data.location(data.words.start(k), data.words.end(k));
     String msg =
-        data.words.length - 1 == k
+        data.words.size() - 1 == k
             ? "Parse error: unexpected end of file"
-            : "Parse error: unexpected token '" + data.words[k].value + "'";
+            : "Parse error: unexpected token '" + data.value(k) + "'";
     if (k != 0) {
-      msg = msg + " following token '" + data.words[k - 1].value + "'.";
+      msg = msg + " following token '" + data.value(k - 1) + "'.";
     } else {
       msg = msg + ".";
     }
-    Location loc = new Location(startLine, startColumn, endLine, endColumn);
 
     if (partialParseDebug) {
       msg += " Additional parsing diagnostic information:\n";
-      msg += partialParseTreesDiagnostic(bestDiagnosticStates(S, k));
+      msg += partialParseTreesDiagnostic(bestDiagnosticSet(S, k));
     }
 
     throw KEMException.innerParserError(msg, data.source, loc);
@@ -997,45 +1402,48 @@ public class EarleyParser {
     EMPTY_PARSE_TREE.add(ConsPStack.empty());
   }
 
+  // the state with the "dot" advanced past the next production item. It cannot overflow, since
+  // the advanced item is numbered like every other item of the production.
+  static long advance(long state) {
+    return state + (1L << 32);
+  }
+
   /**
    * Perform the "Predict" step of the Earley algorithm.
    *
    * @param S The {@link EarleySet EarleySets} for completion and prediction
    * @param Q The {@link EarleySet} for scanning
-   * @param state The {@link EarleyState} to process
+   * @param Sk The {@link EarleySet} for the current end-index
+   * @param i The position in Sk of the state to process
    * @param k the current end-index being parsed
    * @param data The {@link ParserMetadata} about the sentence being parsed
    */
   private void predict(
-      List<EarleySet> S, EarleySet Q, EarleyState state, int k, ParserMetadata data) {
-    EarleyNonTerminal nt = (EarleyNonTerminal) state.prod.items.get(state.item);
+      List<EarleySet> S, EarleySet Q, EarleySet Sk, int i, int k, ParserMetadata data) {
+    long state = Sk.get(i);
+    int sort = symbol[item(state)];
     // first, use lookahead to check if we need to predict this sort at all
-    if (nullable.get(nt.sort) || first[nt.sort].get(data.words[k].kind)) {
-      List<EarleyProduction> prods = predictor.get(nt.sort);
-      for (EarleyProduction next : prods) {
+    if (nullable.get(sort) || first[sort].get(data.words.kind(k))) {
+      for (int next : predictorItems[sort]) {
         // for each production for the sort being predicted, add it to the appropriate set
-        if (next.items.size() != 0 && !next.items.get(0).isNonTerminal()) {
+        if (isTerminal(symbol[next])) {
           // if it's a terminal, add it to be scanned only if the next token matches
-          EarleyTerminal t = (EarleyTerminal) next.items.get(0);
-          if (t.kind == data.words[k].kind) {
+          if (kind(symbol[next]) == data.words.kind(k)) {
             // if it matches, add (next, 0, k) to Q
-            EarleyState nextState = new EarleyState(next, 0, k);
-            Q.add(nextState, data);
+            Q.add(state(next, k), null, data);
           }
-        } else {
+        } else if (symbol[next] == COMPLETE || viable(next, data, k)) {
           // state is either now complete or at a non-terminal, therefore add it to S[k]
-          EarleyState nextState = new EarleyState(next, 0, k);
-          S.get(k).add(nextState, data);
+          Sk.add(state(next, k), null, data);
         }
       }
     }
-    if (nullable.get(nt.sort)) {
+    if (nullable.get(sort)) {
       // non-terminal is nullable, so complete the state by advancing past the nullable sort.
       // see Aycock and Horspool
-      EarleyState nextState = new EarleyState(state.prod, state.item + 1, state.start);
-      nextState.parseTree = new HashSet<>();
-      wrapAndAppend(nt.sort, k, nextState, state, S.get(k));
-      addStateToSet(S, Q, state, nextState, k, data);
+      PartialParse parseTree = new PartialParse();
+      wrapAndAppend(sort, k, parseTree, Sk.parseTree(i), Sk, data);
+      addStateToSet(S, Q, advance(state), parseTree, k, data);
     }
   }
 
@@ -1044,16 +1452,15 @@ public class EarleyParser {
    *
    * @param S The {@link EarleySet EarleySets} for completion and prediction
    * @param Qprime The {@link EarleySet} for scanning
-   * @param state The {@link EarleyState} to process
+   * @param Q The {@link EarleySet} containing the state to process
+   * @param i The position in Q of the state to process
    * @param k the current end-index being parsed
    * @param data The {@link ParserMetadata} about the sentence being parsed
    */
   private void scan(
-      List<EarleySet> S, EarleySet Qprime, EarleyState state, int k, ParserMetadata data) {
-    // construct next state
-    EarleyState nextState = new EarleyState(state.prod, state.item + 1, state.start);
-    nextState.parseTree = state.parseTree;
-    addStateToSet(S, Qprime, state, nextState, k + 1, data);
+      List<EarleySet> S, EarleySet Qprime, EarleySet Q, int i, int k, ParserMetadata data) {
+    // the next state shares its parse tree with the scanned state
+    addStateToSet(S, Qprime, advance(Q.get(i)), Q.trees[i], k + 1, data);
   }
 
   /**
@@ -1063,28 +1470,27 @@ public class EarleyParser {
    *
    * @param S The {@link EarleySet EarleySets} for completion and prediction.
    * @param Q The {@link EarleySet} for scanning
-   * @param state The state that is being processed.
    * @param nextState The state that is being added to either S or Q.
+   * @param parseTree The parse tree of the state that is being added, or null.
    * @param k the current end-index being parsed.
    * @param data The {@link ParserMetadata} about the sentence being parsed.
    */
   private void addStateToSet(
       List<EarleySet> S,
       EarleySet Q,
-      EarleyState state,
-      EarleyState nextState,
+      long nextState,
+      PartialParse parseTree,
       int k,
       ParserMetadata data) {
     // if the next item in the state is a terminal, scan it and possibly add it to Q'
-    if (state.item + 1 != state.prod.items.size()
-        && !state.prod.items.get(state.item + 1).isNonTerminal()) {
-      EarleyTerminal t = (EarleyTerminal) state.prod.items.get(state.item + 1);
-      if (t.kind == data.words[k].kind) {
-        Q.add(nextState, data);
+    int next = symbol[item(nextState)];
+    if (isTerminal(next)) {
+      if (kind(next) == data.words.kind(k)) {
+        Q.add(nextState, parseTree, data);
       }
-    } else {
+    } else if (next == COMPLETE || viable(item(nextState), data, k)) {
       // state is either now complete or at a non-terminal, therefore add it to S[k+1]
-      S.get(k).add(nextState, data);
+      S.get(k).add(nextState, parseTree, data);
     }
   }
 
@@ -1093,24 +1499,23 @@ public class EarleyParser {
    *
    * @param S The {@link EarleySet EarleySets} for completion and prediction
    * @param Q The {@link EarleySet} for scanning
-   * @param state The {@link EarleyState} to process
+   * @param Sk The {@link EarleySet} for the current end-index
+   * @param i The position in Sk of the state to process
    * @param k the current end-index being parsed
    * @param data The {@link ParserMetadata} about the sentence being parsed
    */
   private void complete(
-      List<EarleySet> S, EarleySet Q, EarleyState state, int k, ParserMetadata data) {
-    // this state is nullable, therefore we need to compute its parse tree since it was not given
-    // one yet
-    List<EarleyState> completedStates = S.get(state.start).completor(state.prod.sort);
+      List<EarleySet> S, EarleySet Q, EarleySet Sk, int i, int k, ParserMetadata data) {
+    long state = Sk.get(i);
+    int sort = productions.get(itemProduction[item(state)]).sort;
+    EarleySet origin = S.get(start(state));
     // for each state in S[state.start] that is waiting on the non-terminal corresponding to
     // state.prod.sort
-    for (EarleyState completed : completedStates) {
-      // construct next state
-      EarleyState nextState = new EarleyState(completed.prod, completed.item + 1, completed.start);
-      nextState.parseTree = new HashSet<>();
+    for (int pos = origin.completor(sort); pos != -1; pos = origin.nextCompletor(pos)) {
       // compute parse tree of next state
-      wrapAndAppend(state.prod.sort, state.start, nextState, completed, S.get(k));
-      addStateToSet(S, Q, completed, nextState, k, data);
+      PartialParse parseTree = new PartialParse();
+      wrapAndAppend(sort, start(state), parseTree, origin.parseTree(pos), Sk, data);
+      addStateToSet(S, Q, advance(origin.get(pos)), parseTree, k, data);
     }
   }
 
@@ -1120,16 +1525,18 @@ public class EarleyParser {
    *
    * @param sort The sort that was just parsed.
    * @param start The start-index of the state being processed.
-   * @param nextState The {@link EarleyState} to add the parse tree derivations to.
-   * @param completed The {@link EarleyState} containing the parse tree prior to processing this
-   *     non-terminal.
+   * @param parseTree The parse tree of the next state to add the derivation to.
+   * @param completed The parse tree of the state prior to processing this non-terminal.
    * @param end The {@link EarleySet} representing the end-index being processed by the parser.
+   * @param data The {@link ParserMetadata} about the sentence being parsed
    */
   private void wrapAndAppend(
-      int sort, int start, EarleyState nextState, EarleyState completed, EarleySet end) {
-    Term newTerm = Ambiguity.apply(end.completedParses(sort, start));
-    for (PStack<Term> terms : completed.parseTree()) {
-      nextState.parseTree.add(terms.plus(newTerm));
-    }
+      int sort,
+      int start,
+      PartialParse parseTree,
+      PartialParse completed,
+      EarleySet end,
+      ParserMetadata data) {
+    parseTree.add(completed, end.completedParses(sort, start, data));
   }
 }
@@ -0,0 +1,127 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.kernel;
+
+import java.util.Arrays;
+
+/**
+ * Computes the line and column of offsets into the UTF-8 encoding of a sentence, from the offsets
+ * at which each line starts, instead of storing the line and column of every byte.
+ *
+ * <p>Lines are terminated by LF, CR, CR LF, VT, FF, NEL, LINE SEPARATOR and PARAGRAPH SEPARATOR.
+ * Columns count code points, starting at 1.
+ */
+public final class LineIndex {
+  // log2 of the number of bytes between two entries of codePoints
+  private static final int BLOCK_BITS = 10;
+
+  private final byte[] utf8;
+  private final int startLine;
+  private final int startColumn;
+  private final int[] lineStarts;
+  // the number of code points before each block of bytes, or null if every byte is ASCII
+  private final int[] codePoints;
+
+  /**
+   * @param utf8 The UTF-8 encoding of the sentence.
+   * @param startLine The line the sentence starts on.
+   * @param startColumn The column the sentence starts on.
+   */
+  public LineIndex(byte[] utf8, int startLine, int startColumn) {
+    this.utf8 = utf8;
+    this.startLine = startLine;
+    this.startColumn = startColumn;
+
+    int[] starts = new int[16];
+    int lines = 1;
+    boolean ascii = true;
+    for (int i = 0; i < utf8.length; i++) {
+      int b = utf8[i] & 0xff;
+      int next = -1;
+      if (b == '\r') {
+        next = i + 1 < utf8.length && utf8[i + 1] == '\n' ? i + 2 : i + 1;
+      } else if (b == '\n' || b == 0x0B || b == 0x0C) {
+        next = i + 1;
+      } else if (b >= 0x80) {
+        ascii = false;
+        if (b == 0xC2 && i + 1 < utf8.length && (utf8[i + 1] & 0xff) == 0x85) {
+          next = i + 2;
+        } else if (b == 0xE2
+            && i + 2 < utf8.length
+            && (utf8[i + 1] & 0xff) == 0x80
+            && ((utf8[i + 2] & 0xff) == 0xA8 || (utf8[i + 2] & 0xff) == 0xA9)) {
+          next = i + 3;
+        }
+      }
+      if (next != -1) {
+        if (lines == starts.length) {
+          starts = Arrays.copyOf(starts, lines * 2);
+        }
+        starts[lines++] = next;
+        i = next - 1;
+      }
+    }
+    this.lineStarts = Arrays.copyOf(starts, lines);
+
+    if (ascii) {
+      this.codePoints = null;
+    } else {
+      int[] counts = new int[(utf8.length >> BLOCK_BITS) + 1];
+      int count = 0;
+      for (int i = 0; i < utf8.length; i++) {
+        if ((i & ((1 << BLOCK_BITS) - 1)) == 0) {
+          counts[i >> BLOCK_BITS] = count;
+        }
+        if (isLeadByte(utf8[i])) {
+          count++;
+        }
+      }
+      if ((utf8.length & ((1 << BLOCK_BITS) - 1)) == 0) {
+        counts[utf8.length >> BLOCK_BITS] = count;
+      }
+      this.codePoints = counts;
+    }
+  }
+
+  /**
+   * @param offset An offset into the UTF-8 encoding of the sentence, between 0 and its length.
+   * @return The line of the character at that offset.
+   */
+  public int line(int offset) {
+    return startLine + lineIndex(offset);
+  }
+
+  /**
+   * @param offset An offset into the UTF-8 encoding of the sentence, between 0 and its length,
+   *     which is the start of a code point.
+   * @return The column of the character at that offset.
+   */
+  public int column(int offset) {
+    int line = lineIndex(offset);
+    int base = line == 0 ? startColumn : 1;
+    return base + codePointsBefore(offset) - codePointsBefore(lineStarts[line]);
+  }
+
+  private int lineIndex(int offset) {
+    int i = Arrays.binarySearch(lineStarts, offset);
+    // if the offset is not the start of a line, take the line which starts before it
+    return i >= 0 ? i : -i - 2;
+  }
+
+  private int codePointsBefore(int offset) {
+    if (codePoints == null) {
+      return offset;
+    }
+    int block = offset >> BLOCK_BITS;
+    int count = codePoints[block];
+    for (int i = block << BLOCK_BITS; i < offset; i++) {
+      if (isLeadByte(utf8[i])) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static boolean isLeadByte(byte b) {
+    return (b & 0xC0) != 0x80;
+  }
+}
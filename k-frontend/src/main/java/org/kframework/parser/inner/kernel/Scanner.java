@@ -5,17 +5,25 @@ import static org.kframework.Collections.*;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.kframework.attributes.Att;
@@ -42,7 +50,9 @@ import scala.Tuple2;
 public class Scanner implements AutoCloseable {
 
   private final Map<TerminalLike, Tuple2<Integer, Integer>> tokens;
-  private final File scanner;
+  // replaced if it is deleted from the cache while this scanner still needs it, see executable()
+  private volatile File scanner;
+  private final TokenAutomaton automaton;
   private final Module module;
   private GlobalOptions go = new GlobalOptions();
 
@@ -101,26 +111,70 @@ public class Scanner implements AutoCloseable {
   }
 
   public Scanner(ParseInModule module, GlobalOptions go) {
+    this(module.seedModule(), getTokens(module.getParsingModule()), go);
+  }
+
+  /**
+   * Build a scanner for tokens which were already computed, e.g. by {@link SharedScanners}.
+   *
+   * @param module The seed module of the grammar, whose layout and lexical identifiers are used.
+   * @param tokens The tokens of the scanner, as returned by {@link #getTokens(Module)}.
+   * @param go The options which select the scanner backend.
+   */
+  public Scanner(
+      Module module, Map<TerminalLike, Tuple2<Integer, Integer>> tokens, GlobalOptions go) {
     this.go = go;
-    this.tokens = getTokens(module.getParsingModule());
-    this.module = module.seedModule();
-    this.scanner = getScanner();
+    this.tokens = tokens;
+    this.module = module;
+    if (go.scanner == GlobalOptions.ScannerBackend.JVM) {
+      this.scanner = null;
+      this.automaton = getAutomaton();
+    } else {
+      this.scanner = getScanner();
+      this.automaton = null;
+    }
   }
 
   public Scanner(ParseInModule module) {
-    this.tokens = getTokens(module.getParsingModule());
-    this.module = module.seedModule();
-    this.scanner = getScanner();
+    this(module, new GlobalOptions());
   }
 
   public Scanner(ParseInModule module, GlobalOptions go, File scanner) {
+    this(module.seedModule(), getTokens(module.getParsingModule()), go, scanner);
+  }
+
+  /**
+   * Load a scanner that was previously serialized with {@link #serialize(File)}, without having to
+   * recompute its tokens from the parsing module.
+   *
+   * @param module The seed module of the grammar the scanner was generated for.
+   * @param tokens The tokens of the scanner, as returned by {@link #getTokens()}.
+   * @param go The options to use when the scanner has to be rebuilt.
+   * @param scanner The serialized scanner.
+   */
+  public Scanner(
+      Module module,
+      Map<TerminalLike, Tuple2<Integer, Integer>> tokens,
+      GlobalOptions go,
+      File scanner) {
     this.go = go;
-    this.tokens = getTokens(module.getParsingModule());
-    this.module = module.seedModule();
-    this.scanner = scanner;
+    this.tokens = tokens;
+    this.module = module;
+    if (go.scanner == GlobalOptions.ScannerBackend.JVM || !scanner.exists()) {
+      // definitions kompiled with the JVM scanner have no native scanner to load
+      this.scanner = null;
+      this.automaton = getAutomaton();
+    } else {
+      this.scanner = scanner;
+      this.automaton = null;
+    }
   }
 
   public void serialize(File output) {
+    if (scanner == null) {
+      // the JVM scanner is rebuilt from the grammar when it is loaded
+      return;
+    }
     try {
       Files.copy(scanner.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
     } catch (IOException e) {
@@ -150,9 +204,13 @@ public class Scanner implements AutoCloseable {
     if (this.module.allSorts().contains(Sorts.Layout())) {
       flex.append(this.module.flexLayout() + " ;\n");
     }
+    // break ties by kind so that the generated source, and hence its cache entry, is stable
     List<TerminalLike> ordered =
         tokens.keySet().stream()
-            .sorted(Comparator.comparing(t -> tokens.get(t)._2).reversed())
+            .sorted(
+                Comparator.<TerminalLike, Integer>comparing(t -> tokens.get(t)._2)
+                    .reversed()
+                    .thenComparing(t -> tokens.get(t)._1))
             .toList();
     for (TerminalLike key : ordered) {
       if (key instanceof Terminal t) {
@@ -218,13 +276,23 @@ public class Scanner implements AutoCloseable {
     }
   }
 
+  private TokenAutomaton getAutomaton() {
+    Stopwatch sw = new Stopwatch(go);
+    TokenAutomaton automaton = TokenAutomaton.compile(module, tokens);
+    sw.printIntermediate(
+        "  New JVM scanner: " + module.name() + " [" + automaton.size() + " states]");
+    return automaton;
+  }
+
+  private static final List<String> FLEX_FLAGS = List.of("--nowarn", "--noyywrap", "-Ca");
+  // Option -lfl unnecessary. Same effect achieved by --noyywrap above.
+  private static final List<String> COMPILER_FLAGS = List.of("-Wno-unused-result");
+
   public File getScanner() {
     Stopwatch sw = new Stopwatch(go);
     File scanner;
     // tokenization
     try {
-      File scannerSource = File.createTempFile("tmp-kompile-", ".l");
-      scannerSource.deleteOnExit();
       StringBuilder flex = new StringBuilder();
       flex.append(
           "%{\n"
@@ -239,9 +307,6 @@ public class Scanner implements AutoCloseable {
               + "   fwrite(&end_pos, sizeof(end_pos), 1, stdout);"
               + "   int kind = -1;"
               + "   fwrite(&kind, sizeof(kind), 1, stdout);"
-              + "   int len = strlen(yytext);"
-              + "   fwrite(&len, sizeof(len), 1, stdout);"
-              + "   fwrite(yytext, 1, len, stdout);"
               + " } while (0) \n"
               + "char *buffer;\n"
               + "%}\n\n");
@@ -271,36 +336,60 @@ public class Scanner implements AutoCloseable {
               + "    }\n"
               + "# endif  /* WIN32 */\n"
               + "\n"
+              + "  setvbuf(stdout, NULL, _IOFBF, 1 << 16);\n"
               + "  while(1) {\n"
-              + "    int length;\n"
-              + "    size_t nread = fread(&length, sizeof(length), 1, stdin);\n"
+              + "    int count;\n"
+              + "    size_t nread = fread(&count, sizeof(count), 1, stdin);\n"
               + "    if (nread < 1) exit(0);\n"
-              + "    buffer = malloc(length + 2);\n"
-              + "    buffer[length] = 0;\n"
-              + "    buffer[length+1] = 0;\n"
-              + "    fread(buffer, length, 1, stdin);\n"
-              + "    YY_BUFFER_STATE bs = yy_scan_buffer(buffer, length + 2);\n"
-              + "    yy_switch_to_buffer(bs);\n"
-              + "    yylex();\n"
-              + "    long long exit = -1;\n"
-              + "    fwrite(&exit, sizeof(exit), 1, stdout);\n"
-              + "    fwrite(&exit, sizeof(exit), 1, stdout);\n"
-              + "    fwrite(&exit, sizeof(exit), 1, stdout);\n"
+              + "    char **buffers = malloc(count * sizeof(char *));\n"
+              + "    int *lengths = malloc(count * sizeof(int));\n"
+              // read the whole batch before writing anything, so that neither side of the pipe
+              // can block on a full buffer while the other one is still writing
+              + "    for (int i = 0; i < count; i++) {\n"
+              + "      fread(&lengths[i], sizeof(int), 1, stdin);\n"
+              + "      buffers[i] = malloc(lengths[i] + 2);\n"
+              + "      buffers[i][lengths[i]] = 0;\n"
+              + "      buffers[i][lengths[i]+1] = 0;\n"
+              + "      fread(buffers[i], lengths[i], 1, stdin);\n"
+              + "    }\n"
+              + "    for (int i = 0; i < count; i++) {\n"
+              + "      buffer = buffers[i];\n"
+              + "      YY_BUFFER_STATE bs = yy_scan_buffer(buffer, lengths[i] + 2);\n"
+              + "      yy_switch_to_buffer(bs);\n"
+              + "      yylex();\n"
+              + "      yy_delete_buffer(bs);\n"
+              + "      free(buffer);\n"
+              + "      long long exit = -1;\n"
+              + "      int exitKind = -1;\n"
+              + "      fwrite(&exit, sizeof(exit), 1, stdout);\n"
+              + "      fwrite(&exit, sizeof(exit), 1, stdout);\n"
+              + "      fwrite(&exitKind, sizeof(exitKind), 1, stdout);\n"
+              + "    }\n"
+              + "    free(buffers);\n"
+              + "    free(lengths);\n"
               + "    fflush(stdout);\n"
               + "  }\n"
               + "}");
+      File cacheDir = scannerCacheDirectory();
+      String key = cacheDir == null ? null : cacheKey(flex.toString());
+      File cached = key == null ? null : new File(cacheDir, key);
+      if (cached != null && cached.canExecute()) {
+        // the age of an entry is the time it was last used, see pruneCache
+        cached.setLastModified(System.currentTimeMillis());
+        sw.printIntermediate("  Cached scanner: " + module.name());
+        return cached;
+      }
+      File scannerSource = File.createTempFile("tmp-kompile-", ".l");
+      scannerSource.deleteOnExit();
       FileUtils.write(scannerSource, flex);
       File scannerCSource = File.createTempFile("tmp-kompile-", ".c");
       scannerCSource.deleteOnExit();
-      ProcessBuilder pb =
-          new ProcessBuilder(
-              "flex",
-              "--nowarn",
-              "--noyywrap",
-              "-Ca",
-              "-o",
-              scannerCSource.getAbsolutePath(),
-              scannerSource.getAbsolutePath());
+      List<String> command = new ArrayList<>();
+      command.add("flex");
+      command.addAll(FLEX_FLAGS);
+      command.addAll(List.of("-o", scannerCSource.getAbsolutePath()));
+      command.add(scannerSource.getAbsolutePath());
+      ProcessBuilder pb = new ProcessBuilder(command);
       pb.inheritIO();
       int exit = pb.start().waitFor();
       if (exit != 0) {
@@ -309,16 +398,18 @@ public class Scanner implements AutoCloseable {
             "Flex returned nonzero exit code. See output for details. flex command: "
                 + pb.command());
       }
-      scanner = File.createTempFile("tmp-kompile-", "");
+      // compile next to the cache entry so that it can be renamed into place atomically
+      scanner =
+          cached == null
+              ? File.createTempFile("tmp-kompile-", "")
+              : File.createTempFile("tmp-scanner-", "", cacheDir);
       scanner.deleteOnExit();
-      // Option -lfl unnecessary. Same effect achieved by --noyywrap above.
-      pb =
-          new ProcessBuilder(
-              COMPILER,
-              scannerCSource.getAbsolutePath(),
-              "-o",
-              scanner.getAbsolutePath(),
-              "-Wno-unused-result");
+      command = new ArrayList<>();
+      command.add(COMPILER);
+      command.add(scannerCSource.getAbsolutePath());
+      command.addAll(List.of("-o", scanner.getAbsolutePath()));
+      command.addAll(COMPILER_FLAGS);
+      pb = new ProcessBuilder(command);
       pb.inheritIO();
       exit = pb.start().waitFor();
       scanner.setExecutable(true);
@@ -330,6 +421,15 @@ public class Scanner implements AutoCloseable {
                 + " command: "
                 + pb.command());
       }
+      if (cached != null) {
+        try {
+          Files.move(scanner.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE);
+          scanner = cached;
+        } catch (IOException e) {
+          // another process may be racing us to fill the same entry; our copy works just as well
+        }
+        pruneCache(cacheDir);
+      }
     } catch (IOException | InterruptedException e) {
       throw KEMException.internalError("Failed to write file for scanner", e);
     }
@@ -337,6 +437,158 @@ public class Scanner implements AutoCloseable {
     return scanner;
   }
 
+  /**
+   * The directory in which compiled scanners are kept across invocations of the tools, so that
+   * rebuilding a definition whose tokens have not changed does not have to run flex and the C
+   * compiler again. Follows the XDG base directory specification.
+   *
+   * <p>The directory holds at most {@link #MAX_CACHED_SCANNERS} scanners: whenever a scanner is
+   * added, the least recently used ones beyond that are deleted, see {@link #pruneCache}. The whole
+   * directory can also be deleted at any time when no tool is running.
+   *
+   * @return the directory, or null if the cache is disabled or the directory cannot be created.
+   */
+  private File scannerCacheDirectory() {
+    if (go.noScannerCache) {
+      return null;
+    }
+    if (go.scannerCacheDir != null) {
+      File dir = new File(go.scannerCacheDir);
+      dir.mkdirs();
+      return dir.isDirectory() && dir.canWrite() ? dir : null;
+    }
+    String base = System.getenv("XDG_CACHE_HOME");
+    if (base == null || base.isEmpty()) {
+      String home =
+          OS.current() == OS.LINUX ? System.getenv("HOME") : System.getProperty("user.home");
+      if (home == null) {
+        return null;
+      }
+      base = home + File.separatorChar + ".cache";
+    }
+    File dir = new File(base, "kframework" + File.separatorChar + "scanners");
+    dir.mkdirs();
+    return dir.isDirectory() && dir.canWrite() ? dir : null;
+  }
+
+  static final int MAX_CACHED_SCANNERS = 256;
+  // scanners used more recently than this are kept even beyond MAX_CACHED_SCANNERS, since another
+  // process is likely to start them again soon
+  static final long RECENTLY_USED_MILLIS = 60 * 60 * 1000;
+  // temporary files older than this were left behind by a killed process
+  static final long STALE_TEMPORARY_FILE_MILLIS = 24 * 60 * 60 * 1000;
+
+  /**
+   * Delete the least recently used scanners of the cache beyond {@link #MAX_CACHED_SCANNERS},
+   * except those used in the last {@link #RECENTLY_USED_MILLIS}, as well as the stale temporary
+   * files. A scanner is used whenever a process of it is started, see {@link #executable()}. The
+   * processes of a scanner which is deleted anyway keep running, and the next process is started
+   * from a scanner built again.
+   */
+  static void pruneCache(File cacheDir) {
+    File[] files = cacheDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    Map<File, Long> lastUsed = new HashMap<>();
+    for (File file : files) {
+      if (!file.getName().startsWith("tmp-scanner-")) {
+        lastUsed.put(file, file.lastModified());
+      } else if (now - file.lastModified() > STALE_TEMPORARY_FILE_MILLIS) {
+        file.delete();
+      }
+    }
+    if (lastUsed.size() <= MAX_CACHED_SCANNERS) {
+      return;
+    }
+    List<File> entries = new ArrayList<>(lastUsed.keySet());
+    entries.sort(Comparator.comparing(lastUsed::get));
+    for (File entry : entries.subList(0, entries.size() - MAX_CACHED_SCANNERS)) {
+      if (now - lastUsed.get(entry) > RECENTLY_USED_MILLIS) {
+        entry.delete();
+      }
+    }
+  }
+
+  /**
+   * The native scanner to start a process of. Marks it as used, so that it is not pruned from the
+   * cache while it is in use, and builds it again if it was pruned anyway, e.g., because this
+   * scanner did not start a process for longer than {@link #RECENTLY_USED_MILLIS}.
+   */
+  private File executable() {
+    File file = scanner;
+    // marked before it is checked, so that it cannot be pruned in between
+    file.setLastModified(System.currentTimeMillis());
+    if (!file.canExecute()) {
+      synchronized (this) {
+        if (!scanner.canExecute()) {
+          scanner = getScanner();
+        }
+        file = scanner;
+      }
+    }
+    return file;
+  }
+
+  /** Runs the tools only once, and only once a scanner is looked up in the cache. */
+  private static final class ToolVersions {
+    // the output of --version of flex and of the C compiler, or null if either could not be run
+    static final String VERSIONS = versions();
+
+    private static String versions() {
+      String flex = version("flex");
+      String compiler = version(COMPILER);
+      return flex == null || compiler == null ? null : flex + "\0" + compiler;
+    }
+  }
+
+  private static String version(String tool) {
+    try {
+      Process process = new ProcessBuilder(tool, "--version").redirectErrorStream(true).start();
+      String output = IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8);
+      return process.waitFor() == 0 ? output : null;
+    } catch (IOException e) {
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * Computes the name of the cache entry for a scanner. Everything that determines the contents of
+   * the compiled scanner contributes to the hash: the flex source, which includes the token kinds
+   * and the protocol used to talk to the scanner, the commands used to compile it, and the versions
+   * of flex and of the C compiler.
+   *
+   * @return the name, or null if the versions of the tools are unknown and the cache must not be
+   *     used.
+   */
+  private static String cacheKey(String flexSource) {
+    String versions = ToolVersions.VERSIONS;
+    if (versions == null) {
+      return null;
+    }
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(flexSource.getBytes(StandardCharsets.UTF_8));
+      String flags =
+          "\0"
+              + String.join(" ", FLEX_FLAGS)
+              + "\0"
+              + COMPILER
+              + " "
+              + String.join(" ", COMPILER_FLAGS)
+              + "\0"
+              + versions;
+      digest.update(flags.getBytes(StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw KEMException.internalError("Error computing scanner digest (SHA-256 unavailable)", e);
+    }
+  }
+
   private void writeAction(StringBuilder flex, TerminalLike key) {
     flex.append(
             " {\n"
@@ -349,9 +601,6 @@ public class Scanner implements AutoCloseable {
         .append(
             ";\n"
                 + "   fwrite(&kind, sizeof(kind), 1, stdout);\n"
-                + "   int len = strlen(yytext);\n"
-                + "   fwrite(&len, sizeof(len), 1, stdout);\n"
-                + "   fwrite(yytext, 1, len, stdout);\n"
                 + " }\n");
   }
 
@@ -407,24 +656,31 @@ public class Scanner implements AutoCloseable {
   @Override
   public void close() {
     synchronized (idleProcesses) {
-      for (Process p : idleProcesses.get(this)) {
+      for (ScannerProcess p : idleProcesses.get(this)) {
         p.destroy();
         cache.remove(p);
         activeProcceses--;
       }
       idleProcesses.removeAll(this);
     }
+    prefetched.clear();
   }
 
   private static final int N_CPUS = Runtime.getRuntime().availableProcessors();
   private static final int N_PROCS = 512;
+  // the smallest number of sentences worth sending to a scanner process of its own
+  private static final int MIN_BATCH = 64;
   private static int activeProcceses = 0;
-  private static final Semaphore runningScanners = new Semaphore(N_PROCS);
-  private static final ListMultimap<Scanner, Process> idleProcesses = ArrayListMultimap.create();
-  private static final Map<Process, Scanner> cache =
-      new LinkedHashMap<Process, Scanner>() {
+  // scanning is CPU bound, so there is no point in running more scanners at once than there are
+  // CPUs. The number of processes kept alive for each scanner follows its demand instead, see
+  // #tokenize(List).
+  private static final Semaphore runningScanners = new Semaphore(N_CPUS);
+  private static final ListMultimap<Scanner, ScannerProcess> idleProcesses =
+      ArrayListMultimap.create();
+  private static final Map<ScannerProcess, Scanner> cache =
+      new LinkedHashMap<ScannerProcess, Scanner>() {
         @Override
-        protected boolean removeEldestEntry(Map.Entry<Process, Scanner> entry) {
+        protected boolean removeEldestEntry(Map.Entry<ScannerProcess, Scanner> entry) {
           if (activeProcceses > N_PROCS) {
             entry.getKey().destroy();
             idleProcesses.get(entry.getValue()).remove(entry.getKey());
@@ -435,89 +691,273 @@ public class Scanner implements AutoCloseable {
         }
       };
 
-  public Token[] tokenize(String input, Source source, int[] lines, int[] columns) {
-    try {
-      runningScanners.acquire();
+  // the number of requests to this scanner which are waiting for a process, guarded by
+  // idleProcesses
+  private int waiting = 0;
+
+  /** The tokens of a prefetched sentence, and the number of users who prefetched it. */
+  private record Prefetched(Tokens tokens, int users) {}
+
+  // sentences tokenized ahead of time by prefetch, kept until all their users have released them
+  private final Map<String, Prefetched> prefetched = new ConcurrentHashMap<>();
+
+  /**
+   * A running native scanner, together with buffered channels to communicate with it and buffers
+   * that are reused across requests.
+   */
+  private static final class ScannerProcess {
+    private final Process process;
+    private final OutputStream out;
+    private final InputStream in;
+    private final byte[] header = new byte[20];
+    private final ByteBuffer headerBuf = ByteBuffer.wrap(header).order(ByteOrder.nativeOrder());
+    private final ByteBuffer intBuf = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+
+    ScannerProcess(File scanner) throws IOException {
+      process = new ProcessBuilder(scanner.getAbsolutePath()).start();
+      out = new BufferedOutputStream(process.getOutputStream(), 1 << 16);
+      in = new BufferedInputStream(process.getInputStream(), 1 << 16);
+    }
 
-      Process process;
-      synchronized (idleProcesses) {
-        if (idleProcesses.get(this).size() > 0) {
-          List<Process> idleForThisScanner = idleProcesses.get(this);
-          process = idleForThisScanner.remove(idleForThisScanner.size() - 1);
-          cache.remove(process);
-        } else {
-          process = new ProcessBuilder(scanner.getAbsolutePath()).start();
-          activeProcceses++;
-          // temporarily add it so that LinkedHashMap evicts the old entry
-          cache.put(process, this);
-          cache.remove(process);
+    private void writeInt(int i) throws IOException {
+      intBuf.clear();
+      intBuf.putInt(i);
+      out.write(intBuf.array());
+    }
+
+    /**
+     * Send a batch of sentences to the scanner.
+     *
+     * <p>Protocol: the number of sentences, followed by the UTF-8 length and bytes of each
+     * sentence. All integers are in native byte order.
+     *
+     * @return The UTF-8 length of each sentence.
+     */
+    int[] write(List<String> inputs) throws IOException {
+      int[] lengths = new int[inputs.size()];
+      writeInt(inputs.size());
+      for (int i = 0; i < inputs.size(); i++) {
+        byte[] buf = inputs.get(i).getBytes(StandardCharsets.UTF_8);
+        lengths[i] = buf.length;
+        writeInt(buf.length);
+        out.write(buf);
+      }
+      out.flush();
+      return lengths;
+    }
+
+    /**
+     * Read the tokens of a single sentence of a batch. The scanner answers each sentence with a
+     * sequence of 20 byte headers (start offset, end offset, kind), terminated by a header whose
+     * start offset is negative. The text of the tokens is not sent, since it can be read from the
+     * sentence.
+     *
+     * @param length The UTF-8 length of the sentence.
+     */
+    Tokens read(int length) throws IOException {
+      Tokens result = new Tokens();
+      while (true) {
+        IOUtils.readFully(in, header);
+        headerBuf.clear();
+        long startLoc = headerBuf.getLong();
+        if (startLoc < 0) {
+          break;
         }
+        long endLoc = headerBuf.getLong();
+        int kind = headerBuf.getInt();
+        result.add(kind, startLoc, endLoc);
       }
+      // add EOF token at end of token sequence
+      result.add(0, length, length);
+      return result;
+    }
 
-      byte[] buf = input.getBytes(StandardCharsets.UTF_8);
-      ByteBuffer size = ByteBuffer.allocate(4);
-      size.order(ByteOrder.nativeOrder());
-      size.putInt(buf.length);
-      process.getOutputStream().write(size.array());
-      process.getOutputStream().write(buf);
-      process.getOutputStream().flush();
-      return readTokenizedOutput(process, source, lines, columns, input.length());
-    } catch (IOException | InterruptedException e) {
-      throw KEMException.internalError("Failed to invoke scanner", e);
+    void destroy() {
+      process.destroy();
+    }
+  }
+
+  /**
+   * Tokenize a collection of sentences ahead of time. The sentences are sent to the native scanner
+   * in batches, as few as the amount of work allows, in order to amortize the cost of communicating
+   * with the scanner processes. The tokens are served by {@link #tokenize(String, Source,
+   * LineIndex)} until they are released with {@link #release(Collection)}, which must be called
+   * exactly once with the same sentences. Since the scanner may be shared, the sentences already
+   * prefetched by another user are not tokenized again.
+   *
+   * @param inputs The sentences that are going to be parsed with this scanner.
+   */
+  public void prefetch(Collection<String> inputs) {
+    if (automaton != null) {
+      // nothing to amortize
+      return;
+    }
+    List<String> claimed = new ArrayList<>();
+    List<String> missing = new ArrayList<>();
+    for (String input : new LinkedHashSet<>(inputs)) {
+      if (prefetched.computeIfPresent(input, (k, p) -> new Prefetched(p.tokens(), p.users() + 1))
+          != null) {
+        claimed.add(input);
+      } else {
+        missing.add(input);
+      }
+    }
+    int nBatches = Math.min(N_CPUS, (missing.size() + MIN_BATCH - 1) / MIN_BATCH);
+    Tokens[] tokens = new Tokens[missing.size()];
+    boolean done = false;
+    try {
+      IntStream.range(0, nBatches)
+          .parallel()
+          .forEach(
+              i -> {
+                int from = i * missing.size() / nBatches;
+                int to = (i + 1) * missing.size() / nBatches;
+                Tokens[] batch = tokenize(missing.subList(from, to));
+                System.arraycopy(batch, 0, tokens, from, batch.length);
+              });
+      done = true;
     } finally {
-      runningScanners.release();
+      if (!done) {
+        // the caller is not going to release the sentences it has not prefetched
+        release(claimed);
+      }
+    }
+    for (int i = 0; i < missing.size(); i++) {
+      prefetched.merge(
+          missing.get(i),
+          new Prefetched(tokens[i], 1),
+          (p, q) -> new Prefetched(p.tokens(), p.users() + 1));
+    }
+  }
+
+  /**
+   * Release the tokens prefetched for a collection of sentences, once they were parsed, found in
+   * the parse cache, or skipped because parsing stopped at an error. The tokens are dropped when
+   * every user who prefetched a sentence has released it.
+   *
+   * @param inputs The sentences passed to {@link #prefetch(Collection)}.
+   */
+  public void release(Collection<String> inputs) {
+    for (String input : new HashSet<>(inputs)) {
+      prefetched.computeIfPresent(
+          input, (k, p) -> p.users() == 1 ? null : new Prefetched(p.tokens(), p.users() - 1));
+    }
+  }
+
+  /**
+   * @return Whether the tokens of a sentence are prefetched.
+   */
+  boolean isPrefetched(String input) {
+    return prefetched.containsKey(input);
+  }
+
+  /**
+   * @return The number of idle processes kept alive for this scanner.
+   */
+  int idleProcessCount() {
+    synchronized (idleProcesses) {
+      return idleProcesses.get(this).size();
+    }
+  }
+
+  /**
+   * Tokenize a sentence, or take its tokens from those computed by {@link #prefetch}.
+   *
+   * @param lines The line index of the UTF-8 encoding of the sentence, used to locate errors.
+   * @return The tokens of the sentence, ending with an EOF token of kind 0.
+   */
+  public Tokens tokenize(String input, Source source, LineIndex lines) {
+    if (automaton != null) {
+      return automaton.tokenize(input, source, lines);
+    }
+    Prefetched p = prefetched.get(input);
+    Tokens tokens = p == null ? tokenize(List.of(input))[0] : p.tokens();
+    for (int i = 0; i < tokens.size(); i++) {
+      if (tokens.kind(i) == -1) {
+        String value = tokens.value(i, input.getBytes(StandardCharsets.UTF_8));
+        String msg = "Scanner error: unexpected character sequence '" + value + "'.";
+        int start = tokens.start(i);
+        int end = tokens.end(i);
+        Location loc =
+            new Location(
+                lines.line(start), lines.column(start), lines.line(end), lines.column(end));
+        throw KEMException.innerParserError(msg, source, loc);
+      }
     }
+    return tokens;
   }
 
-  private Token[] readTokenizedOutput(
-      Process process, Source source, int[] lines, int[] columns, int length) throws IOException {
-    List<Token> result = new ArrayList<>();
+  /**
+   * Tokenize a batch of sentences with a single request to a native scanner.
+   *
+   * <p>A process is only started when no idle one is available, so each scanner runs at most as
+   * many processes as it has requests in flight. When a request is done, its process is kept alive
+   * only if another request to the same scanner is waiting for one, or if it is the only idle
+   * process of the scanner, so that the pool shrinks again as soon as the demand drops.
+   *
+   * @return The tokens of each sentence, in order, including tokens of kind -1 for characters the
+   *     scanner could not match.
+   */
+  private Tokens[] tokenize(List<String> inputs) {
+    synchronized (idleProcesses) {
+      waiting++;
+    }
+    try {
+      runningScanners.acquire();
+    } catch (InterruptedException e) {
+      synchronized (idleProcesses) {
+        waiting--;
+      }
+      throw KEMException.internalError("Failed to invoke scanner", e);
+    }
+    ScannerProcess process = null;
     boolean success = false;
     try {
-      while (true) {
-        byte[] buf = new byte[24];
-        IOUtils.readFully(process.getInputStream(), buf);
-        ByteBuffer byteBuf = ByteBuffer.wrap(buf);
-        byteBuf.order(ByteOrder.nativeOrder());
-        long startLoc = byteBuf.getLong();
-        if (startLoc < 0) {
-          break;
-        }
-        long endLoc = byteBuf.getLong();
-        int kind = byteBuf.getInt();
-        int len = byteBuf.getInt();
-        byte[] bytes = new byte[len];
-        IOUtils.readFully(process.getInputStream(), bytes);
-        String value = new String(bytes, StandardCharsets.UTF_8);
-        Token t = new Token(kind, value, startLoc, endLoc);
-        if (kind == -1) {
-          String msg = "Scanner error: unexpected character sequence '" + value + "'.";
-          Location loc =
-              new Location(
-                  lines[t.startLoc], columns[t.startLoc], lines[t.endLoc], columns[t.endLoc]);
-          throw KEMException.innerParserError(msg, source, loc);
+      synchronized (idleProcesses) {
+        waiting--;
+        List<ScannerProcess> idleForThisScanner = idleProcesses.get(this);
+        if (idleForThisScanner.size() > 0) {
+          process = idleForThisScanner.remove(idleForThisScanner.size() - 1);
+          cache.remove(process);
         }
-        result.add(t);
       }
-      success = true;
-      // add EOF token at end of token sequence
-      result.add(new Token(0, "", length, length));
-      return result.toArray(new Token[result.size()]);
-    } finally {
-      if (success) {
+      if (process == null) {
+        // started outside the lock, since the scanner may have to be built again
+        process = new ScannerProcess(executable());
         synchronized (idleProcesses) {
+          activeProcceses++;
+          // temporarily add it so that LinkedHashMap evicts the old entry
           cache.put(process, this);
-          idleProcesses.put(this, process);
+          cache.remove(process);
         }
-      } else {
-        // we aren't returning this process to the pool since something went wrong with it,
-        // so we have to clean up here and then make sure that the pool knows it can allocate a new
-        // process.
+      }
+
+      int[] lengths = process.write(inputs);
+      Tokens[] result = new Tokens[inputs.size()];
+      for (int i = 0; i < inputs.size(); i++) {
+        result[i] = process.read(lengths[i]);
+      }
+      success = true;
+      return result;
+    } catch (IOException e) {
+      throw KEMException.internalError("Failed to invoke scanner", e);
+    } finally {
+      if (process != null) {
         synchronized (idleProcesses) {
-          process.destroy();
-          activeProcceses--;
+          int idle = idleProcesses.get(this).size();
+          if (success && (idle == 0 || idle < waiting)) {
+            cache.put(process, this);
+            idleProcesses.put(this, process);
+          } else {
+            // either something went wrong with this process, or nobody is going to need it. In
+            // both cases the pool must know that it can allocate a new process.
+            process.destroy();
+            activeProcceses--;
+          }
         }
       }
+      // released after the process was returned, so that a waiting request can reuse it
+      runningScanners.release();
     }
   }
 }
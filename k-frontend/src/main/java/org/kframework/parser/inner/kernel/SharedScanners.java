@@ -0,0 +1,137 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.kernel;
+
+import static org.kframework.Collections.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.kframework.builtin.Sorts;
+import org.kframework.definition.Module;
+import org.kframework.definition.SyntaxLexical;
+import org.kframework.definition.TerminalLike;
+import org.kframework.definition.regex.Regex;
+import org.kframework.main.GlobalOptions;
+import org.kframework.parser.inner.RuleGrammarGenerator;
+import org.kframework.utils.errorsystem.KEMException;
+import scala.Tuple2;
+
+/**
+ * The scanners of several parsers, shared between the parsers whose grammars have the same tokens,
+ * layout and lexical identifiers, since they would generate the same scanner.
+ *
+ * <p>The seed modules of the parsers are first registered with {@link #add}, which computes the
+ * tokens of their grammar without creating the parsers. The distinct scanners can then be built in
+ * parallel with {@link #build}, before parsing starts, and each parser is given its scanner by
+ * calling {@link #build} again once it is created. Closing this closes every scanner it built.
+ */
+public final class SharedScanners implements AutoCloseable {
+
+  /** Everything the generated scanner depends on. */
+  private record Key(
+      Map<TerminalLike, Tuple2<Integer, Integer>> tokens,
+      Set<Regex> layouts,
+      Map<String, Regex> lexicalIdentifiers) {}
+
+  private final GlobalOptions go;
+  private final Map<Module, Key> keys = new IdentityHashMap<>();
+  // a seed module registered with each key, to tell which scanners still have to be built
+  private final Map<Key, Module> grammars = new HashMap<>();
+  private final Map<Key, FutureTask<Scanner>> scanners = new ConcurrentHashMap<>();
+
+  public SharedScanners(GlobalOptions go) {
+    this.go = go;
+  }
+
+  /**
+   * Register the seed module of a parser which needs a scanner of its own grammar. Thread safe.
+   *
+   * <p>This computes the parsing module of the grammar, but it does not keep it.
+   */
+  public void add(Module seedModule) {
+    Key key = key(seedModule);
+    synchronized (this) {
+      keys.put(seedModule, key);
+      grammars.putIfAbsent(key, seedModule);
+    }
+  }
+
+  /**
+   * @return One seed module for each distinct scanner which is not built yet.
+   */
+  public synchronized List<Module> unbuilt() {
+    return grammars.entrySet().stream()
+        .filter(e -> !scanners.containsKey(e.getKey()))
+        .map(Map.Entry::getValue)
+        .toList();
+  }
+
+  /**
+   * Build the scanner of a registered seed module, unless it is already built. Thread safe. The
+   * scanners of different grammars are built concurrently, and the threads which need a scanner
+   * that is being built wait for it. If building it fails, the next call builds it again.
+   *
+   * @return The scanner of the grammar of the module.
+   */
+  public Scanner build(Module seedModule) {
+    Key key;
+    synchronized (this) {
+      key = keys.get(seedModule);
+    }
+    FutureTask<Scanner> task = new FutureTask<>(() -> new Scanner(seedModule, key.tokens(), go));
+    FutureTask<Scanner> existing = scanners.putIfAbsent(key, task);
+    if (existing == null) {
+      // generating the scanner takes a while, so it must not be done while locking the map
+      task.run();
+    } else {
+      task = existing;
+    }
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      scanners.remove(key, task);
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      if (e.getCause() instanceof Error cause) {
+        throw cause;
+      }
+      throw KEMException.criticalError("Failed to build a scanner", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw KEMException.criticalError("Interrupted while waiting for a scanner", e);
+    }
+  }
+
+  private static Key key(Module seed) {
+    Set<Regex> layouts =
+        seed.allSorts().contains(Sorts.Layout())
+            ? new HashSet<>(mutable(seed.layouts()))
+            : Set.of();
+    Map<String, Regex> lexicalIdentifiers = new HashMap<>();
+    for (SyntaxLexical ident : iterable(seed.lexicalIdentifiers())) {
+      lexicalIdentifiers.put(ident.name(), ident.regex());
+    }
+    Module parsingModule = RuleGrammarGenerator.getCombinedGrammar(seed, null).getParsingModule();
+    return new Key(Scanner.getTokens(parsingModule), layouts, lexicalIdentifiers);
+  }
+
+  @Override
+  public void close() {
+    for (FutureTask<Scanner> task : scanners.values()) {
+      if (task.isDone()) {
+        try {
+          task.get().close();
+        } catch (InterruptedException | ExecutionException e) {
+          // the scanner failed to be built, so there is nothing to close
+        }
+      }
+    }
+  }
+}
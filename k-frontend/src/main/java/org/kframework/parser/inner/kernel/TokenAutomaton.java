@@ -0,0 +1,516 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.kernel;
+
+import static org.kframework.Collections.*;
+
+import dk.brics.automaton.Automaton;
+import dk.brics.automaton.State;
+import dk.brics.automaton.Transition;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import org.kframework.attributes.Location;
+import org.kframework.attributes.Source;
+import org.kframework.builtin.Sorts;
+import org.kframework.definition.Module;
+import org.kframework.definition.RegexTerminal;
+import org.kframework.definition.SyntaxLexical;
+import org.kframework.definition.Terminal;
+import org.kframework.definition.TerminalLike;
+import org.kframework.definition.regex.Regex;
+import org.kframework.definition.regex.RegexBody;
+import org.kframework.utils.errorsystem.KEMException;
+import scala.Tuple2;
+
+/**
+ * A tokenizer for the inner parser which runs entirely inside the JVM, as an alternative to the
+ * flex scanner generated by {@link Scanner#getScanner()}.
+ *
+ * <p>Every {@link TerminalLike} of the grammar, as well as the layout of the module, is compiled
+ * into a dk.brics {@link Automaton}. Those automata are then combined by a subset construction into
+ * a single deterministic automaton whose accepting states are labelled with the token kind that
+ * flex would have chosen: the longest match wins, and among matches of equal length, layout wins,
+ * followed by the token with the highest precedence.
+ *
+ * <p>Positions in the resulting {@link Tokens} are offsets into the UTF-8 encoding of the input,
+ * exactly as they are reported by the flex scanner.
+ */
+final class TokenAutomaton implements Serializable {
+
+  static final int NO_MATCH = -1;
+  static final int LAYOUT = -2;
+
+  private static final int DEAD = -1;
+
+  // for each state, the sorted lower bounds of the character intervals it has transitions on
+  private final char[][] points;
+  // for each state, the state reached on each interval in `points`, or DEAD
+  private final int[][] targets;
+  // the token kind accepted in each state, or NO_MATCH
+  private final int[] accept;
+  // the token kind accepted in each state if the next character is a newline, or NO_MATCH
+  private final int[] acceptAtEol;
+  // the state to start in when not at the beginning of a line
+  private final int initial;
+  // the state to start in at the beginning of a line
+  private final int initialAtBol;
+
+  private TokenAutomaton(
+      char[][] points,
+      int[][] targets,
+      int[] accept,
+      int[] acceptAtEol,
+      int initial,
+      int initialAtBol) {
+    this.points = points;
+    this.targets = targets;
+    this.accept = accept;
+    this.acceptAtEol = acceptAtEol;
+    this.initial = initial;
+    this.initialAtBol = initialAtBol;
+  }
+
+  public int size() {
+    return accept.length;
+  }
+
+  /**
+   * A single rule of the scanner.
+   *
+   * @param automaton The deterministic automaton recognizing the rule.
+   * @param kind The token kind to report, or {@link #LAYOUT} if the match should be discarded.
+   * @param rank The position of the rule in the scanner. Lower ranks win ties between matches of
+   *     equal length.
+   * @param bol true if the rule only matches at the beginning of a line.
+   * @param eol true if the rule only matches when followed by a newline.
+   */
+  private record Rule(Automaton automaton, int kind, int rank, boolean bol, boolean eol) {}
+
+  /**
+   * Compile the tokens of a scanner.
+   *
+   * @param module The module whose layout and lexical identifiers should be used.
+   * @param tokens The tokens of the scanner, as computed by {@link Scanner#getTokens(Module)}.
+   */
+  static TokenAutomaton compile(Module module, Map<TerminalLike, Tuple2<Integer, Integer>> tokens) {
+    RegexCompiler regexes = new RegexCompiler(module);
+    List<Rule> rules = new ArrayList<>();
+    if (module.allSorts().contains(Sorts.Layout())) {
+      for (Regex layout : iterable(module.layouts())) {
+        rules.add(regexes.rule(layout, LAYOUT, rules.size()));
+      }
+    }
+    List<TerminalLike> ordered =
+        tokens.keySet().stream()
+            .sorted(
+                Comparator.<TerminalLike, Integer>comparing(t -> tokens.get(t)._2())
+                    .reversed()
+                    .thenComparing(t -> tokens.get(t)._1()))
+            .toList();
+    for (TerminalLike key : ordered) {
+      int kind = tokens.get(key)._1();
+      if (key instanceof Terminal t) {
+        rules.add(new Rule(Automaton.makeString(t.value()), kind, rules.size(), false, false));
+      } else {
+        rules.add(regexes.rule(((RegexTerminal) key).regex(), kind, rules.size()));
+      }
+    }
+    return new Builder(rules).build();
+  }
+
+  /**
+   * Tokenize a sentence.
+   *
+   * @param input The sentence to tokenize.
+   * @param source The {@link Source} of the sentence, used for error reporting.
+   * @param lines The line index of the UTF-8 encoding of the sentence, used to locate errors.
+   * @return The tokens of the sentence, terminated by an EOF token.
+   */
+  Tokens tokenize(String input, Source source, LineIndex lines) {
+    Tokens result = new Tokens();
+    int length = input.length();
+    int pos = 0;
+    int bytePos = 0;
+    while (pos < length) {
+      int state = pos == 0 || input.charAt(pos - 1) == '\n' ? initialAtBol : initial;
+      int kind = NO_MATCH;
+      int end = pos;
+      int i = pos;
+      while (state != DEAD) {
+        if (i > pos) {
+          int k = i < length && input.charAt(i) == '\n' ? acceptAtEol[state] : accept[state];
+          if (k != NO_MATCH) {
+            kind = k;
+            end = i;
+          }
+        }
+        if (i == length) {
+          break;
+        }
+        state = step(state, input.charAt(i++));
+      }
+      if (kind == NO_MATCH) {
+        // mirror the default rule of flex, which reports the single unmatched character
+        int next = pos + Character.charCount(input.codePointAt(pos));
+        int nextByte = bytePos + utf8Length(input, pos, next);
+        String msg =
+            "Scanner error: unexpected character sequence '" + input.substring(pos, next) + "'.";
+        Location loc =
+            new Location(
+                lines.line(bytePos),
+                lines.column(bytePos),
+                lines.line(nextByte),
+                lines.column(nextByte));
+        throw KEMException.innerParserError(msg, source, loc);
+      }
+      int endByte = bytePos + utf8Length(input, pos, end);
+      if (kind != LAYOUT) {
+        result.add(kind, bytePos, endByte);
+      }
+      pos = end;
+      bytePos = endByte;
+    }
+    // add EOF token at end of token sequence
+    result.add(0, bytePos, bytePos);
+    return result;
+  }
+
+  private int step(int state, char c) {
+    char[] p = points[state];
+    int lo = 0;
+    int hi = p.length - 1;
+    // find the last interval whose lower bound is at most c. p[0] is always 0.
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (p[mid] <= c) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return targets[state][lo];
+  }
+
+  private static int utf8Length(String input, int start, int end) {
+    int len = 0;
+    for (int i = start; i < end; i++) {
+      char c = input.charAt(i);
+      if (c < 0x80) {
+        len += 1;
+      } else if (c < 0x800 || Character.isSurrogate(c)) {
+        // each half of a surrogate pair accounts for two of the four bytes of the code point
+        len += 2;
+      } else {
+        len += 3;
+      }
+    }
+    return len;
+  }
+
+  /** Translates the {@link Regex} syntax of K into dk.brics automata. */
+  private static final class RegexCompiler {
+    private final Map<String, Regex> lexicalIdentifiers = new HashMap<>();
+    private final Map<String, Automaton> named = new HashMap<>();
+
+    RegexCompiler(Module module) {
+      for (SyntaxLexical ident : iterable(module.lexicalIdentifiers())) {
+        lexicalIdentifiers.put(ident.name(), ident.regex());
+      }
+    }
+
+    Rule rule(Regex regex, int kind, int rank) {
+      Automaton a = apply(regex.reg());
+      a.minimize();
+      return new Rule(a, kind, rank, regex.startLine(), regex.endLine());
+    }
+
+    private Automaton apply(RegexBody reg) {
+      if (reg instanceof RegexBody.Char chr) {
+        return Automaton.makeString(Character.toString(chr.codePoint()));
+      }
+      if (reg instanceof RegexBody.AnyChar) {
+        // as in flex, '.' matches anything but a newline
+        return anyCodePoint().minus(Automaton.makeChar('\n'));
+      }
+      if (reg instanceof RegexBody.Named name) {
+        Automaton a = named.get(name.name());
+        if (a == null) {
+          Regex def = lexicalIdentifiers.get(name.name());
+          if (def == null) {
+            throw KEMException.compilerError(
+                "Undefined lexical identifier {" + name.name() + "} in scanner.");
+          }
+          a = apply(def.reg());
+          named.put(name.name(), a);
+        }
+        return a;
+      }
+      if (reg instanceof RegexBody.CharClassExp clsExp) {
+        List<Automaton> classes = new ArrayList<>();
+        for (RegexBody.CharClass cls : clsExp.charClasses()) {
+          classes.add(apply(cls));
+        }
+        Automaton union = Automaton.union(classes);
+        return clsExp.negated() ? anyCodePoint().minus(union) : union;
+      }
+      if (reg instanceof RegexBody.Union un) {
+        return apply(un.left()).union(apply(un.right()));
+      }
+      if (reg instanceof RegexBody.Concat con) {
+        return Automaton.concatenate(con.members().stream().map(this::apply).toList());
+      }
+      if (reg instanceof RegexBody.ZeroOrMoreTimes star) {
+        return apply(star.reg()).repeat();
+      }
+      if (reg instanceof RegexBody.ZeroOrOneTimes question) {
+        return apply(question.reg()).optional();
+      }
+      if (reg instanceof RegexBody.OneOrMoreTimes plus) {
+        return apply(plus.reg()).repeat(1);
+      }
+      if (reg instanceof RegexBody.ExactlyTimes exact) {
+        return apply(exact.reg()).repeat(exact.exactly(), exact.exactly());
+      }
+      if (reg instanceof RegexBody.AtLeastTimes atLeast) {
+        return apply(atLeast.reg()).repeat(atLeast.atLeast());
+      }
+      if (reg instanceof RegexBody.RangeOfTimes range) {
+        return apply(range.reg()).repeat(range.atLeast(), range.atMost());
+      }
+      throw new AssertionError("Encountered unknown class " + reg.getClass().getName());
+    }
+
+    /**
+     * The automaton accepting a single code point, that is either a char which is not a surrogate,
+     * or a surrogate pair. Negated classes and '.' are built from it, so that they never match half
+     * of a surrogate pair, which would split a character in two tokens. Flex, which reads bytes,
+     * matches a single byte of a non-ASCII character instead. Both agree wherever the match is
+     * repeated, as in {@code "[^"]*"}, since they then consume the whole character either way.
+     */
+    private static Automaton anyCodePoint() {
+      Automaton pair =
+          Automaton.makeCharRange(Character.MIN_HIGH_SURROGATE, Character.MAX_HIGH_SURROGATE)
+              .concatenate(
+                  Automaton.makeCharRange(
+                      Character.MIN_LOW_SURROGATE, Character.MAX_LOW_SURROGATE));
+      return Automaton.makeCharRange(Character.MIN_VALUE, (char) (Character.MIN_SURROGATE - 1))
+          .union(Automaton.makeCharRange((char) (Character.MAX_SURROGATE + 1), Character.MAX_VALUE))
+          .union(pair);
+    }
+
+    private Automaton apply(RegexBody.CharClass cls) {
+      if (cls instanceof RegexBody.CharClass.Char chr) {
+        return Automaton.makeString(Character.toString(chr.codePoint()));
+      }
+      if (cls instanceof RegexBody.CharClass.Range range) {
+        if (!Character.isBmpCodePoint(range.end())) {
+          throw KEMException.compilerError(
+              "Character ranges outside the Basic Multilingual Plane are not supported by the"
+                  + " JVM scanner. Use --scanner flex instead.");
+        }
+        return Automaton.makeCharRange((char) range.start(), (char) range.end());
+      }
+      throw new AssertionError("Encountered unknown class " + cls.getClass().getName());
+    }
+  }
+
+  /**
+   * Performs the subset construction over the automata of all the rules of the scanner. A state of
+   * the resulting automaton is a set of states of the rule automata, which we number globally and
+   * represent as a sorted array.
+   */
+  private static final class Builder {
+    private final List<Rule> rules;
+    // the rule each global state belongs to
+    private final int[] owner;
+    private final boolean[] accepting;
+    private final char[][] min;
+    private final char[][] max;
+    private final int[][] dest;
+    private final int[] ruleInitial;
+
+    private final Map<StateSet, Integer> ids = new HashMap<>();
+    private final List<StateSet> worklist = new ArrayList<>();
+    private final List<char[]> points = new ArrayList<>();
+    private final List<int[]> targets = new ArrayList<>();
+
+    Builder(List<Rule> rules) {
+      this.rules = rules;
+      Map<State, Integer> global = new IdentityHashMap<>();
+      List<State> states = new ArrayList<>();
+      List<Integer> owners = new ArrayList<>();
+      ruleInitial = new int[rules.size()];
+      for (int r = 0; r < rules.size(); r++) {
+        Automaton a = rules.get(r).automaton();
+        State init = a.getInitialState();
+        for (State s : a.getStates()) {
+          global.put(s, states.size());
+          states.add(s);
+          owners.add(r);
+        }
+        ruleInitial[r] = global.get(init);
+      }
+      int n = states.size();
+      owner = new int[n];
+      accepting = new boolean[n];
+      min = new char[n][];
+      max = new char[n][];
+      dest = new int[n][];
+      for (int i = 0; i < n; i++) {
+        State s = states.get(i);
+        owner[i] = owners.get(i);
+        accepting[i] = s.isAccept();
+        List<Transition> ts = new ArrayList<>(s.getTransitions());
+        min[i] = new char[ts.size()];
+        max[i] = new char[ts.size()];
+        dest[i] = new int[ts.size()];
+        for (int j = 0; j < ts.size(); j++) {
+          Transition t = ts.get(j);
+          min[i][j] = t.getMin();
+          max[i][j] = t.getMax();
+          dest[i][j] = global.get(t.getDest());
+        }
+      }
+    }
+
+    TokenAutomaton build() {
+      int[] all = new int[rules.size()];
+      int[] notBol = new int[rules.size()];
+      int nNotBol = 0;
+      for (int r = 0; r < rules.size(); r++) {
+        all[r] = ruleInitial[r];
+        if (!rules.get(r).bol()) {
+          notBol[nNotBol++] = ruleInitial[r];
+        }
+      }
+      int initialAtBol = id(StateSet.of(all, all.length));
+      int initial = id(StateSet.of(notBol, nNotBol));
+      for (int i = 0; i < worklist.size(); i++) {
+        expand(worklist.get(i));
+      }
+      int size = worklist.size();
+      int[] accept = new int[size];
+      int[] acceptAtEol = new int[size];
+      for (int i = 0; i < size; i++) {
+        Rule best = null;
+        Rule bestAtEol = null;
+        for (int s : worklist.get(i).states()) {
+          if (!accepting[s]) {
+            continue;
+          }
+          Rule r = rules.get(owner[s]);
+          if (!r.eol() && (best == null || r.rank() < best.rank())) {
+            best = r;
+          }
+          if (bestAtEol == null || r.rank() < bestAtEol.rank()) {
+            bestAtEol = r;
+          }
+        }
+        accept[i] = best == null ? NO_MATCH : best.kind();
+        acceptAtEol[i] = bestAtEol == null ? NO_MATCH : bestAtEol.kind();
+      }
+      return new TokenAutomaton(
+          points.toArray(new char[0][]),
+          targets.toArray(new int[0][]),
+          accept,
+          acceptAtEol,
+          initial,
+          initialAtBol);
+    }
+
+    private int id(StateSet set) {
+      if (set.states().length == 0) {
+        return DEAD;
+      }
+      Integer id = ids.get(set);
+      if (id == null) {
+        id = worklist.size();
+        ids.put(set, id);
+        worklist.add(set);
+        points.add(null);
+        targets.add(null);
+      }
+      return id;
+    }
+
+    private void expand(StateSet set) {
+      int id = ids.get(set);
+      // split the alphabet into the intervals on which every member state behaves uniformly
+      TreeSet<Integer> bounds = new TreeSet<>();
+      bounds.add(0);
+      for (int s : set.states()) {
+        for (int j = 0; j < min[s].length; j++) {
+          bounds.add((int) min[s][j]);
+          if (max[s][j] < Character.MAX_VALUE) {
+            bounds.add(max[s][j] + 1);
+          }
+        }
+      }
+      int[] pts = bounds.stream().mapToInt(Integer::intValue).toArray();
+      int[][] buckets = new int[pts.length][];
+      int[] sizes = new int[pts.length];
+      for (int s : set.states()) {
+        for (int j = 0; j < min[s].length; j++) {
+          int lo = Arrays.binarySearch(pts, min[s][j]);
+          int hi =
+              max[s][j] < Character.MAX_VALUE
+                  ? Arrays.binarySearch(pts, max[s][j] + 1)
+                  : pts.length;
+          for (int k = lo; k < hi; k++) {
+            if (buckets[k] == null) {
+              buckets[k] = new int[4];
+            } else if (sizes[k] == buckets[k].length) {
+              buckets[k] = Arrays.copyOf(buckets[k], sizes[k] * 2);
+            }
+            buckets[k][sizes[k]++] = dest[s][j];
+          }
+        }
+      }
+      // compute the successor of each interval, merging adjacent intervals with equal successors
+      char[] p = new char[pts.length];
+      int[] t = new int[pts.length];
+      int n = 0;
+      for (int k = 0; k < pts.length; k++) {
+        int next = buckets[k] == null ? DEAD : id(StateSet.of(buckets[k], sizes[k]));
+        if (n == 0 || t[n - 1] != next) {
+          p[n] = (char) pts[k];
+          t[n] = next;
+          n++;
+        }
+      }
+      points.set(id, Arrays.copyOf(p, n));
+      targets.set(id, Arrays.copyOf(t, n));
+    }
+  }
+
+  /** A sorted, duplicate-free set of global state numbers. */
+  private record StateSet(int[] states) {
+    static StateSet of(int[] states, int size) {
+      int[] sorted = Arrays.copyOf(states, size);
+      Arrays.sort(sorted);
+      int n = 0;
+      for (int i = 0; i < sorted.length; i++) {
+        if (n == 0 || sorted[n - 1] != sorted[i]) {
+          sorted[n++] = sorted[i];
+        }
+      }
+      return new StateSet(n == sorted.length ? sorted : Arrays.copyOf(sorted, n));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof StateSet that && Arrays.equals(states, that.states);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(states);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.kernel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The tokens of a sentence, stored as three parallel arrays of kinds, start offsets and end offsets
+ * rather than as one object per token. Offsets refer to the UTF-8 encoding of the sentence, and the
+ * text of a token is only decoded from it when it is needed, see {@link #value}.
+ */
+public final class Tokens {
+  private int[] kinds;
+  private int[] starts;
+  private int[] ends;
+  private int size = 0;
+
+  public Tokens() {
+    this(16);
+  }
+
+  public Tokens(int capacity) {
+    capacity = Math.max(1, capacity);
+    kinds = new int[capacity];
+    starts = new int[capacity];
+    ends = new int[capacity];
+  }
+
+  public void add(int kind, long start, long end) {
+    assert start < Integer.MAX_VALUE;
+    assert end < Integer.MAX_VALUE;
+    if (size == kinds.length) {
+      int capacity = size * 2;
+      kinds = Arrays.copyOf(kinds, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      ends = Arrays.copyOf(ends, capacity);
+    }
+    kinds[size] = kind;
+    starts[size] = (int) start;
+    ends[size] = (int) end;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int kind(int i) {
+    return kinds[i];
+  }
+
+  public int start(int i) {
+    return starts[i];
+  }
+
+  public int end(int i) {
+    return ends[i];
+  }
+
+  /**
+   * @param utf8 The UTF-8 encoding of the sentence the tokens were read from.
+   * @return The text of the i-th token.
+   */
+  public String value(int i, byte[] utf8) {
+    return new String(utf8, starts[i], ends[i] - starts[i], StandardCharsets.UTF_8);
+  }
+}
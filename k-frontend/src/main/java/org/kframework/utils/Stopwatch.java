@@ -37,6 +37,11 @@ public class Stopwatch {
       f.format("%-60s = %s%n", message, milisecondsToTime(lastIntermediate - start));
   }
 
+  /** Print statistics along with the timings, that is only in verbose mode. */
+  public void printStatistics(String statistics) {
+    if (options.verbose) f.format("%s", statistics);
+  }
+
   private static String milisecondsToTime(long miliseconds) {
     long h = miliseconds / 3600000;
     long m = miliseconds % 3600000 / 60000;
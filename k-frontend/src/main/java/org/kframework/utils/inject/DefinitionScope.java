@@ -20,7 +20,11 @@ public class DefinitionScope implements Scope {
   private final LinkedHashMap<File, Map<Key<?>, Object>> values =
       new LinkedHashMap<File, Map<Key<?>, Object>>() {
         protected boolean removeEldestEntry(Map.Entry<File, Map<Key<?>, Object>> eldest) {
-          return size() > Runtime.getRuntime().availableProcessors() * 2;
+          if (size() > Runtime.getRuntime().availableProcessors() * 2) {
+            close(eldest.getValue());
+            return true;
+          }
+          return false;
         }
       };
 
@@ -59,6 +63,22 @@ public class DefinitionScope implements Scope {
     };
   }
 
+  // release the resources held by the objects of a definition that is no longer in scope, such as
+  // the parsers cached by its CompiledDefinition
+  private static void close(Map<Key<?>, Object> scopedObjects) {
+    synchronized (scopedObjects) {
+      for (Object o : scopedObjects.values()) {
+        if (o instanceof AutoCloseable closeable) {
+          try {
+            closeable.close();
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }
+    }
+  }
+
   private <T> Map<Key<?>, Object> getScopedObjectMap(Key<T> key) {
     File definitionId = currentDefinitionId.get();
     if (definitionId == null) {
@@ -19,11 +19,22 @@ public class InnerParsingOptions implements Serializable {
 
   @Parameter(
       names = "--profile-rule-parsing",
-      description = "Store in this file time taken in ms to parse each rule in the semantics.",
+      description =
+          "Store in this file the time taken to parse each rule in the semantics. A file ending in"
+              + " .json gets a report of the slowest rules and of the time spent in each phase of"
+              + " parsing per module, a file ending in .csv gets the time of each phase for each"
+              + " rule, and any other file gets the total time of each rule in ms.",
       descriptionKey = "file",
       hidden = true)
   public String profileRules;
 
+  @Parameter(
+      names = "--profile-rule-parsing-top",
+      description = "The number of slowest rules listed by a JSON --profile-rule-parsing report.",
+      descriptionKey = "number",
+      hidden = true)
+  public int profileRulesTop = 20;
+
   public enum TypeInferenceMode {
     Z3,
     SIMPLESUB,
@@ -41,4 +52,35 @@ public class InnerParsingOptions implements Serializable {
               + "[z3|simplesub|checked|default].",
       hidden = true)
   public TypeInferenceMode typeInferenceMode = TypeInferenceMode.DEFAULT;
+
+  @Parameter(
+      names = "--earley-lookahead",
+      description =
+          "Use the next token to prune Earley states that cannot make progress when parsing rules.",
+      hidden = true)
+  public boolean earleyLookahead = false;
+
+  @Parameter(
+      names = "--incremental-rule-parsing",
+      description =
+          "When a cached rule was edited without changing its structure, such as by changing the"
+              + " value of a literal, update its previous parse instead of parsing it again.",
+      hidden = true)
+  public boolean incrementalRuleParsing = false;
+
+  @Parameter(
+      names = "--memoize-disambiguation",
+      description =
+          "Reuse the result of a disambiguation pass for the subterms of rules parsed in the same"
+              + " module which have the same shape as a subterm it was already applied to.",
+      hidden = true)
+  public boolean memoizeDisambiguation = false;
+
+  @Parameter(
+      names = "--parse-threads",
+      description =
+          "The number of threads used to parse the rules and configurations of a definition."
+              + " Defaults to the number of available processors.",
+      descriptionKey = "number")
+  public int parseThreads = Runtime.getRuntime().availableProcessors();
 }
@@ -4,6 +4,7 @@ package org.kframework.attributes
 import java.util.regex.Pattern
 import java.util.Optional
 import org.kframework.definition._
+import org.kframework.kore.KInterner
 import org.kframework.kore.Sort
 import org.kframework.utils.errorsystem.KEMException
 import org.kframework.Collections
@@ -41,18 +42,53 @@ trait AttValue
  * During parsing, you may also use Att.unrecognizedKey(myAttStr) to delay error reporting on an
  * unrecognized attribute
  */
-class Att private (val att: Map[(Att.Key, String), Any])
-    extends AttributesToString
+class Att private (
+    private val keys: Array[Att.Key],
+    private val classNames: Array[String],
+    private val values: Array[Any]
+) extends AttributesToString
     with Serializable {
 
-  override lazy val hashCode: Int = att.hashCode()
+  /** The attributes as a map from their key and the class name of their value to their value. */
+  @transient lazy val att: Map[(Att.Key, String), Any] =
+    keys.indices.iterator.map(i => ((keys(i), classNames(i)), values(i))).toMap
+
+  // the position of each attribute, only built for sets too large to be scanned
+  @transient private lazy val index: Map[(Att.Key, String), Int] =
+    keys.indices.iterator.map(i => ((keys(i), classNames(i)), i)).toMap
+
+  private def indexOf(key: Att.Key, clsStr: String): Int = {
+    if (keys.length > Att.scanLimit) {
+      return index.getOrElse((key, clsStr), -1)
+    }
+    var i = 0
+    while (i < keys.length) {
+      if (((keys(i) eq key) || keys(i) == key) && classNames(i) == clsStr) {
+        return i
+      }
+      i += 1
+    }
+    -1
+  }
+
+  // independent of the order of the attributes, like equality
+  @transient override lazy val hashCode: Int =
+    keys.indices
+      .map(i => (keys(i).key.hashCode * 31 + classNames(i).hashCode) ^ values(i).hashCode)
+      .sum
   override def equals(that: Any): Boolean = that match {
-    case a: Att => a.att == att
-    case _      => false
+    case a: Att =>
+      (a eq this) || a.keys.length == keys.length && a.hashCode == hashCode && sameAs(a)
+    case _ => false
+  }
+
+  private def sameAs(that: Att): Boolean = keys.indices.forall { i =>
+    val j = that.indexOf(keys(i), classNames(i))
+    j >= 0 && that.values(j) == values(i)
   }
 
-  val unrecognizedKeys: Set[Att.Key] =
-    att.map(_._1._1).filter(_.keyType.equals(Att.KeyType.Unrecognized)).toSet
+  def unrecognizedKeys: Set[Att.Key] =
+    keys.iterator.filter(_.keyType.equals(Att.KeyType.Unrecognized)).toSet
 
   def getMacro: Option[Att.Key] = {
     if (contains(Att.MACRO)) {
@@ -70,20 +106,23 @@ class Att private (val att: Map[(Att.Key, String), Any])
     None
   }
 
-  def contains(key: Att.Key): Boolean                = att.contains((key, Att.stringClassName))
-  def contains(key: Att.Key, cls: Class[_]): Boolean = att.contains((key, cls.getName))
+  def contains(key: Att.Key): Boolean                = indexOf(key, Att.stringClassName) >= 0
+  def contains(key: Att.Key, cls: Class[_]): Boolean = indexOf(key, cls.getName) >= 0
 
   def get(key: Att.Key): String              = getOption(key).get
   def get[T](key: Att.Key, cls: Class[T]): T = getOption(key, cls).get
-  def getOption(key: Att.Key): Option[String] =
-    att.get((key, Att.stringClassName)).asInstanceOf[Option[String]]
-  def getOption[T](key: Att.Key, cls: Class[T]): Option[T] =
-    att.get((key, cls.getName)).asInstanceOf[Option[T]]
+  def getOption(key: Att.Key): Option[String] = lookup(key, Att.stringClassName)
+  def getOption[T](key: Att.Key, cls: Class[T]): Option[T] = lookup(key, cls.getName)
   def getOptional(key: Att.Key): Optional[String] = optionToOptional(getOption(key))
   def getOptional[T](key: Att.Key, cls: Class[T]): Optional[T] = optionToOptional(
     getOption(key, cls)
   )
 
+  private def lookup[T](key: Att.Key, clsStr: String): Option[T] = {
+    val i = indexOf(key, clsStr)
+    if (i >= 0) Some(values(i).asInstanceOf[T]) else None
+  }
+
   private def optionToOptional[T](option: Option[T]): Optional[T] =
     option match { case None => Optional.empty(); case Some(x) => Optional.of(x); }
 
@@ -94,16 +133,16 @@ class Att private (val att: Map[(Att.Key, String), Any])
 
   private def add[T <: AttValue](key: Att.Key, clsStr: String, value: T): Att = key.keyParam match {
     case Att.KeyParameter.Forbidden => throwForbidden(key)
-    case _                          => Att(att + ((key, clsStr) -> value))
+    case _                          => put(key, clsStr, value)
   }
   private def add(key: Att.Key, clsStr: String, value: String): Att = key.keyParam match {
     case Att.KeyParameter.Forbidden if value != "" => throwForbidden(key)
     case Att.KeyParameter.Required if value == ""  => throwRequired(key)
-    case _                                         => Att(att + ((key, clsStr) -> value))
+    case _                                         => put(key, clsStr, value)
   }
   private def add(key: Att.Key, clsStr: String, value: Int): Att = key.keyParam match {
     case Att.KeyParameter.Forbidden => throwForbidden(key)
-    case _                          => Att(att + ((key, clsStr) -> value))
+    case _                          => put(key, clsStr, value)
   }
 
   private def throwRequired(key: Att.Key) =
@@ -111,10 +150,64 @@ class Att private (val att: Map[(Att.Key, String), Any])
   private def throwForbidden(key: Att.Key) =
     throw KEMException.compilerError("Parameters for the attribute '" + key + "' are forbidden.")
 
-  def addAll(thatAtt: Att): Att                         = Att(att ++ thatAtt.att)
-  def remove(key: Att.Key): Att                         = remove(key, Att.stringClassName)
-  def remove(key: Att.Key, cls: Class[_]): Att          = remove(key, cls.getName)
-  private def remove(key: Att.Key, clsStr: String): Att = Att(att - ((key, clsStr)))
+  private def put(key: Att.Key, clsStr: String, value: Any): Att = {
+    val i = indexOf(key, clsStr)
+    if (i < 0) {
+      Att(keys :+ key, classNames :+ clsStr, values :+ value)
+    } else if (values(i) == value) {
+      this
+    } else {
+      Att(keys, classNames, values.updated(i, value))
+    }
+  }
+
+  def addAll(thatAtt: Att): Att = withAll(thatAtt)
+
+  /**
+   * Adds all the attributes of thatAtt, replacing those which have the same key and class. Unlike a
+   * sequence of calls to add, this copies these attributes only once.
+   */
+  def withAll(thatAtt: Att): Att = {
+    if (thatAtt.keys.isEmpty) {
+      return this
+    }
+    if (keys.isEmpty) {
+      return thatAtt
+    }
+    val newKeys       = Array.copyOf(keys, keys.length + thatAtt.keys.length)
+    val newClassNames = Array.copyOf(classNames, newKeys.length)
+    val newValues     = Array.copyOf(values, newKeys.length)
+    var size          = keys.length
+    for (j <- thatAtt.keys.indices) {
+      val i = indexOf(thatAtt.keys(j), thatAtt.classNames(j))
+      if (i >= 0) {
+        newValues(i) = thatAtt.values(j)
+      } else {
+        newKeys(size) = thatAtt.keys(j)
+        newClassNames(size) = thatAtt.classNames(j)
+        newValues(size) = thatAtt.values(j)
+        size += 1
+      }
+    }
+    Att(
+      Array.copyOf(newKeys, size),
+      Array.copyOf(newClassNames, size),
+      Array.copyOf(newValues, size)
+    )
+  }
+
+  def remove(key: Att.Key): Att                = remove(key, Att.stringClassName)
+  def remove(key: Att.Key, cls: Class[_]): Att = remove(key, cls.getName)
+  private def remove(key: Att.Key, clsStr: String): Att = {
+    val i = indexOf(key, clsStr)
+    if (i < 0) {
+      this
+    } else {
+      Att(keys.patch(i, Nil, 1), classNames.patch(i, Nil, 1), values.patch(i, Nil, 1))
+    }
+  }
+
+  private def readResolve(): AnyRef = Att(keys, classNames, values)
 }
 
 object Att {
@@ -188,7 +281,22 @@ object Att {
       KeyRange.FrontendOnly
     )
 
-  val empty: Att = Att(Map.empty)
+  val empty: Att = new Att(Array.empty, Array.empty, Array.empty)
+
+  // attributes are looked up by scanning them up to this size, and by hashing them beyond it
+  private final val scanLimit = 8
+  // sets of up to this many attributes, such as a sort or a location and a source, are frequent
+  // enough to be interned when terms are, see KInterner
+  private final val internLimit = 2
+
+  private def apply(keys: Array[Key], classNames: Array[String], values: Array[Any]): Att =
+    if (keys.isEmpty) {
+      empty
+    } else if (keys.length <= internLimit) {
+      KInterner.intern(new Att(keys, classNames, values))
+    } else {
+      new Att(keys, classNames, values)
+    }
 
   // Some helpers with scala reflection to make declaring class object sets more compact
   // If these break for some reason, replace their usage with Set(classOf[T1], classOf[T2], ...)
@@ -540,8 +648,10 @@ object Att {
   def from(thatAtt: java.util.Map[Key, String]): Att =
     Att(Collections.immutable(thatAtt).map { case (k, v) => ((k, Att.stringClassName), v) }.toMap)
 
-  private def apply(thatAtt: Map[(Key, String), Any]) =
-    new Att(thatAtt)
+  private def apply(thatAtt: Map[(Key, String), Any]): Att = {
+    val entries = thatAtt.toArray
+    Att(entries.map(_._1._1), entries.map(_._1._2), entries.map(_._2))
+  }
 
   def mergeAttributes(p: Set[Att]): Att = {
     val union  = p.flatMap(_.att)
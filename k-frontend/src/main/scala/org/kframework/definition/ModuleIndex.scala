@@ -0,0 +1,101 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+
+package org.kframework.definition
+
+import java.util.Collections
+import java.util.IdentityHashMap
+import org.kframework.attributes.Att
+import org.kframework.kore.KLabel
+import org.kframework.kore.Sort
+import org.kframework.kore.SortHead
+import org.kframework.POSet
+import scala.collection.immutable
+
+/**
+ * The maps from the labels and sorts of a module to their productions and attributes, and the
+ * subsort and overload orders of the module, built together.
+ *
+ * These only depend on the productions and sort declarations of the module. The modules produced
+ * by a ModuleTransformer reuse the index of the module they were transformed from if they have the
+ * same instances of both, which is the case unless the transformation changed the syntax. The index
+ * is serialized with its module, so that kast and kprove do not build it again after loading a
+ * definition. As before the index existed, the attribute and signature maps are not serialized, and
+ * are recomputed on first use.
+ */
+final class ModuleIndex private (
+    private val productions: immutable.Set[Production],
+    private val sortDeclarations: immutable.Set[SyntaxSort],
+    val productionsFor: Map[KLabel, immutable.Set[Production]],
+    val productionsForSort: Map[SortHead, immutable.Set[Production]],
+    val sortDeclarationsFor: Map[SortHead, immutable.Set[SyntaxSort]],
+    val subsorts: POSet[Sort],
+    val overloads: POSet[Production]
+) extends Serializable {
+
+  @transient lazy val signatureFor: Map[KLabel, Set[(immutable.Seq[Sort], Sort)]] =
+    productionsFor.view.mapValues { ps: immutable.Set[Production] =>
+      ps.filter { p: Production => p.params.isEmpty }
+        .map { p: Production =>
+          val params: immutable.Seq[Sort] = p.items.collect { case NonTerminal(sort, _) => sort }
+          (params, p.sort)
+        }
+    }.toMap
+
+  @transient lazy val attributesFor: Map[KLabel, Att] =
+    productionsFor.view.mapValues(ModuleIndex.mergeAttributes).toMap
+
+  @transient lazy val sortAttributesFor: Map[SortHead, Att] =
+    sortDeclarationsFor.view.mapValues(ModuleIndex.mergeAttributes).toMap
+}
+
+object ModuleIndex {
+
+  /**
+   * @param previous
+   *   The index of the module m was transformed from, or null.
+   * @return
+   *   The index of m, which is previous if it is still valid.
+   */
+  private[definition] def of(m: Module, previous: ModuleIndex): ModuleIndex = {
+    val productions      = m.productions
+    val sortDeclarations = m.sortDeclarations
+    val unchanged = previous != null &&
+      sameInstances(previous.productions, productions) &&
+      sameInstances(previous.sortDeclarations, sortDeclarations)
+    if (unchanged) {
+      return previous
+    }
+    val productionsFor = productions
+      .collect { case p if p.klabel.isDefined => p }
+      .groupBy(_.klabel.get.head)
+      .map { case (l, ps) => (l, ps) }
+    val productionsForSort = productions
+      .groupBy(_.sort.head)
+      .map { case (l, ps) => (l, ps) }
+    val sortDeclarationsFor =
+      (sortDeclarations ++ m.allSorts.map(s => SyntaxSort(immutable.Seq(), s, Att.empty)))
+        .groupBy(_.sort.head)
+    val subsorts = m.computeSubsortPOSet(m.sentences, false)
+
+    new ModuleIndex(
+      productions,
+      sortDeclarations,
+      productionsFor,
+      productionsForSort,
+      sortDeclarationsFor,
+      subsorts,
+      m.computeOverloadPOSet(subsorts, productions)
+    )
+  }
+
+  private def mergeAttributes[T <: Sentence](p: immutable.Set[T]): Att =
+    Att.mergeAttributes(p.map(_.att))
+
+  // sentences are compared by identity, since their equality ignores most of their attributes
+  private def sameInstances(previous: Set[_ <: AnyRef], current: Set[_ <: AnyRef]): Boolean =
+    (previous eq current) || previous.size == current.size && {
+      val instances = Collections.newSetFromMap[AnyRef](new IdentityHashMap())
+      previous.foreach(instances.add)
+      current.forall(instances.contains)
+    }
+}
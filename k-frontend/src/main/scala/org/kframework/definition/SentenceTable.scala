@@ -0,0 +1,213 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+
+package org.kframework.definition
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.IdentityHashMap
+import scala.collection.immutable
+import scala.collection.mutable
+import scala.reflect.ClassTag
+
+/**
+ * Numbers the sentences of the modules of a definition densely, so that the sentences of a module,
+ * including the imported ones, are a bit set of these numbers rather than a hash set of their own.
+ *
+ * Sentences are numbered by identity, since equal sentences may still differ in their attributes,
+ * e.g., productions. Like a set union, the sentences of a module keep a single instance of equal
+ * sentences: the one the module declares if any, otherwise the first one numbered among those it
+ * imports.
+ *
+ * Modules are numbered when their sentences are first needed, after the modules they import, so
+ * the sentences of the deepest modules have the smallest numbers.
+ */
+final class SentenceTable private () {
+  private val ids = new IdentityHashMap[Sentence, Integer]()
+  // the numbers of the instances of each class of equal sentences, replaced rather than updated,
+  // since it is read without locking the table
+  private val instances = new ConcurrentHashMap[Sentence, Array[Int]]()
+  // the classes of equal sentences which have more than one instance
+  private val duplicated = mutable.ArrayBuffer[Sentence]()
+  // only ever appended to, and copied when it grows, so that the sets built earlier can keep theirs
+  private var sentences = new Array[Sentence](64)
+  private var size      = 0
+  // compared by identity, since modules are compared by their whole contents
+  private val modules = new IdentityHashMap[Module, immutable.BitSet]()
+
+  /**
+   * The sentences of a module and of the modules it imports. Note that this must not force any lazy
+   * val of a module, since their initialization locks the module, which may be waiting for this
+   * table.
+   */
+  def sentencesOf(m: Module): IndexedSentences[Sentence] = synchronized {
+    val bits = bitsOf(m)
+    new IndexedSentences(this, sentences, bits)
+  }
+
+  private def bitsOf(m: Module): immutable.BitSet = {
+    val cached = modules.get(m)
+    if (cached != null) {
+      return cached
+    }
+    val bits = mutable.BitSet.empty
+    m.imports.foreach(i => bits |= bitsOf(i.module))
+    if (m.imports.size > 1) {
+      keepOneInstance(bits)
+    }
+    m.localSentences.foreach { s =>
+      val id = idOf(s)
+      // the sentence declared by the module replaces the equal ones it imports
+      bits --= instances.get(s)
+      bits += id
+    }
+    val result = bits.toImmutable
+    modules.put(m, result)
+    result
+  }
+
+  private def idOf(s: Sentence): Int = {
+    val id = ids.get(s)
+    if (id != null) {
+      return id
+    }
+    if (size == sentences.length) {
+      sentences = Array.copyOf(sentences, size * 2)
+    }
+    sentences(size) = s
+    ids.put(s, size)
+    val equal = instances.get(s)
+    if (equal == null) {
+      instances.put(s, Array(size))
+    } else {
+      if (equal.length == 1) {
+        duplicated += s
+      }
+      instances.put(s, equal :+ size)
+    }
+    size += 1
+    size - 1
+  }
+
+  // removes all the instances of each class of equal sentences but the first one
+  private def keepOneInstance(bits: mutable.BitSet): Unit =
+    duplicated.foreach { s =>
+      instances.get(s).filter(bits).drop(1).foreach(bits -= _)
+    }
+
+  private[definition] def instancesOf(s: Sentence): Array[Int] = {
+    val equal = instances.get(s)
+    if (equal == null) Array.emptyIntArray else equal
+  }
+
+  private[definition] def union(a: immutable.BitSet, b: immutable.BitSet): immutable.BitSet =
+    synchronized {
+      val bits = mutable.BitSet.empty
+      bits |= a
+      bits |= b
+      keepOneInstance(bits)
+      bits.toImmutable
+    }
+
+  private[definition] def diff(a: immutable.BitSet, b: immutable.BitSet): immutable.BitSet =
+    synchronized {
+      val bits = mutable.BitSet.empty
+      bits |= a
+      bits &~= b
+      // an instance is also removed by another instance equal to it
+      duplicated.foreach { s =>
+        val equal = instances.get(s)
+        if (equal.exists(b)) {
+          bits --= equal
+        }
+      }
+      bits.toImmutable
+    }
+}
+
+object SentenceTable {
+
+  /**
+   * Makes the modules of a definition use a new table, unless they are already part of an earlier
+   * definition, whose table they keep.
+   */
+  private[definition] def register(d: Definition): Unit = {
+    val table = new SentenceTable()
+    def visit(m: Module): Unit =
+      if (m.sentenceTable == null) {
+        m.sentenceTable = table
+        m.imports.foreach(i => visit(i.module))
+      }
+    visit(d.mainModule)
+    d.entryModules.foreach(visit)
+  }
+}
+
+/**
+ * The sentences of a SentenceTable whose numbers are in a bit set. Unions, differences and
+ * filters of sets of the same table are sets of that table too. The set is serialized as a plain
+ * set, rather than with its table.
+ */
+final class IndexedSentences[S <: Sentence] private[definition] (
+    private val table: SentenceTable,
+    private val sentences: Array[Sentence],
+    private val bits: immutable.BitSet
+) extends immutable.AbstractSet[S]
+    with Serializable {
+
+  override val size: Int        = bits.size
+  override def knownSize: Int   = size
+  override def isEmpty: Boolean = size == 0
+
+  override def contains(elem: S): Boolean =
+    // sentences numbered after this set was built are not in its bit set
+    table.instancesOf(elem).exists(bits)
+
+  override def iterator: Iterator[S] = bits.iterator.map(sentences(_).asInstanceOf[S])
+
+  override def incl(elem: S): immutable.Set[S] =
+    if (contains(elem)) this else immutable.HashSet.from(this).incl(elem)
+
+  override def excl(elem: S): immutable.Set[S] =
+    if (contains(elem)) withBits(bits -- table.instancesOf(elem)) else this
+
+  override def concat(that: IterableOnce[S]): immutable.Set[S] = that match {
+    case other: IndexedSentences[_] if other.table eq table =>
+      // the longer array has all the sentences of the shorter one
+      new IndexedSentences[S](
+        table,
+        if (other.sentences.length > sentences.length) other.sentences else sentences,
+        table.union(bits, other.bits)
+      )
+    case _ => super.concat(that)
+  }
+
+  override def diff(that: collection.Set[S]): immutable.Set[S] = that match {
+    case other: IndexedSentences[_] if other.table eq table =>
+      withBits(table.diff(bits, other.bits))
+    case _ => super.diff(that)
+  }
+
+  override def filter(pred: S => Boolean): immutable.Set[S] =
+    withBits(bits.filter(i => pred(sentences(i).asInstanceOf[S])))
+
+  override def filterNot(pred: S => Boolean): immutable.Set[S] =
+    withBits(bits.filterNot(i => pred(sentences(i).asInstanceOf[S])))
+
+  /** The sentences of this set which are instances of T. */
+  def ofType[T <: Sentence](implicit tag: ClassTag[T]): IndexedSentences[T] =
+    new IndexedSentences[T](
+      table,
+      sentences,
+      bits.filter(i => tag.runtimeClass.isInstance(sentences(i)))
+    )
+
+  private def withBits(newBits: immutable.BitSet): IndexedSentences[S] =
+    new IndexedSentences[S](table, sentences, newBits)
+
+  override def equals(that: Any): Boolean = that match {
+    // only a shortcut, since other instances of the same sentences may be in either set
+    case other: IndexedSentences[_] if (other.table eq table) && other.bits == bits => true
+    case _ => super.equals(that)
+  }
+
+  private def writeReplace(): AnyRef = immutable.HashSet.from(this)
+}
@@ -21,6 +21,7 @@ import scala.collection.{ Seq => _ }
 import scala.collection.immutable
 import scala.collection.parallel.CollectionConverters._
 import scala.jdk.CollectionConverters._
+import scala.reflect.ClassTag
 
 trait OuterKORE
 
@@ -37,6 +38,8 @@ case class Definition(mainModule: Module, entryModules: immutable.Set[Module], a
     case m: Module => m.name == name; case _ => false
   }
 
+  SentenceTable.register(this)
+
   override def hashCode: Int = mainModule.hashCode
 
   override def equals(that: Any): Boolean = that match {
@@ -47,6 +50,15 @@ case class Definition(mainModule: Module, entryModules: immutable.Set[Module], a
   def parMap(f: Module => Module): java.util.Map[String, Module] =
     (entryModules | entryModules
       .flatMap(_.importedModules)).par.map(f).seq.map(m => m.name -> m).toMap.asJava
+
+  /** Builds the index of every module in parallel, e.g., so that it is saved with them. */
+  def indexModules(): Unit = modules.par.foreach(_.index)
+
+  private def readResolve(): AnyRef = {
+    // the table of the modules is not serialized
+    SentenceTable.register(this)
+    this
+  }
 }
 
 trait Sorting {
@@ -169,9 +181,20 @@ case class Module(
 
   lazy val fullImports: immutable.Set[Module] = imports.map(_.module)
 
+  // set by the first definition this module is part of, see SentenceTable
+  @transient @volatile private[definition] var sentenceTable: SentenceTable = _
+
   private lazy val importedSentences = fullImports.flatMap(_.sentences)
 
-  lazy val sentences: immutable.Set[Sentence] = localSentences | importedSentences
+  lazy val sentences: immutable.Set[Sentence] =
+    if (sentenceTable != null) sentenceTable.sentencesOf(this)
+    else localSentences | importedSentences
+
+  // the sentences of a given type, which share the bit set of the table of this module if any
+  private def sentencesOfType[S <: Sentence: ClassTag]: immutable.Set[S] = sentences match {
+    case s: IndexedSentences[_] => s.ofType[S]
+    case s                      => s.collect { case t: S => t }
+  }
 
   lazy val sortedLocalSentences: immutable.Seq[Sentence] = localSentences.toSeq.sorted
 
@@ -185,7 +208,7 @@ case class Module(
 
   lazy val importedModuleNames: immutable.Set[String] = importedModules.map(_.name)
 
-  lazy val productions: immutable.Set[Production] = sentences.collect { case p: Production => p }
+  lazy val productions: immutable.Set[Production] = sentencesOfType[Production]
 
   lazy val publicSentences: immutable.Set[Sentence] =
     if (att.contains(Att.PRIVATE)) {
@@ -202,6 +225,37 @@ case class Module(
     Module(name, imports.map(i => Import(f(i.module), i.isPublic)), localSentences, att)
   }
 
+  // the index of the module this module was transformed from, see ModuleTransformer
+  @transient @volatile private var previousIndex: ModuleIndex = _
+  @volatile private var builtIndex: ModuleIndex                = _
+
+  /**
+   * The productions and attributes of the labels and sorts of this module, and its subsort and
+   * overload orders, see [[ModuleIndex]].
+   */
+  def index: ModuleIndex = {
+    if (builtIndex == null) {
+      synchronized {
+        if (builtIndex == null) {
+          builtIndex = ModuleIndex.of(this, previousIndex)
+          previousIndex = null
+        }
+      }
+    }
+    builtIndex
+  }
+
+  /** Lets this module reuse the index of the module it was transformed from, if it is built. */
+  private[definition] def reuseIndexOf(previous: Module): Unit =
+    if (builtIndex == null) {
+      previousIndex = previous.builtIndex
+    }
+
+  /**
+   * A hash of the syntax of this module, see [[GrammarFingerprint]].
+   */
+  lazy val fingerprint: GrammarFingerprint = GrammarFingerprint.of(this)
+
   lazy val functions: immutable.Set[KLabel] =
     productions.filter(_.att.contains(Att.FUNCTION)).map(_.klabel.get.head)
 
@@ -218,11 +272,7 @@ case class Module(
     case p: Production => p
   }
 
-  lazy val productionsFor: Map[KLabel, immutable.Set[Production]] =
-    productions
-      .collect { case p if p.klabel.isDefined => p }
-      .groupBy(_.klabel.get.head)
-      .map { case (l, ps) => (l, ps) }
+  def productionsFor: Map[KLabel, immutable.Set[Production]] = index.productionsFor
 
   lazy val localProductionsFor: Map[KLabel, Set[Production]] =
     localProductions
@@ -230,10 +280,7 @@ case class Module(
       .groupBy(_.klabel.get)
       .map { case (l, ps) => (l, ps) }
 
-  lazy val productionsForSort: Map[SortHead, immutable.Set[Production]] =
-    productions
-      .groupBy(_.sort.head)
-      .map { case (l, ps) => (l, ps) }
+  def productionsForSort: Map[SortHead, immutable.Set[Production]] = index.productionsForSort
 
   lazy val productionsForLoc: Map[(Source, Location), Set[Production]] =
     productions
@@ -308,8 +355,8 @@ case class Module(
 
   @transient lazy val sortFor: Map[KLabel, Sort] = productionsFor.view.mapValues(_.head.sort).toMap
 
-  lazy val claims: immutable.Set[Claim]     = sentences.collect { case c: Claim => c }
-  lazy val rules: immutable.Set[Rule]       = sentences.collect { case r: Rule => r }
+  lazy val claims: immutable.Set[Claim]     = sentencesOfType[Claim]
+  lazy val rules: immutable.Set[Rule]       = sentencesOfType[Rule]
   lazy val rulesFor: Map[KLabel, Set[Rule]] = rules.groupBy(r => matchKLabel(r))
   lazy val macroKLabels: immutable.Set[KLabel] =
     macroKLabelsFromRules ++ macroKLabelsFromProductions
@@ -341,7 +388,7 @@ case class Module(
     case _ => false
   }
 
-  lazy val contexts: immutable.Set[Context] = sentences.collect { case r: Context => r }
+  lazy val contexts: immutable.Set[Context] = sentencesOfType[Context]
 
   lazy val sortedRules: immutable.Seq[Rule] = rules.to(immutable.Seq).sorted
 
@@ -355,43 +402,23 @@ case class Module(
   //        throw DivergingAttributesForTheSameKLabel(ps)
   //  }
 
-  @transient lazy val attributesFor: Map[KLabel, Att] = productionsFor.view.mapValues {
-    mergeAttributes
-  }.toMap
+  def attributesFor: Map[KLabel, Att] = index.attributesFor
 
-  @transient lazy val signatureFor: Map[KLabel, Set[(immutable.Seq[Sort], Sort)]] =
-    productionsFor.view.mapValues { ps: immutable.Set[Production] =>
-      ps.filter { p: Production => p.params.isEmpty }
-        .map { p: Production =>
-          val params: immutable.Seq[Sort] = p.items.collect { case NonTerminal(sort, _) => sort }
-          (params, p.sort)
-        }
-    }.toMap
+  def signatureFor: Map[KLabel, Set[(immutable.Seq[Sort], Sort)]] = index.signatureFor
 
-  lazy val sortDeclarations: immutable.Set[SyntaxSort] = sentences.collect { case s: SyntaxSort =>
-    s
-  }
-  lazy val sortSynonyms: immutable.Set[SortSynonym] = sentences.collect { case s: SortSynonym => s }
-  lazy val lexicalIdentifiers: immutable.Set[SyntaxLexical] = sentences.collect {
-    case s: SyntaxLexical => s
-  }
+  lazy val sortDeclarations: immutable.Set[SyntaxSort]      = sentencesOfType[SyntaxSort]
+  lazy val sortSynonyms: immutable.Set[SortSynonym]         = sentencesOfType[SortSynonym]
+  lazy val lexicalIdentifiers: immutable.Set[SyntaxLexical] = sentencesOfType[SyntaxLexical]
 
   lazy val sortSynonymMap: Map[Sort, Sort] = sortSynonyms.map(s => (s.newSort, s.oldSort)).toMap
 
-  lazy val sortDeclarationsFor: Map[SortHead, immutable.Set[SyntaxSort]] =
-    (sortDeclarations ++ allSorts.map(s => SyntaxSort(immutable.Seq(), s, Att.empty)))
-      .groupBy(_.sort.head)
+  def sortDeclarationsFor: Map[SortHead, immutable.Set[SyntaxSort]] = index.sortDeclarationsFor
 
-  @transient lazy val sortAttributesFor: Map[SortHead, Att] = sortDeclarationsFor.view.mapValues {
-    mergeAttributes
-  }.toMap
+  def sortAttributesFor: Map[SortHead, Att] = index.sortAttributesFor
 
   lazy val hookAttributes: Map[String, String] =
     sortAttributesFor.flatMap(s => s._2.getOption(Att.HOOK).map(att => s._1.name -> att))
 
-  private def mergeAttributes[T <: Sentence](p: immutable.Set[T]) =
-    Att.mergeAttributes(p.map(_.att))
-
   lazy val definedSorts: immutable.Set[SortHead] = productions
     .filter(p => !p.isSortVariable(p.sort))
     .map(_.sort.head) ++ (sortDeclarations.filter(s => s.params.isEmpty).map {
@@ -422,9 +449,9 @@ case class Module(
       srt
   }
 
-  lazy val subsorts: POSet[Sort]          = computeSubsortPOSet(sentences, false)
+  def subsorts: POSet[Sort]               = index.subsorts
   lazy val syntacticSubsorts: POSet[Sort] = computeSubsortPOSet(sentences, true)
-  lazy val overloads: POSet[Production]   = computeOverloadPOSet(subsorts, productions)
+  def overloads: POSet[Production]        = index.overloads
 
   private lazy val expressedPriorities: immutable.Set[(Tag, Tag)] =
     sentences
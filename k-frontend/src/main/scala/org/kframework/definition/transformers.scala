@@ -103,10 +103,14 @@ class ModuleTransformer(f: Module => Module, name: String) extends (Module => Mo
     memoization.getOrElseUpdate(
       input, {
         var newImports = input.imports.map(i => Import(this(i.module), i.isPublic))
-        if (newImports != input.imports)
-          f(Module(input.name, newImports, input.localSentences, input.att))
-        else
-          f(input)
+        val result =
+          if (newImports != input.imports)
+            f(Module(input.name, newImports, input.localSentences, input.att))
+          else
+            f(input)
+        if (result ne input)
+          result.reuseIndexOf(input)
+        result
       }
     )
 }
@@ -17,6 +17,9 @@ import scala.jdk.CollectionConverters._
 object ADT {
 
   case class KLabel(name: String, params: kore.Sort*) extends kore.KLabel {
+    // share the labels of a deserialized definition if --intern-terms is enabled
+    private def readResolve(): AnyRef = KInterner.intern(this)
+
     override def toString =
       if (params.isEmpty) {
         name
@@ -27,17 +30,20 @@ object ADT {
 
   case class KApply[KK <: K](klabel: kore.KLabel, klist: kore.KList, att: Att = Att.empty)
       extends kore.KApply {
+    private def readResolve(): AnyRef = KInterner.intern(this)
+
     def items      = klist.items
     def size       = klist.size
     def asIterable = klist.asIterable
   }
 
-  class KSequence private (val elements: List[K], val att: Att = Att.empty) extends kore.KSequence {
+  class KSequence private[kore] (val elements: Vector[K], val att: Att = Att.empty)
+      extends kore.KSequence {
     val items: java.util.List[K]          = elements.asJava
     val size: Int                         = elements.size
-    val asIterable: java.lang.Iterable[K] = new org.kframework.List(elements)
+    val asIterable: java.lang.Iterable[K] = items
     lazy val kApply: kore.KApply =
-      items.asScala.reduceRightOption((a, b) => KLabels.KSEQ.apply(a, b)).getOrElse {
+      elements.reduceRightOption((a, b) => KLabels.KSEQ.apply(a, b)).getOrElse {
         KLabels.DOTK.apply()
       } match {
         case k: kore.KApply => k
@@ -55,22 +61,22 @@ object ADT {
   object KSequence {
     private val emptyAtt = Att.empty
 
-    def raw(elements: scala.collection.immutable.List[K]): KSequence =
-      new KSequence(elements, emptyAtt)
+    def raw(elements: scala.collection.immutable.Seq[K]): KSequence =
+      new KSequence(elements.toVector, emptyAtt)
 
-    def apply(elements: List[K], att: Att = Att.empty): KSequence =
-      new KSequence(
-        elements.foldLeft(List[K]()) {
-          case (sum, s: KSequence) => sum ++ s.items.asScala
-          case (sum, t)            => sum :+ t
-        },
-        att
-      )
+    def apply(elements: IterableOnce[K], att: Att = Att.empty): KSequence =
+      newBuilder().addAll(elements).result(att)
+
+    def newBuilder(): KSequenceBuilder = new KSequenceBuilder
   }
 
-  case class KVariable(name: String, att: Att = Att.empty) extends kore.KVariable {}
+  case class KVariable(name: String, att: Att = Att.empty) extends kore.KVariable {
+    private def readResolve(): AnyRef = KInterner.intern(this)
+  }
 
   case class Sort(name: String, params: kore.Sort*) extends kore.Sort {
+    private def readResolve(): AnyRef = KInterner.intern(this)
+
     override def toString =
       if (params.isEmpty) {
         name
@@ -87,7 +93,9 @@ object ADT {
         name + "{" + (0 until params).map("S" + _.toString).reduce((s1, s2) => s1 + "," + s2) + "}"
       }
   }
-  case class KToken(s: String, sort: kore.Sort, att: Att = Att.empty) extends kore.KToken
+  case class KToken(s: String, sort: kore.Sort, att: Att = Att.empty) extends kore.KToken {
+    private def readResolve(): AnyRef = KInterner.intern(this)
+  }
 
   case class KList(elements: List[K]) extends kore.KList {
     lazy val items: java.util.List[K] = elements.asJava
@@ -104,6 +112,33 @@ object ADT {
 
 }
 
+/**
+ * Builds a KSequence in time linear in the number of its items, by appending them to an indexed
+ * vector. Items which are themselves sequences are flattened, as in ADT.KSequence.apply.
+ */
+final class KSequenceBuilder {
+  private val elements = Vector.newBuilder[K]
+
+  def add(k: K): KSequenceBuilder = {
+    k match {
+      case s: ADT.KSequence => elements ++= s.elements
+      case _                => elements += k
+    }
+    this
+  }
+
+  def addAll(ks: IterableOnce[K]): KSequenceBuilder = {
+    ks.iterator.foreach(add)
+    this
+  }
+
+  def addAll(ks: java.lang.Iterable[K]): KSequenceBuilder = addAll(ks.asScala)
+
+  def result(att: Att): ADT.KSequence = new ADT.KSequence(elements.result(), att)
+
+  def result(): ADT.KSequence = result(Att.empty)
+}
+
 object SortedADT {
 
   case class SortedKVariable(name: String, att: Att = Att.empty) extends kore.KVariable {
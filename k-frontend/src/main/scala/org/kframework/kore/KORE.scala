@@ -43,29 +43,32 @@ object KORE extends Constructors {
   //    Collector(() => new CombinerFromBuilder(KSequence.newBuilder()))
 
   override def KLabel(name: String, params: immutable.Seq[Sort]): KLabel =
-    ADT.KLabel(name, params: _*)
+    KInterner.intern(ADT.KLabel(name, params: _*))
 
   override def KApply(klabel: KLabel, klist: KList, att: Att): KApply =
-    ADT.KApply(klabel, klist, att)
+    KInterner.intern(ADT.KApply(klabel, klist, att))
 
   override def KSequence(items: java.util.List[K], att: Att): KSequence =
-    ADT.KSequence(items.asScala.toList, att)
+    ADT.KSequence(items.asScala, att)
 
-  override def KVariable(name: String, att: Att): KVariable = ADT.KVariable(name, att)
+  override def KVariable(name: String, att: Att): KVariable =
+    KInterner.intern(ADT.KVariable(name, att))
 
-  override def Sort(name: String, params: immutable.Seq[Sort]): Sort = ADT.Sort(name, params: _*)
+  override def Sort(name: String, params: immutable.Seq[Sort]): Sort =
+    KInterner.intern(ADT.Sort(name, params: _*))
 
   def Sort(name: SortHead): Sort = {
     assert(name.params == 0)
-    ADT.Sort(name.name)
+    KInterner.intern(ADT.Sort(name.name))
   }
 
   def Sort(name: String, params: java.util.List[Sort]): Sort =
-    ADT.Sort(name, params.asScala.toSeq: _*)
+    KInterner.intern(ADT.Sort(name, params.asScala.toSeq: _*))
 
   def SortHead(name: String, params: Int): SortHead = ADT.SortHead(name, params)
 
-  override def KToken(s: String, sort: Sort, att: Att): KToken = ADT.KToken(s, sort, att)
+  override def KToken(s: String, sort: Sort, att: Att): KToken =
+    KInterner.intern(ADT.KToken(s, sort, att))
 
   override def KRewrite(left: K, right: K, att: Att): KRewrite = ADT.KRewrite(left, right, att)
 
@@ -78,7 +78,7 @@ trait KLabel extends AttValue {
   def name: String
   def params: immutable.Seq[Sort]
   override def equals(other: Any) = other match {
-    case l: KLabel => name == l.name && params == l.params
+    case l: KLabel => (l eq this) || name == l.name && params == l.params
     case _         => false
   }
   override def hashCode = name.hashCode * 29 + params.hashCode
@@ -101,7 +101,7 @@ trait KToken extends KItem {
   def sort: Sort
   def s: String
   override def equals(other: Any) = other match {
-    case other: KToken => sort == other.sort && s == other.s
+    case other: KToken => (other eq this) || sort == other.sort && s == other.s
     case _             => false
   }
   def computeHashCode = sort.hashCode() * 13 + s.hashCode
@@ -111,7 +111,7 @@ trait Sort extends Ordered[Sort] with AttValue {
   def name: String
   def params: immutable.Seq[Sort]
   override def equals(other: Any) = other match {
-    case other: Sort => name == other.name && params == other.params
+    case other: Sort => (other eq this) || name == other.name && params == other.params
     case _           => false
   }
   override def hashCode = name.hashCode * 23 + params.hashCode
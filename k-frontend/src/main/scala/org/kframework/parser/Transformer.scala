@@ -10,6 +10,24 @@ class Ignore
 
 object Ignore extends Ignore
 
+/**
+ * A table of results of a transformer which outlives a single run of the transformer, e.g., to
+ * share results between the terms parsed with the same module. Unlike the cache of a transformer,
+ * it may hold terms which are not part of the term currently being transformed.
+ * @tparam R
+ *   the result of the transformer for a single term.
+ */
+trait TermMemo[R] {
+
+  /**
+   * @return
+   *   the result previously recorded for a term, or null if there is none.
+   */
+  def get(t: Term): R
+
+  def put(t: Term, result: R): Unit
+}
+
 abstract class ChildrenMapping[E, W] {
 
   def applyTerm(t: Term): (Either[E, Term], W)
@@ -160,16 +178,35 @@ abstract class TransformerWithErrors[E] extends ChildrenMapping[E, Ignore] {
   // use a cache to remember nodes that we already visited.
   val cache = new util.IdentityHashMap[Term, Either[E, Term]]
 
+  private var memo: TermMemo[Either[E, Term]] = _
+
+  /**
+   * Consult, and record results in, a memo table shared with other runs of the same transformer.
+   * Only transformers whose result for a term does not depend on the context of that term may use a
+   * memo table.
+   */
+  def setMemo(memo: TermMemo[Either[E, Term]]): Unit = this.memo = memo
+
   def apply(t: Term): Either[E, Term] = {
     if (cache.containsKey(t)) {
       return cache.get(t)
     }
+    if (memo != null) {
+      val memoized = memo.get(t)
+      if (memoized != null) {
+        cache.put(t, memoized)
+        return memoized
+      }
+    }
     val res =
       t match {
         case a: Ambiguity           => apply(a)
         case p: ProductionReference => apply(p)
       }
     cache.put(t, res)
+    if (memo != null) {
+      memo.put(t, res)
+    }
     res
   }
 
@@ -211,16 +248,35 @@ abstract class SafeTransformer extends ChildrenMapping[Ignore, Ignore] {
   // use a cache to remember nodes that we already visited.
   val cache = new util.IdentityHashMap[Term, Term]
 
+  private var memo: TermMemo[Term] = _
+
+  /**
+   * Consult, and record results in, a memo table shared with other runs of the same transformer.
+   * Only transformers whose result for a term does not depend on the context of that term may use a
+   * memo table.
+   */
+  def setMemo(memo: TermMemo[Term]): Unit = this.memo = memo
+
   def apply(t: Term): Term = {
     if (cache.containsKey(t)) {
       return cache.get(t)
     }
+    if (memo != null) {
+      val memoized = memo.get(t)
+      if (memoized != null) {
+        cache.put(t, memoized)
+        return memoized
+      }
+    }
     val res =
       t match {
         case a: Ambiguity           => apply(a)
         case p: ProductionReference => apply(p)
       }
     cache.put(t, res)
+    if (memo != null) {
+      memo.put(t, res)
+    }
     res
   }
 
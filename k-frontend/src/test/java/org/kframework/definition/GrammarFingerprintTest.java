@@ -0,0 +1,112 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.definition;
+
+import static org.junit.Assert.*;
+import static org.kframework.Collections.*;
+import static org.kframework.definition.Constructors.*;
+import static org.kframework.kore.KORE.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import org.kframework.attributes.Att;
+import org.kframework.attributes.Location;
+import org.kframework.attributes.Source;
+import org.kframework.builtin.BooleanUtils;
+
+public class GrammarFingerprintTest {
+
+  private static final Att LOCATION =
+      Att.empty()
+          .add(Att.SOURCE(), Source.class, Source.apply("test.k"))
+          .add(Att.LOCATION(), Location.class, Location(1, 1, 1, 10));
+
+  private static Production binary(String op, Att att) {
+    return Production(
+        KLabel("_" + op + "_"),
+        Sort("Exp"),
+        Seq(NonTerminal(Sort("Exp")), Terminal(op), NonTerminal(Sort("Exp"))),
+        att);
+  }
+
+  private static List<Sentence> syntax(Att att) {
+    return List.of(
+        SyntaxSort(Seq(), Sort("Exp"), att),
+        Production(KLabel("one"), Sort("Exp"), Seq(Terminal("1")), att),
+        binary("+", att),
+        binary("*", att));
+  }
+
+  private static Module module(List<? extends Sentence> sentences) {
+    return Module("TEST", Set(), immutable(new LinkedHashSet<Sentence>(sentences)), Att.empty());
+  }
+
+  private static Module extend(Sentence s) {
+    List<Sentence> sentences = new ArrayList<>(syntax(Att.empty()));
+    sentences.add(s);
+    return module(sentences);
+  }
+
+  private static final Module BASE = module(syntax(Att.empty()));
+
+  @Test
+  public void testIndependentOfOrderAndLocation() {
+    List<Sentence> reversed = new ArrayList<>(syntax(LOCATION));
+    java.util.Collections.reverse(reversed);
+    assertEquals(BASE.fingerprint(), module(reversed).fingerprint());
+    assertEquals(BASE.fingerprint(), GrammarFingerprint.of(module(syntax(Att.empty()))));
+  }
+
+  @Test
+  public void testIndependentOfRules() {
+    Rule rule = Rule(KToken("1", Sort("Exp")), BooleanUtils.TRUE, BooleanUtils.TRUE);
+    assertEquals(BASE.fingerprint(), extend(rule).fingerprint());
+  }
+
+  @Test
+  public void testChangesWithSyntax() {
+    List<Module> modules =
+        List.of(
+            BASE,
+            module(
+                List.of(
+                    SyntaxSort(Seq(), Sort("Exp")),
+                    Production(KLabel("one"), Sort("Exp"), Seq(Terminal("1")), Att.empty()),
+                    binary("+", Att.empty()),
+                    binary("-", Att.empty()))),
+            extend(SyntaxSort(Seq(), Sort("Exp"), Att.empty().add(Att.TOKEN()))),
+            extend(SyntaxPriority(Seq(Set(Tag("_*_")), Set(Tag("_+_"))))),
+            extend(SyntaxAssociativity(Associativity.Left, Set(Tag("_+_")))),
+            extend(SyntaxAssociativity(Associativity.Right, Set(Tag("_+_")))));
+    Set<GrammarFingerprint> fingerprints = new HashSet<>();
+    for (Module m : modules) {
+      fingerprints.add(m.fingerprint());
+    }
+    assertEquals(modules.size(), fingerprints.size());
+  }
+
+  @Test
+  public void testSameAfterSerialization() throws IOException, ClassNotFoundException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(BASE);
+      out.writeObject(BASE.fingerprint());
+    }
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      Module module = (Module) in.readObject();
+      GrammarFingerprint fingerprint = (GrammarFingerprint) in.readObject();
+      assertEquals(BASE.fingerprint(), fingerprint);
+      assertEquals(fingerprint, GrammarFingerprint.of(module));
+    }
+    assertTrue(BASE.fingerprint().toString().matches("[0-9a-f]{32}"));
+  }
+}
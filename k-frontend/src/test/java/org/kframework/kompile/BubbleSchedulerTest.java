@@ -0,0 +1,99 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.kompile;
+
+import static org.junit.Assert.*;
+import static org.kframework.Collections.*;
+import static org.kframework.definition.Constructors.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.Test;
+import org.kframework.attributes.Att;
+import org.kframework.definition.Bubble;
+import org.kframework.definition.Module;
+import org.kframework.parser.inner.ParseCache;
+import org.kframework.parser.inner.ParseInModule;
+import org.kframework.parser.inner.RuleGrammarGenerator;
+
+public class BubbleSchedulerTest {
+
+  private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+  private final Map<ParseInModule, String> names =
+      Collections.synchronizedMap(new IdentityHashMap<>());
+  private final AtomicInteger live = new AtomicInteger();
+  private final AtomicInteger maxLive = new AtomicInteger();
+
+  // a module with a bubble of each length, whose contents are the name of the module
+  private BubbleScheduler.ModuleBubbles module(String name, int... lengths) {
+    Module m = Module(name, Set(), Set(), Att.empty());
+    List<Bubble> bubbles = new ArrayList<>();
+    for (int i = 0; i < lengths.length; i++) {
+      bubbles.add(
+          new Bubble(
+              "rule",
+              name + " ".repeat(lengths[i] - name.length()),
+              Att.empty().add(Att.CONTENT_START_LINE(), Integer.class, i + 1)));
+    }
+    return new BubbleScheduler.ModuleBubbles(
+        m,
+        bubbles,
+        new ParseCache(m, null, false, new HashMap<>()),
+        () -> {
+          maxLive.accumulateAndGet(live.incrementAndGet(), Math::max);
+          ParseInModule parser = RuleGrammarGenerator.getCombinedGrammar(m, null);
+          names.put(parser, name);
+          return parser;
+        });
+  }
+
+  private Map<String, ?> parse(int threads, List<BubbleScheduler.ModuleBubbles> modules) {
+    try (BubbleScheduler scheduler = new BubbleScheduler(threads)) {
+      return scheduler.parse(
+          modules,
+          (parser, cache, b) -> {
+            events.add("parse " + b.contents().trim() + " " + b.contents().length());
+            return Stream.empty();
+          },
+          parser -> {
+            live.decrementAndGet();
+            events.add("release " + names.get(parser));
+          });
+    }
+  }
+
+  @Test
+  public void testModulesAreParsedOneAfterTheOther() {
+    Map<String, ?> result = parse(1, List.of(module("A", 10, 40, 30), module("B", 50)));
+    assertEquals(
+        List.of(
+            "parse A 40",
+            "parse A 30",
+            "parse A 10",
+            "release A",
+            "parse B 50",
+            "release B"),
+        events);
+    assertEquals(2, result.size());
+  }
+
+  @Test
+  public void testFewParsersAreAlive() {
+    List<BubbleScheduler.ModuleBubbles> modules = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      // the bubbles of different modules have interleaved costs
+      modules.add(module("M" + i, 10 + i, 20 + i, 30 + i, 40 + i));
+    }
+    parse(2, modules);
+    assertEquals(0, live.get());
+    assertEquals(8, events.stream().filter(e -> e.startsWith("release")).count());
+    // one more than the threads, since a thread may move to the next module just before the
+    // last bubble of the previous one is parsed
+    assertTrue(maxLive.get() <= 3);
+  }
+}
@@ -36,6 +36,17 @@ public class InterfaceTest {
         KSequence(Seq(KToken("1", Sorts.Int()), KSequence(Seq(KToken("2", Sorts.Int()))))));
   }
 
+  @Test
+  public void kSeqBuilderFlattens() {
+    KSequenceBuilder builder = new KSequenceBuilder();
+    for (int i = 0; i < 1000; i++) {
+      builder.add(KSequence(KToken(Integer.toString(i), Sorts.Int())));
+    }
+    KSequence k = builder.result();
+    assertEquals(1000, k.size());
+    assertEquals(KToken("999", Sorts.Int()), k.items().get(999));
+  }
+
   //    @Test
   //    public void manipulatingKSeq() {
   //        KSequence l = stream(KSequence(KToken("1", Sorts.Int()), KToken("2",
@@ -0,0 +1,77 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+
+package org.kframework.kore;
+
+import static org.junit.Assert.*;
+import static org.kframework.kore.KORE.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kframework.attributes.Att;
+import org.kframework.attributes.Location;
+
+public class KInternerTest {
+
+  @Before
+  public void setUp() {
+    KInterner.enable();
+  }
+
+  @After
+  public void tearDown() {
+    KInterner.disable();
+  }
+
+  private K term(Att att) {
+    return KApply(KLabel("_+_"), KList(KToken("1", Sort("Int")), KVariable("X")), att);
+  }
+
+  @Test
+  public void testEqualTermsAreShared() {
+    K a = term(Att.empty());
+    K b = term(Att.empty());
+    assertSame(a, b);
+    assertSame(Sort("Int"), Sort("Int"));
+    assertTrue(KInterner.summary().contains("KApply"));
+  }
+
+  @Test
+  public void testAttributesAreNotMerged() {
+    Att loc = Att.empty().add(Att.LOCATION(), Location.class, Location(1, 1, 1, 6));
+    K a = term(Att.empty());
+    K b = term(loc);
+    assertNotSame(a, b);
+    assertEquals(a, b);
+    assertEquals(loc, b.att());
+  }
+
+  @Test
+  public void testSmallAttributesAreShared() {
+    Att a = Att.empty().add(Att.SORT(), Sort.class, Sort("Int"));
+    Att b = Att.empty().add(Att.SORT(), Sort.class, Sort("Int"));
+    assertSame(a, b);
+    assertSame(Att.empty(), a.remove(Att.SORT(), Sort.class));
+    assertEquals(a, Att.empty().withAll(b));
+  }
+
+  @Test
+  public void testDisabled() {
+    KInterner.disable();
+    try {
+      assertNotSame(KToken("1", Sort("Int")), KToken("1", Sort("Int")));
+    } finally {
+      KInterner.enable();
+    }
+  }
+
+  @Test
+  public void testConcurrentRunsShareTheTables() {
+    // another run starts and stops while this one is running
+    KInterner.enable();
+    K a = term(Att.empty());
+    KInterner.disable();
+    assertTrue(KInterner.isEnabled());
+    assertSame(a, term(Att.empty()));
+  }
+}
@@ -25,6 +25,7 @@ import org.kframework.kompile.Kompile;
 import org.kframework.kore.K;
 import org.kframework.main.GlobalOptions;
 import org.kframework.parser.inner.ParseCache;
+import org.kframework.parser.inner.ParseCacheStore;
 import org.kframework.utils.BinaryLoader;
 import org.kframework.utils.errorsystem.KExceptionManager;
 
@@ -131,7 +132,7 @@ public class LSPTests {
             .filter(p -> p.endsWith(Kompile.CACHE_FILE_NAME))
             .min(Comparator.comparing(Path::getNameCount, Comparator.naturalOrder()));
     if (cacheFile.isPresent())
-      caches = loader.loadCache(java.util.Map.class, cacheFile.get().toFile());
+      caches = new ParseCacheStore(loader, cacheFile.get().toFile()).getAll();
 
     System.out.println(caches.size());
 
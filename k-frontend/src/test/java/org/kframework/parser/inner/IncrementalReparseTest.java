@@ -0,0 +1,131 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner;
+
+import static org.junit.Assert.*;
+import static org.kframework.kore.KORE.*;
+
+import com.google.common.collect.Lists;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kframework.attributes.Att;
+import org.kframework.attributes.Location;
+import org.kframework.attributes.Source;
+import org.kframework.definition.Definition;
+import org.kframework.definition.Module;
+import org.kframework.kompile.Kompile;
+import org.kframework.kompile.KompileOptions;
+import org.kframework.kore.AddAttRec;
+import org.kframework.kore.K;
+import org.kframework.main.GlobalOptions;
+import org.kframework.parser.ParserUtils;
+import org.kframework.parser.inner.ParseCache.ParsedSentence;
+import org.kframework.utils.errorsystem.KEMException;
+import org.kframework.utils.errorsystem.KExceptionManager;
+import org.kframework.utils.file.FileUtil;
+import scala.Tuple2;
+import scala.util.Either;
+
+public class IncrementalReparseTest {
+  private static final Source SOURCE = Source.apply("generated by IncrementalReparseTest");
+  private static final String DEF =
+      "module TEST\n"
+          + "syntax Num ::= r\"[0-9]+\" [token]\n"
+          + "syntax Name ::= r\"[a-z]+\" [token]\n"
+          + "syntax Exp ::= Num | Name | Exp \"+\" Exp [left] | \"(\" Exp \")\" [bracket]\n"
+          + "syntax #Layout ::= r\"(\\\\/\\\\/[^\\\\n\\\\r]*)\" | r\"([\\\\ \\\\n\\\\r\\\\t])\"\n"
+          + "endmodule";
+
+  private ParseInModule parser;
+
+  @Before
+  public void setUp() {
+    FileUtil files = FileUtil.testFileUtil();
+    ParserUtils parserUtils = new ParserUtils(files, new KExceptionManager(new GlobalOptions()));
+    File definitionFile = new File(Kompile.BUILTIN_DIRECTORY + "/prelude.md");
+    Definition baseK =
+        parserUtils.loadDefinition(
+            new KompileOptions.MainModule("K", KompileOptions.OptionType.USER_PROVIDED),
+            new KompileOptions.SyntaxModule("K", KompileOptions.OptionType.USER_PROVIDED),
+            files.loadFromWorkingDirectory(definitionFile.getPath()),
+            definitionFile,
+            definitionFile.getParentFile(),
+            Lists.newArrayList(Kompile.BUILTIN_DIRECTORY),
+            false,
+            false,
+            false);
+    Module test = ParserUtils.parseMainModuleOuterSyntax(DEF, SOURCE, "TEST");
+    parser =
+        RuleGrammarGenerator.getCombinedGrammar(
+            new RuleGrammarGenerator(baseK).getProgramsGrammar(test), files);
+  }
+
+  @After
+  public void tearDown() {
+    parser.close();
+  }
+
+  private ParsedSentence parse(String input) {
+    Tuple2<Either<Set<KEMException>, K>, Set<KEMException>> result =
+        parser.parseString(input, Sort("Exp"), SOURCE);
+    assertTrue(result._1().isRight());
+    return new ParsedSentence(
+        result._1().right().get(), result._2(), new HashSet<>(), 1, 1, SOURCE, 0);
+  }
+
+  private Optional<ParsedSentence> reparse(String previousInput, String input) {
+    return parser.reparse(previousInput, parse(previousInput), input, SOURCE, 1, 1);
+  }
+
+  private static List<Location> locations(K k) {
+    List<Location> locations = new ArrayList<>();
+    new AddAttRec(
+            att -> {
+              att.getOptional(Att.LOCATION(), Location.class).ifPresent(locations::add);
+              return att;
+            })
+        .apply(k);
+    return locations;
+  }
+
+  private void assertSameAsFullParse(String input, ParsedSentence reparsed) {
+    K expected = parse(input).parse();
+    assertEquals(expected, reparsed.parse());
+    assertEquals(locations(expected), locations(reparsed.parse()));
+    assertTrue(reparsed.errors().isEmpty());
+  }
+
+  @Test
+  public void testLiteralEditIsReused() {
+    Optional<ParsedSentence> reparsed = reparse("1 + x + 2", "1 + y + 42");
+    assertTrue(reparsed.isPresent());
+    assertSameAsFullParse("1 + y + 42", reparsed.get());
+    assertTrue(reparsed.get().parse().toString().contains("42"));
+  }
+
+  @Test
+  public void testLayoutEditIsRelocated() {
+    String input = "// sum\n1 +\n    (2 + 3) // of three";
+    Optional<ParsedSentence> reparsed = reparse("1 + (2 + 3)", input);
+    assertTrue(reparsed.isPresent());
+    assertSameAsFullParse(input, reparsed.get());
+    assertTrue(locations(reparsed.get().parse()).contains(Location.apply(3, 6, 3, 7)));
+  }
+
+  @Test
+  public void testStructuralEditIsParsedAgain() {
+    // a token of another kind
+    assertTrue(reparse("1 + 2", "1 + x").isEmpty());
+    // other tokens
+    assertTrue(reparse("1 + 2", "1 + 2 + 3").isEmpty());
+    assertTrue(reparse("1 + 2 + 3", "1 + (2 + 3)").isEmpty());
+    // a sentence which does not parse
+    assertTrue(reparse("1 + 2", "1 + ?").isEmpty());
+  }
+}
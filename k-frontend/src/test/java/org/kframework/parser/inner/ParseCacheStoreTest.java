@@ -0,0 +1,138 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner;
+
+import static org.junit.Assert.*;
+import static org.kframework.Collections.*;
+import static org.kframework.definition.Constructors.*;
+import static org.kframework.kore.KORE.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kframework.attributes.Att;
+import org.kframework.attributes.Source;
+import org.kframework.definition.GrammarFingerprint;
+import org.kframework.definition.Module;
+import org.kframework.main.GlobalOptions;
+import org.kframework.parser.inner.ParseCache.ParsedSentence;
+import org.kframework.utils.BinaryLoader;
+import org.kframework.utils.errorsystem.KExceptionManager;
+
+public class ParseCacheStoreTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final Module MODULE =
+      Module(
+          "TEST",
+          Set(),
+          Set(Production(KLabel("one"), Sort("Int"), Seq(Terminal("1")))),
+          Att.empty());
+  private static final GrammarFingerprint FINGERPRINT = MODULE.fingerprint();
+  private static final Source A = Source.apply("a.k");
+  private static final Source B = Source.apply("b.k");
+
+  private final BinaryLoader loader = new BinaryLoader(new KExceptionManager(new GlobalOptions()));
+  private File index;
+
+  @Before
+  public void setUp() {
+    index = new File(folder.getRoot(), "cache.bin");
+  }
+
+  private ParseCacheStore store() {
+    return new ParseCacheStore(loader, index);
+  }
+
+  private static ParsedSentence sentence(String value, int line, Source source) {
+    return new ParsedSentence(KToken(value, Sort("Int")), Set.of(), Set.of(), line, 1, source, 10);
+  }
+
+  private Set<String> shards() {
+    File[] files = new File(folder.getRoot(), "cache.bin.d").listFiles();
+    return Arrays.stream(files)
+        .map(File::getName)
+        .filter(n -> n.startsWith("shard"))
+        .collect(Collectors.toSet());
+  }
+
+  // one shard for the module, and one for each of the two sources
+  private ParseCacheStore saveTwoSources() {
+    ParseCacheStore store = store();
+    Map<String, ParsedSentence> cache = store.get(MODULE, FINGERPRINT).cache();
+    cache.put("1", sentence("1", 1, A));
+    cache.put("2", sentence("2", 2, A));
+    cache.put("3", sentence("3", 1, B));
+    store.save();
+    return store;
+  }
+
+  @Test
+  public void testRoundTrip() {
+    Map<String, ParsedSentence> saved =
+        Map.copyOf(saveTwoSources().get(MODULE, FINGERPRINT).cache());
+    assertEquals(3, shards().size());
+
+    ParseCache loaded = store().get(MODULE, FINGERPRINT);
+    assertEquals(MODULE, loaded.module());
+    assertEquals(FINGERPRINT, loaded.fingerprint());
+    assertEquals(saved, Map.copyOf(loaded.cache()));
+    assertEquals(Set.of("TEST"), store().getAll().keySet());
+  }
+
+  @Test
+  public void testOnlyChangedShardsAreWritten() {
+    saveTwoSources();
+    Set<String> before = shards();
+
+    ParseCacheStore store = store();
+    store.get(MODULE, FINGERPRINT).cache().put("4", sentence("4", 2, B));
+    store.save();
+    Set<String> after = shards();
+    // the shards of the module and of a.k are kept, and the old shard of b.k is deleted
+    assertEquals(3, after.size());
+    Set<String> kept = new HashSet<>(before);
+    kept.retainAll(after);
+    assertEquals(2, kept.size());
+
+    assertEquals(4, store().get(MODULE, FINGERPRINT).cache().size());
+  }
+
+  @Test
+  public void testUnchangedStoreWritesNoShard() {
+    saveTwoSources();
+    Set<String> before = shards();
+    ParseCacheStore store = store();
+    store.get(MODULE, FINGERPRINT);
+    store.save();
+    assertEquals(before, shards());
+  }
+
+  @Test
+  public void testOtherFingerprintIsNotLoaded() {
+    saveTwoSources();
+    ParseCache loaded = store().get(MODULE, new GrammarFingerprint(0, 0));
+    assertTrue(loaded.cache().isEmpty());
+  }
+
+  @Test
+  public void testMissingShardOnlyLosesItsSource() {
+    saveTwoSources();
+    ParseCacheStore store = store();
+    // the shard of b.k is the only one holding a single sentence
+    for (String shard : shards()) {
+      File file = new File(folder.getRoot(), "cache.bin.d/" + shard);
+      if (loader.loadCache(Object.class, file) instanceof Map<?, ?> m && m.size() == 1) {
+        assertTrue(file.delete());
+      }
+    }
+    assertEquals(Set.of("1", "2"), store.get(MODULE, FINGERPRINT).cache().keySet());
+  }
+}
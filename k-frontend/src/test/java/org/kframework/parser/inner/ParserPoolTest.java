@@ -0,0 +1,117 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner;
+
+import static org.junit.Assert.*;
+import static org.kframework.Collections.*;
+import static org.kframework.definition.Constructors.*;
+import static org.kframework.kore.KORE.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.After;
+import org.junit.Test;
+import org.kframework.attributes.Att;
+import org.kframework.definition.Module;
+import org.kframework.utils.options.InnerParsingOptions;
+
+public class ParserPoolTest {
+
+  private static final Module MODULE = Module("TEST", Set(), Set(), Att.empty());
+
+  private final ParserPool pool = new ParserPool(4);
+  private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    pool.close();
+  }
+
+  private static ParseInModule newParser() {
+    return new ParseInModule(
+        MODULE,
+        false,
+        false,
+        false,
+        null,
+        null,
+        InnerParsingOptions.TypeInferenceMode.DEFAULT,
+        false);
+  }
+
+  private Future<ParseInModule> lease(String startSymbol, Supplier<ParseInModule> factory) {
+    return executor.submit(
+        () -> {
+          try (ParserPool.Lease lease = pool.acquire(MODULE, Sort(startSymbol), factory)) {
+            return lease.parser();
+          }
+        });
+  }
+
+  @Test(timeout = 10000)
+  public void testDifferentParsersAreCreatedConcurrently() throws Exception {
+    CountDownLatch creating = new CountDownLatch(2);
+    Supplier<ParseInModule> factory =
+        () -> {
+          creating.countDown();
+          try {
+            // only returns true if the other parser is being created at the same time
+            assertTrue(creating.await(5, TimeUnit.SECONDS));
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+          return newParser();
+        };
+    Future<ParseInModule> a = lease("A", factory);
+    Future<ParseInModule> b = lease("B", factory);
+    assertNotSame(a.get(), b.get());
+  }
+
+  @Test(timeout = 10000)
+  public void testSameParserIsCreatedOnce() throws Exception {
+    AtomicInteger created = new AtomicInteger();
+    CountDownLatch creating = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+    Supplier<ParseInModule> factory =
+        () -> {
+          created.incrementAndGet();
+          creating.countDown();
+          try {
+            done.await();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+          return newParser();
+        };
+    Future<ParseInModule> a = lease("A", factory);
+    creating.await();
+    Future<ParseInModule> b = lease("A", factory);
+    // the second lease waits for the parser rather than creating another one
+    Thread.sleep(100);
+    assertFalse(b.isDone());
+    done.countDown();
+    assertSame(a.get(), b.get());
+    assertEquals(1, created.get());
+  }
+
+  @Test
+  public void testFailedCreationIsRetried() {
+    AtomicInteger created = new AtomicInteger();
+    Supplier<ParseInModule> failing =
+        () -> {
+          created.incrementAndGet();
+          throw new IllegalStateException("no grammar");
+        };
+    assertThrows(IllegalStateException.class, () -> pool.acquire(MODULE, Sort("A"), failing));
+    ParseInModule parser = newParser();
+    try (ParserPool.Lease lease = pool.acquire(MODULE, Sort("A"), () -> parser)) {
+      assertSame(parser, lease.parser());
+    }
+    assertEquals(1, created.get());
+  }
+}
@@ -0,0 +1,150 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.List;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kframework.attributes.Source;
+import org.kframework.parser.inner.RuleParsingProfiler.Sample;
+import org.kframework.utils.options.InnerParsingOptions.TypeInferenceMode;
+
+public class RuleParsingProfilerTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final long MS = 1_000_000;
+  private static final Source SOURCE = Source.apply("a.k");
+
+  /**
+   * One hundred sentences on lines 1 to 100. The sentence on line i scans in i ms, builds its
+   * forest in 2i ms and infers sorts in i ms, so its total time is 4i ms. The sentences on odd
+   * lines are in module A, the others in module B, and sort inference was not reached for every
+   * tenth sentence.
+   */
+  private static RuleParsingProfiler profiler() {
+    RuleParsingProfiler profiler = new RuleParsingProfiler();
+    for (int i = 100; i >= 1; i--) {
+      profiler.add(
+          new Sample(
+              i % 2 == 1 ? "A" : "B",
+              SOURCE,
+              i,
+              i * MS,
+              2 * i * MS,
+              0,
+              i * MS,
+              i % 3,
+              i % 10 == 0 ? null : TypeInferenceMode.SIMPLESUB));
+    }
+    return profiler;
+  }
+
+  private String save(RuleParsingProfiler profiler, String name, int top) throws IOException {
+    File file = new File(folder.getRoot(), name);
+    profiler.save(file, top);
+    return Files.readString(file.toPath());
+  }
+
+  private JsonObject json(int top) throws IOException {
+    try (JsonReader reader = Json.createReader(new StringReader(save(profiler(), "p.json", top)))) {
+      return reader.readObject();
+    }
+  }
+
+  private static double ms(JsonObject phases, String phase, String stat) {
+    return phases.getJsonObject(phase).getJsonNumber(stat).doubleValue();
+  }
+
+  @Test
+  public void testJsonPercentiles() throws IOException {
+    JsonObject report = json(3);
+    assertEquals(100, report.getInt("sentences"));
+    JsonObject all = report.getJsonObject("all");
+    assertEquals(100, all.getInt("sentences"));
+    assertEquals(100, all.getInt("ambiguities"));
+    assertEquals(50, ms(all, "scan", "p50"), 0);
+    assertEquals(90, ms(all, "scan", "p90"), 0);
+    assertEquals(99, ms(all, "scan", "p99"), 0);
+    assertEquals(100, ms(all, "scan", "max"), 0);
+    assertEquals(5050, ms(all, "scan", "sum"), 0);
+    assertEquals(180, ms(all, "earley", "p90"), 0);
+    assertEquals(0, ms(all, "disambiguation", "max"), 0);
+    assertEquals(396, ms(all, "total", "p99"), 0);
+    JsonObject modes = all.getJsonObject("inference-modes");
+    assertEquals(90, modes.getInt("SIMPLESUB"));
+    assertEquals(10, modes.getInt("none"));
+
+    // nearest rank among the 50 sentences of each module
+    JsonObject modules = report.getJsonObject("modules");
+    assertEquals(List.of("A", "B"), List.copyOf(modules.keySet()));
+    assertEquals(49, ms(modules.getJsonObject("A"), "scan", "p50"), 0);
+    assertEquals(99, ms(modules.getJsonObject("A"), "scan", "p99"), 0);
+    assertEquals(50, ms(modules.getJsonObject("B"), "scan", "p50"), 0);
+    assertEquals(90, ms(modules.getJsonObject("B"), "scan", "p90"), 0);
+  }
+
+  @Test
+  public void testJsonTop() throws IOException {
+    JsonArray slowest = json(3).getJsonArray("slowest");
+    assertEquals(3, slowest.size());
+    for (int i = 0; i < 3; i++) {
+      JsonObject s = slowest.getJsonObject(i);
+      assertEquals("a.k:" + (100 - i), s.getString("location"));
+      assertEquals(4 * (100 - i), s.getJsonNumber("total").doubleValue(), 0);
+    }
+    assertEquals("B", slowest.getJsonObject(0).getString("module"));
+    assertEquals("none", slowest.getJsonObject(0).getString("inference-mode"));
+    assertEquals("SIMPLESUB", slowest.getJsonObject(1).getString("inference-mode"));
+
+    assertEquals(0, json(0).getJsonArray("slowest").size());
+    assertEquals(100, json(1000).getJsonArray("slowest").size());
+  }
+
+  @Test
+  public void testEmptyJson() throws IOException {
+    String saved = save(new RuleParsingProfiler(), "p.json", 10);
+    try (JsonReader reader = Json.createReader(new StringReader(saved))) {
+      JsonObject all = reader.readObject().getJsonObject("all");
+      assertEquals(0, all.getInt("sentences"));
+      assertEquals(0, ms(all, "total", "p99"), 0);
+    }
+  }
+
+  @Test
+  public void testCsv() throws IOException {
+    List<String> lines = save(profiler(), "p.csv", 3).lines().toList();
+    assertEquals(101, lines.size());
+    assertEquals(
+        "source,line,module,scan_ns,earley_ns,disambiguation_ns,inference_ns,total_ns,"
+            + "ambiguities,inference_mode",
+        lines.get(0));
+    // sorted by location
+    assertEquals("a.k,1,A,1000000,2000000,0,1000000,4000000,1,SIMPLESUB", lines.get(1));
+    assertEquals("a.k,10,B,10000000,20000000,0,10000000,40000000,1,", lines.get(2));
+
+    RuleParsingProfiler quoted = new RuleParsingProfiler();
+    quoted.add(new Sample("M,\"x\"", null, 7, 1, 2, 3, 4, 0, TypeInferenceMode.Z3));
+    assertEquals(
+        List.of(lines.get(0), ",7,\"M,\"\"x\"\"\",1,2,3,4,10,0,Z3"),
+        save(quoted, "q.csv", 3).lines().toList());
+  }
+
+  @Test
+  public void testText() throws IOException {
+    List<String> lines = save(profiler(), "p.txt", 3).lines().toList();
+    assertEquals(100, lines.size());
+    assertEquals("    4 a.k:1   parse:   3 typeInf:   1", lines.get(0));
+    assertEquals("  400 a.k:100   parse: 300 typeInf: 100", lines.get(2));
+  }
+}
@@ -0,0 +1,80 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.disambiguation;
+
+import static org.junit.Assert.*;
+import static org.kframework.Collections.*;
+import static org.kframework.definition.Constructors.*;
+import static org.kframework.kore.KORE.*;
+
+import java.util.Arrays;
+import java.util.Optional;
+import org.junit.Test;
+import org.kframework.attributes.Location;
+import org.kframework.attributes.Source;
+import org.kframework.definition.Production;
+import org.kframework.parser.Constant;
+import org.kframework.parser.SafeTransformer;
+import org.kframework.parser.Term;
+import org.kframework.parser.TermCons;
+import org.pcollections.ConsPStack;
+
+public class DisambiguationMemoTest {
+
+  private static final Production ONE = Production(KLabel("one"), Sort("Int"), Seq(Terminal("1")));
+  private static final Production PLUS =
+      Production(
+          KLabel("_+_"),
+          Sort("Int"),
+          Seq(NonTerminal(Sort("Int")), Terminal("+"), NonTerminal(Sort("Int"))));
+  private static final Optional<Source> SOURCE = Optional.of(Source.apply("test"));
+
+  // 1 + 1 on the given line
+  private static TermCons term(int line) {
+    Term left = Constant.apply("1", ONE, Optional.of(new Location(line, 1, line, 2)), SOURCE);
+    Term right = Constant.apply("1", ONE, Optional.of(new Location(line, 5, line, 6)), SOURCE);
+    return TermCons.apply(
+        ConsPStack.from(Arrays.asList(right, left)),
+        PLUS,
+        Optional.of(new Location(line, 1, line, 6)),
+        SOURCE);
+  }
+
+  private static class Count extends SafeTransformer {
+    private int visited = 0;
+
+    @Override
+    public Term apply(TermCons tc) {
+      visited++;
+      return super.apply(tc);
+    }
+  }
+
+  @Test
+  public void testHitAtAnotherLocation() {
+    DisambiguationMemo memo = new DisambiguationMemo();
+    Count first = new Count();
+    memo.session().apply("Count", first, term(1));
+    assertEquals(1, first.visited);
+
+    TermCons input = term(2);
+    Count second = new Count();
+    TermCons result = (TermCons) memo.session().apply("Count", second, input);
+    assertEquals(0, second.visited);
+    assertEquals(input, result);
+    assertEquals(input.location(), result.location());
+    assertEquals(input.get(0).location(), result.get(0).location());
+    assertEquals(input.get(1).location(), result.get(1).location());
+    assertEquals(SOURCE, result.get(1).source());
+    // the lookups of the root and both constants of the first term missed
+    assertEquals("25% (Count 25%)", memo.stats().summary());
+  }
+
+  @Test
+  public void testUnmemoized() {
+    Count first = new Count();
+    DisambiguationMemo.unmemoized().apply("Count", first, term(1));
+    Count second = new Count();
+    DisambiguationMemo.unmemoized().apply("Count", second, term(1));
+    assertEquals(1, second.visited);
+  }
+}
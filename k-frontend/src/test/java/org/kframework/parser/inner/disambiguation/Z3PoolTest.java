@@ -0,0 +1,212 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.disambiguation;
+
+import static org.junit.Assert.*;
+import static org.kframework.Collections.*;
+import static org.kframework.definition.Constructors.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kframework.attributes.Att;
+import org.kframework.definition.Module;
+import org.kframework.utils.errorsystem.KEMException;
+
+/** Tests the lifecycle of the processes of {@link Z3Pool}, with a script standing in for z3. */
+public class Z3PoolTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final Module A = Module("A", Set(), Set(), Att.empty());
+  private static final Module B = Module("B", Set(), Set(), Att.empty());
+  private static final Module C = Module("C", Set(), Set(), Att.empty());
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private final AtomicInteger preludes = new AtomicInteger();
+  private Z3Pool pool;
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    if (pool != null) {
+      pool.close();
+    }
+  }
+
+  private File log() {
+    return new File(folder.getRoot(), "z3.log");
+  }
+
+  /**
+   * Create a pool of processes which log every line they read, prefixed with their pid, and only
+   * answer the version query, check-sat and exit.
+   */
+  private Z3Pool pool(int capacity, String version) throws IOException {
+    File stub = folder.newFile("z3");
+    Files.writeString(
+        stub.toPath(),
+        "#!/bin/sh\n"
+            + "while read -r line; do\n"
+            + "  echo \"$$ $line\" >> '"
+            + log().getAbsolutePath()
+            + "'\n"
+            + "  case \"$line\" in\n"
+            + "    '(get-info :version)') echo '(:version \""
+            + version
+            + " - build hashcode 0\")' ;;\n"
+            + "    '(check-sat)') echo sat ;;\n"
+            + "    '(exit)') exit 0 ;;\n"
+            + "  esac\n"
+            + "done\n",
+        StandardCharsets.UTF_8);
+    assertTrue(stub.setExecutable(true));
+    pool = new Z3Pool(capacity, List.of(stub.getAbsolutePath()));
+    return pool;
+  }
+
+  private Z3Pool pool(int capacity) throws IOException {
+    return pool(capacity, "4.12.1");
+  }
+
+  private Supplier<String> prelude(Module mod) {
+    return () -> {
+      preludes.incrementAndGet();
+      return "(prelude " + mod.name() + ")";
+    };
+  }
+
+  private Z3Pool.Solver acquire(Module mod) {
+    return pool.acquire(mod, prelude(mod));
+  }
+
+  // wait for the process to read everything sent to it so far
+  private static void sync(Z3Pool.Solver solver) throws IOException {
+    solver.z3.println("(check-sat)");
+    solver.z3.flush();
+    assertEquals("sat", solver.output.readLine());
+  }
+
+  // the lines read by a process after its version query and logic
+  private List<String> received(Z3Pool.Solver solver) throws IOException {
+    sync(solver);
+    String prefix = solver.pid() + " ";
+    return Files.readAllLines(log().toPath()).stream()
+        .filter(l -> l.startsWith(prefix))
+        .map(l -> l.substring(prefix.length()))
+        .filter(l -> !l.equals("(check-sat)"))
+        .skip(2)
+        .toList();
+  }
+
+  @Test(timeout = 10000)
+  public void testSameModuleIsReused() throws IOException {
+    pool(2);
+    Z3Pool.Solver solver = acquire(A);
+    pool.release(solver, true);
+    assertSame(solver, acquire(A));
+    assertEquals(1, preludes.get());
+    assertEquals(List.of("(push)", "(prelude A)"), received(solver));
+  }
+
+  @Test(timeout = 10000)
+  public void testOtherModuleReplacesPrelude() throws IOException {
+    pool(1);
+    Z3Pool.Solver solver = acquire(A);
+    pool.release(solver, true);
+    assertSame(solver, acquire(B));
+    assertEquals(
+        List.of("(push)", "(prelude A)", "(pop)", "(push)", "(prelude B)"), received(solver));
+  }
+
+  @Test(timeout = 10000)
+  public void testIdleProcessOfSameModuleIsPreferred() throws IOException {
+    pool(2);
+    Z3Pool.Solver a = acquire(A);
+    Z3Pool.Solver b = acquire(B);
+    pool.release(a, true);
+    pool.release(b, true);
+    assertSame(a, acquire(A));
+    assertSame(b, acquire(B));
+    assertEquals(2, preludes.get());
+  }
+
+  @Test(timeout = 10000)
+  public void testCapacityIsBounded() throws Exception {
+    pool(2);
+    Z3Pool.Solver a = acquire(A);
+    acquire(B);
+    Future<Z3Pool.Solver> c = executor.submit(() -> acquire(C));
+    assertThrows(TimeoutException.class, () -> c.get(200, TimeUnit.MILLISECONDS));
+    pool.release(a, true);
+    assertSame(a, c.get());
+    assertEquals(List.of("(push)", "(prelude A)", "(pop)", "(push)", "(prelude C)"), received(a));
+  }
+
+  @Test(timeout = 10000)
+  public void testSolverWithUnreadOutputIsDiscarded() throws Exception {
+    pool(1);
+    Z3Pool.Solver solver = acquire(A);
+    solver.z3.println("(check-sat)");
+    solver.z3.flush();
+    while (!solver.output.ready()) {
+      Thread.sleep(10);
+    }
+    pool.release(solver, true);
+    Z3Pool.Solver next = acquire(A);
+    assertNotSame(solver, next);
+    assertEquals(List.of("(push)", "(prelude A)"), received(next));
+  }
+
+  @Test(timeout = 10000)
+  public void testDeadSolverIsDiscarded() throws Exception {
+    pool(1);
+    Z3Pool.Solver solver = acquire(A);
+    pool.release(solver, true);
+    solver.z3.println("(exit)");
+    solver.z3.flush();
+    ProcessHandle.of(solver.pid()).ifPresent(p -> p.onExit().join());
+    assertNotSame(solver, acquire(A));
+  }
+
+  @Test(timeout = 10000)
+  public void testUnbalancedScopesAreNotReused() throws IOException {
+    pool(1);
+    Z3Pool.Solver solver = acquire(A);
+    pool.release(solver, false);
+    assertNotSame(solver, acquire(A));
+    assertEquals(2, preludes.get());
+  }
+
+  @Test(timeout = 10000)
+  public void testBrokenPopIsNotReused() throws IOException {
+    pool(1, "4.8.9");
+    Z3Pool.Solver solver = acquire(A);
+    pool.release(solver, true);
+    assertNotSame(solver, acquire(A));
+  }
+
+  @Test(timeout = 10000)
+  public void testClose() throws IOException {
+    pool(2);
+    Z3Pool.Solver leased = acquire(A);
+    pool.release(acquire(B), true);
+    pool.close();
+    assertThrows(KEMException.class, () -> acquire(A));
+    // the process leased during close is destroyed when it is released
+    pool.release(leased, true);
+    ProcessHandle.of(leased.pid()).ifPresent(p -> p.onExit().join());
+  }
+}
@@ -0,0 +1,213 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.disambiguation.inference;
+
+import static org.junit.Assert.*;
+import static org.kframework.Collections.*;
+import static org.kframework.definition.Constructors.*;
+import static org.kframework.kore.KORE.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import org.junit.Test;
+import org.kframework.attributes.Att;
+import org.kframework.builtin.Sorts;
+import org.kframework.definition.Module;
+import org.kframework.definition.Production;
+import org.kframework.definition.Sentence;
+import org.kframework.kore.Sort;
+import org.kframework.parser.Ambiguity;
+import org.kframework.parser.Constant;
+import org.kframework.parser.Term;
+import org.kframework.parser.TermCons;
+import org.kframework.utils.errorsystem.KEMException;
+import org.pcollections.ConsPStack;
+import scala.util.Either;
+
+public class SortInferencerTest {
+
+  private static final Production ONE = Production(KLabel("one"), Sort("Int"), Seq(Terminal("1")));
+  private static final Production TRUE =
+      Production(KLabel("true"), Sort("Bool"), Seq(Terminal("true")));
+  // the same token as ONE, but of another sort
+  private static final Production BIT = Production(KLabel("bit"), Sort("Bool"), Seq(Terminal("1")));
+  private static final Production PLUS =
+      Production(
+          KLabel("_+_"),
+          Sort("Int"),
+          Seq(NonTerminal(Sort("Int")), Terminal("+"), NonTerminal(Sort("Int"))));
+
+  private static final Production COND =
+      Production(KLabel("_?"), Sort("Int"), Seq(NonTerminal(Sort("Bool")), Terminal("?")));
+
+  private static final Module MODULE =
+      Module(
+          "TEST",
+          Set(),
+          Set(
+              SyntaxSort(Seq(), Sort("Int")),
+              SyntaxSort(Seq(), Sort("Bool")),
+              ONE,
+              TRUE,
+              BIT,
+              PLUS,
+              COND),
+          Att.empty());
+
+  // syntax {Width} MInt{Width} ::= MInt{Width} "+MInt" MInt{Width}
+  private static final Sort WIDTH = Sort("Width");
+  private static final Sort MINT = Sort("MInt", WIDTH);
+  private static final Production ADD_MINT =
+      Production(
+          KLabel("addMInt", WIDTH),
+          MINT,
+          Seq(NonTerminal(MINT), Terminal("+MInt"), NonTerminal(MINT)));
+  private static final Production MINT8 =
+      Production(KLabel("mint8"), Sort("MInt", Sort("8")), Seq(Terminal("1p8")));
+  private static final Production PAIR =
+      Production(
+          KLabel("pair"),
+          Sorts.KItem(),
+          Seq(NonTerminal(Sorts.KItem()), Terminal(","), NonTerminal(Sorts.KItem())));
+  private static final Production VAR = Production(Seq(), Sorts.KVariable(), Seq(Terminal("X")));
+
+  private static final Module PARAMETRIC = parametricModule();
+
+  private static Module parametricModule() {
+    List<Sentence> sentences = new ArrayList<>(List.of(ADD_MINT, MINT8, PAIR));
+    sentences.add(Production(Seq(), Sorts.K(), Seq(NonTerminal(Sorts.KItem()))));
+    for (Sort sort : List.of(Sort("MInt", Sort("8")), Sort("MInt", Sort("16")), Sort("Int"))) {
+      // syntax KItem ::= Sort, and the cast inserted around the variables inferred as Sort
+      sentences.add(Production(Seq(), Sorts.KItem(), Seq(NonTerminal(sort))));
+      sentences.add(
+          Production(
+              KLabel("#SemanticCastTo" + sort), sort, Seq(NonTerminal(sort), Terminal("::"))));
+    }
+    return Module("PARAMETRIC", Set(), immutable(new HashSet<>(sentences)), Att.empty());
+  }
+
+  private static Term var(String name) {
+    return Constant.apply(name, VAR, Optional.empty(), Optional.empty());
+  }
+
+  private static Term addMInt(Term left, Term right) {
+    return TermCons.apply(
+        ConsPStack.from(Arrays.asList(right, left)), ADD_MINT, Optional.empty(), Optional.empty());
+  }
+
+  private static Either<Set<KEMException>, Term> inferParametric(Term t, Sort topSort) {
+    return new SortInferencer(PARAMETRIC).apply(t, topSort, false);
+  }
+
+  private static Term constant(Production prod) {
+    String value = prod == TRUE ? "true" : prod == MINT8 ? "1p8" : "1";
+    return Constant.apply(value, prod, Optional.empty(), Optional.empty());
+  }
+
+  private static Term plus(Term left, Term right) {
+    return TermCons.apply(
+        ConsPStack.from(Arrays.asList(right, left)), PLUS, Optional.empty(), Optional.empty());
+  }
+
+  private static Term cond(Term child) {
+    return TermCons.apply(ConsPStack.singleton(child), COND, Optional.empty(), Optional.empty());
+  }
+
+  private static Either<Set<KEMException>, Term> infer(Term t) {
+    return new SortInferencer(MODULE).apply(t, Sort("Int"), false);
+  }
+
+  @Test
+  public void testAmbiguityResolved() {
+    Term t = plus(Ambiguity.apply(constant(ONE), constant(BIT)), constant(ONE));
+    assertTrue(SortInferencer.isSupported(t));
+    Either<Set<KEMException>, Term> result = infer(t);
+    assertTrue(result.isRight());
+    assertEquals(plus(constant(ONE), constant(ONE)), result.right().get());
+  }
+
+  @Test
+  public void testAmbiguityIllSorted() {
+    Term t = plus(Ambiguity.apply(constant(TRUE), constant(BIT)), constant(ONE));
+    assertTrue(infer(t).isLeft());
+  }
+
+  @Test
+  public void testSharedAmbiguityUnderDifferentSorts() {
+    // the same ambiguous subterm is an Int in one branch and a Bool in the other
+    Term shared = Ambiguity.apply(constant(ONE), constant(TRUE));
+    Term t = Ambiguity.apply(plus(shared, constant(ONE)), cond(shared));
+    Either<Set<KEMException>, Term> result = infer(t);
+    assertTrue(result.isRight());
+    assertEquals(
+        Ambiguity.apply(plus(constant(ONE), constant(ONE)), cond(constant(TRUE))),
+        result.right().get());
+  }
+
+  @Test
+  public void testSameDisambiguations() {
+    Term pushedDown = plus(Ambiguity.apply(constant(ONE), constant(BIT)), constant(ONE));
+    Term atTop =
+        Ambiguity.apply(plus(constant(ONE), constant(ONE)), plus(constant(BIT), constant(ONE)));
+    assertNotEquals(pushedDown, atTop);
+    assertTrue(SortInferencer.sameDisambiguations(pushedDown, atTop));
+    assertFalse(SortInferencer.sameDisambiguations(pushedDown, plus(constant(ONE), constant(ONE))));
+  }
+
+  @Test(timeout = 10000)
+  public void testTooManyDisambiguations() {
+    // each level squares the number of disambiguations, but shares its subterms
+    Term t = Ambiguity.apply(constant(ONE), constant(BIT));
+    for (int i = 0; i < 3; i++) {
+      t = plus(t, t);
+    }
+    assertTrue(SortInferencer.isSupported(t));
+    for (int i = 0; i < 60; i++) {
+      t = plus(t, t);
+    }
+    assertFalse(SortInferencer.isSupported(t));
+  }
+
+  @Test
+  public void testParameterSolved() {
+    Term t = addMInt(var("X"), constant(MINT8));
+    Either<Set<KEMException>, Term> result = inferParametric(t, Sorts.KItem());
+    assertTrue(result.isRight());
+    assertFalse(result.right().get() instanceof Ambiguity);
+    assertTrue(result.right().get().toString().contains("#SemanticCastToMInt{8}"));
+  }
+
+  @Test
+  public void testParameterAmbiguous() {
+    // the width of X and Y can be any width of the module
+    Term t = addMInt(var("X"), var("Y"));
+    Either<Set<KEMException>, Term> result = inferParametric(t, Sorts.KItem());
+    assertTrue(result.isRight());
+    assertEquals(2, ((Ambiguity) result.right().get()).items().size());
+  }
+
+  @Test
+  public void testParameterUnsolvable() {
+    Term t = addMInt(var("X"), constant(MINT8));
+    assertTrue(inferParametric(t, Sort("Int")).isLeft());
+  }
+
+  @Test
+  public void testTooManyInstantiations() {
+    // the widths of the pairs are independent, so there are 2^7 instantiations
+    Term t = addMInt(var("X0"), var("Y0"));
+    for (int i = 1; i < 7; i++) {
+      Term next = addMInt(var("X" + i), var("Y" + i));
+      t =
+          TermCons.apply(
+              ConsPStack.from(Arrays.asList(next, t)), PAIR, Optional.empty(), Optional.empty());
+    }
+    Term term = t;
+    assertThrows(
+        SortInferencer.UnsupportedTermException.class,
+        () -> inferParametric(term, Sorts.KItem()));
+  }
+}
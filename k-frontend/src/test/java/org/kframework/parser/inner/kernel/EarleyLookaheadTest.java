@@ -0,0 +1,115 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.kernel;
+
+import static org.junit.Assert.*;
+import static org.kframework.Collections.*;
+import static org.kframework.definition.Constructors.*;
+import static org.kframework.kore.KORE.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import org.kframework.attributes.Att;
+import org.kframework.attributes.Source;
+import org.kframework.builtin.Sorts;
+import org.kframework.definition.Module;
+import org.kframework.definition.Production;
+import org.kframework.definition.ProductionItem;
+import org.kframework.definition.Sentence;
+import org.kframework.kore.Sort;
+import org.kframework.main.GlobalOptions;
+import org.kframework.parser.Term;
+import org.kframework.parser.outer.ParseRegex;
+import org.kframework.utils.errorsystem.KEMException;
+
+/** Checks that pruning states with lookahead does not change the parse forest. */
+public class EarleyLookaheadTest {
+
+  private static final Sort EXP = Sort("Exp");
+  private static final Sort OPT = Sort("Opt");
+  private static final Sort ITEM = Sort("Item");
+  private static final Sort ITEMS = Sort("Items");
+
+  private static Production prod(String label, Sort sort, ProductionItem... items) {
+    return Production(KLabel(label), sort, Seq(items));
+  }
+
+  private static Module module(Production... prods) {
+    List<Sentence> sentences = new ArrayList<>(List.of(prods));
+    sentences.add(SyntaxSort(Seq(), Sorts.Layout()));
+    sentences.add(
+        Production(Seq(), Sorts.Layout(), Seq(RegexTerminal(ParseRegex.parse("[\\ ]+")))));
+    return Module("TEST", Set(), immutable(new HashSet<>(sentences)), Att.empty());
+  }
+
+  // no priorities or associativity, so that sums and applications are ambiguous
+  private static final Module AMBIGUOUS =
+      module(
+          prod("one", EXP, Terminal("1")),
+          prod("paren", EXP, Terminal("("), NonTerminal(EXP), Terminal(")")),
+          prod("plus", EXP, NonTerminal(EXP), Terminal("+"), NonTerminal(EXP)),
+          prod("apply", EXP, NonTerminal(EXP), NonTerminal(EXP)));
+
+  private static final Module NULLABLE =
+      module(
+          prod("none", OPT),
+          prod("some", OPT, Terminal("x")),
+          prod("item", ITEM, NonTerminal(OPT), Terminal("a"), NonTerminal(OPT)),
+          prod("nil", ITEMS),
+          prod("cons", ITEMS, NonTerminal(ITEM), NonTerminal(ITEMS)));
+
+  private final List<Scanner> scanners = new ArrayList<>();
+
+  @After
+  public void tearDown() {
+    scanners.forEach(Scanner::close);
+  }
+
+  private EarleyParser parser(Module module, Sort start, boolean lookahead) {
+    GlobalOptions go = new GlobalOptions();
+    go.scanner = GlobalOptions.ScannerBackend.JVM;
+    Scanner scanner = new Scanner(module, Scanner.getTokens(module), go);
+    scanners.add(scanner);
+    return new EarleyParser(module, scanner, start, false, lookahead);
+  }
+
+  private static Term parse(EarleyParser parser, String input) {
+    return parser.parse(input, Source.apply("test"), 1, 1);
+  }
+
+  private void assertSameForests(Module module, Sort start, String... inputs) {
+    EarleyParser plain = parser(module, start, false);
+    EarleyParser pruned = parser(module, start, true);
+    for (String input : inputs) {
+      assertEquals(input, parse(plain, input), parse(pruned, input));
+    }
+    assertEquals(0, plain.getPrunedStates());
+  }
+
+  @Test
+  public void testAmbiguousGrammar() {
+    assertSameForests(
+        AMBIGUOUS, EXP, "1", "1 + 1 + 1", "1 1 1", "1 + 1 1 + 1", "(1 + 1) 1", "1 (1 + (1 1))");
+    EarleyParser pruned = parser(AMBIGUOUS, EXP, true);
+    parse(pruned, "1 + 1 1");
+    assertTrue(pruned.getPrunedStates() > 0);
+  }
+
+  @Test
+  public void testNullableGrammar() {
+    assertSameForests(NULLABLE, ITEMS, "", "a", "x a", "a x", "a x a", "x a x a x", "a a a");
+  }
+
+  @Test
+  public void testSameErrors() {
+    EarleyParser plain = parser(AMBIGUOUS, EXP, false);
+    EarleyParser pruned = parser(AMBIGUOUS, EXP, true);
+    for (String input : List.of("1 +", "+ 1", "(1 1", "1 )")) {
+      KEMException expected = assertThrows(KEMException.class, () -> parse(plain, input));
+      KEMException actual = assertThrows(KEMException.class, () -> parse(pruned, input));
+      assertEquals(input, expected.getMessage(), actual.getMessage());
+    }
+  }
+}
@@ -0,0 +1,51 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.kernel;
+
+import static org.junit.Assert.*;
+import static org.kframework.parser.inner.kernel.EarleyParser.*;
+
+import org.junit.Test;
+import org.kframework.utils.errorsystem.KEMException;
+
+public class EarleyStateTest {
+
+  private static final int[] FIELDS = {
+    0, 1, 0xFFFF, 0x10000, Integer.MAX_VALUE / 2, Integer.MAX_VALUE - 1, Integer.MAX_VALUE
+  };
+
+  @Test
+  public void testRoundTrip() {
+    for (int item : FIELDS) {
+      for (int start : FIELDS) {
+        long state = state(item, start);
+        assertTrue(state >= 0);
+        assertEquals(item, item(state));
+        assertEquals(start, start(state));
+      }
+    }
+  }
+
+  @Test
+  public void testAdvanceKeepsStart() {
+    for (int start : FIELDS) {
+      long state = advance(state(Integer.MAX_VALUE - 1, start));
+      assertEquals(Integer.MAX_VALUE, item(state));
+      assertEquals(start, start(state));
+    }
+  }
+
+  @Test
+  public void testStatesAreDistinct() {
+    assertNotEquals(state(1, 0), state(0, 1));
+    assertNotEquals(state(0, Integer.MAX_VALUE), state(1, 0));
+    assertEquals(state(1, 0), advance(state(0, 0)));
+  }
+
+  @Test
+  public void testOverflowFails() {
+    assertThrows(KEMException.class, () -> state(-1, 0));
+    assertThrows(KEMException.class, () -> state(0, -1));
+    assertThrows(KEMException.class, () -> state(Integer.MAX_VALUE + 1, 0));
+    assertThrows(KEMException.class, () -> state(0, Integer.MAX_VALUE + 1));
+  }
+}
@@ -0,0 +1,143 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.kernel;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class LineIndexTest {
+
+  /**
+   * The line and column of each UTF-8 offset of a sentence, computed character by character as the
+   * parser did before {@link LineIndex}: every code point is one column, and the LF of a CR LF pair
+   * is on the same line as the CR.
+   */
+  private static int[][] expected(String input, int startLine, int startColumn) {
+    byte[] utf8 = input.getBytes(StandardCharsets.UTF_8);
+    int[] lines = new int[utf8.length + 1];
+    int[] columns = new int[utf8.length + 1];
+    int l = startLine;
+    int c = startColumn;
+    int utf8Offset = 0;
+    for (int offset = 0; offset < input.length(); ) {
+      int codePoint = input.codePointAt(offset);
+      int numBytes = Character.toString(codePoint).getBytes(StandardCharsets.UTF_8).length;
+      for (int i = 0; i < numBytes; i++) {
+        lines[utf8Offset + i] = l;
+        columns[utf8Offset + i] = c;
+      }
+      offset += Character.charCount(codePoint);
+      utf8Offset += numBytes;
+      switch (codePoint) {
+        case '\r':
+          if (offset < input.length() && input.charAt(offset) == '\n') {
+            lines[utf8Offset] = l;
+            columns[utf8Offset] = c + 1;
+            offset++;
+            utf8Offset++;
+          }
+        case '\n':
+        case '\u000B':
+        case '\u000C':
+        case '\u0085':
+        case '\u2028':
+        case '\u2029':
+          l++;
+          c = 1;
+          break;
+        default:
+          c++;
+      }
+    }
+    lines[utf8.length] = l;
+    columns[utf8.length] = c;
+    return new int[][] {lines, columns};
+  }
+
+  private static void assertSameLocations(String input, int startLine, int startColumn) {
+    byte[] utf8 = input.getBytes(StandardCharsets.UTF_8);
+    LineIndex index = new LineIndex(utf8, startLine, startColumn);
+    int[][] expected = expected(input, startLine, startColumn);
+    for (int offset = 0; offset <= utf8.length; offset++) {
+      // columns are only defined at the start of a code point
+      if (offset < utf8.length && (utf8[offset] & 0xC0) == 0x80) {
+        continue;
+      }
+      assertEquals("line at " + offset, expected[0][offset], index.line(offset));
+      assertEquals("column at " + offset, expected[1][offset], index.column(offset));
+    }
+  }
+
+  private static void assertSameLocations(String input) {
+    assertSameLocations(input, 1, 1);
+    assertSameLocations(input, 7, 12);
+  }
+
+  @Test
+  public void testLineTerminators() {
+    assertSameLocations("");
+    assertSameLocations("ab\ncd\n");
+    assertSameLocations("ab\r\ncd\r\n\r\nef");
+    assertSameLocations("ab\rcd\r\rx\r");
+    assertSameLocations("\n\r\n\r\u000B\u000C");
+    assertSameLocations("a\u0085b\u2028c\u2029d");
+  }
+
+  @Test
+  public void testNonAscii() {
+    assertSameLocations("é → x\ny");
+    assertSameLocations("😀a\r\n😀😀b");
+    assertSameLocations("x 😀 \uD7FF\uE000\uFFFF 😀");
+  }
+
+  private static String repeat(String s, int bytes) {
+    return s.repeat(bytes / s.getBytes(StandardCharsets.UTF_8).length);
+  }
+
+  @Test
+  public void testBlockBoundaries() {
+    // a code point across the first boundary
+    assertSameLocations("a".repeat(1023) + "😀b\r\nc");
+    assertSameLocations("a".repeat(1022) + "é\ré");
+    // a CR LF pair across the boundary
+    assertSameLocations("é" + "a".repeat(1021) + "\r\n😀");
+    // sentences ending exactly at a boundary
+    assertSameLocations(repeat("é", 1024));
+    assertSameLocations(repeat("😀", 2048));
+    assertSameLocations(repeat("é\n", 3072) + "x");
+    assertSameLocations(repeat("ab😀\r\n", 4096) + "😀");
+  }
+
+  @Test
+  public void testAsciiOnly() {
+    assertSameLocations("a".repeat(3000) + "\r\n" + "b".repeat(3000));
+  }
+
+  @Test
+  public void testTokens() {
+    String input = "é 😀 ab\r\ncd";
+    byte[] utf8 = input.getBytes(StandardCharsets.UTF_8);
+    Tokens tokens = new Tokens(0);
+    tokens.add(1, 0, 2);
+    tokens.add(2, 3, 7);
+    tokens.add(3, 8, 10);
+    tokens.add(4, 12, 14);
+    tokens.add(0, utf8.length, utf8.length);
+    assertEquals(5, tokens.size());
+    assertEquals(2, tokens.kind(1));
+    assertEquals(3, tokens.start(1));
+    assertEquals(7, tokens.end(1));
+    assertEquals("é", tokens.value(0, utf8));
+    assertEquals("😀", tokens.value(1, utf8));
+    assertEquals("ab", tokens.value(2, utf8));
+    assertEquals("cd", tokens.value(3, utf8));
+    assertEquals("", tokens.value(4, utf8));
+
+    LineIndex index = new LineIndex(utf8, 1, 1);
+    assertEquals(5, index.column(tokens.start(2)));
+    assertEquals(2, index.line(tokens.start(3)));
+    assertEquals(1, index.column(tokens.start(3)));
+    assertEquals(3, index.column(tokens.end(4)));
+  }
+}
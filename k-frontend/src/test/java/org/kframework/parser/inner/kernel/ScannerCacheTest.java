@@ -0,0 +1,160 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.kernel;
+
+import static org.junit.Assert.*;
+import static org.kframework.Collections.*;
+import static org.kframework.definition.Constructors.*;
+import static org.kframework.kore.KORE.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kframework.attributes.Att;
+import org.kframework.attributes.Source;
+import org.kframework.builtin.Sorts;
+import org.kframework.definition.Module;
+import org.kframework.definition.Sentence;
+import org.kframework.definition.TerminalLike;
+import org.kframework.main.GlobalOptions;
+import org.kframework.parser.outer.ParseRegex;
+import scala.Tuple2;
+
+public class ScannerCacheTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final Module LAYOUT =
+      Module(
+          "LAYOUT",
+          Set(),
+          Set(
+              SyntaxSort(Seq(), Sorts.Layout()),
+              Production(Seq(), Sorts.Layout(), Seq(RegexTerminal(ParseRegex.parse("[\\ ]+"))))),
+          Att.empty());
+
+  private static Map<TerminalLike, Tuple2<Integer, Integer>> tokens(String... terminals) {
+    List<Sentence> sentences = new ArrayList<>();
+    for (String terminal : terminals) {
+      sentences.add(Production(KLabel(terminal), Sort("Exp"), Seq(Terminal(terminal))));
+    }
+    return Scanner.getTokens(
+        Module("TOKENS", Set(), immutable(new HashSet<>(sentences)), Att.empty()));
+  }
+
+  private final List<Scanner> scanners = new ArrayList<>();
+
+  @After
+  public void tearDown() {
+    scanners.forEach(Scanner::close);
+  }
+
+  private File cacheDir() {
+    return new File(folder.getRoot(), "scanners");
+  }
+
+  private Scanner scanner(Map<TerminalLike, Tuple2<Integer, Integer>> tokens) {
+    GlobalOptions go = new GlobalOptions();
+    go.scannerCacheDir = cacheDir().getAbsolutePath();
+    Scanner scanner = new Scanner(LAYOUT, tokens, go);
+    scanners.add(scanner);
+    return scanner;
+  }
+
+  private List<File> entries() {
+    return Arrays.stream(cacheDir().listFiles())
+        .filter(f -> !f.getName().startsWith("tmp-scanner-"))
+        .toList();
+  }
+
+  private static Object fileKey(File file) throws IOException {
+    return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+  }
+
+  private static int tokenCount(Scanner scanner, String input) {
+    byte[] utf8 = input.getBytes(StandardCharsets.UTF_8);
+    return scanner.tokenize(input, Source.apply("test"), new LineIndex(utf8, 1, 1)).size();
+  }
+
+  @Test
+  public void testSameTokensHitTheCache() throws IOException {
+    scanner(tokens("a", "b"));
+    List<File> entries = entries();
+    assertEquals(1, entries.size());
+    File entry = entries.get(0);
+    Object key = fileKey(entry);
+    assertTrue(entry.setLastModified(0));
+
+    scanner(tokens("a", "b"));
+    assertEquals(entries, entries());
+    // the entry is not compiled again, but it is marked as used
+    assertEquals(key, fileKey(entry));
+    assertTrue(entry.lastModified() > 0);
+  }
+
+  @Test
+  public void testOtherTokensMissTheCache() {
+    scanner(tokens("a", "b"));
+    scanner(tokens("a", "c"));
+    assertEquals(2, entries().size());
+  }
+
+  @Test
+  public void testPrunedScannerIsBuiltAgain() {
+    Scanner scanner = scanner(tokens("a", "b"));
+    File entry = entries().get(0);
+    assertTrue(entry.delete());
+    // two tokens and EOF
+    assertEquals(3, tokenCount(scanner, "a b"));
+    assertTrue(entry.canExecute());
+  }
+
+  private File entry(String name, long lastUsed) throws IOException {
+    File file = new File(cacheDir(), name);
+    assertTrue(file.createNewFile());
+    assertTrue(file.setLastModified(lastUsed));
+    return file;
+  }
+
+  @Test
+  public void testPruneDeletesLeastRecentlyUsed() throws IOException {
+    assertTrue(cacheDir().mkdirs());
+    long now = System.currentTimeMillis();
+    long old = now - 2 * Scanner.RECENTLY_USED_MILLIS;
+    File oldest = entry("oldest", old - 1000);
+    File older = entry("older", old);
+    for (int i = 0; i < Scanner.MAX_CACHED_SCANNERS - 1; i++) {
+      entry("recent" + i, now);
+    }
+    File staleTmp = entry("tmp-scanner-stale", now - 2 * Scanner.STALE_TEMPORARY_FILE_MILLIS);
+    File tmp = entry("tmp-scanner-running", now);
+
+    Scanner.pruneCache(cacheDir());
+    assertFalse(oldest.exists());
+    assertTrue(older.exists());
+    assertEquals(Scanner.MAX_CACHED_SCANNERS, entries().size());
+    assertFalse(staleTmp.exists());
+    assertTrue(tmp.exists());
+  }
+
+  @Test
+  public void testPruneKeepsRecentlyUsed() throws IOException {
+    assertTrue(cacheDir().mkdirs());
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < Scanner.MAX_CACHED_SCANNERS + 2; i++) {
+      entry("recent" + i, now - i);
+    }
+    Scanner.pruneCache(cacheDir());
+    assertEquals(Scanner.MAX_CACHED_SCANNERS + 2, entries().size());
+  }
+}
@@ -0,0 +1,140 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.kernel;
+
+import static org.junit.Assert.*;
+import static org.kframework.Collections.*;
+import static org.kframework.definition.Constructors.*;
+import static org.kframework.kore.KORE.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kframework.attributes.Att;
+import org.kframework.attributes.Source;
+import org.kframework.builtin.Sorts;
+import org.kframework.definition.Module;
+import org.kframework.main.GlobalOptions;
+import org.kframework.parser.outer.ParseRegex;
+import org.kframework.utils.errorsystem.KEMException;
+
+public class ScannerPrefetchTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final Module MODULE =
+      Module(
+          "TEST",
+          Set(),
+          Set(
+              SyntaxSort(Seq(), Sorts.Layout()),
+              Production(Seq(), Sorts.Layout(), Seq(RegexTerminal(ParseRegex.parse("[\\ ]+")))),
+              Production(KLabel("a"), Sort("Exp"), Seq(Terminal("a"))),
+              Production(KLabel("b"), Sort("Exp"), Seq(Terminal("b")))),
+          Att.empty());
+
+  private final List<Scanner> scanners = new ArrayList<>();
+  private Scanner scanner;
+
+  @Before
+  public void setUp() {
+    scanner = scanner();
+  }
+
+  @After
+  public void tearDown() {
+    scanners.forEach(Scanner::close);
+  }
+
+  private Scanner scanner() {
+    GlobalOptions go = new GlobalOptions();
+    go.scannerCacheDir = folder.getRoot().getAbsolutePath();
+    Scanner s = new Scanner(MODULE, Scanner.getTokens(MODULE), go);
+    scanners.add(s);
+    return s;
+  }
+
+  private static Tokens tokenize(Scanner scanner, String input) {
+    byte[] utf8 = input.getBytes(StandardCharsets.UTF_8);
+    return scanner.tokenize(input, Source.apply("test"), new LineIndex(utf8, 1, 1));
+  }
+
+  private static void assertSameTokens(Tokens expected, Tokens actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.kind(i), actual.kind(i));
+      assertEquals(expected.start(i), actual.start(i));
+      assertEquals(expected.end(i), actual.end(i));
+    }
+  }
+
+  // enough distinct sentences for several batches
+  private static List<String> sentences() {
+    List<String> sentences = new ArrayList<>();
+    for (int i = 1; i <= 500; i++) {
+      sentences.add(Integer.toBinaryString(i).replace('0', 'a').replace('1', 'b').replace("", " "));
+    }
+    return sentences;
+  }
+
+  @Test
+  public void testBatchedTokensMatchSingleRequests() {
+    List<String> sentences = sentences();
+    scanner.prefetch(sentences);
+    Scanner unbatched = scanner();
+    for (String sentence : sentences) {
+      assertTrue(scanner.isPrefetched(sentence));
+      assertSameTokens(tokenize(unbatched, sentence), tokenize(scanner, sentence));
+    }
+  }
+
+  @Test
+  public void testErrorInTheMiddleOfABatch() {
+    scanner.prefetch(List.of("a", "a ? b", "b"));
+    KEMException e = assertThrows(KEMException.class, () -> tokenize(scanner, "a ? b"));
+    assertTrue(e.getMessage().contains("'?'"));
+    assertEquals(3, e.exception.getLocation().startColumn());
+    // the other sentences of the batch are still served, by the same process
+    assertTrue(scanner.isPrefetched("b"));
+    assertEquals(2, tokenize(scanner, "b").size());
+    assertEquals(1, scanner.idleProcessCount());
+  }
+
+  @Test
+  public void testReleaseDropsUnusedTokens() {
+    scanner.prefetch(List.of("a", "b", "b"));
+    tokenize(scanner, "a");
+    scanner.release(List.of("a", "b", "b"));
+    assertFalse(scanner.isPrefetched("a"));
+    assertFalse(scanner.isPrefetched("b"));
+  }
+
+  @Test
+  public void testReleaseKeepsTokensOfOtherUsers() {
+    List<String> first = List.of("a", "b");
+    List<String> second = List.of("b", "a b");
+    scanner.prefetch(first);
+    scanner.prefetch(second);
+    tokenize(scanner, "b");
+    scanner.release(first);
+    assertFalse(scanner.isPrefetched("a"));
+    assertTrue(scanner.isPrefetched("b"));
+    assertTrue(scanner.isPrefetched("a b"));
+    scanner.release(second);
+    assertFalse(scanner.isPrefetched("b"));
+    assertFalse(scanner.isPrefetched("a b"));
+  }
+
+  @Test
+  public void testIdleProcessesFollowDemand() {
+    scanner.prefetch(sentences());
+    // the processes started for the batches are not needed once they are done
+    assertEquals(1, scanner.idleProcessCount());
+    tokenize(scanner, "a b a");
+    assertEquals(1, scanner.idleProcessCount());
+  }
+}
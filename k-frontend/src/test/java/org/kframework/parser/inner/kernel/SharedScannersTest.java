@@ -0,0 +1,158 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.kernel;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.Lists;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kframework.attributes.Source;
+import org.kframework.definition.Definition;
+import org.kframework.definition.Module;
+import org.kframework.kompile.Kompile;
+import org.kframework.kompile.KompileOptions;
+import org.kframework.main.GlobalOptions;
+import org.kframework.parser.ParserUtils;
+import org.kframework.parser.inner.RuleGrammarGenerator;
+import org.kframework.utils.errorsystem.KExceptionManager;
+import org.kframework.utils.file.FileUtil;
+
+public class SharedScannersTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final String EXP =
+      "syntax Exp ::= r\"[0-9]+\" [token] | Exp \"+\" Exp [left]\n"
+          + "syntax #Layout ::= r\"([\\\\ \\\\n])\"\n";
+
+  private static RuleGrammarGenerator gen;
+
+  @BeforeClass
+  public static void loadPrelude() {
+    FileUtil files = FileUtil.testFileUtil();
+    ParserUtils parser = new ParserUtils(files, new KExceptionManager(new GlobalOptions()));
+    File definitionFile = new File(Kompile.BUILTIN_DIRECTORY + "/prelude.md");
+    Definition baseK =
+        parser.loadDefinition(
+            new KompileOptions.MainModule("K", KompileOptions.OptionType.USER_PROVIDED),
+            new KompileOptions.SyntaxModule("K", KompileOptions.OptionType.USER_PROVIDED),
+            files.loadFromWorkingDirectory(definitionFile.getPath()),
+            definitionFile,
+            definitionFile.getParentFile(),
+            Lists.newArrayList(Kompile.BUILTIN_DIRECTORY),
+            false,
+            false,
+            false);
+    gen = new RuleGrammarGenerator(baseK);
+  }
+
+  // the seed module of the program parser of a module, a new object on every call
+  private static Module seed(String name, String syntax) {
+    Module mod =
+        ParserUtils.parseMainModuleOuterSyntax(
+            "module " + name + "\n" + syntax + "endmodule",
+            Source.apply("generated by SharedScannersTest"),
+            name);
+    return gen.getProgramsGrammar(mod);
+  }
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(8);
+  private final List<SharedScanners> shared = new ArrayList<>();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    shared.forEach(SharedScanners::close);
+  }
+
+  private SharedScanners scanners(GlobalOptions.ScannerBackend backend) {
+    GlobalOptions go = new GlobalOptions();
+    go.scanner = backend;
+    go.scannerCacheDir = folder.getRoot().getAbsolutePath();
+    SharedScanners scanners = new SharedScanners(go);
+    shared.add(scanners);
+    return scanners;
+  }
+
+  @Test
+  public void testSameTokensShareAScanner() {
+    SharedScanners scanners = scanners(GlobalOptions.ScannerBackend.JVM);
+    Module a = seed("A", EXP);
+    // another module with the same syntax
+    Module b = seed("B", EXP);
+    Module moreTokens = seed("C", EXP + "syntax Exp ::= Exp \"*\" Exp\n");
+    Module otherLayout = seed("D", EXP.replace("\\\\n", "\\\\t"));
+    List<Module> seeds = List.of(a, b, moreTokens, otherLayout);
+    seeds.forEach(scanners::add);
+    assertEquals(3, scanners.unbuilt().size());
+
+    Scanner scanner = scanners.build(a);
+    assertTrue(scanners.unbuilt().stream().noneMatch(m -> m == a || m == b));
+    assertSame(scanner, scanners.build(b));
+    assertNotSame(scanner, scanners.build(moreTokens));
+    assertNotSame(scanner, scanners.build(otherLayout));
+    assertNotSame(scanners.build(moreTokens), scanners.build(otherLayout));
+    assertTrue(scanners.unbuilt().isEmpty());
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrentBuildsAreDeduplicated() throws Exception {
+    SharedScanners scanners = scanners(GlobalOptions.ScannerBackend.JVM);
+    List<Module> seeds = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      seeds.add(seed("M" + i, EXP));
+    }
+    seeds.forEach(scanners::add);
+    assertEquals(1, scanners.unbuilt().size());
+
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<Scanner>> built = new ArrayList<>();
+    for (Module seed : seeds) {
+      built.add(
+          executor.submit(
+              () -> {
+                start.await();
+                return scanners.build(seed);
+              }));
+    }
+    start.countDown();
+    Set<Scanner> distinct = new HashSet<>();
+    for (Future<Scanner> f : built) {
+      distinct.add(f.get());
+    }
+    assertEquals(1, distinct.size());
+  }
+
+  @Test
+  public void testCloseReleasesScanners() {
+    SharedScanners scanners = scanners(GlobalOptions.ScannerBackend.FLEX);
+    Module a = seed("A", EXP);
+    Module b = seed("B", EXP + "syntax Exp ::= Exp \"*\" Exp\n");
+    scanners.add(a);
+    scanners.add(b);
+    List<Scanner> built = List.of(scanners.build(a), scanners.build(b));
+    for (Scanner scanner : built) {
+      String input = "1 + 2";
+      byte[] utf8 = input.getBytes(StandardCharsets.UTF_8);
+      scanner.tokenize(input, Source.apply("test"), new LineIndex(utf8, 1, 1));
+      assertEquals(1, scanner.idleProcessCount());
+    }
+    scanners.close();
+    for (Scanner scanner : built) {
+      assertEquals(0, scanner.idleProcessCount());
+    }
+  }
+}
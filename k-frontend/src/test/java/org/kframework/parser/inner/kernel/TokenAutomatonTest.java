@@ -0,0 +1,146 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+package org.kframework.parser.inner.kernel;
+
+import static org.junit.Assert.*;
+import static org.kframework.Collections.*;
+import static org.kframework.definition.Constructors.*;
+import static org.kframework.kore.KORE.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import org.kframework.attributes.Att;
+import org.kframework.attributes.Source;
+import org.kframework.builtin.Sorts;
+import org.kframework.definition.Module;
+import org.kframework.definition.Production;
+import org.kframework.definition.TerminalLike;
+import org.kframework.main.GlobalOptions;
+import org.kframework.parser.outer.ParseRegex;
+import org.kframework.utils.errorsystem.KEMException;
+import scala.Tuple2;
+
+/** Compares the tokens of the JVM scanner with those of the flex scanner of the same grammar. */
+public class TokenAutomatonTest {
+
+  private static Production token(String sort, String regex) {
+    return Production(Seq(), Sort(sort), Seq(RegexTerminal(ParseRegex.parse(regex))));
+  }
+
+  // wins over Int and Id, since it has a higher precedence
+  private static final Production HEX =
+      Production(
+          Seq(),
+          Sort("Hex"),
+          Seq(RegexTerminal(ParseRegex.parse("[0-9a-f]+"))),
+          Att.empty().add(Att.PREC(), "2"));
+  private static final Production CHAR = token("Char", "\\'[^\\']\\'");
+
+  private static final Module TOKENS =
+      Module(
+          "TOKENS",
+          Set(),
+          Set(
+              Production(KLabel("if"), Sort("Exp"), Seq(Terminal("if"))),
+              Production(KLabel("assign"), Sort("Exp"), Seq(Terminal("="))),
+              Production(KLabel("eq"), Sort("Exp"), Seq(Terminal("=="))),
+              Production(KLabel("arrow"), Sort("Exp"), Seq(Terminal("→"))),
+              token("Id", "[a-z][a-z0-9]*"),
+              token("Int", "[0-9]+"),
+              HEX,
+              token("String", "\\\"[^\\\"]*\\\""),
+              CHAR),
+          Att.empty());
+
+  private static final Module LAYOUT =
+      Module(
+          "LAYOUT",
+          Set(),
+          Set(
+              SyntaxSort(Seq(), Sorts.Layout()),
+              token(Sorts.Layout().name(), "[\\ \\n]+"),
+              token(Sorts.Layout().name(), "\\/\\/[^\\n]*")),
+          Att.empty());
+
+  private static final Map<TerminalLike, Tuple2<Integer, Integer>> KINDS =
+      Scanner.getTokens(TOKENS);
+
+  private final List<Scanner> scanners = new ArrayList<>();
+
+  @After
+  public void tearDown() {
+    scanners.forEach(Scanner::close);
+  }
+
+  private Scanner scanner(GlobalOptions.ScannerBackend backend) {
+    GlobalOptions go = new GlobalOptions();
+    go.scanner = backend;
+    go.noScannerCache = true;
+    Scanner scanner = new Scanner(LAYOUT, KINDS, go);
+    scanners.add(scanner);
+    return scanner;
+  }
+
+  // kind, start and end of each token
+  private static List<List<Integer>> tokenize(Scanner scanner, String input) {
+    byte[] utf8 = input.getBytes(StandardCharsets.UTF_8);
+    Tokens tokens = scanner.tokenize(input, Source.apply("test"), new LineIndex(utf8, 1, 1));
+    List<List<Integer>> result = new ArrayList<>();
+    for (int i = 0; i < tokens.size(); i++) {
+      result.add(List.of(tokens.kind(i), tokens.start(i), tokens.end(i)));
+    }
+    return result;
+  }
+
+  private void assertSameTokens(String... inputs) {
+    Scanner flex = scanner(GlobalOptions.ScannerBackend.FLEX);
+    Scanner jvm = scanner(GlobalOptions.ScannerBackend.JVM);
+    for (String input : inputs) {
+      assertEquals(input, tokenize(flex, input), tokenize(jvm, input));
+    }
+  }
+
+  private static int kind(Production token) {
+    return KINDS.get(token.items().head())._1();
+  }
+
+  @Test
+  public void testLongestMatch() {
+    assertSameTokens("if iff ifx = == ===", "a==b", "x=1");
+  }
+
+  @Test
+  public void testPriorities() {
+    assertSameTokens("if", "12 1f 12g f1", "abc 0abc");
+    Scanner jvm = scanner(GlobalOptions.ScannerBackend.JVM);
+    assertEquals(kind(HEX), (int) tokenize(jvm, "12").get(0).get(0));
+  }
+
+  @Test
+  public void testNegatedClasses() {
+    assertSameTokens("\"a b\" \"\" x // if \"", "\"\\n\"", "'a' '\"'", "// comment\nif");
+  }
+
+  @Test
+  public void testNonAscii() {
+    assertSameTokens("\"é → 😀\" → x", "a→b // 😀 é\n\"😀😀\"", "\"\uD7FF\uE000\uFFFF\"");
+  }
+
+  @Test
+  public void testNoMatch() {
+    Scanner flex = scanner(GlobalOptions.ScannerBackend.FLEX);
+    Scanner jvm = scanner(GlobalOptions.ScannerBackend.JVM);
+    assertThrows(KEMException.class, () -> tokenize(flex, "x # y"));
+    assertThrows(KEMException.class, () -> tokenize(jvm, "x # y"));
+  }
+
+  @Test
+  public void testNegatedClassMatchesWholeCodePoints() {
+    // unlike flex, which only matches one byte of the character and fails
+    Scanner jvm = scanner(GlobalOptions.ScannerBackend.JVM);
+    assertEquals(List.of(List.of(kind(CHAR), 0, 6), List.of(0, 6, 6)), tokenize(jvm, "'😀'"));
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+
+package org.kframework.definition
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.ObjectInputStream
+import java.io.ObjectOutputStream
+import org.junit.Assert
+import org.junit.Test
+import org.kframework.attributes.Att
+import org.kframework.builtin.BooleanUtils
+import org.kframework.kore.K
+import org.kframework.kore.KORE.KLabel
+import org.kframework.kore.KORE.KToken
+import org.kframework.kore.KORE.Sort
+import scala.collection.immutable
+
+class ModuleIndexTest {
+  private val int = Sort("Int")
+  private val exp = Sort("Exp")
+
+  private def binary(op: String) =
+    immutable.Seq(NonTerminal(exp, None), Terminal(op), NonTerminal(exp, None))
+
+  private val plus =
+    Production(KLabel("_+_"), immutable.Seq(), exp, binary("+"), Att.empty.add(Att.FUNCTION))
+
+  private val module = Module(
+    "TEST",
+    immutable.Set(),
+    immutable.Set(
+      SyntaxSort(immutable.Seq(), int),
+      SyntaxSort(immutable.Seq(), exp),
+      Production(immutable.Seq(), exp, immutable.Seq(NonTerminal(int, None)), Att.empty),
+      plus,
+      Rule(KToken("1", int), BooleanUtils.TRUE, BooleanUtils.TRUE, Att.empty)
+    ),
+    Att.empty
+  )
+
+  private def fresh(m: Module): ModuleIndex =
+    Module(m.name, m.imports, m.localSentences, m.att).index
+
+  private def assertSameIndex(expected: ModuleIndex, actual: ModuleIndex): Unit = {
+    Assert.assertEquals(expected.productionsFor, actual.productionsFor)
+    Assert.assertEquals(expected.productionsForSort, actual.productionsForSort)
+    Assert.assertEquals(expected.sortDeclarationsFor, actual.sortDeclarationsFor)
+    Assert.assertEquals(expected.subsorts, actual.subsorts)
+    Assert.assertEquals(expected.overloads, actual.overloads)
+    Assert.assertEquals(expected.signatureFor, actual.signatureFor)
+    Assert.assertEquals(expected.attributesFor, actual.attributesFor)
+    Assert.assertEquals(expected.sortAttributesFor, actual.sortAttributesFor)
+  }
+
+  @Test def testReusedIndexMatchesFreshOne(): Unit = {
+    val previous = module.index
+    val transformed = ModuleTransformer
+      .fromRuleBodyTransformer((k: K) => KToken("2", int), "test")
+      .apply(module)
+    Assert.assertNotSame(module, transformed)
+    Assert.assertSame(previous, transformed.index)
+    assertSameIndex(fresh(transformed), transformed.index)
+  }
+
+  @Test def testChangedSyntaxIsIndexedAgain(): Unit = {
+    val previous = module.index
+    val transformed = ModuleTransformer
+      .fromSentenceTransformer(
+        (s: Sentence) =>
+          s match {
+            case p: Production if p eq plus => p.copy(items = binary("-"))
+            case _                          => s
+          },
+        "test"
+      )
+      .apply(module)
+    Assert.assertNotSame(previous, transformed.index)
+    Assert.assertEquals(binary("-"), transformed.productionsFor(KLabel("_+_")).head.items)
+    assertSameIndex(fresh(transformed), transformed.index)
+  }
+
+  @Test def testIndexIsSavedWithItsModule(): Unit = {
+    val m     = fresh(module)
+    val index = m.index
+    val bytes = new ByteArrayOutputStream()
+    val out   = new ObjectOutputStream(bytes)
+    out.writeObject(m)
+    out.close()
+    val loaded = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray))
+      .readObject()
+      .asInstanceOf[Module]
+    assertSameIndex(index, loaded.index)
+    // an index which is loaded is still reused by the modules transformed from its module
+    val transformed = ModuleTransformer
+      .fromRuleBodyTransformer((k: K) => KToken("2", int), "test")
+      .apply(loaded)
+    Assert.assertSame(loaded.index, transformed.index)
+  }
+}
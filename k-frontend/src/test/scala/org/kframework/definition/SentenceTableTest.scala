@@ -0,0 +1,58 @@
+// Copyright (c) Runtime Verification, Inc. All Rights Reserved.
+
+package org.kframework.definition
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.ObjectInputStream
+import java.io.ObjectOutputStream
+import org.junit.Assert
+import org.junit.Test
+import org.kframework.attributes.Att
+import org.kframework.kore.KORE.Sort
+import scala.collection.immutable
+
+class SentenceTableTest {
+  private val sort = Sort("Foo")
+
+  // productions which are equal, since their equality ignores these attributes
+  private def prod(att: Att): Production =
+    Production(immutable.Seq(), sort, immutable.Seq(Terminal("foo")), att)
+
+  private val imported  = prod(Att.empty)
+  private val local     = prod(Att.empty.add(Att.MACRO))
+  private val unrelated = prod(Att.empty.add(Att.ALIAS))
+
+  private val a = Module("A", immutable.Set(), immutable.Set(imported), Att.empty)
+  private val b =
+    Module("B", immutable.Set(Import(a, isPublic = true)), immutable.Set(local), Att.empty)
+  private val c = Module("C", immutable.Set(), immutable.Set(unrelated), Att.empty)
+  Definition(b, immutable.Set(b, c), Att.empty)
+
+  @Test def testModuleKeepsItsOwnInstance(): Unit = {
+    Assert.assertTrue(b.sentences.isInstanceOf[IndexedSentences[_]])
+    Assert.assertEquals(1, b.productions.size)
+    Assert.assertSame(local, b.productions.head)
+    Assert.assertSame(imported, a.productions.head)
+    Assert.assertSame(unrelated, c.productions.head)
+    Assert.assertTrue(b.sentences.contains(unrelated))
+  }
+
+  @Test def testUnionKeepsOneInstance(): Unit = {
+    val union = a.sentences | b.sentences
+    Assert.assertEquals(1, union.size)
+    Assert.assertEquals(0, b.sentences.diff(c.sentences).size)
+  }
+
+  @Test def testSerializedAsPlainSet(): Unit = {
+    val bytes = new ByteArrayOutputStream()
+    val out   = new ObjectOutputStream(bytes)
+    out.writeObject(b.sentences)
+    out.close()
+    val in   = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray))
+    val read = in.readObject().asInstanceOf[immutable.Set[Sentence]]
+    Assert.assertFalse(read.isInstanceOf[IndexedSentences[_]])
+    Assert.assertEquals(b.sentences, read)
+    Assert.assertEquals(Att.empty.add(Att.MACRO), read.head.att)
+  }
+}